@@ -46,6 +46,7 @@ public class SecurityConfig {
                         .pathMatchers("/auth/**").permitAll()
                         .pathMatchers(HttpMethod.GET, "/products/**").permitAll()
                         .pathMatchers(HttpMethod.GET, "/media/**").permitAll()
+                        .pathMatchers(HttpMethod.GET, "/view/**").permitAll()
 
                         // Protected endpoints - user profile
                         .pathMatchers("/users/me").hasAnyRole("CLIENT", "SELLER")
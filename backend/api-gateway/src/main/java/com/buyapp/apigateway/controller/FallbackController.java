@@ -0,0 +1,75 @@
+package com.buyapp.apigateway.controller;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ServerWebExchange;
+
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Circuit breaker fallbacks, reached through a route's
+ * {@code fallbackUri: forward:/fallback/...} after the downstream call failed
+ * or while the breaker is open.
+ */
+@RestController
+@RequestMapping("/fallback")
+public class FallbackController {
+
+    public static final String FALLBACK_HEADER = "X-Fallback";
+
+    private static final String RETRY_AFTER_SECONDS = "10";
+
+    /**
+     * Public list reads (product catalog, product images) degrade to an empty
+     * list so pages still render. Writes on the same route get a 503.
+     */
+    @RequestMapping("/{service}/list")
+    public ResponseEntity<Object> listFallback(@PathVariable String service, ServerWebExchange exchange) {
+        if (HttpMethod.GET.equals(exchange.getRequest().getMethod())) {
+            return ResponseEntity.ok()
+                    .header(FALLBACK_HEADER, service)
+                    .body(List.of());
+        }
+        return unavailable(service);
+    }
+
+    /**
+     * Public batch reads keyed by id (images of many products) degrade to an
+     * empty map, the shape their clients expect. Writes get a 503.
+     */
+    @RequestMapping("/{service}/map")
+    public ResponseEntity<Object> mapFallback(@PathVariable String service, ServerWebExchange exchange) {
+        if (HttpMethod.GET.equals(exchange.getRequest().getMethod())) {
+            return ResponseEntity.ok()
+                    .header(FALLBACK_HEADER, service)
+                    .body(Map.of());
+        }
+        return unavailable(service);
+    }
+
+    @RequestMapping("/{service}")
+    public ResponseEntity<Object> fallback(@PathVariable String service) {
+        return unavailable(service);
+    }
+
+    private ResponseEntity<Object> unavailable(String service) {
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("timestamp", LocalDateTime.now());
+        error.put("status", HttpStatus.SERVICE_UNAVAILABLE.value());
+        error.put("error", "Service Unavailable");
+        error.put("message", service + " is temporarily unavailable, please try again shortly");
+
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(FALLBACK_HEADER, service)
+                .header(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS)
+                .body(error);
+    }
+}
@@ -0,0 +1,63 @@
+package com.buyapp.apigateway.controller;
+
+import com.buyapp.apigateway.service.ProductViewService;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Mono;
+
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Aggregated views served by the gateway itself, so a page needs one
+ * request instead of one per service.
+ */
+@RestController
+@RequestMapping("/view")
+public class ProductViewController {
+
+    private final ProductViewService productViewService;
+
+    public ProductViewController(ProductViewService productViewService) {
+        this.productViewService = productViewService;
+    }
+
+    /**
+     * Product, images and seller (with avatar) for the product detail page.
+     */
+    @GetMapping("/products/{id}")
+    public Mono<ResponseEntity<Map<String, Object>>> getProductView(@PathVariable String id) {
+        return productViewService.getProductView(id)
+                .map(ResponseEntity::ok)
+                .onErrorResume(e -> Mono.just(productError(id, e)));
+    }
+
+    private ResponseEntity<Map<String, Object>> productError(String id, Throwable e) {
+        HttpStatus status;
+        String message;
+        if (e instanceof WebClientResponseException.NotFound) {
+            status = HttpStatus.NOT_FOUND;
+            message = "Product not found with id: " + id;
+        } else if (e instanceof TimeoutException) {
+            status = HttpStatus.GATEWAY_TIMEOUT;
+            message = "product-service did not answer in time";
+        } else {
+            status = HttpStatus.SERVICE_UNAVAILABLE;
+            message = "product-service is temporarily unavailable, please try again shortly";
+        }
+
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("timestamp", LocalDateTime.now());
+        error.put("status", status.value());
+        error.put("error", status.getReasonPhrase());
+        error.put("message", message);
+        return ResponseEntity.status(status).body(error);
+    }
+}
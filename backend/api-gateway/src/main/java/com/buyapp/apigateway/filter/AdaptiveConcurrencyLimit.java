@@ -0,0 +1,206 @@
+package com.buyapp.apigateway.filter;
+
+/**
+ * Concurrency limit for one downstream service that adapts to its response
+ * times, in the style of the gradient limiters from Netflix concurrency-limits.
+ *
+ * Responses are collected in windows of about one limit's worth. Each
+ * window's average RTT is compared against a baseline RTT, re-measured now
+ * and then with the queue drained (see {@link #startProbe()}): while they
+ * agree the limit creeps up by about sqrt(limit), once queueing makes the RTT
+ * rise above the baseline the limit shrinks in proportion. A window with a
+ * timeout or 5xx cuts the limit multiplicatively instead (AIMD), since those
+ * carry no useful RTT.
+ *
+ * Each priority has a guaranteed share of the limit and may borrow any
+ * capacity that is idle. Under overload everyone is held to their share, so
+ * anonymous browsing is shed first while writes keep going.
+ */
+public class AdaptiveConcurrencyLimit {
+
+    public enum Priority {
+        AUTHENTICATED_WRITE(0.5),
+        AUTHENTICATED_READ(0.3),
+        ANONYMOUS(0.2);
+
+        private final double share;
+
+        Priority(double share) {
+            this.share = share;
+        }
+
+        public double getShare() {
+            return share;
+        }
+    }
+
+    // How far the short RTT may rise above the baseline before the limit shrinks
+    private static final double RTT_TOLERANCE = 1.5;
+    private static final double SMOOTHING = 0.2;
+    private static final double BACKOFF_RATIO = 0.9;
+    private static final int MIN_WINDOW = 10;
+    // Limit updates between two baseline probes
+    private static final int PROBE_INTERVAL_WINDOWS = 200;
+
+    private final int minLimit;
+    private final int maxLimit;
+
+    private double limit;
+    private int inFlight;
+    private final int[] inFlightByPriority = new int[Priority.values().length];
+    private double baselineRtt;
+    private boolean probing;
+    private double limitBeforeProbe;
+    private int windowsUntilProbe = PROBE_INTERVAL_WINDOWS;
+
+    // Samples collected since the last limit update
+    private int windowSamples;
+    private int windowMaxInFlight;
+    private boolean windowDropped;
+    private double windowRttSum;
+
+    public AdaptiveConcurrencyLimit(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || minLimit > maxLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Concurrency limits must satisfy 1 <= min <= initial <= max");
+        }
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+    }
+
+    /**
+     * Takes a slot if the limit has room, or if this priority has not used
+     * up its guaranteed share. Every successful acquire must be followed by
+     * exactly one of {@link #onSuccess}, {@link #onDropped} or
+     * {@link #onIgnore} with the same priority.
+     */
+    public synchronized boolean tryAcquire(Priority priority) {
+        int reserved = Math.max(1, (int) (limit * priority.getShare()));
+        if (inFlight >= limit && inFlightByPriority[priority.ordinal()] >= reserved) {
+            return false;
+        }
+        inFlight++;
+        inFlightByPriority[priority.ordinal()]++;
+        return true;
+    }
+
+    public synchronized void onSuccess(Priority priority, long rttNanos) {
+        int inFlightAtCompletion = release(priority);
+        if (probing) {
+            probeSample(inFlightAtCompletion, rttNanos);
+            return;
+        }
+        windowRttSum += rttNanos;
+        windowMaxInFlight = Math.max(windowMaxInFlight, inFlightAtCompletion);
+        closeWindowIfFull();
+    }
+
+    /**
+     * The call timed out or the service reported it could not cope.
+     */
+    public synchronized void onDropped(Priority priority) {
+        windowMaxInFlight = Math.max(windowMaxInFlight, release(priority));
+        if (probing) {
+            return;
+        }
+        windowDropped = true;
+        closeWindowIfFull();
+    }
+
+    /**
+     * Releases the slot without learning anything, e.g. for a cancelled call
+     * or one that an open circuit breaker answered.
+     */
+    public synchronized void onIgnore(Priority priority) {
+        release(priority);
+    }
+
+    public synchronized double getLimit() {
+        return limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    private int release(Priority priority) {
+        inFlightByPriority[priority.ordinal()]--;
+        return inFlight--;
+    }
+
+    // One update per round of roughly a limit's worth of responses, like a TCP congestion window
+    private void closeWindowIfFull() {
+        windowSamples++;
+        if (windowSamples < Math.max(MIN_WINDOW, (int) limit)) {
+            return;
+        }
+        int samples = windowSamples;
+        int maxInFlight = windowMaxInFlight;
+        boolean dropped = windowDropped;
+        double rttSum = windowRttSum;
+        windowSamples = 0;
+        windowMaxInFlight = 0;
+        windowDropped = false;
+        windowRttSum = 0;
+
+        if (dropped) {
+            setLimit(limit * BACKOFF_RATIO);
+            return;
+        }
+
+        double rtt = rttSum / samples;
+        if (baselineRtt == 0 || rtt < baselineRtt) {
+            baselineRtt = rtt;
+        }
+
+        // With less than half the limit in use the RTT says nothing about the limit
+        if (maxInFlight < limit / 2) {
+            return;
+        }
+
+        double gradient = Math.max(0.5, Math.min(1.0, RTT_TOLERANCE * baselineRtt / rtt));
+        double target = limit * gradient + Math.sqrt(limit);
+        setLimit(limit * (1 - SMOOTHING) + target * SMOOTHING);
+
+        if (--windowsUntilProbe <= 0) {
+            startProbe();
+        }
+    }
+
+    /**
+     * Under steady overload the queue never drains, so the RTT seen is never
+     * the service's own. Periodically drop to the minimum limit, measure the
+     * RTT with the queue empty and take that as the new baseline, which also
+     * lets a service that got slower for good become the new normal.
+     */
+    private void startProbe() {
+        probing = true;
+        limitBeforeProbe = limit;
+        limit = minLimit;
+        windowSamples = 0;
+        windowRttSum = 0;
+    }
+
+    private void probeSample(int inFlightAtCompletion, long rttNanos) {
+        // Responses still draining from the old queue say nothing about the baseline
+        if (inFlightAtCompletion > minLimit) {
+            return;
+        }
+        windowRttSum += rttNanos;
+        if (++windowSamples < MIN_WINDOW) {
+            return;
+        }
+        baselineRtt = windowRttSum / windowSamples;
+        limit = limitBeforeProbe;
+        probing = false;
+        windowsUntilProbe = PROBE_INTERVAL_WINDOWS;
+        windowSamples = 0;
+        windowMaxInFlight = 0;
+        windowDropped = false;
+        windowRttSum = 0;
+    }
+
+    private void setLimit(double newLimit) {
+        limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+    }
+}
@@ -0,0 +1,238 @@
+package com.buyapp.apigateway.filter;
+
+import com.buyapp.apigateway.filter.AdaptiveConcurrencyLimit.Priority;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.cloud.gateway.filter.GatewayFilter;
+import org.springframework.cloud.gateway.filter.factory.AbstractGatewayFilterFactory;
+import org.springframework.cloud.gateway.support.HasRouteId;
+import org.springframework.cloud.gateway.support.ServiceUnavailableException;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.core.context.ReactiveSecurityContextHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.springframework.cloud.gateway.support.ServerWebExchangeUtils.CIRCUITBREAKER_EXECUTION_EXCEPTION_ATTR;
+
+/**
+ * Route filter that caps concurrent calls to a downstream service with an
+ * {@link AdaptiveConcurrencyLimit} and answers the excess with 503 and
+ * {@code Retry-After}. Routes that share a {@code name} share one limit, like
+ * circuit breaker names. List it first so shed requests never reach the
+ * circuit breaker or retries.
+ *
+ * Publishes {@code gateway.concurrency.limit}, {@code gateway.concurrency.inflight}
+ * and {@code gateway.concurrency.shed} tagged with the limiter name.
+ */
+@Component
+public class AdaptiveConcurrencyLimitGatewayFilterFactory
+        extends AbstractGatewayFilterFactory<AdaptiveConcurrencyLimitGatewayFilterFactory.Config> {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveConcurrencyLimitGatewayFilterFactory.class);
+
+    private final Map<String, AdaptiveConcurrencyLimit> limits = new ConcurrentHashMap<>();
+
+    private final MeterRegistry meterRegistry;
+
+    public AdaptiveConcurrencyLimitGatewayFilterFactory(MeterRegistry meterRegistry) {
+        super(Config.class);
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public GatewayFilter apply(Config config) {
+        String name = config.getName() != null ? config.getName() : config.getRouteId();
+        AdaptiveConcurrencyLimit limit = limits.computeIfAbsent(name, key -> register(key, config));
+        Map<Priority, Counter> shed = new EnumMap<>(Priority.class);
+        for (Priority priority : Priority.values()) {
+            shed.put(priority, Counter.builder("gateway.concurrency.shed")
+                    .tag("limiter", name)
+                    .tag("priority", priority.name().toLowerCase())
+                    .register(meterRegistry));
+        }
+        String retryAfter = String.valueOf(Math.max(1, config.getRetryAfter().toSeconds()));
+
+        return (exchange, chain) -> priorityOf(exchange).flatMap(priority -> {
+            if (!limit.tryAcquire(priority)) {
+                shed.get(priority).increment();
+                logger.debug("Shedding {} {} for {} ({} in flight, limit {})", exchange.getRequest().getMethod(),
+                        exchange.getRequest().getURI().getPath(), name, limit.getInFlight(), (int) limit.getLimit());
+                return reject(exchange.getResponse(), name, retryAfter);
+            }
+
+            long start = System.nanoTime();
+            AtomicBoolean released = new AtomicBoolean();
+            return chain.filter(exchange)
+                    .doOnSuccess(v -> {
+                        if (released.compareAndSet(false, true)) {
+                            onResponse(limit, priority, exchange, System.nanoTime() - start);
+                        }
+                    })
+                    .doOnError(error -> {
+                        if (released.compareAndSet(false, true)) {
+                            if (isCircuitOpen(error)) {
+                                limit.onIgnore(priority);
+                            } else {
+                                limit.onDropped(priority);
+                            }
+                        }
+                    })
+                    .doOnCancel(() -> {
+                        if (released.compareAndSet(false, true)) {
+                            limit.onIgnore(priority);
+                        }
+                    });
+        });
+    }
+
+    private AdaptiveConcurrencyLimit register(String name, Config config) {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(
+                config.getInitialLimit(), config.getMinLimit(), config.getMaxLimit());
+        Gauge.builder("gateway.concurrency.limit", limit, AdaptiveConcurrencyLimit::getLimit)
+                .tag("limiter", name)
+                .register(meterRegistry);
+        Gauge.builder("gateway.concurrency.inflight", limit, AdaptiveConcurrencyLimit::getInFlight)
+                .tag("limiter", name)
+                .register(meterRegistry);
+        return limit;
+    }
+
+    private void onResponse(AdaptiveConcurrencyLimit limit, Priority priority, ServerWebExchange exchange,
+            long rttNanos) {
+        Throwable circuitBreakerError = exchange.getAttribute(CIRCUITBREAKER_EXECUTION_EXCEPTION_ATTR);
+        HttpStatusCode status = exchange.getResponse().getStatusCode();
+        if (circuitBreakerError != null && isCircuitOpen(circuitBreakerError)) {
+            // Answered by the fallback without calling the service
+            limit.onIgnore(priority);
+        } else if (circuitBreakerError != null || (status != null && status.is5xxServerError())) {
+            limit.onDropped(priority);
+        } else {
+            limit.onSuccess(priority, rttNanos);
+        }
+    }
+
+    private boolean isCircuitOpen(Throwable error) {
+        for (Throwable t = error; t != null; t = t.getCause()) {
+            if (t instanceof CallNotPermittedException || t instanceof ServiceUnavailableException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes count most, then authenticated reads, then anonymous browsing.
+     * Authentication comes from the security context set by JwtRequestFilter,
+     * not from headers the client could send itself.
+     */
+    Mono<Priority> priorityOf(ServerWebExchange exchange) {
+        HttpMethod method = exchange.getRequest().getMethod();
+        boolean read = HttpMethod.GET.equals(method) || HttpMethod.HEAD.equals(method)
+                || HttpMethod.OPTIONS.equals(method);
+        return ReactiveSecurityContextHolder.getContext()
+                .map(context -> context.getAuthentication() != null
+                        && !(context.getAuthentication() instanceof AnonymousAuthenticationToken))
+                .defaultIfEmpty(false)
+                .map(authenticated -> {
+                    if (!authenticated) {
+                        return Priority.ANONYMOUS;
+                    }
+                    return read ? Priority.AUTHENTICATED_READ : Priority.AUTHENTICATED_WRITE;
+                });
+    }
+
+    private Mono<Void> reject(ServerHttpResponse response, String name, String retryAfter) {
+        response.setStatusCode(HttpStatus.SERVICE_UNAVAILABLE);
+        response.getHeaders().set(HttpHeaders.RETRY_AFTER, retryAfter);
+        response.getHeaders().setContentType(MediaType.APPLICATION_JSON);
+        byte[] body = ("{\"status\":503,\"error\":\"Service Unavailable\",\"message\":\""
+                + name + " is overloaded, please retry shortly\"}").getBytes(StandardCharsets.UTF_8);
+        DataBuffer buffer = response.bufferFactory().wrap(body);
+        return response.writeWith(Mono.just(buffer));
+    }
+
+    public static class Config implements HasRouteId {
+
+        private String routeId;
+
+        // Limiter shared by all routes with the same name, defaults to the route id
+        private String name;
+
+        private int initialLimit = 20;
+
+        private int minLimit = 4;
+
+        private int maxLimit = 500;
+
+        private Duration retryAfter = Duration.ofSeconds(1);
+
+        @Override
+        public void setRouteId(String routeId) {
+            this.routeId = routeId;
+        }
+
+        @Override
+        public String getRouteId() {
+            return routeId;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public int getInitialLimit() {
+            return initialLimit;
+        }
+
+        public void setInitialLimit(int initialLimit) {
+            this.initialLimit = initialLimit;
+        }
+
+        public int getMinLimit() {
+            return minLimit;
+        }
+
+        public void setMinLimit(int minLimit) {
+            this.minLimit = minLimit;
+        }
+
+        public int getMaxLimit() {
+            return maxLimit;
+        }
+
+        public void setMaxLimit(int maxLimit) {
+            this.maxLimit = maxLimit;
+        }
+
+        public Duration getRetryAfter() {
+            return retryAfter;
+        }
+
+        public void setRetryAfter(Duration retryAfter) {
+            this.retryAfter = retryAfter;
+        }
+    }
+}
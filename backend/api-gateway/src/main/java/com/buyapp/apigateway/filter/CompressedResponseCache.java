@@ -0,0 +1,43 @@
+package com.buyapp.apigateway.filter;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least-recently-used cache of compressed response bodies, keyed by the
+ * digest of the uncompressed body and bounded by the total size of the
+ * cached bodies.
+ */
+public class CompressedResponseCache {
+
+    private final long maxBytes;
+    private final Map<String, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    public CompressedResponseCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized byte[] get(String key) {
+        return entries.get(key);
+    }
+
+    public synchronized void put(String key, byte[] body) {
+        if (body.length > maxBytes) {
+            return;
+        }
+        byte[] previous = entries.put(key, body);
+        bytes += body.length - (previous != null ? previous.length : 0);
+
+        Iterator<byte[]> eldest = entries.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().length;
+            eldest.remove();
+        }
+    }
+
+    public synchronized long size() {
+        return bytes;
+    }
+}
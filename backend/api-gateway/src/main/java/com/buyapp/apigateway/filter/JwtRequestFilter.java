@@ -34,14 +34,16 @@ public class JwtRequestFilter implements WebFilter {
         String path = exchange.getRequest().getPath().value();
         String method = exchange.getRequest().getMethod().name();
 
-        // Allow public endpoints
-        if (isPublicEndpoint(path, method)) {
-            return chain.filter(exchange);
-        }
-
         // Extract Authorization header
         String authHeader = exchange.getRequest().getHeaders().getFirst("Authorization");
 
+        // Allow public endpoints; a valid token still identifies the caller, e.g. for request priority
+        if (isPublicEndpoint(path, method)) {
+            UsernamePasswordAuthenticationToken authentication = authenticateIfPresent(authHeader);
+            return authentication == null ? chain.filter(exchange)
+                    : chain.filter(exchange).contextWrite(ReactiveSecurityContextHolder.withAuthentication(authentication));
+        }
+
         if (authHeader == null || !authHeader.startsWith("Bearer ")) {
             exchange.getResponse().setStatusCode(HttpStatus.UNAUTHORIZED);
             return exchange.getResponse().setComplete();
@@ -53,12 +55,7 @@ public class JwtRequestFilter implements WebFilter {
 
             String email = claims.getSubject();
             String role = claims.get("role", String.class);
-
-            // Create authentication token with role
-            List<SimpleGrantedAuthority> authorities = Collections.singletonList(
-                    new SimpleGrantedAuthority("ROLE_" + role.toUpperCase()));
-            UsernamePasswordAuthenticationToken authentication = new UsernamePasswordAuthenticationToken(email, null,
-                    authorities);
+            UsernamePasswordAuthenticationToken authentication = authenticationOf(email, role);
 
             // Add user info as headers for downstream services
             ServerHttpRequest modifiedRequest = exchange.getRequest().mutate()
@@ -80,15 +77,35 @@ public class JwtRequestFilter implements WebFilter {
         }
     }
 
+    // Create authentication token with role
+    private static UsernamePasswordAuthenticationToken authenticationOf(String email, String role) {
+        List<SimpleGrantedAuthority> authorities = Collections.singletonList(
+                new SimpleGrantedAuthority("ROLE_" + role.toUpperCase()));
+        return new UsernamePasswordAuthenticationToken(email, null, authorities);
+    }
+
+    // Public endpoints stay open to callers whose token is missing or invalid
+    private UsernamePasswordAuthenticationToken authenticateIfPresent(String authHeader) {
+        if (authHeader == null || !authHeader.startsWith("Bearer ")) {
+            return null;
+        }
+        try {
+            Claims claims = jwtUtil.extractClaims(authHeader.substring(7));
+            return authenticationOf(claims.getSubject(), claims.get("role", String.class));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
     private boolean isPublicEndpoint(String path, String method) {
         // Public auth endpoints
         if (path.startsWith("/auth/")) {
             return true;
         }
 
-        // Public GET endpoints for products and media
+        // Public GET endpoints for products, media and the aggregated views built from them
         if ("GET".equalsIgnoreCase(method)) {
-            if (path.startsWith("/products") || path.startsWith("/media/")) {
+            if (path.startsWith("/products") || path.startsWith("/media/") || path.startsWith("/view/")) {
                 return true;
             }
         }
@@ -0,0 +1,256 @@
+package com.buyapp.apigateway.filter;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.reactivestreams.Publisher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.gateway.route.Route;
+import org.springframework.core.Ordered;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpResponseDecorator;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.HandlerMapping;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import org.springframework.web.util.pattern.PathPattern;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import static org.springframework.cloud.gateway.support.ServerWebExchangeUtils.GATEWAY_ROUTE_ATTR;
+
+/**
+ * Gzips text responses (JSON listings, error pages) for clients that send
+ * {@code Accept-Encoding: gzip}. Bodies below {@code min-response-size} are
+ * not worth the CPU, bodies larger than {@code max-response-size} are passed
+ * through rather than buffered (at most that much is held when the length is
+ * not announced), and images and anything already encoded are left alone.
+ *
+ * Compressed bodies of shareable GET responses are cached by the digest of
+ * the uncompressed body, so the same product listing is only compressed
+ * once. Publishes {@code gateway.compression.bytes.saved} and
+ * {@code gateway.compression.responses} tagged with the route.
+ */
+@Component
+public class ResponseCompressionFilter implements WebFilter, Ordered {
+
+    private static final Logger logger = LoggerFactory.getLogger(ResponseCompressionFilter.class);
+
+    private static final String GZIP = "gzip";
+
+    private final int minResponseSize;
+    private final long maxResponseSize;
+    private final List<MediaType> mimeTypes;
+    private final CompressedResponseCache cache;
+    private final MeterRegistry meterRegistry;
+
+    public ResponseCompressionFilter(MeterRegistry meterRegistry,
+            @Value("${gateway.compression.min-response-size}") int minResponseSize,
+            @Value("${gateway.compression.max-response-size}") long maxResponseSize,
+            @Value("${gateway.compression.cache-size}") long cacheSize,
+            @Value("${gateway.compression.mime-types}") String[] mimeTypes) {
+        this.meterRegistry = meterRegistry;
+        this.minResponseSize = minResponseSize;
+        this.maxResponseSize = maxResponseSize;
+        this.mimeTypes = Arrays.stream(mimeTypes).map(String::trim).map(MediaType::parseMediaType).toList();
+        this.cache = new CompressedResponseCache(cacheSize);
+        Gauge.builder("gateway.compression.cache.size", cache, CompressedResponseCache::size)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        ServerHttpRequest request = exchange.getRequest();
+        if (HttpMethod.HEAD.equals(request.getMethod()) || !acceptsGzip(request.getHeaders())) {
+            return chain.filter(exchange);
+        }
+        return chain.filter(exchange.mutate().response(new CompressingResponse(exchange)).build());
+    }
+
+    @Override
+    public int getOrder() {
+        return -200; // Outside the security chain so its error pages are covered too
+    }
+
+    static boolean acceptsGzip(HttpHeaders headers) {
+        boolean accepted = false;
+        for (String value : headers.getOrEmpty(HttpHeaders.ACCEPT_ENCODING)) {
+            for (String coding : value.split(",")) {
+                String[] parts = coding.trim().split(";");
+                String name = parts[0].trim();
+                if (!name.equalsIgnoreCase(GZIP) && !name.equals("*")) {
+                    continue;
+                }
+                boolean refused = parts.length > 1 && parts[1].trim().matches("q=0(\\.0*)?");
+                if (name.equalsIgnoreCase(GZIP)) {
+                    // An explicit gzip entry overrides the wildcard
+                    return !refused;
+                }
+                accepted = !refused;
+            }
+        }
+        return accepted;
+    }
+
+    private class CompressingResponse extends ServerHttpResponseDecorator {
+
+        private final ServerWebExchange exchange;
+
+        CompressingResponse(ServerWebExchange exchange) {
+            super(exchange.getResponse());
+            this.exchange = exchange;
+        }
+
+        @Override
+        public Mono<Void> writeWith(Publisher<? extends DataBuffer> body) {
+            HttpHeaders headers = getHeaders();
+            if (!isCompressible(headers)) {
+                return super.writeWith(body);
+            }
+            if (!headers.getVary().contains(HttpHeaders.ACCEPT_ENCODING)) {
+                headers.add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+            }
+            long contentLength = headers.getContentLength();
+            if (contentLength >= 0 && (contentLength < minResponseSize || contentLength > maxResponseSize)) {
+                return super.writeWith(body);
+            }
+
+            // Without a Content-Length the size is only known while reading: buffers are held until the body
+            // ends or passes max-response-size, which emits them early and passes the rest through as it comes
+            AtomicLong read = new AtomicLong();
+            return Flux.from(body)
+                    .bufferUntil(buffer -> read.addAndGet(buffer.readableByteCount()) > maxResponseSize)
+                    .switchOnFirst((first, buffered) -> {
+                        if (first.hasValue() && read.get() > maxResponseSize) {
+                            return super.writeWith(buffered.concatMapIterable(buffers -> buffers));
+                        }
+                        return buffered.next()
+                                .flatMap(buffers -> DataBufferUtils.join(Flux.fromIterable(buffers)))
+                                .map(joined -> {
+                                    byte[] bytes = new byte[joined.readableByteCount()];
+                                    joined.read(bytes);
+                                    DataBufferUtils.release(joined);
+                                    return bytes;
+                                })
+                                .defaultIfEmpty(new byte[0])
+                                .flatMap(bytes -> super.writeWith(Mono.just(bufferFactory().wrap(encode(bytes)))));
+                    })
+                    .then();
+        }
+
+        private boolean isCompressible(HttpHeaders headers) {
+            HttpStatus status = HttpStatus.resolve(getStatusCode() != null ? getStatusCode().value() : 200);
+            if (status == HttpStatus.NO_CONTENT || status == HttpStatus.NOT_MODIFIED
+                    || status == HttpStatus.PARTIAL_CONTENT) {
+                return false;
+            }
+            if (headers.containsKey(HttpHeaders.CONTENT_ENCODING)
+                    || headers.getCacheControl() != null && headers.getCacheControl().contains("no-transform")) {
+                return false;
+            }
+            MediaType contentType = headers.getContentType();
+            return contentType != null && mimeTypes.stream().anyMatch(type -> type.isCompatibleWith(contentType));
+        }
+
+        private byte[] encode(byte[] bytes) {
+            String route = routeOf(exchange);
+            if (bytes.length < minResponseSize) {
+                return bytes;
+            }
+
+            byte[] compressed;
+            String cacheResult;
+            if (isShareable()) {
+                String key = GZIP + ":" + digest(bytes);
+                compressed = cache.get(key);
+                cacheResult = compressed != null ? "hit" : "miss";
+                if (compressed == null) {
+                    compressed = gzip(bytes);
+                    cache.put(key, compressed);
+                }
+            } else {
+                compressed = gzip(bytes);
+                cacheResult = "bypass";
+            }
+
+            if (compressed.length >= bytes.length) {
+                return bytes;
+            }
+
+            HttpHeaders headers = getHeaders();
+            headers.set(HttpHeaders.CONTENT_ENCODING, GZIP);
+            headers.setContentLength(compressed.length);
+            String etag = headers.getETag();
+            if (etag != null && !etag.startsWith("W/")) {
+                // The compressed body is a different byte sequence, so the strong validator no longer holds
+                headers.setETag("W/" + etag);
+            }
+
+            meterRegistry.counter("gateway.compression.bytes.saved", "route", route)
+                    .increment(bytes.length - compressed.length);
+            meterRegistry.counter("gateway.compression.responses", "route", route, "cache", cacheResult)
+                    .increment();
+            logger.debug("Compressed {} response from {} to {} bytes (cache {})", route, bytes.length,
+                    compressed.length, cacheResult);
+            return compressed;
+        }
+
+        // Per-user and no-store responses would only fill the cache with entries nobody else asks for
+        private boolean isShareable() {
+            ServerHttpRequest request = exchange.getRequest();
+            if (!HttpMethod.GET.equals(request.getMethod()) || !HttpStatus.OK.equals(getStatusCode())
+                    || request.getHeaders().containsKey(HttpHeaders.AUTHORIZATION)) {
+                return false;
+            }
+            String cacheControl = getHeaders().getCacheControl();
+            return cacheControl == null || !(cacheControl.contains("no-store") || cacheControl.contains("private"));
+        }
+    }
+
+    private static String routeOf(ServerWebExchange exchange) {
+        Route route = exchange.getAttribute(GATEWAY_ROUTE_ATTR);
+        if (route != null) {
+            return route.getId();
+        }
+        PathPattern pattern = exchange.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+        return pattern != null ? pattern.getPatternString() : "unmatched";
+    }
+
+    private static byte[] gzip(byte[] bytes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private static String digest(byte[] bytes) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.buyapp.apigateway.filter;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Limits retries to a fraction of the requests seen over a sliding window, so
+ * retries can never multiply the load on a service that is already struggling.
+ * A small floor of retries per second is always allowed so that quiet routes
+ * can still ride out a single failed call.
+ */
+public class RetryBudget {
+
+    private final double retryRatio;
+    private final int minRetriesPerSecond;
+    private final int windowSeconds;
+    private final LongSupplier clock;
+
+    // One bucket per second of the window, reused round-robin
+    private final long[] bucketSecond;
+    private final long[] requests;
+    private final long[] retries;
+
+    public RetryBudget(double retryRatio, int minRetriesPerSecond, int windowSeconds) {
+        this(retryRatio, minRetriesPerSecond, windowSeconds, System::currentTimeMillis);
+    }
+
+    RetryBudget(double retryRatio, int minRetriesPerSecond, int windowSeconds, LongSupplier clock) {
+        if (windowSeconds <= 0) {
+            throw new IllegalArgumentException("Retry budget window must be at least one second");
+        }
+        this.retryRatio = retryRatio;
+        this.minRetriesPerSecond = minRetriesPerSecond;
+        this.windowSeconds = windowSeconds;
+        this.clock = clock;
+        this.bucketSecond = new long[windowSeconds];
+        this.requests = new long[windowSeconds];
+        this.retries = new long[windowSeconds];
+    }
+
+    public synchronized void recordRequest() {
+        requests[currentBucket()]++;
+    }
+
+    /**
+     * Reserves one retry if the budget allows it.
+     *
+     * @return false when retrying now would exceed the budget
+     */
+    public synchronized boolean tryAcquireRetry() {
+        int bucket = currentBucket();
+        double allowed = (double) minRetriesPerSecond * windowSeconds + retryRatio * sum(requests);
+        if (sum(retries) + 1 > allowed) {
+            return false;
+        }
+        retries[bucket]++;
+        return true;
+    }
+
+    private int currentBucket() {
+        long second = clock.getAsLong() / 1000;
+        int bucket = (int) (second % windowSeconds);
+        if (bucketSecond[bucket] != second) {
+            bucketSecond[bucket] = second;
+            requests[bucket] = 0;
+            retries[bucket] = 0;
+        }
+        return bucket;
+    }
+
+    private long sum(long[] counts) {
+        long now = clock.getAsLong() / 1000;
+        long total = 0;
+        for (int i = 0; i < windowSeconds; i++) {
+            if (now - bucketSecond[i] < windowSeconds) {
+                total += counts[i];
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,114 @@
+package com.buyapp.apigateway.filter;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.cloud.gateway.filter.GatewayFilter;
+import org.springframework.cloud.gateway.filter.factory.AbstractGatewayFilterFactory;
+import org.springframework.cloud.gateway.support.HasRouteId;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Route filter that enforces a {@link RetryBudget}. It must be listed after the
+ * Retry filter so that every attempt passes through it: the first attempt is
+ * counted as a request, later attempts have to draw from the budget. When the
+ * budget is spent the attempt fails fast instead of hitting the service again.
+ */
+@Component
+public class RetryBudgetGatewayFilterFactory
+        extends AbstractGatewayFilterFactory<RetryBudgetGatewayFilterFactory.Config> {
+
+    private static final Logger logger = LoggerFactory.getLogger(RetryBudgetGatewayFilterFactory.class);
+
+    private static final String ATTEMPT_ATTR = RetryBudgetGatewayFilterFactory.class.getName() + ".attempt";
+
+    private final Map<String, RetryBudget> budgets = new ConcurrentHashMap<>();
+
+    private final MeterRegistry meterRegistry;
+
+    public RetryBudgetGatewayFilterFactory(MeterRegistry meterRegistry) {
+        super(Config.class);
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public GatewayFilter apply(Config config) {
+        String routeId = config.getRouteId();
+        RetryBudget budget = budgets.computeIfAbsent(routeId, id -> new RetryBudget(
+                config.getRatio(), config.getMinRetriesPerSecond(), (int) config.getWindow().toSeconds()));
+        Counter exhausted = Counter.builder("gateway.retry.budget.exhausted")
+                .tag("route", String.valueOf(routeId))
+                .register(meterRegistry);
+
+        return (exchange, chain) -> {
+            int attempt = exchange.getAttributeOrDefault(ATTEMPT_ATTR, 0) + 1;
+            exchange.getAttributes().put(ATTEMPT_ATTR, attempt);
+
+            if (attempt == 1) {
+                budget.recordRequest();
+            } else if (!budget.tryAcquireRetry()) {
+                exhausted.increment();
+                logger.warn("Retry budget exhausted for route {}, not retrying {} {}",
+                        routeId, exchange.getRequest().getMethod(), exchange.getRequest().getURI());
+                return Mono.error(new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE,
+                        "Retry budget exhausted for route " + routeId));
+            }
+
+            return chain.filter(exchange);
+        };
+    }
+
+    public static class Config implements HasRouteId {
+
+        private String routeId;
+
+        // Retries allowed as a fraction of requests in the window
+        private double ratio = 0.2;
+
+        private int minRetriesPerSecond = 5;
+
+        private Duration window = Duration.ofSeconds(10);
+
+        @Override
+        public void setRouteId(String routeId) {
+            this.routeId = routeId;
+        }
+
+        @Override
+        public String getRouteId() {
+            return routeId;
+        }
+
+        public double getRatio() {
+            return ratio;
+        }
+
+        public void setRatio(double ratio) {
+            this.ratio = ratio;
+        }
+
+        public int getMinRetriesPerSecond() {
+            return minRetriesPerSecond;
+        }
+
+        public void setMinRetriesPerSecond(int minRetriesPerSecond) {
+            this.minRetriesPerSecond = minRetriesPerSecond;
+        }
+
+        public Duration getWindow() {
+            return window;
+        }
+
+        public void setWindow(Duration window) {
+            this.window = window;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.buyapp.apigateway.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Builds the product detail page document in one gateway round trip.
+ *
+ * The product and its images are fetched in parallel; the seller (looked up
+ * by the product owner's email) and then the seller's avatar follow the
+ * product. Each leg has its own timeout. Only the product is required: a
+ * failed images or seller leg leaves an empty value and an entry under
+ * {@code errors}, and marks the document {@code partial}.
+ */
+@Service
+public class ProductViewService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProductViewService.class);
+
+    private static final ParameterizedTypeReference<Map<String, Object>> OBJECT = new ParameterizedTypeReference<>() {
+    };
+    private static final ParameterizedTypeReference<List<Map<String, Object>>> LIST = new ParameterizedTypeReference<>() {
+    };
+
+    private final WebClient webClient;
+    private final Duration productTimeout;
+    private final Duration mediaTimeout;
+    private final Duration userTimeout;
+
+    public ProductViewService(WebClient.Builder webClientBuilder,
+            @Value("${gateway.timeouts.products}") long productTimeoutMs,
+            @Value("${gateway.timeouts.media}") long mediaTimeoutMs,
+            @Value("${gateway.timeouts.users}") long userTimeoutMs) {
+        this.webClient = webClientBuilder.build();
+        this.productTimeout = Duration.ofMillis(productTimeoutMs);
+        this.mediaTimeout = Duration.ofMillis(mediaTimeoutMs);
+        this.userTimeout = Duration.ofMillis(userTimeoutMs);
+    }
+
+    /**
+     * @return the merged document, or an error from the product leg
+     *         ({@link WebClientResponseException} for a non-2xx answer,
+     *         {@link TimeoutException} when it took too long)
+     */
+    public Mono<Map<String, Object>> getProductView(String productId) {
+        Map<String, String> errors = Collections.synchronizedMap(new LinkedHashMap<>());
+
+        Mono<Map<String, Object>> product = webClient.get()
+                .uri("http://product-service/products/{id}", productId)
+                .retrieve()
+                .bodyToMono(OBJECT)
+                .timeout(productTimeout)
+                .cache();
+
+        Mono<List<Map<String, Object>>> images = webClient.get()
+                .uri("http://media-service/media/product/{productId}", productId)
+                .retrieve()
+                .bodyToMono(LIST)
+                .timeout(mediaTimeout)
+                .onErrorResume(e -> {
+                    errors.put("images", describe("media-service", e));
+                    return Mono.just(List.of());
+                });
+
+        Mono<Optional<Map<String, Object>>> seller = product
+                .flatMap(p -> p.get("user") instanceof String email ? seller(email, errors) : Mono.empty())
+                .map(Optional::of)
+                .defaultIfEmpty(Optional.empty());
+
+        return Mono.zip(product, images, seller).map(legs -> {
+            Map<String, Object> view = new LinkedHashMap<>();
+            view.put("product", legs.getT1());
+            view.put("images", legs.getT2());
+            view.put("seller", legs.getT3().orElse(null));
+            view.put("partial", !errors.isEmpty());
+            if (!errors.isEmpty()) {
+                view.put("errors", new LinkedHashMap<>(errors));
+            }
+            return view;
+        });
+    }
+
+    private Mono<Map<String, Object>> seller(String email, Map<String, String> errors) {
+        return webClient.get()
+                .uri("http://user-service/users/email/{email}", email)
+                .retrieve()
+                .bodyToMono(OBJECT)
+                .timeout(userTimeout)
+                .flatMap(user -> {
+                    Map<String, Object> seller = new LinkedHashMap<>();
+                    seller.put("id", user.get("id"));
+                    seller.put("name", user.get("name"));
+                    seller.put("email", user.get("email"));
+                    seller.put("role", user.get("role"));
+                    if (!(user.get("id") instanceof String userId)) {
+                        seller.put("avatar", null);
+                        return Mono.just(seller);
+                    }
+                    return avatar(userId, errors).map(avatar -> {
+                        seller.put("avatar", avatar.orElse(null));
+                        return seller;
+                    });
+                })
+                .onErrorResume(e -> {
+                    errors.put("seller", describe("user-service", e));
+                    return Mono.empty();
+                });
+    }
+
+    private Mono<Optional<Map<String, Object>>> avatar(String userId, Map<String, String> errors) {
+        return webClient.get()
+                .uri("http://media-service/media/avatar/user/{userId}", userId)
+                .retrieve()
+                .bodyToMono(OBJECT)
+                .timeout(mediaTimeout)
+                .map(Optional::of)
+                // Sellers without an avatar are answered with 404
+                .onErrorResume(WebClientResponseException.NotFound.class, e -> Mono.just(Optional.empty()))
+                .onErrorResume(e -> {
+                    errors.put("avatar", describe("media-service", e));
+                    return Mono.just(Optional.empty());
+                })
+                .defaultIfEmpty(Optional.empty());
+    }
+
+    private String describe(String service, Throwable e) {
+        logger.warn("Product view leg to {} failed: {}", service, e.toString());
+        if (e instanceof TimeoutException) {
+            return service + " did not answer in time";
+        }
+        if (e instanceof WebClientResponseException response) {
+            return service + " answered " + response.getStatusCode().value();
+        }
+        return service + " is unavailable";
+    }
+}
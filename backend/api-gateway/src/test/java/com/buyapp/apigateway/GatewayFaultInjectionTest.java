@@ -0,0 +1,303 @@
+package com.buyapp.apigateway;
+
+import com.buyapp.apigateway.controller.FallbackController;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.io.Decoders;
+import io.jsonwebtoken.security.Keys;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the real route configuration against a local stub that stands in for
+ * user-, product- and media-service, and injects latency and errors into it.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "server.ssl.enabled=false",
+        "eureka.client.enabled=false",
+        "gateway.timeouts.products=500",
+        "gateway.timeouts.media=500",
+        "resilience4j.circuitbreaker.instances.productService.sliding-window-size=4",
+        "resilience4j.circuitbreaker.instances.productService.minimum-number-of-calls=4",
+        "resilience4j.circuitbreaker.instances.productService.wait-duration-in-open-state=1s"
+})
+class GatewayFaultInjectionTest {
+
+    private static final String BOUNDARY = "gateway-test-boundary";
+
+    private static HttpServer stub;
+
+    private static volatile long productDelayMs;
+    private static volatile int productStatus;
+    private static volatile long mediaDelayMs;
+
+    private static final AtomicInteger productHits = new AtomicInteger();
+    private static final AtomicLong uploadedBytes = new AtomicLong();
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private WebTestClient webTestClient;
+
+    @Autowired
+    private CircuitBreakerRegistry circuitBreakerRegistry;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${jwt.secret-key}")
+    private String secretKey;
+
+    @DynamicPropertySource
+    static void stubServices(DynamicPropertyRegistry registry) throws IOException {
+        stub = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        stub.setExecutor(Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "slow-stub");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        stub.createContext("/products", exchange -> {
+            productHits.incrementAndGet();
+            respond(exchange, productDelayMs, productStatus, "[]");
+        });
+        stub.createContext("/media", exchange -> respond(exchange, mediaDelayMs, 200, "[]"));
+        stub.createContext("/media/upload", exchange -> {
+            uploadedBytes.addAndGet(exchange.getRequestBody().readAllBytes().length);
+            respond(exchange, 0, 200, "[]");
+        });
+        stub.start();
+
+        String uri = "http://localhost:" + stub.getAddress().getPort();
+        registry.add("spring.cloud.discovery.client.simple.instances.product-service[0].uri", () -> uri);
+        registry.add("spring.cloud.discovery.client.simple.instances.media-service[0].uri", () -> uri);
+        registry.add("spring.cloud.discovery.client.simple.instances.user-service[0].uri", () -> uri);
+    }
+
+    @AfterAll
+    static void stopStub() {
+        stub.stop(0);
+    }
+
+    @BeforeEach
+    void resetFaults() {
+        productDelayMs = 0;
+        productStatus = 200;
+        mediaDelayMs = 0;
+        productHits.set(0);
+        uploadedBytes.set(0);
+        circuitBreakerRegistry.getAllCircuitBreakers().forEach(CircuitBreaker::reset);
+        webTestClient = webTestClient.mutate().responseTimeout(Duration.ofSeconds(10)).build();
+    }
+
+    @Test
+    void slowMediaServiceDoesNotStallProductRoute() {
+        mediaDelayMs = 5_000;
+
+        // Saturate the media route with requests that will all hang
+        WebClient client = WebClient.create("http://localhost:" + port);
+        Disposable inFlight = Flux.range(0, 20)
+                .flatMap(i -> client.get().uri("/media/file/slow-" + i).retrieve().toBodilessEntity()
+                        .onErrorResume(e -> Mono.empty()))
+                .subscribe();
+
+        long start = System.nanoTime();
+        webTestClient.get().uri("/products")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().doesNotExist(FallbackController.FALLBACK_HEADER);
+        long elapsedMs = Duration.ofNanos(System.nanoTime() - start).toMillis();
+
+        assertTrue(elapsedMs < 1_000, "Product listing took " + elapsedMs + "ms while media-service was slow");
+        inFlight.dispose();
+    }
+
+    @Test
+    void timedOutCatalogReadFallsBackToEmptyList() {
+        productDelayMs = 2_000;
+
+        webTestClient.get().uri("/products")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().valueEquals(FallbackController.FALLBACK_HEADER, "product-service")
+                .expectBody().json("[]");
+
+        // The first attempt plus two idempotent retries
+        assertEquals(3, productHits.get());
+    }
+
+    @Test
+    void timedOutImageListingFallsBackToEmptyList() {
+        mediaDelayMs = 2_000;
+
+        webTestClient.get().uri("/media/product/p-1")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().valueEquals(FallbackController.FALLBACK_HEADER, "media-service")
+                .expectBody().json("[]");
+    }
+
+    @Test
+    void timedOutBatchImageLookupFallsBackToEmptyMap() {
+        mediaDelayMs = 2_000;
+
+        webTestClient.get().uri("/media/product/batch?ids=p-1,p-2")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().valueEquals(FallbackController.FALLBACK_HEADER, "media-service")
+                .expectBody().json("{}");
+    }
+
+    @Test
+    void writesAreNeverRetried() {
+        productStatus = 503;
+
+        webTestClient.post().uri("/products")
+                .header("Authorization", "Bearer " + sellerToken())
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue("{\"name\":\"Lamp\",\"description\":\"Desk lamp\",\"price\":10}")
+                .exchange()
+                .expectStatus().isEqualTo(HttpStatus.SERVICE_UNAVAILABLE);
+
+        assertEquals(1, productHits.get());
+    }
+
+    @Test
+    void batchUploadLargerThanOneImageReachesMediaService() {
+        // Arrange - three images of 1.5MB, together past the 2MB limit of single uploads
+        byte[] body = multipart("files", 3, 1_500_000);
+
+        // Act
+        webTestClient.post().uri("/media/upload/p-1/batch")
+                .header("Authorization", "Bearer " + sellerToken())
+                .contentType(MediaType.parseMediaType("multipart/form-data; boundary=" + BOUNDARY))
+                .bodyValue(body)
+                .exchange()
+                .expectStatus().isOk();
+
+        // Assert
+        assertEquals(body.length, uploadedBytes.get());
+    }
+
+    @Test
+    void singleUploadPastTwoMegabytesIsRejected() {
+        webTestClient.post().uri("/media/upload/p-1")
+                .header("Authorization", "Bearer " + sellerToken())
+                .contentType(MediaType.parseMediaType("multipart/form-data; boundary=" + BOUNDARY))
+                .bodyValue(multipart("file", 1, 3_000_000))
+                .exchange()
+                .expectStatus().isEqualTo(HttpStatus.PAYLOAD_TOO_LARGE);
+
+        assertEquals(0, uploadedBytes.get());
+    }
+
+    @Test
+    void openCircuitShortCircuitsThenProbesWhenHalfOpen() throws InterruptedException {
+        productStatus = 503;
+
+        for (int i = 0; i < 4; i++) {
+            webTestClient.get().uri("/products/p-1").exchange()
+                    .expectStatus().isEqualTo(HttpStatus.SERVICE_UNAVAILABLE);
+        }
+        assertEquals(CircuitBreaker.State.OPEN,
+                circuitBreakerRegistry.circuitBreaker("productService").getState());
+
+        // While open, requests are answered by the fallback without reaching the service
+        int hitsWhenOpened = productHits.get();
+        webTestClient.get().uri("/products/p-1").exchange()
+                .expectStatus().isEqualTo(HttpStatus.SERVICE_UNAVAILABLE)
+                .expectHeader().exists("Retry-After");
+        assertEquals(hitsWhenOpened, productHits.get());
+
+        // After the open wait, a probe is let through and succeeds
+        productStatus = 200;
+        Thread.sleep(1_500);
+        webTestClient.get().uri("/products/p-1").exchange()
+                .expectStatus().isOk();
+        assertEquals(hitsWhenOpened + 1, productHits.get());
+        assertEquals(CircuitBreaker.State.HALF_OPEN,
+                circuitBreakerRegistry.circuitBreaker("productService").getState());
+    }
+
+    @Test
+    void routedCallsGoThroughLatencyAwareBalancer() {
+        webTestClient.get().uri("/products").exchange().expectStatus().isOk();
+
+        assertNotNull(meterRegistry.find("loadbalancer.instance.chosen")
+                .tag("service", "product-service").counter());
+        assertNotNull(meterRegistry.find("loadbalancer.instance.latency")
+                .tag("service", "product-service").gauge());
+    }
+
+    // A multipart body with a known length, as browsers send it
+    private static byte[] multipart(String name, int files, int fileSize) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (int i = 0; i < files; i++) {
+            body.writeBytes(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"" + name
+                    + "\"; filename=\"photo-" + i + ".jpg\"\r\nContent-Type: image/jpeg\r\n\r\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            body.writeBytes(new byte[fileSize]);
+            body.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
+        }
+        body.writeBytes(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        return body.toByteArray();
+    }
+
+    private String sellerToken() {
+        return Jwts.builder()
+                .subject("seller@example.com")
+                .claim("role", "seller")
+                .signWith(Keys.hmacShaKeyFor(Decoders.BASE64.decode(secretKey)))
+                .compact();
+    }
+
+    private static void respond(HttpExchange exchange, long delayMs, int status, String body) throws IOException {
+        try {
+            if (delayMs > 0) {
+                Thread.sleep(delayMs);
+            }
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // Gateway gave up on the request and closed the connection
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.buyapp.apigateway;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Exercises {@code GET /view/products/{id}} against a local stub that stands
+ * in for product-, user- and media-service.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "server.ssl.enabled=false",
+        "eureka.client.enabled=false",
+        "gateway.timeouts.media=400"
+})
+class ProductViewTest {
+
+    private static HttpServer stub;
+
+    private static volatile int productStatus;
+    private static volatile long imagesDelayMs;
+    private static volatile long sellerDelayMs;
+    private static volatile int avatarStatus;
+
+    @Autowired
+    private WebTestClient webTestClient;
+
+    @DynamicPropertySource
+    static void stubServices(DynamicPropertyRegistry registry) throws IOException {
+        stub = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        stub.setExecutor(Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "view-stub");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        stub.createContext("/products/", exchange -> respond(exchange, 0, productStatus,
+                "{\"id\":\"p-1\",\"name\":\"Lamp\",\"description\":\"Desk lamp\",\"price\":10.0,"
+                        + "\"quality\":90,\"user\":\"seller@example.com\"}"));
+        stub.createContext("/media/product/", exchange -> respond(exchange, imagesDelayMs, 200,
+                "[{\"id\":\"m-1\",\"productId\":\"p-1\",\"fileName\":\"lamp.png\"}]"));
+        stub.createContext("/users/email/", exchange -> respond(exchange, sellerDelayMs, 200,
+                "{\"id\":\"u-1\",\"name\":\"Sam\",\"email\":\"seller@example.com\",\"role\":\"seller\","
+                        + "\"password\":\"should-not-leak\",\"avatar\":\"a-1\"}"));
+        stub.createContext("/media/avatar/user/", exchange -> respond(exchange, 0, avatarStatus,
+                "{\"id\":\"a-1\",\"userId\":\"u-1\",\"fileName\":\"me.png\"}"));
+        stub.start();
+
+        String uri = "http://localhost:" + stub.getAddress().getPort();
+        registry.add("spring.cloud.discovery.client.simple.instances.product-service[0].uri", () -> uri);
+        registry.add("spring.cloud.discovery.client.simple.instances.media-service[0].uri", () -> uri);
+        registry.add("spring.cloud.discovery.client.simple.instances.user-service[0].uri", () -> uri);
+    }
+
+    @AfterAll
+    static void stopStub() {
+        stub.stop(0);
+    }
+
+    @BeforeEach
+    void resetStub() {
+        productStatus = 200;
+        imagesDelayMs = 0;
+        sellerDelayMs = 0;
+        avatarStatus = 200;
+        webTestClient = webTestClient.mutate().responseTimeout(Duration.ofSeconds(10)).build();
+    }
+
+    @Test
+    void mergesProductImagesAndSellerIntoOneDocument() {
+        webTestClient.get().uri("/view/products/p-1")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.product.name").isEqualTo("Lamp")
+                .jsonPath("$.images[0].id").isEqualTo("m-1")
+                .jsonPath("$.seller.id").isEqualTo("u-1")
+                .jsonPath("$.seller.password").doesNotExist()
+                .jsonPath("$.seller.avatar.id").isEqualTo("a-1")
+                .jsonPath("$.partial").isEqualTo(false)
+                .jsonPath("$.errors").doesNotExist();
+    }
+
+    @Test
+    void imagesAndSellerAreFetchedInParallel() {
+        // Arrange - warm up connections so only the legs are timed
+        webTestClient.get().uri("/view/products/p-1").exchange().expectStatus().isOk();
+        imagesDelayMs = 300;
+        sellerDelayMs = 300;
+
+        // Act
+        long start = System.nanoTime();
+        webTestClient.get().uri("/view/products/p-1").exchange().expectStatus().isOk();
+        long elapsedMs = Duration.ofNanos(System.nanoTime() - start).toMillis();
+
+        // Assert - sequential legs would take at least 600ms
+        assertTrue(elapsedMs < 550, "Product view took " + elapsedMs + "ms");
+    }
+
+    @Test
+    void slowImagesLegDegradesToPartialDocument() {
+        imagesDelayMs = 2_000;
+
+        webTestClient.get().uri("/view/products/p-1")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.product.id").isEqualTo("p-1")
+                .jsonPath("$.images").isEmpty()
+                .jsonPath("$.seller.id").isEqualTo("u-1")
+                .jsonPath("$.partial").isEqualTo(true)
+                .jsonPath("$.errors.images").isEqualTo("media-service did not answer in time");
+    }
+
+    @Test
+    void sellerWithoutAvatarIsNotAnError() {
+        avatarStatus = 404;
+
+        webTestClient.get().uri("/view/products/p-1")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.seller.id").isEqualTo("u-1")
+                .jsonPath("$.seller.avatar").isEmpty()
+                .jsonPath("$.partial").isEqualTo(false);
+    }
+
+    @Test
+    void missingProductIsNotFound() {
+        productStatus = 404;
+
+        webTestClient.get().uri("/view/products/missing")
+                .exchange()
+                .expectStatus().isEqualTo(HttpStatus.NOT_FOUND)
+                .expectBody()
+                .jsonPath("$.message").isEqualTo("Product not found with id: missing");
+    }
+
+    private static void respond(HttpExchange exchange, long delayMs, int status, String body) throws IOException {
+        try {
+            if (delayMs > 0) {
+                Thread.sleep(delayMs);
+            }
+            byte[] bytes = status == 200 ? body.getBytes(StandardCharsets.UTF_8) : new byte[0];
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, bytes.length > 0 ? bytes.length : -1);
+            if (bytes.length > 0) {
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(bytes);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // Gateway gave up on the request and closed the connection
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.buyapp.apigateway;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import reactor.netty.http.client.HttpClient;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks gzip negotiation on routed responses against a local stub that
+ * stands in for product- and media-service.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "server.ssl.enabled=false",
+        "eureka.client.enabled=false",
+        "gateway.compression.max-response-size=65536"
+})
+class ResponseCompressionTest {
+
+    private static final String LISTING = productListing(40);
+    private static final byte[] IMAGE = new byte[8_192];
+    private static final String LARGE_LISTING = productListing(1_000);
+
+    private static HttpServer stub;
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private WebTestClient webTestClient;
+
+    @DynamicPropertySource
+    static void stubServices(DynamicPropertyRegistry registry) throws IOException {
+        new Random(1).nextBytes(IMAGE);
+        stub = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        stub.setExecutor(Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "compression-stub");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        stub.createContext("/products", exchange -> respond(exchange, "application/json",
+                exchange.getRequestURI().getPath().equals("/products")
+                        ? LISTING.getBytes(StandardCharsets.UTF_8)
+                        : "{\"id\":\"p-1\",\"name\":\"Lamp\"}".getBytes(StandardCharsets.UTF_8)));
+        // Chunked, so the gateway only learns the size while reading
+        stub.createContext("/products/search", exchange -> respond(exchange, "application/json",
+                LARGE_LISTING.getBytes(StandardCharsets.UTF_8), 0));
+        stub.createContext("/media/file/", exchange -> respond(exchange, "image/png", IMAGE));
+        stub.start();
+
+        String uri = "http://localhost:" + stub.getAddress().getPort();
+        registry.add("spring.cloud.discovery.client.simple.instances.product-service[0].uri", () -> uri);
+        registry.add("spring.cloud.discovery.client.simple.instances.media-service[0].uri", () -> uri);
+    }
+
+    @AfterAll
+    static void stopStub() {
+        stub.stop(0);
+    }
+
+    @BeforeEach
+    void plainClient() {
+        // The default connector asks for gzip itself and transparently decodes it
+        webTestClient = WebTestClient.bindToServer(new ReactorClientHttpConnector(HttpClient.create()))
+                .baseUrl("http://localhost:" + port)
+                .build();
+    }
+
+    @Test
+    void largeJsonIsGzippedForClientsThatAcceptIt() throws IOException {
+        // Act
+        byte[] body = webTestClient.get().uri("/products")
+                .header(HttpHeaders.ACCEPT_ENCODING, "br;q=1.0, gzip;q=0.8")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().valueEquals(HttpHeaders.CONTENT_ENCODING, "gzip")
+                .expectHeader().values(HttpHeaders.VARY, vary -> assertTrue(vary.contains(HttpHeaders.ACCEPT_ENCODING)))
+                .expectBody().returnResult().getResponseBody();
+
+        // Assert
+        assertNotNull(body);
+        assertTrue(body.length < LISTING.length() / 2, "Compressed to " + body.length + " bytes");
+        assertEquals(LISTING, gunzip(body));
+    }
+
+    @Test
+    void clientsThatDoNotAcceptGzipGetThePlainBody() {
+        for (String acceptEncoding : new String[] { null, "identity", "gzip;q=0, *" }) {
+            WebTestClient.RequestHeadersSpec<?> request = webTestClient.get().uri("/products");
+            if (acceptEncoding != null) {
+                request = request.header(HttpHeaders.ACCEPT_ENCODING, acceptEncoding);
+            }
+
+            request.exchange()
+                    .expectStatus().isOk()
+                    .expectHeader().doesNotExist(HttpHeaders.CONTENT_ENCODING)
+                    .expectBody(String.class).isEqualTo(LISTING);
+        }
+    }
+
+    @Test
+    void smallResponsesAndImagesAreNotCompressed() {
+        webTestClient.get().uri("/products/p-1")
+                .header(HttpHeaders.ACCEPT_ENCODING, "gzip")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().doesNotExist(HttpHeaders.CONTENT_ENCODING)
+                .expectBody().jsonPath("$.name").isEqualTo("Lamp");
+
+        webTestClient.get().uri("/media/file/m-1")
+                .header(HttpHeaders.ACCEPT_ENCODING, "gzip")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().doesNotExist(HttpHeaders.CONTENT_ENCODING)
+                .expectBody(byte[].class).isEqualTo(IMAGE);
+    }
+
+    @Test
+    void bodyWithoutLengthPastTheLimitIsPassedThroughUncompressed() {
+        // Arrange
+        assertTrue(LARGE_LISTING.length() > 65536);
+
+        // Act & Assert
+        webTestClient.get().uri("/products/search")
+                .header(HttpHeaders.ACCEPT_ENCODING, "gzip")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().doesNotExist(HttpHeaders.CONTENT_ENCODING)
+                .expectBody(String.class).isEqualTo(LARGE_LISTING);
+    }
+
+    @Test
+    void repeatedListingIsCompressedOnceAndReportsBytesSaved() {
+        // Act
+        for (int i = 0; i < 3; i++) {
+            webTestClient.get().uri("/products")
+                    .header(HttpHeaders.ACCEPT_ENCODING, "gzip")
+                    .exchange()
+                    .expectStatus().isOk()
+                    .expectHeader().valueEquals(HttpHeaders.CONTENT_ENCODING, "gzip");
+        }
+
+        // Assert - other tests may have compressed the listing first, so count hits only
+        double hits = meterRegistry.counter("gateway.compression.responses",
+                "route", "all-products", "cache", "hit").count();
+        double saved = meterRegistry.counter("gateway.compression.bytes.saved", "route", "all-products").count();
+        assertTrue(hits >= 2, "Cache hits " + hits);
+        assertTrue(saved >= 3 * LISTING.length() / 2.0, "Bytes saved " + saved);
+    }
+
+    private static String productListing(int count) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"id\":\"p-").append(i).append("\",\"name\":\"Product ").append(i)
+                    .append("\",\"description\":\"A perfectly ordinary product\",\"price\":")
+                    .append(10 + i).append(".0,\"quality\":90,\"user\":\"seller@example.com\"}");
+        }
+        return json.append(']').toString();
+    }
+
+    private static String gunzip(byte[] body) throws IOException {
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void respond(HttpExchange exchange, String contentType, byte[] body) throws IOException {
+        respond(exchange, contentType, body, body.length);
+    }
+
+    private static void respond(HttpExchange exchange, String contentType, byte[] body, long length)
+            throws IOException {
+        try {
+            exchange.getResponseHeaders().add("Content-Type", contentType);
+            exchange.sendResponseHeaders(200, length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.buyapp.apigateway.filter;
+
+import com.buyapp.apigateway.filter.AdaptiveConcurrencyLimit.Priority;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Discrete-event simulation of the gateway in front of a service with a fixed
+ * number of workers, on a virtual clock. The service keeps working on
+ * requests the gateway already gave up on, which is what makes an unbounded
+ * queue collapse under overload.
+ */
+class AdaptiveConcurrencyLimitSimulationTest {
+
+    private static final int WORKERS = 16;
+    private static final long SERVICE_TIME_NANOS = 20_000_000;
+    private static final long TIMEOUT_NANOS = 500_000_000;
+    private static final long DURATION_NANOS = 20_000_000_000L;
+
+    // Requests per second the simulated service can complete
+    private static final double CAPACITY = WORKERS * 1e9 / SERVICE_TIME_NANOS;
+
+    @Test
+    void limiterKeepsGoodputUnderOverload() {
+        // Arrange - twice the load the service can handle
+        double rate = 2 * CAPACITY;
+
+        // Act
+        Result unlimited = simulate(rate, null);
+        Result limited = simulate(rate, new AdaptiveConcurrencyLimit(20, 4, 500));
+
+        // Assert - without the limiter the queue grows until nearly everything times out
+        double seconds = DURATION_NANOS / 1e9;
+        assertTrue(unlimited.goodput() < 0.1 * CAPACITY * seconds,
+                "Unlimited goodput " + unlimited.goodput());
+        assertTrue(limited.goodput() > 0.8 * CAPACITY * seconds,
+                "Limited goodput " + limited.goodput() + " of " + (long) (CAPACITY * seconds));
+        assertTrue(limited.p99LatencyNanos < TIMEOUT_NANOS / 2);
+    }
+
+    @Test
+    void anonymousBrowsingIsShedBeforeAuthenticatedTraffic() {
+        // Act
+        Result limited = simulate(2 * CAPACITY, new AdaptiveConcurrencyLimit(20, 4, 500));
+
+        // Assert
+        double writeSuccess = limited.successRate(Priority.AUTHENTICATED_WRITE);
+        double readSuccess = limited.successRate(Priority.AUTHENTICATED_READ);
+        double anonymousSuccess = limited.successRate(Priority.ANONYMOUS);
+        assertTrue(writeSuccess > 0.95, "Write success rate " + writeSuccess);
+        assertTrue(readSuccess > anonymousSuccess,
+                "Authenticated reads " + readSuccess + " vs anonymous " + anonymousSuccess);
+        assertTrue(writeSuccess > anonymousSuccess + 0.2,
+                "Writes " + writeSuccess + " vs anonymous " + anonymousSuccess);
+    }
+
+    @Test
+    void nothingIsShedBelowCapacity() {
+        // Act
+        Result limited = simulate(0.5 * CAPACITY, new AdaptiveConcurrencyLimit(20, 4, 500));
+
+        // Assert
+        assertTrue(limited.shed < limited.offered / 100, "Shed " + limited.shed + " of " + limited.offered);
+        assertEquals(0, limited.timedOut);
+    }
+
+    private Result simulate(double requestsPerSecond, AdaptiveConcurrencyLimit limit) {
+        Random random = new Random(7);
+        PriorityQueue<Event> events = new PriorityQueue<>();
+        Deque<Call> serviceQueue = new ArrayDeque<>();
+        Result result = new Result();
+        int busyWorkers = 0;
+
+        events.add(new Event(0, EventType.ARRIVAL, null));
+        while (!events.isEmpty()) {
+            Event event = events.poll();
+            long now = event.time;
+
+            switch (event.type) {
+                case ARRIVAL -> {
+                    long next = now + (long) (-Math.log(1 - random.nextDouble()) / requestsPerSecond * 1e9);
+                    if (next < DURATION_NANOS) {
+                        events.add(new Event(next, EventType.ARRIVAL, null));
+                    }
+                    Call call = new Call(now, priority(random.nextDouble()));
+                    result.offered(call.priority);
+                    if (limit != null && !limit.tryAcquire(call.priority)) {
+                        result.shed++;
+                        continue;
+                    }
+                    events.add(new Event(now + TIMEOUT_NANOS, EventType.TIMEOUT, call));
+                    if (busyWorkers < WORKERS) {
+                        busyWorkers++;
+                        events.add(new Event(now + serviceTime(random), EventType.SERVICE_DONE, call));
+                    } else {
+                        serviceQueue.add(call);
+                    }
+                }
+                case SERVICE_DONE -> {
+                    Call call = event.call;
+                    if (!call.finished) {
+                        call.finished = true;
+                        result.succeeded(call.priority, now - call.start);
+                        if (limit != null) {
+                            limit.onSuccess(call.priority, now - call.start);
+                        }
+                    }
+                    Call queued = serviceQueue.poll();
+                    if (queued != null) {
+                        events.add(new Event(now + serviceTime(random), EventType.SERVICE_DONE, queued));
+                    } else {
+                        busyWorkers--;
+                    }
+                }
+                case TIMEOUT -> {
+                    Call call = event.call;
+                    if (!call.finished) {
+                        // The gateway answers 504 but the service still holds the request
+                        call.finished = true;
+                        result.timedOut++;
+                        if (limit != null) {
+                            limit.onDropped(call.priority);
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    // Mostly anonymous browsing, some signed-in reads, few writes
+    private Priority priority(double draw) {
+        if (draw < 0.1) {
+            return Priority.AUTHENTICATED_WRITE;
+        }
+        return draw < 0.3 ? Priority.AUTHENTICATED_READ : Priority.ANONYMOUS;
+    }
+
+    private long serviceTime(Random random) {
+        return (long) (SERVICE_TIME_NANOS * (0.8 + 0.4 * random.nextDouble()));
+    }
+
+    private enum EventType {
+        ARRIVAL, SERVICE_DONE, TIMEOUT
+    }
+
+    private static final class Event implements Comparable<Event> {
+
+        private final long time;
+        private final EventType type;
+        private final Call call;
+
+        private Event(long time, EventType type, Call call) {
+            this.time = time;
+            this.type = type;
+            this.call = call;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            return Long.compare(time, other.time);
+        }
+    }
+
+    private static final class Call {
+
+        private final long start;
+        private final Priority priority;
+        private boolean finished;
+
+        private Call(long start, Priority priority) {
+            this.start = start;
+            this.priority = priority;
+        }
+    }
+
+    private static final class Result {
+
+        private final Map<Priority, Long> offeredByPriority = new EnumMap<>(Priority.class);
+        private final Map<Priority, Long> succeededByPriority = new EnumMap<>(Priority.class);
+        private final long[] latencyBuckets = new long[(int) (TIMEOUT_NANOS / 1_000_000) + 1];
+        private long offered;
+        private long shed;
+        private long timedOut;
+        private long succeeded;
+        private long p99LatencyNanos;
+
+        private void offered(Priority priority) {
+            offered++;
+            offeredByPriority.merge(priority, 1L, Long::sum);
+        }
+
+        private void succeeded(Priority priority, long latencyNanos) {
+            succeeded++;
+            succeededByPriority.merge(priority, 1L, Long::sum);
+            latencyBuckets[(int) Math.min(latencyBuckets.length - 1, latencyNanos / 1_000_000)]++;
+            long seen = 0;
+            for (int ms = 0; ms < latencyBuckets.length; ms++) {
+                seen += latencyBuckets[ms];
+                if (seen >= succeeded * 0.99) {
+                    p99LatencyNanos = ms * 1_000_000L;
+                    break;
+                }
+            }
+        }
+
+        private long goodput() {
+            return succeeded;
+        }
+
+        private double successRate(Priority priority) {
+            return (double) succeededByPriority.getOrDefault(priority, 0L)
+                    / offeredByPriority.getOrDefault(priority, 1L);
+        }
+    }
+}
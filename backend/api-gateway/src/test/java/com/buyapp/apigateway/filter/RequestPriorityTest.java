@@ -0,0 +1,87 @@
+package com.buyapp.apigateway.filter;
+
+import com.buyapp.apigateway.filter.AdaptiveConcurrencyLimit.Priority;
+import com.buyapp.apigateway.util.JwtUtil;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.io.Decoders;
+import io.jsonwebtoken.security.Keys;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RequestPriorityTest {
+
+    private static final String SECRET_KEY = "dGVzdC1zZWNyZXQta2V5LWZvci10aGUtZ2F0ZXdheS1wcmlvcml0eS10ZXN0cw==";
+
+    private final AdaptiveConcurrencyLimitGatewayFilterFactory factory =
+            new AdaptiveConcurrencyLimitGatewayFilterFactory(new SimpleMeterRegistry());
+
+    private JwtRequestFilter jwtRequestFilter;
+
+    @BeforeEach
+    void setUp() {
+        JwtUtil jwtUtil = new JwtUtil();
+        ReflectionTestUtils.setField(jwtUtil, "secretKey", SECRET_KEY);
+        jwtRequestFilter = new JwtRequestFilter();
+        ReflectionTestUtils.setField(jwtRequestFilter, "jwtUtil", jwtUtil);
+    }
+
+    @Test
+    void publicReadWithValidTokenIsAuthenticated() {
+        MockServerHttpRequest request = MockServerHttpRequest.get("/products")
+                .header(HttpHeaders.AUTHORIZATION, "Bearer " + token(SECRET_KEY))
+                .build();
+
+        assertEquals(Priority.AUTHENTICATED_READ, priorityOf(request));
+    }
+
+    @Test
+    void publicReadWithoutTokenIsAnonymous() {
+        assertEquals(Priority.ANONYMOUS, priorityOf(MockServerHttpRequest.get("/products").build()));
+    }
+
+    @Test
+    void publicReadWithInvalidTokenIsStillServedAsAnonymous() {
+        MockServerHttpRequest request = MockServerHttpRequest.get("/media/product/p-1")
+                .header(HttpHeaders.AUTHORIZATION, "Bearer " + token(
+                        "b3RoZXItc2VjcmV0LWtleS10aGF0LWRvZXMtbm90LXNpZ24tdGhlLWdhdGV3YXktdG9rZW5z"))
+                .build();
+
+        assertEquals(Priority.ANONYMOUS, priorityOf(request));
+    }
+
+    @Test
+    void writeWithValidTokenIsAuthenticatedWrite() {
+        MockServerHttpRequest request = MockServerHttpRequest.post("/products")
+                .header(HttpHeaders.AUTHORIZATION, "Bearer " + token(SECRET_KEY))
+                .build();
+
+        assertEquals(Priority.AUTHENTICATED_WRITE, priorityOf(request));
+    }
+
+    // Classifies the request the way the route filter does, downstream of JwtRequestFilter
+    private Priority priorityOf(MockServerHttpRequest request) {
+        MockServerWebExchange exchange = MockServerWebExchange.from(request);
+        AtomicReference<Priority> priority = new AtomicReference<>();
+        jwtRequestFilter.filter(exchange, filtered -> factory.priorityOf(filtered).doOnNext(priority::set).then())
+                .block();
+        assertNull(exchange.getResponse().getStatusCode(), "the request should not be rejected");
+        return priority.get();
+    }
+
+    private static String token(String secretKey) {
+        return Jwts.builder()
+                .subject("seller@example.com")
+                .claim("role", "seller")
+                .signWith(Keys.hmacShaKeyFor(Decoders.BASE64.decode(secretKey)))
+                .compact();
+    }
+}
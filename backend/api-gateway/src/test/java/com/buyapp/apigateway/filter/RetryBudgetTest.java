@@ -0,0 +1,49 @@
+package com.buyapp.apigateway.filter;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RetryBudgetTest {
+
+    private final AtomicLong clock = new AtomicLong(1_000_000);
+
+    @Test
+    void allowsMinimumRetriesWithoutTraffic() {
+        RetryBudget budget = new RetryBudget(0.2, 1, 2, clock::get);
+
+        // Floor is 1 retry/s over a 2s window
+        assertTrue(budget.tryAcquireRetry());
+        assertTrue(budget.tryAcquireRetry());
+        assertFalse(budget.tryAcquireRetry());
+    }
+
+    @Test
+    void retriesScaleWithRequestVolume() {
+        RetryBudget budget = new RetryBudget(0.2, 0, 10, clock::get);
+
+        for (int i = 0; i < 50; i++) {
+            budget.recordRequest();
+        }
+
+        int granted = 0;
+        while (budget.tryAcquireRetry()) {
+            granted++;
+        }
+        assertEquals(10, granted);
+    }
+
+    @Test
+    void budgetRecoversOnceWindowSlidesPast() {
+        RetryBudget budget = new RetryBudget(0.0, 1, 2, clock::get);
+        assertTrue(budget.tryAcquireRetry());
+        assertTrue(budget.tryAcquireRetry());
+        assertFalse(budget.tryAcquireRetry());
+
+        clock.addAndGet(3_000);
+
+        assertTrue(budget.tryAcquireRetry());
+    }
+}
@@ -63,4 +63,45 @@ public class KafkaConfig {
         factory.setConsumerFactory(productEventConsumerFactory());
         return factory;
     }
+
+    // Consumer Configuration for MediaEvent - each instance reads every event to keep its own cache in step
+    @Bean
+    public ConsumerFactory<String, MediaEvent> mediaEventConsumerFactory() {
+        Map<String, Object> configProps = new HashMap<>();
+        configProps.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+        configProps.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class);
+        configProps.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, JsonDeserializer.class);
+        configProps.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "latest");
+        configProps.put(JsonDeserializer.TRUSTED_PACKAGES, "*");
+        configProps.put(JsonDeserializer.VALUE_DEFAULT_TYPE, MediaEvent.class.getName());
+        return new DefaultKafkaConsumerFactory<>(configProps);
+    }
+
+    @Bean
+    public ConcurrentKafkaListenerContainerFactory<String, MediaEvent> mediaEventKafkaListenerContainerFactory() {
+        ConcurrentKafkaListenerContainerFactory<String, MediaEvent> factory = new ConcurrentKafkaListenerContainerFactory<>();
+        factory.setConsumerFactory(mediaEventConsumerFactory());
+        return factory;
+    }
+
+    // Consumer Configuration for the thumbnail pipeline - one group shared by all instances, small polls so a
+    // paused consumer has little in hand
+    @Bean
+    public ConsumerFactory<String, MediaEvent> thumbnailConsumerFactory() {
+        Map<String, Object> configProps = new HashMap<>();
+        configProps.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+        configProps.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class);
+        configProps.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, JsonDeserializer.class);
+        configProps.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, 16);
+        configProps.put(JsonDeserializer.TRUSTED_PACKAGES, "*");
+        configProps.put(JsonDeserializer.VALUE_DEFAULT_TYPE, MediaEvent.class.getName());
+        return new DefaultKafkaConsumerFactory<>(configProps);
+    }
+
+    @Bean
+    public ConcurrentKafkaListenerContainerFactory<String, MediaEvent> thumbnailKafkaListenerContainerFactory() {
+        ConcurrentKafkaListenerContainerFactory<String, MediaEvent> factory = new ConcurrentKafkaListenerContainerFactory<>();
+        factory.setConsumerFactory(thumbnailConsumerFactory());
+        return factory;
+    }
 }
@@ -2,11 +2,13 @@ package com.buyapp.mediaservice.controller;
 
 import com.buyapp.mediaservice.model.Avatar;
 import com.buyapp.mediaservice.service.AvatarService;
+import com.buyapp.mediaservice.service.HotImageCache;
+import com.buyapp.mediaservice.service.MediaFileServer;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.Resource;
-import org.springframework.core.io.UrlResource;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.MediaType;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.core.Authentication;
@@ -14,9 +16,9 @@ import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.net.URI;
+import java.time.Duration;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 
@@ -27,6 +29,12 @@ public class AvatarController {
     @Autowired
     private AvatarService avatarService;
 
+    @Autowired
+    private MediaFileServer mediaFileServer;
+
+    // Matches the TTL of the avatar cache: another replica may serve the old avatar that long
+    private static final Duration USER_FILE_MAX_AGE = Duration.ofMinutes(5);
+
     /**
      * Upload avatar for authenticated seller
      */
@@ -51,31 +59,37 @@ public class AvatarController {
     }
 
     /**
-     * Get avatar image file by avatar ID (public endpoint)
+     * Get avatar metadata of many users in one request (public endpoint);
+     * users without an avatar are left out
      */
-    @GetMapping("/file/{id}")
-    public ResponseEntity<Resource> getAvatarFile(@PathVariable String id) {
-        try {
-            Avatar avatar = avatarService.getAvatarById(id);
-            Path filePath = Paths.get(avatar.getImagePath());
-            Resource resource = new UrlResource(filePath.toUri());
+    @GetMapping("/batch")
+    public ResponseEntity<Map<String, Avatar>> getAvatarsByUserIds(@RequestParam List<String> ids) {
+        return ResponseEntity.ok(avatarService.getAvatarsByUserIds(ids));
+    }
 
-            if (resource.exists() && resource.isReadable()) {
-                String contentType = Files.probeContentType(filePath);
-                if (contentType == null) {
-                    contentType = "application/octet-stream";
-                }
+    /**
+     * Get avatar image by user ID (public endpoint). Redirects to the file of
+     * the user's current avatar, which is cached as immutable; the redirect
+     * itself is cached briefly, as the user may replace the avatar.
+     */
+    @GetMapping("/user/{userId}/file")
+    public ResponseEntity<Void> getAvatarFileByUserId(@PathVariable String userId) {
+        Avatar avatar = avatarService.getAvatarByUserId(userId);
+        return ResponseEntity.status(HttpStatus.FOUND)
+                .location(URI.create("/media/avatar/file/" + avatar.getId()))
+                .cacheControl(CacheControl.maxAge(USER_FILE_MAX_AGE).cachePublic())
+                .build();
+    }
 
-                return ResponseEntity.ok()
-                        .contentType(MediaType.parseMediaType(contentType))
-                        .header(HttpHeaders.CONTENT_DISPOSITION, "inline; filename=\"" + avatar.getFileName() + "\"")
-                        .body(resource);
-            } else {
-                throw new RuntimeException("File not found: " + avatar.getFileName());
-            }
-        } catch (IOException e) {
-            throw new RuntimeException("File not found");
-        }
+    /**
+     * Get avatar image file by avatar ID (public endpoint)
+     */
+    @GetMapping("/file/{id}")
+    public void getAvatarFile(@PathVariable String id, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        Avatar avatar = avatarService.getAvatarById(id);
+        mediaFileServer.serveStored(HotImageCache.avatarKey(id), avatar.getImagePath(), avatar.getContentType(),
+                avatar.getFileName(), request, response);
     }
 
     /**
@@ -1,12 +1,19 @@
 package com.buyapp.mediaservice.controller;
 
 import com.buyapp.mediaservice.model.Media;
+import com.buyapp.mediaservice.model.UploadSession;
+import com.buyapp.mediaservice.service.HotImageCache;
+import com.buyapp.mediaservice.service.ImageVariantService;
+import com.buyapp.mediaservice.service.ImageVariantService.ImageVariant;
+import com.buyapp.mediaservice.service.MediaBlobMigration;
+import com.buyapp.mediaservice.service.MediaFileServer;
 import com.buyapp.mediaservice.service.MediaService;
+import com.buyapp.mediaservice.service.OrphanReconciler;
+import com.buyapp.mediaservice.service.ResumableUploads;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.Resource;
-import org.springframework.core.io.UrlResource;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.MediaType;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.core.Authentication;
@@ -14,9 +21,9 @@ import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Map;
 
@@ -27,6 +34,21 @@ public class MediaController {
     @Autowired
     private MediaService mediaService;
 
+    @Autowired
+    private MediaFileServer mediaFileServer;
+
+    @Autowired
+    private ImageVariantService imageVariantService;
+
+    @Autowired
+    private MediaBlobMigration mediaBlobMigration;
+
+    @Autowired
+    private OrphanReconciler orphanReconciler;
+
+    @Autowired
+    private ResumableUploads resumableUploads;
+
     @PostMapping("/upload/{productId}")
     @PreAuthorize("hasRole('SELLER') or hasRole('ADMIN')")
     public ResponseEntity<Media> uploadMedia(
@@ -38,35 +60,125 @@ public class MediaController {
         return ResponseEntity.ok(savedMedia);
     }
 
+    // Same upload with the image as the raw request body, streamed to disk without multipart buffering
+    @PostMapping(value = "/upload/{productId}", consumes = { "image/*", "application/octet-stream" })
+    @PreAuthorize("hasRole('SELLER') or hasRole('ADMIN')")
+    public ResponseEntity<Media> uploadMediaStream(
+            @PathVariable String productId,
+            @RequestHeader(value = "X-File-Name", required = false) String fileName,
+            HttpServletRequest request,
+            Authentication authentication) throws IOException {
+
+        String decodedName = fileName != null ? URLDecoder.decode(fileName, StandardCharsets.UTF_8) : null;
+        Media savedMedia = mediaService.uploadMediaStream(request.getInputStream(), decodedName,
+                request.getContentLengthLong(), productId, authentication);
+        return ResponseEntity.ok(savedMedia);
+    }
+
+    // Several images in one request; all are stored or none is
+    @PostMapping("/upload/{productId}/batch")
+    @PreAuthorize("hasRole('SELLER') or hasRole('ADMIN')")
+    public ResponseEntity<List<Media>> uploadMediaBatch(
+            @PathVariable String productId,
+            @RequestParam("files") List<MultipartFile> files,
+            Authentication authentication) {
+
+        List<Media> savedMedia = mediaService.uploadMediaBatch(files, productId, authentication);
+        return ResponseEntity.ok(savedMedia);
+    }
+
+    // Starts a resumable upload of one image: the client declares its length and SHA-256, then sends chunks
+    @PostMapping("/upload/{productId}/sessions")
+    @PreAuthorize("hasRole('SELLER') or hasRole('ADMIN')")
+    public ResponseEntity<UploadSession> createUploadSession(
+            @PathVariable String productId,
+            @RequestHeader("X-File-Name") String fileName,
+            @RequestHeader("X-Upload-Length") long length,
+            @RequestHeader("X-Upload-Sha256") String sha256,
+            Authentication authentication) {
+
+        UploadSession session = resumableUploads.create(productId,
+                URLDecoder.decode(fileName, StandardCharsets.UTF_8), length, sha256, authentication);
+        return ResponseEntity.created(URI.create("/media/upload-sessions/" + session.getId())).body(session);
+    }
+
+    // Where the next chunk has to start, for a client resuming after a dropped connection
+    @GetMapping("/upload-sessions/{sessionId}")
+    @PreAuthorize("hasRole('SELLER') or hasRole('ADMIN')")
+    public ResponseEntity<UploadSession> getUploadSession(
+            @PathVariable String sessionId,
+            Authentication authentication) {
+        return ResponseEntity.ok(resumableUploads.status(sessionId, authentication));
+    }
+
+    // One chunk as the raw body; 409 with the current offset if it does not start where the upload ends
+    @PutMapping(value = "/upload-sessions/{sessionId}", consumes = "application/octet-stream")
+    @PreAuthorize("hasRole('SELLER') or hasRole('ADMIN')")
+    public ResponseEntity<?> appendUploadChunk(
+            @PathVariable String sessionId,
+            @RequestHeader("X-Upload-Offset") long offset,
+            HttpServletRequest request,
+            Authentication authentication) throws IOException {
+        try {
+            return ResponseEntity.ok(resumableUploads.append(sessionId, offset, request.getInputStream(),
+                    authentication));
+        } catch (ResumableUploads.OffsetMismatchException e) {
+            return offsetConflict(e);
+        }
+    }
+
+    // Verifies the checksum and stores the image; 409 with the current offset if bytes are missing
+    @PostMapping("/upload-sessions/{sessionId}/complete")
+    @PreAuthorize("hasRole('SELLER') or hasRole('ADMIN')")
+    public ResponseEntity<?> completeUploadSession(
+            @PathVariable String sessionId,
+            Authentication authentication) {
+        try {
+            return ResponseEntity.ok(resumableUploads.complete(sessionId, authentication));
+        } catch (ResumableUploads.OffsetMismatchException e) {
+            return offsetConflict(e);
+        }
+    }
+
+    @DeleteMapping("/upload-sessions/{sessionId}")
+    @PreAuthorize("hasRole('SELLER') or hasRole('ADMIN')")
+    public ResponseEntity<Map<String, String>> cancelUploadSession(
+            @PathVariable String sessionId,
+            Authentication authentication) {
+        resumableUploads.cancel(sessionId, authentication);
+        return ResponseEntity.ok(Map.of("message", "Upload cancelled"));
+    }
+
+    // Media of many products at once (?ids=a,b,c), grouped per product; first=true returns only each first image
+    @GetMapping("/product/batch")
+    public ResponseEntity<Map<String, List<Media>>> getMediaByProducts(
+            @RequestParam List<String> ids,
+            @RequestParam(defaultValue = "false") boolean first) {
+        return ResponseEntity.ok(mediaService.getMediaByProductIds(ids, first));
+    }
+
     @GetMapping("/product/{productId}")
     public ResponseEntity<List<Media>> getMediaByProduct(@PathVariable String productId) {
         List<Media> mediaList = mediaService.getMediaByProductId(productId);
         return ResponseEntity.ok(mediaList);
     }
 
+    // With w, fmt or q (e.g. ?w=320&fmt=jpeg&q=80) a resized/re-encoded variant is served instead of the original
     @GetMapping("/file/{id}")
-    public ResponseEntity<Resource> getMediaFile(@PathVariable String id) {
-        try {
-            Media media = mediaService.getMediaById(id);
-            Path filePath = Paths.get(media.getImagePath());
-            Resource resource = new UrlResource(filePath.toUri());
-
-            if (resource.exists() && resource.isReadable()) {
-                String contentType = Files.probeContentType(filePath);
-                if (contentType == null) {
-                    contentType = "application/octet-stream";
-                }
-
-                return ResponseEntity.ok()
-                        .contentType(MediaType.parseMediaType(contentType))
-                        .header(HttpHeaders.CONTENT_DISPOSITION, "inline; filename=\"" + media.getFileName() + "\"")
-                        .body(resource);
-            } else {
-                throw new RuntimeException("File not found: " + media.getFileName());
-            }
-        } catch (IOException e) {
-            throw new RuntimeException("File not found");
+    public void getMediaFile(@PathVariable String id,
+            @RequestParam(required = false) Integer w,
+            @RequestParam(required = false) String fmt,
+            @RequestParam(required = false) Integer q,
+            HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Media media = mediaService.getMediaById(id);
+        if (w == null && fmt == null && q == null) {
+            mediaFileServer.serveStored(HotImageCache.mediaKey(id), media.getImagePath(),
+                    media.getContentType(), media.getFileName(), request, response);
+            return;
         }
+        ImageVariant variant = imageVariantService.getVariant(media, w, fmt, q);
+        mediaFileServer.serve(variant.getCacheKey(), variant.getPath(), variant.getContentType(),
+                media.getFileName(), request, response);
     }
 
     @DeleteMapping("/{id}")
@@ -98,4 +210,32 @@ public class MediaController {
         mediaService.deleteMediaByProductIdInternal(productId);
         return ResponseEntity.ok(Map.of("message", "All media for product deleted successfully"));
     }
-}
\ No newline at end of file
+
+    // Moves existing uploads into content-addressed storage and reports the space saved
+    @PostMapping("/admin/storage/dedup")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<MediaBlobMigration.Report> deduplicateStorage() {
+        return ResponseEntity.ok(mediaBlobMigration.migrate());
+    }
+
+    // Starts a search for files without documents and documents without files; 409 if one is running
+    @PostMapping("/admin/storage/reconcile")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<OrphanReconciler.Report> reconcileStorage() {
+        if (!orphanReconciler.runNow()) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(orphanReconciler.getReport());
+        }
+        return ResponseEntity.accepted().body(orphanReconciler.getReport());
+    }
+
+    @GetMapping("/admin/storage/reconcile")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<OrphanReconciler.Report> getReconcileReport() {
+        return ResponseEntity.ok(orphanReconciler.getReport());
+    }
+
+    private ResponseEntity<Map<String, Object>> offsetConflict(ResumableUploads.OffsetMismatchException e) {
+        return ResponseEntity.status(HttpStatus.CONFLICT)
+                .body(Map.of("message", e.getMessage(), "offset", e.getOffset()));
+    }
+}
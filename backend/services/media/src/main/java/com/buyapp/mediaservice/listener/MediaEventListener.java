@@ -0,0 +1,39 @@
+package com.buyapp.mediaservice.listener;
+
+import com.buyapp.common.event.MediaEvent;
+import com.buyapp.mediaservice.service.HotImageCache;
+import com.buyapp.mediaservice.service.ImageVariantService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * Evicts deleted images and their variants from this instance's caches. Every instance
+ * listens in a group of its own, since the deletion may have been handled by
+ * another one.
+ */
+@Component
+public class MediaEventListener {
+
+    private static final Logger log = LoggerFactory.getLogger(MediaEventListener.class);
+
+    private final HotImageCache hotImageCache;
+    private final ImageVariantService imageVariantService;
+
+    public MediaEventListener(HotImageCache hotImageCache, ImageVariantService imageVariantService) {
+        this.hotImageCache = hotImageCache;
+        this.imageVariantService = imageVariantService;
+    }
+
+    @KafkaListener(topics = "${kafka.topic.media-events:media-events}",
+            groupId = "${media.cache.invalidation-group}",
+            containerFactory = "mediaEventKafkaListenerContainerFactory")
+    public void handleMediaEvent(MediaEvent event) {
+        if (event.getEventType() == MediaEvent.EventType.IMAGE_DELETED) {
+            log.debug("Image deleted: {} - Evicting from image caches", event.getMediaId());
+            imageVariantService.deleteVariants(event.getMediaId());
+            hotImageCache.invalidate(HotImageCache.mediaKey(event.getMediaId()));
+        }
+    }
+}
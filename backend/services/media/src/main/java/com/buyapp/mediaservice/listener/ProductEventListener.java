@@ -2,6 +2,7 @@ package com.buyapp.mediaservice.listener;
 
 import com.buyapp.common.event.ProductEvent;
 import com.buyapp.mediaservice.service.MediaService;
+import com.buyapp.mediaservice.service.ProductOwners;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -14,9 +15,11 @@ public class ProductEventListener {
     private static final Logger log = LoggerFactory.getLogger(ProductEventListener.class);
 
     private final MediaService mediaService;
+    private final ProductOwners productOwners;
 
-    public ProductEventListener(MediaService mediaService) {
+    public ProductEventListener(MediaService mediaService, ProductOwners productOwners) {
         this.mediaService = mediaService;
+        this.productOwners = productOwners;
     }
 
     @KafkaListener(topics = "${kafka.topic.product-events:product-events}",
@@ -30,18 +33,19 @@ public class ProductEventListener {
             switch (event.getEventType()) {
                 case PRODUCT_CREATED:
                     log.info("Product created: {} - Ready to accept media uploads", event.getProductId());
-                    // Future: Pre-create media directories or prepare storage
+                    productOwners.record(event.getProductId(), event.getSellerId(), event.getSellerEmail());
                     break;
 
                 case PRODUCT_DELETED:
                     log.info("Product deleted: {} - Cleaning up associated media", event.getProductId());
                     // Delete all media associated with this product
                     mediaService.deleteMediaByProductIdInternal(event.getProductId());
+                    productOwners.forget(event.getProductId());
                     break;
 
                 case PRODUCT_UPDATED:
-                    log.info("Product updated: {} - No media action required", event.getProductId());
-                    // Future: Update metadata or thumbnails if needed
+                    log.info("Product updated: {} - Refreshing its owner", event.getProductId());
+                    productOwners.record(event.getProductId(), event.getSellerId(), event.getSellerEmail());
                     break;
 
                 default:
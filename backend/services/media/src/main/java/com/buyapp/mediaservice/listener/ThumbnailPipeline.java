@@ -0,0 +1,170 @@
+package com.buyapp.mediaservice.listener;
+
+import com.buyapp.common.event.MediaEvent;
+import com.buyapp.mediaservice.model.Media;
+import com.buyapp.mediaservice.model.MediaVariant;
+import com.buyapp.mediaservice.service.ImageVariantService;
+import com.buyapp.mediaservice.service.ImageVariantService.ImageVariant;
+import com.mongodb.client.result.UpdateResult;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.listener.MessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.awt.Dimension;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pre-generates the storefront thumbnail sizes when an image is uploaded, so
+ * the first buyer to see it never waits for a resize, and records the
+ * variants, pixel dimensions and a {@link com.buyapp.mediaservice.service.BlurHash}
+ * placeholder on the {@link Media} document. The placeholder is computed from
+ * the smallest variant, not the original.
+ *
+ * Work runs on a pool with one thread per core. When more than
+ * {@code media.variants.pipeline.max-pending} images are waiting the Kafka
+ * consumer is paused, and it resumes once the backlog has halved. Offsets are
+ * committed as soon as an event is queued: an image lost to a crash simply
+ * gets its thumbnails generated on first request instead.
+ */
+@Component
+public class ThumbnailPipeline {
+
+    private static final Logger log = LoggerFactory.getLogger(ThumbnailPipeline.class);
+
+    static final String LISTENER_ID = "thumbnail-pipeline";
+
+    private final ImageVariantService imageVariantService;
+    private final MongoTemplate mongoTemplate;
+    private final KafkaListenerEndpointRegistry listenerRegistry;
+    private final int[] widths;
+    private final int maxPending;
+
+    private final ThreadPoolExecutor workers;
+    private final AtomicInteger pending = new AtomicInteger();
+    private boolean paused;
+
+    public ThumbnailPipeline(ImageVariantService imageVariantService, MongoTemplate mongoTemplate,
+            KafkaListenerEndpointRegistry listenerRegistry,
+            @Value("${media.variants.pregenerate-widths}") int[] widths,
+            @Value("${media.variants.pipeline.max-pending}") int maxPending) {
+        this.imageVariantService = imageVariantService;
+        this.mongoTemplate = mongoTemplate;
+        this.listenerRegistry = listenerRegistry;
+        this.widths = widths.clone();
+        Arrays.sort(this.widths);
+        this.maxPending = maxPending;
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        AtomicInteger threadCount = new AtomicInteger();
+        // Unbounded queue, but it never holds much more than maxPending plus one poll's worth of records
+        this.workers = new ThreadPoolExecutor(cores, cores, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "thumbnail-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    @KafkaListener(id = LISTENER_ID,
+            topics = "${kafka.topic.media-events:media-events}",
+            groupId = "${media.variants.pipeline.group}",
+            containerFactory = "thumbnailKafkaListenerContainerFactory")
+    public void handleMediaEvent(MediaEvent event) {
+        if (event.getEventType() != MediaEvent.EventType.IMAGE_UPLOADED) {
+            return;
+        }
+        pending.incrementAndGet();
+        adjustFlow();
+        workers.execute(() -> {
+            try {
+                generate(event.getMediaId());
+            } catch (Exception e) {
+                log.warn("Could not pre-generate thumbnails for media {}: {}", event.getMediaId(), e.getMessage());
+            } finally {
+                pending.decrementAndGet();
+                adjustFlow();
+            }
+        });
+    }
+
+    int pending() {
+        return pending.get();
+    }
+
+    @PreDestroy
+    void shutdown() {
+        workers.shutdownNow();
+    }
+
+    void generate(String mediaId) throws IOException {
+        Media media = mongoTemplate.findById(mediaId, Media.class);
+        if (media == null) {
+            // Deleted before we got to it
+            return;
+        }
+
+        Dimension original = imageVariantService.originalDimensions(media);
+        List<MediaVariant> variants = new ArrayList<>();
+        Path smallest = null;
+        for (int width : widths) {
+            ImageVariant variant = imageVariantService.getVariant(media, width, null, null);
+            Dimension size = imageVariantService.dimensionsOf(variant.getPath());
+            variants.add(new MediaVariant(width, size.width, size.height, variant.getContentType()));
+            if (smallest == null) {
+                smallest = variant.getPath();
+            }
+        }
+
+        Update update = new Update().set("variants", variants);
+        if (original != null) {
+            update.set("width", original.width).set("height", original.height);
+        }
+        String blurHash = smallest != null ? imageVariantService.blurHash(smallest) : null;
+        if (blurHash != null) {
+            update.set("blurHash", blurHash);
+        }
+        UpdateResult result = mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(mediaId)), update,
+                Media.class);
+        if (result.getMatchedCount() == 0) {
+            // Deleted while we were resizing; don't leave its variants behind
+            imageVariantService.deleteVariants(mediaId);
+            return;
+        }
+        log.debug("Pre-generated {} thumbnails for media {}", variants.size(), mediaId);
+    }
+
+    // Pauses the consumer above maxPending waiting images and resumes it at half that
+    private synchronized void adjustFlow() {
+        int waiting = pending.get();
+        MessageListenerContainer container = listenerRegistry.getListenerContainer(LISTENER_ID);
+        if (container == null) {
+            return;
+        }
+        if (!paused && waiting >= maxPending) {
+            container.pause();
+            paused = true;
+            log.info("Thumbnail pipeline paused with {} images waiting", waiting);
+        } else if (paused && waiting <= maxPending / 2) {
+            container.resume();
+            paused = false;
+            log.info("Thumbnail pipeline resumed with {} images waiting", waiting);
+        }
+    }
+}
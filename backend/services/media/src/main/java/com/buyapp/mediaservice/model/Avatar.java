@@ -21,6 +21,12 @@ public class Avatar {
     private String fileName;
     private String contentType;
     private Long fileSize;
+    // Read from the image header on upload; see Media
+    private Integer width;
+    private Integer height;
+    private Integer orientation;
+    // Computed on upload; see Media
+    private String blurHash;
 
     public Avatar() {
     }
@@ -78,5 +84,36 @@ public class Avatar {
     public void setFileSize(Long fileSize) {
         this.fileSize = fileSize;
     }
-}
 
+    public Integer getWidth() {
+        return width;
+    }
+
+    public void setWidth(Integer width) {
+        this.width = width;
+    }
+
+    public Integer getHeight() {
+        return height;
+    }
+
+    public void setHeight(Integer height) {
+        this.height = height;
+    }
+
+    public Integer getOrientation() {
+        return orientation;
+    }
+
+    public void setOrientation(Integer orientation) {
+        this.orientation = orientation;
+    }
+
+    public String getBlurHash() {
+        return blurHash;
+    }
+
+    public void setBlurHash(String blurHash) {
+        this.blurHash = blurHash;
+    }
+}
@@ -0,0 +1,69 @@
+package com.buyapp.mediaservice.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * An image file waiting to be deleted by the
+ * {@link com.buyapp.mediaservice.service.FileReaper}. The entry stays until
+ * the file is gone; failed attempts push {@code notBefore} back.
+ */
+@Document(collection = "file_deletions")
+public class FileDeletion {
+    @Id
+    private String id;
+
+    private String sha256;
+    private String imagePath;
+    private int attempts;
+    private Instant notBefore;
+    private String lastError;
+
+    public FileDeletion() {
+    }
+
+    public FileDeletion(String sha256, String imagePath, Instant notBefore) {
+        this.sha256 = sha256;
+        this.imagePath = imagePath;
+        this.notBefore = notBefore;
+    }
+
+    // Getters and Setters
+    public String getId() {
+        return id;
+    }
+
+    public String getSha256() {
+        return sha256;
+    }
+
+    public String getImagePath() {
+        return imagePath;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public Instant getNotBefore() {
+        return notBefore;
+    }
+
+    public void setNotBefore(Instant notBefore) {
+        this.notBefore = notBefore;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public void setLastError(String lastError) {
+        this.lastError = lastError;
+    }
+}
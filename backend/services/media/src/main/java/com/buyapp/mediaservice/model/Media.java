@@ -7,6 +7,8 @@ import org.springframework.data.mongodb.core.mapping.Field;
 import jakarta.validation.constraints.NotBlank;
 import jakarta.validation.constraints.NotNull;
 
+import java.util.List;
+
 @Document(collection = "media")
 public class Media {
     @Id
@@ -22,6 +24,17 @@ public class Media {
     private String fileName;
     private String contentType;
     private Long fileSize;
+    private String sha256;
+
+    // Read from the image header on upload, null for images that predate that
+    private Integer width;
+    private Integer height;
+    // EXIF orientation, 1-8; 5-8 show the image rotated, with width and height swapped
+    private Integer orientation;
+    // Filled in by the thumbnail pipeline after upload
+    private List<MediaVariant> variants;
+    // Blurred placeholder the client shows until the image loads
+    private String blurHash;
 
     public Media() {
     }
@@ -79,4 +92,52 @@ public class Media {
     public void setFileSize(Long fileSize) {
         this.fileSize = fileSize;
     }
-}
\ No newline at end of file
+
+    public String getSha256() {
+        return sha256;
+    }
+
+    public void setSha256(String sha256) {
+        this.sha256 = sha256;
+    }
+
+    public Integer getWidth() {
+        return width;
+    }
+
+    public void setWidth(Integer width) {
+        this.width = width;
+    }
+
+    public Integer getHeight() {
+        return height;
+    }
+
+    public void setHeight(Integer height) {
+        this.height = height;
+    }
+
+    public Integer getOrientation() {
+        return orientation;
+    }
+
+    public void setOrientation(Integer orientation) {
+        this.orientation = orientation;
+    }
+
+    public List<MediaVariant> getVariants() {
+        return variants;
+    }
+
+    public void setVariants(List<MediaVariant> variants) {
+        this.variants = variants;
+    }
+
+    public String getBlurHash() {
+        return blurHash;
+    }
+
+    public void setBlurHash(String blurHash) {
+        this.blurHash = blurHash;
+    }
+}
@@ -0,0 +1,70 @@
+package com.buyapp.mediaservice.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * A stored image file shared by every {@link Media} with the same content.
+ * The file is deleted when the last reference goes.
+ */
+@Document(collection = "media_blobs")
+public class MediaBlob {
+    // SHA-256 of the content, hex encoded
+    @Id
+    private String id;
+
+    private String path;
+    private Long size;
+    private String contentType;
+    private int refCount;
+    // Set with the last reference released; the file is being deleted and takes no new references
+    private boolean deleting;
+
+    public MediaBlob() {
+    }
+
+    // Getters and Setters
+    public String getId() {
+        return id;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    public Long getSize() {
+        return size;
+    }
+
+    public void setSize(Long size) {
+        this.size = size;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+
+    public int getRefCount() {
+        return refCount;
+    }
+
+    public void setRefCount(int refCount) {
+        this.refCount = refCount;
+    }
+
+    public boolean isDeleting() {
+        return deleting;
+    }
+
+    public void setDeleting(boolean deleting) {
+        this.deleting = deleting;
+    }
+}
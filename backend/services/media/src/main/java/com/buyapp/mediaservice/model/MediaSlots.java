@@ -0,0 +1,39 @@
+package com.buyapp.mediaservice.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * How many of a product's image slots are taken, counting uploads still in
+ * progress. Reserving a slot is a single conditional increment, so two
+ * concurrent uploads can never both take the last one.
+ */
+@Document(collection = "media_slots")
+public class MediaSlots {
+    // The product's id
+    @Id
+    private String id;
+
+    private int used;
+
+    public MediaSlots() {
+    }
+
+    public MediaSlots(String id, int used) {
+        this.id = id;
+        this.used = used;
+    }
+
+    // Getters and Setters
+    public String getId() {
+        return id;
+    }
+
+    public int getUsed() {
+        return used;
+    }
+
+    public void setUsed(int used) {
+        this.used = used;
+    }
+}
@@ -0,0 +1,56 @@
+package com.buyapp.mediaservice.model;
+
+/**
+ * A pre-generated resized copy of a {@link Media} image, as served by
+ * {@code /media/file/{id}?w=<requestedWidth>}. Where the copy is kept is up
+ * to each replica's variant cache, so only its size and type are recorded.
+ */
+public class MediaVariant {
+    private Integer requestedWidth;
+    private Integer width;
+    private Integer height;
+    private String contentType;
+
+    public MediaVariant() {
+    }
+
+    public MediaVariant(Integer requestedWidth, Integer width, Integer height, String contentType) {
+        this.requestedWidth = requestedWidth;
+        this.width = width;
+        this.height = height;
+        this.contentType = contentType;
+    }
+
+    // Getters and Setters
+    public Integer getRequestedWidth() {
+        return requestedWidth;
+    }
+
+    public void setRequestedWidth(Integer requestedWidth) {
+        this.requestedWidth = requestedWidth;
+    }
+
+    public Integer getWidth() {
+        return width;
+    }
+
+    public void setWidth(Integer width) {
+        this.width = width;
+    }
+
+    public Integer getHeight() {
+        return height;
+    }
+
+    public void setHeight(Integer height) {
+        this.height = height;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+}
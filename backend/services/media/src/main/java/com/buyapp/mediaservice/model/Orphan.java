@@ -0,0 +1,64 @@
+package com.buyapp.mediaservice.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * Something the {@link com.buyapp.mediaservice.service.OrphanReconciler}
+ * found on only one side: a file no document points at, moved to the
+ * quarantine directory, or a media or avatar document whose file is gone.
+ * Either is deleted once it has been quarantined for the configured period.
+ */
+@Document(collection = "orphans")
+public class Orphan {
+
+    public enum Kind {
+        FILE, MEDIA, AVATAR
+    }
+
+    // Kind and key, e.g. "FILE:uploads/images/3f/a8/3fa8...jpg" or "MEDIA:<media id>"
+    @Id
+    private String id;
+
+    private Kind kind;
+    // The file's original path, or the path the document records
+    private String path;
+    // Where a quarantined file was moved to
+    private String quarantinePath;
+    private Instant quarantinedAt;
+
+    public Orphan() {
+    }
+
+    public static String idOf(Kind kind, String key) {
+        return kind + ":" + key;
+    }
+
+    // Getters and Setters
+    public String getId() {
+        return id;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getQuarantinePath() {
+        return quarantinePath;
+    }
+
+    public Instant getQuarantinedAt() {
+        return quarantinedAt;
+    }
+
+    // The record id for MEDIA and AVATAR entries
+    public String getKey() {
+        return id.substring(kind.name().length() + 1);
+    }
+}
@@ -0,0 +1,50 @@
+package com.buyapp.mediaservice.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * Who owns a product, as last announced by the Product Service. Kept so
+ * uploads and deletes can be authorized without asking the Product Service
+ * each time.
+ */
+@Document(collection = "product_owners")
+public class ProductOwner {
+    // The product's id
+    @Id
+    private String id;
+
+    private String sellerId;
+
+    private String sellerEmail;
+
+    public ProductOwner() {
+    }
+
+    public ProductOwner(String id, String sellerId, String sellerEmail) {
+        this.id = id;
+        this.sellerId = sellerId;
+        this.sellerEmail = sellerEmail;
+    }
+
+    // Getters and Setters
+    public String getId() {
+        return id;
+    }
+
+    public String getSellerId() {
+        return sellerId;
+    }
+
+    public void setSellerId(String sellerId) {
+        this.sellerId = sellerId;
+    }
+
+    public String getSellerEmail() {
+        return sellerEmail;
+    }
+
+    public void setSellerEmail(String sellerEmail) {
+        this.sellerEmail = sellerEmail;
+    }
+}
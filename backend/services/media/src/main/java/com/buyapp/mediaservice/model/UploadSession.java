@@ -0,0 +1,116 @@
+package com.buyapp.mediaservice.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Transient;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * A resumable upload in progress; see
+ * {@link com.buyapp.mediaservice.service.ResumableUploads}. The bytes
+ * received so far are in a temp file named after the session, whose size is
+ * the offset the next chunk must start at, or with remote storage in one
+ * object per chunk, counted here.
+ */
+@Document(collection = "upload_sessions")
+public class UploadSession {
+    @Id
+    private String id;
+
+    private String productId;
+    private String userEmail;
+    private String fileName;
+    // Declared by the client when the session is created; checked when it is finalized
+    private long length;
+    private String sha256;
+    private Instant createdAt;
+    // Pushed back by every chunk; expired sessions are garbage-collected with their temp file
+    private Instant expiresAt;
+    // Set while a chunk or finalize is in progress on some instance; lapses if that instance dies
+    private Instant lockedUntil;
+    // With remote storage only: the bytes received and the chunk objects they are in
+    private long received;
+    private int chunks;
+
+    // Bytes received so far, read from the temp file, not stored
+    @Transient
+    private long offset;
+
+    public UploadSession() {
+    }
+
+    public UploadSession(String id, String productId, String userEmail, String fileName, long length, String sha256,
+            Instant createdAt, Instant expiresAt) {
+        this.id = id;
+        this.productId = productId;
+        this.userEmail = userEmail;
+        this.fileName = fileName;
+        this.length = length;
+        this.sha256 = sha256;
+        this.createdAt = createdAt;
+        this.expiresAt = expiresAt;
+    }
+
+    // Getters and Setters
+    public String getId() {
+        return id;
+    }
+
+    public String getProductId() {
+        return productId;
+    }
+
+    public String getUserEmail() {
+        return userEmail;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public String getSha256() {
+        return sha256;
+    }
+
+    public Instant getCreatedAt() {
+        return createdAt;
+    }
+
+    public Instant getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(Instant expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    // Internal; clients read the offset
+    @JsonIgnore
+    public Instant getLockedUntil() {
+        return lockedUntil;
+    }
+
+    @JsonIgnore
+    public long getReceived() {
+        return received;
+    }
+
+    @JsonIgnore
+    public int getChunks() {
+        return chunks;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+}
@@ -0,0 +1,123 @@
+package com.buyapp.mediaservice.service;
+
+import com.buyapp.mediaservice.model.Avatar;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+
+/**
+ * Avatars by user id, for listing pages that show a seller next to every
+ * product. Users without an avatar are cached too, since most sellers have
+ * none. At most {@code media.avatars.cache.max-entries} users are kept, least
+ * recently used first out.
+ *
+ * {@link AvatarService} invalidates a user on upload and delete. Other
+ * replicas only notice when their entry is {@code media.avatars.cache.ttl}
+ * old, which bounds how long they serve a replaced avatar.
+ */
+@Component
+public class AvatarCache {
+
+    private record Entry(Avatar avatar, Instant expiresAt) {
+    }
+
+    private final int maxEntries;
+    private final Duration ttl;
+    private final Clock clock;
+    private final Counter hits;
+    private final Counter misses;
+
+    // Access order, guarded by itself
+    private final Map<String, Entry> entries;
+    // Bumped by every invalidation; a load that started before one is not cached
+    private long generation;
+
+    @Autowired
+    public AvatarCache(MeterRegistry meterRegistry,
+            @Value("${media.avatars.cache.max-entries}") int maxEntries,
+            @Value("${media.avatars.cache.ttl}") Duration ttl) {
+        this(meterRegistry, maxEntries, ttl, Clock.systemUTC());
+    }
+
+    AvatarCache(MeterRegistry meterRegistry, int maxEntries, Duration ttl, Clock clock) {
+        this.maxEntries = maxEntries;
+        this.ttl = ttl;
+        this.clock = clock;
+        this.hits = meterRegistry.counter("media.avatars.cache", "result", "hit");
+        this.misses = meterRegistry.counter("media.avatars.cache", "result", "miss");
+        this.entries = new LinkedHashMap<>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > AvatarCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @param loader looks the avatar up when it is not cached
+     */
+    public Optional<Avatar> get(String userId, Function<String, Optional<Avatar>> loader) {
+        return Optional.ofNullable(getAll(List.of(userId), missing -> loader.apply(missing.get(0)).stream().toList())
+                .get(userId));
+    }
+
+    /**
+     * Avatars of many users, with those not cached looked up in one call.
+     *
+     * @param loader returns the avatars of the given users; users without one
+     *               are left out
+     * @return the avatar of each user that has one
+     */
+    public Map<String, Avatar> getAll(List<String> userIds, Function<List<String>, List<Avatar>> loader) {
+        Map<String, Avatar> found = new LinkedHashMap<>();
+        List<String> missing = new ArrayList<>();
+        long loadGeneration;
+        synchronized (entries) {
+            Instant now = clock.instant();
+            for (String userId : userIds) {
+                Entry entry = entries.get(userId);
+                if (entry == null || !entry.expiresAt().isAfter(now)) {
+                    missing.add(userId);
+                } else if (entry.avatar() != null) {
+                    found.put(userId, entry.avatar());
+                }
+            }
+            loadGeneration = generation;
+        }
+        hits.increment(userIds.size() - missing.size());
+        if (missing.isEmpty()) {
+            return found;
+        }
+        misses.increment(missing.size());
+
+        Map<String, Avatar> loaded = new LinkedHashMap<>();
+        loader.apply(missing).forEach(avatar -> loaded.put(avatar.getUserId(), avatar));
+        synchronized (entries) {
+            if (generation == loadGeneration) {
+                Instant expiresAt = clock.instant().plus(ttl);
+                missing.forEach(userId -> entries.put(userId, new Entry(loaded.get(userId), expiresAt)));
+            }
+        }
+        found.putAll(loaded);
+        return found;
+    }
+
+    public void invalidate(String userId) {
+        synchronized (entries) {
+            entries.remove(userId);
+            generation++;
+        }
+    }
+}
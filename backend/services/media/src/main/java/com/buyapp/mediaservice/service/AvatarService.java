@@ -6,7 +6,17 @@ import com.buyapp.common.exception.ForbiddenException;
 import com.buyapp.common.exception.ResourceNotFoundException;
 import com.buyapp.mediaservice.model.Avatar;
 import com.buyapp.mediaservice.repository.AvatarRepository;
+import com.buyapp.mediaservice.storage.MediaStorage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.security.core.Authentication;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -18,20 +28,43 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 
 @Service
 public class AvatarService {
 
+    private static final Logger logger = LoggerFactory.getLogger(AvatarService.class);
+
     @Autowired
     private AvatarRepository avatarRepository;
 
     @Autowired
     private WebClient.Builder webClientBuilder;
 
-    private static final String AVATAR_UPLOAD_DIR = "uploads/avatars/";
+    @Autowired
+    private HotImageCache hotImageCache;
+
+    @Autowired
+    private MediaStorage mediaStorage;
+
+    @Autowired
+    private FileReaper fileReaper;
+
+    @Autowired
+    private ImageVariantService imageVariantService;
+
+    @Autowired
+    private AvatarCache avatarCache;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    static final String AVATAR_UPLOAD_DIR = "uploads/avatars/";
     private static final long MAX_FILE_SIZE = 2 * 1024 * 1024; // 2MB
+    static final int MAX_BATCH_USERS = 100;
     private static final String[] ALLOWED_CONTENT_TYPES = {
             "image/jpeg", "image/jpg", "image/png", "image/gif", "image/webp"
     };
@@ -67,8 +100,9 @@ public class AvatarService {
         // Delete existing avatar if exists
         Optional<Avatar> existingAvatar = avatarRepository.findByUserId(currentUser.getId());
         if (existingAvatar.isPresent()) {
-            deleteAvatarFile(existingAvatar.get().getImagePath());
+            deleteAvatarFile(existingAvatar.get());
             avatarRepository.delete(existingAvatar.get());
+            avatarCache.invalidate(currentUser.getId());
         }
 
         try {
@@ -77,19 +111,37 @@ public class AvatarService {
             String fileExtension = originalFilename.substring(originalFilename.lastIndexOf("."));
             String uniqueFilename = UUID.randomUUID().toString() + fileExtension;
 
-            // Save file to disk
-            Path targetLocation = Paths.get(AVATAR_UPLOAD_DIR + uniqueFilename);
-            Files.copy(file.getInputStream(), targetLocation, StandardCopyOption.REPLACE_EXISTING);
+            // Receive the file on disk, then hand it to storage
+            String imagePath = ShardedLayout.shardedPath(AVATAR_UPLOAD_DIR, uniqueFilename);
+            Path received = Files.createTempFile(Paths.get(AVATAR_UPLOAD_DIR), "upload-", ".part");
+            Optional<ImageHeader> header;
+            String blurHash;
+            try {
+                Files.copy(file.getInputStream(), received, StandardCopyOption.REPLACE_EXISTING);
+                header = ImageHeader.read(received);
+                // Avatars get no thumbnail pipeline; at 2 MB at most the placeholder is cheap to do here
+                blurHash = blurHashOf(received);
+                mediaStorage.store(imagePath, received, file.getContentType());
+            } finally {
+                Files.deleteIfExists(received);
+            }
 
             // Create avatar entity
             Avatar avatar = new Avatar();
-            avatar.setImagePath(AVATAR_UPLOAD_DIR + uniqueFilename);
+            avatar.setImagePath(imagePath);
             avatar.setUserId(currentUser.getId());
             avatar.setFileName(originalFilename);
             avatar.setContentType(file.getContentType());
             avatar.setFileSize(file.getSize());
+            header.ifPresent(h -> {
+                avatar.setWidth(h.getWidth());
+                avatar.setHeight(h.getHeight());
+                avatar.setOrientation(h.getOrientation());
+            });
+            avatar.setBlurHash(blurHash);
 
             Avatar saved = avatarRepository.save(avatar);
+            avatarCache.invalidate(saved.getUserId());
 
             // Update user's avatar field in User Service
             updateUserAvatar(currentUser.getId(), saved.getId());
@@ -100,13 +152,48 @@ public class AvatarService {
         }
     }
 
+    // A missing placeholder is no reason to reject the upload
+    private String blurHashOf(Path image) {
+        try {
+            return imageVariantService.blurHash(image);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Could not compute avatar placeholder: {}", e.getMessage());
+            return null;
+        }
+    }
+
     public Avatar getAvatarByUserId(String userId) {
-        return avatarRepository.findByUserId(userId)
+        return getAvatarByUserIdOptional(userId)
                 .orElseThrow(() -> new ResourceNotFoundException("Avatar not found for user: " + userId));
     }
 
     public Optional<Avatar> getAvatarByUserIdOptional(String userId) {
-        return avatarRepository.findByUserId(userId);
+        return avatarCache.get(userId, avatarRepository::findByUserId);
+    }
+
+    /**
+     * Avatars of many users, for pages showing several sellers: a map from
+     * each requested user id that has an avatar to it. Users not cached are
+     * looked up in one {@code $in} query over the userId index.
+     */
+    public Map<String, Avatar> getAvatarsByUserIds(List<String> userIds) {
+        List<String> ids = userIds == null ? List.of() : userIds.stream().distinct().toList();
+        if (ids.size() > MAX_BATCH_USERS) {
+            throw new BadRequestException("At most " + MAX_BATCH_USERS + " users per request");
+        }
+        if (ids.isEmpty()) {
+            return Map.of();
+        }
+        return avatarCache.getAll(ids,
+                missing -> mongoTemplate.find(Query.query(Criteria.where("userId").in(missing)), Avatar.class));
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void ensureIndexes() {
+        // Serves findByUserId and the batch lookup; auto-index creation is off, so @Indexed is not applied
+        mongoTemplate.indexOps(Avatar.class).createIndex(new Index()
+                .on("userId", Sort.Direction.ASC)
+                .named("userId"));
     }
 
     public Avatar getAvatarById(String id) {
@@ -128,22 +215,33 @@ public class AvatarService {
         }
 
         // Delete file from disk
-        deleteAvatarFile(avatar.get().getImagePath());
+        deleteAvatarFile(avatar.get());
 
         // Delete from database
         avatarRepository.delete(avatar.get());
+        avatarCache.invalidate(currentUser.getId());
 
         // Clear user's avatar field
         updateUserAvatar(currentUser.getId(), null);
     }
 
-    private void deleteAvatarFile(String imagePath) {
-        try {
-            Path filePath = Paths.get(imagePath);
-            Files.deleteIfExists(filePath);
-        } catch (IOException e) {
-            System.err.println("Could not delete avatar file: " + imagePath + " - " + e.getMessage());
+    // Removes an avatar whose file is gone, found by the OrphanReconciler (no authentication required)
+    @Transactional
+    public void deleteAvatarInternal(String id) {
+        Optional<Avatar> avatar = avatarRepository.findById(id);
+        if (avatar.isEmpty()) {
+            return;
         }
+        hotImageCache.invalidate(HotImageCache.avatarKey(id));
+        avatarRepository.delete(avatar.get());
+        avatarCache.invalidate(avatar.get().getUserId());
+        updateUserAvatar(avatar.get().getUserId(), null);
+    }
+
+    // The FileReaper deletes the file, retrying if that fails
+    private void deleteAvatarFile(Avatar avatar) {
+        fileReaper.enqueue(List.of(fileReaper.deletionOf(null, avatar.getImagePath())));
+        hotImageCache.invalidate(HotImageCache.avatarKey(avatar.getId()));
     }
 
     private UserDto getUserFromService(String email) {
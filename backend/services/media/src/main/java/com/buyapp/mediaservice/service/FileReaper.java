@@ -0,0 +1,235 @@
+package com.buyapp.mediaservice.service;
+
+import com.buyapp.mediaservice.model.FileDeletion;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Deletes image files in the background, so that removing many media, such
+ * as all products of a deleted seller, costs their callers one insert
+ * instead of one disk operation per file.
+ *
+ * Files to delete are queued in {@code file_deletions}, which survives
+ * restarts and is shared by all instances: each entry is leased with a
+ * conditional update before it is worked on. A bounded pool of
+ * {@code media.reaper.threads} deletes them, together at most
+ * {@code media.reaper.files-per-second}. A failed deletion stays queued and
+ * is retried with exponential backoff, from 30 seconds up to an hour.
+ */
+@Service
+public class FileReaper {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileReaper.class);
+
+    // Long enough for any single deletion; an entry whose instance died is picked up again after it
+    private static final Duration LEASE = Duration.ofMinutes(5);
+    private static final Duration FIRST_RETRY = Duration.ofSeconds(30);
+    private static final Duration MAX_RETRY = Duration.ofHours(1);
+
+    private final MongoTemplate mongoTemplate;
+    private final MediaBlobStore mediaBlobStore;
+    private final Clock clock;
+    private final int threads;
+    private final long nanosPerFile;
+    private final Duration pollInterval;
+    private final Counter deleted;
+    private final Counter failed;
+
+    private final Object wakeUp = new Object();
+    private boolean woken;
+    private long nextFileNanos;
+    private volatile boolean running;
+    private ExecutorService workers;
+    private Thread dispatcher;
+
+    @Autowired
+    public FileReaper(MongoTemplate mongoTemplate, MediaBlobStore mediaBlobStore, MeterRegistry meterRegistry,
+            @Value("${media.reaper.threads}") int threads,
+            @Value("${media.reaper.files-per-second}") int filesPerSecond,
+            @Value("${media.reaper.poll-interval}") Duration pollInterval) {
+        this(mongoTemplate, mediaBlobStore, meterRegistry, threads, filesPerSecond, pollInterval,
+                Clock.systemUTC());
+    }
+
+    FileReaper(MongoTemplate mongoTemplate, MediaBlobStore mediaBlobStore, MeterRegistry meterRegistry, int threads,
+            int filesPerSecond, Duration pollInterval, Clock clock) {
+        this.mongoTemplate = mongoTemplate;
+        this.mediaBlobStore = mediaBlobStore;
+        this.clock = clock;
+        this.threads = threads;
+        this.nanosPerFile = TimeUnit.SECONDS.toNanos(1) / filesPerSecond;
+        this.pollInterval = pollInterval;
+        this.deleted = meterRegistry.counter("media.reaper.deleted");
+        this.failed = meterRegistry.counter("media.reaper.failures");
+    }
+
+    /**
+     * Queues files whose last reference has been released.
+     */
+    public void enqueue(List<FileDeletion> deletions) {
+        if (deletions.isEmpty()) {
+            return;
+        }
+        mongoTemplate.insertAll(deletions);
+        synchronized (wakeUp) {
+            woken = true;
+            wakeUp.notifyAll();
+        }
+    }
+
+    /**
+     * Builds the queue entry for a file to delete now.
+     */
+    public FileDeletion deletionOf(String sha256, String imagePath) {
+        return new FileDeletion(sha256, imagePath, clock.instant());
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        mongoTemplate.indexOps(FileDeletion.class).createIndex(new Index()
+                .on("notBefore", Sort.Direction.ASC)
+                .named("notBefore"));
+        AtomicInteger count = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "file-reaper-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        running = true;
+        dispatcher = new Thread(this::dispatch, "file-reaper");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        if (dispatcher != null) {
+            dispatcher.interrupt();
+            dispatcher.join(TimeUnit.SECONDS.toMillis(5));
+        }
+        if (workers != null) {
+            // Entries still leased are picked up again once their lease runs out
+            workers.shutdown();
+            workers.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    // Hands due entries to the workers, never more at once than there are workers
+    private void dispatch() {
+        Semaphore idleWorkers = new Semaphore(threads);
+        while (running) {
+            try {
+                idleWorkers.acquire();
+                FileDeletion deletion = claim();
+                if (deletion == null) {
+                    idleWorkers.release();
+                    awaitWork();
+                    continue;
+                }
+                workers.execute(() -> {
+                    try {
+                        reap(deletion);
+                    } finally {
+                        idleWorkers.release();
+                    }
+                });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                // Usually the database being unreachable; try again later
+                logger.warn("File reaper could not read its queue: {}", e.getMessage());
+                idleWorkers.release();
+                awaitWork();
+            }
+        }
+    }
+
+    private void awaitWork() {
+        synchronized (wakeUp) {
+            try {
+                if (!woken) {
+                    wakeUp.wait(pollInterval.toMillis());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            woken = false;
+        }
+    }
+
+    /**
+     * Leases the next due entry.
+     *
+     * @return the entry, or {@code null} if none is due
+     */
+    FileDeletion claim() {
+        Instant now = clock.instant();
+        Query due = Query.query(Criteria.where("notBefore").lte(now)).with(Sort.by("notBefore"));
+        return mongoTemplate.findAndModify(due, new Update().set("notBefore", now.plus(LEASE)), FileDeletion.class);
+    }
+
+    // Deletes the file and drops the entry, or schedules the next attempt
+    void reap(FileDeletion deletion) {
+        throttle();
+        Query byId = Query.query(Criteria.where("_id").is(deletion.getId()));
+        try {
+            mediaBlobStore.deleteIfUnreferenced(deletion.getSha256(), deletion.getImagePath());
+            mongoTemplate.remove(byId, FileDeletion.class);
+            deleted.increment();
+        } catch (Exception e) {
+            int attempts = deletion.getAttempts() + 1;
+            long backoffSeconds = FIRST_RETRY.getSeconds() << Math.min(attempts - 1, 16);
+            Duration backoff = Duration.ofSeconds(Math.min(backoffSeconds, MAX_RETRY.getSeconds()));
+            mongoTemplate.updateFirst(byId, new Update()
+                    .set("attempts", attempts)
+                    .set("notBefore", clock.instant().plus(backoff))
+                    .set("lastError", String.valueOf(e.getMessage())), FileDeletion.class);
+            failed.increment();
+            logger.warn("Could not delete file {} (attempt {}), retrying in {}: {}", deletion.getImagePath(), attempts,
+                    backoff, e.getMessage());
+        }
+    }
+
+    // Spaces deletions across all workers to the configured rate
+    private void throttle() {
+        long now = System.nanoTime();
+        long due;
+        synchronized (this) {
+            due = Math.max(nextFileNanos, now);
+            nextFileNanos = due + nanosPerFile;
+        }
+        if (due > now) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(due - now);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.buyapp.mediaservice.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of hot image files held in direct (off-heap) buffers, so
+ * popular images are served without touching the disk and without their
+ * bytes passing through the Java heap.
+ *
+ * Admission follows TinyLFU: every lookup is counted in a
+ * {@link FrequencySketch}, and when the cache is full a new image only gets
+ * in if it has been asked for more often than each least-recently-used
+ * entry it would push out. One-off requests therefore cannot flush the
+ * images everybody looks at.
+ *
+ * Publishes {@code media.cache.hit.ratio}, {@code media.cache.resident.bytes}
+ * and hit, miss, eviction and rejection counters.
+ */
+@Service
+public class HotImageCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(HotImageCache.class);
+
+    // Used to size the frequency sketch, which should track a good many more images than fit in the cache
+    private static final long TYPICAL_IMAGE_BYTES = 64 * 1024;
+    private static final int MIN_SKETCH_CAPACITY = 1024;
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final Map<String, CachedImage> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final FrequencySketch sketch;
+    private long residentBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final Counter evictions;
+    private final Counter rejections;
+
+    public HotImageCache(MeterRegistry meterRegistry,
+            @Value("${media.cache.max-bytes}") long maxBytes,
+            @Value("${media.cache.max-entry-bytes}") long maxEntryBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+        this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(MIN_SKETCH_CAPACITY, maxBytes / TYPICAL_IMAGE_BYTES)));
+
+        Gauge.builder("media.cache.resident.bytes", this, HotImageCache::residentBytes)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("media.cache.hit.ratio", this, HotImageCache::hitRatio).register(meterRegistry);
+        FunctionCounter.builder("media.cache.requests", hits, AtomicLong::get).tag("result", "hit")
+                .register(meterRegistry);
+        FunctionCounter.builder("media.cache.requests", misses, AtomicLong::get).tag("result", "miss")
+                .register(meterRegistry);
+        this.evictions = Counter.builder("media.cache.evictions").register(meterRegistry);
+        this.rejections = Counter.builder("media.cache.rejections").register(meterRegistry);
+    }
+
+    public static String mediaKey(String mediaId) {
+        return "media:" + mediaId;
+    }
+
+    public static String avatarKey(String avatarId) {
+        return "avatar:" + avatarId;
+    }
+
+    /**
+     * Looks the image up and counts the request towards its popularity.
+     */
+    public synchronized CachedImage get(String key) {
+        sketch.increment(key);
+        CachedImage image = entries.get(key);
+        (image != null ? hits : misses).incrementAndGet();
+        return image;
+    }
+
+    /**
+     * Whether an image of this size would currently be admitted, checked
+     * before reading the file so rejected images cost no I/O.
+     */
+    public synchronized boolean admits(String key, long size) {
+        return victimsFor(key, size) != null;
+    }
+
+    /**
+     * Reads the file into off-heap memory and caches it if admission still
+     * allows.
+     *
+     * @return the cached image, or {@code null} if it was not admitted
+     */
+    public CachedImage load(String key, Path file, long size, long lastModified) throws IOException {
+        if (!admits(key, size)) {
+            rejections.increment();
+            return null;
+        }
+        ByteBuffer data = ByteBuffer.allocateDirect((int) size);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (data.hasRemaining() && channel.read(data) >= 0) {
+                // keep reading
+            }
+        }
+        data.flip();
+        return put(key, new CachedImage(data, lastModified));
+    }
+
+    synchronized CachedImage put(String key, CachedImage image) {
+        CachedImage existing = entries.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        List<String> victims = victimsFor(key, image.length());
+        if (victims == null) {
+            rejections.increment();
+            return null;
+        }
+        for (String victim : victims) {
+            residentBytes -= entries.remove(victim).length();
+            evictions.increment();
+        }
+        entries.put(key, image);
+        residentBytes += image.length();
+        return image;
+    }
+
+    /**
+     * Drops the image and any variants derived from it (keys starting with
+     * {@code key + ":"}).
+     */
+    public synchronized void invalidate(String key) {
+        String variantPrefix = key + ":";
+        Iterator<Map.Entry<String, CachedImage>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, CachedImage> entry = iterator.next();
+            if (entry.getKey().equals(key) || entry.getKey().startsWith(variantPrefix)) {
+                residentBytes -= entry.getValue().length();
+                iterator.remove();
+                logger.debug("Dropped {} from the hot image cache", entry.getKey());
+            }
+        }
+    }
+
+    public synchronized long residentBytes() {
+        return residentBytes;
+    }
+
+    public double hitRatio() {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    // Least recently used entries to evict to make room, or null if the newcomer is not popular enough
+    private List<String> victimsFor(String key, long size) {
+        if (size <= 0 || size > maxEntryBytes) {
+            return null;
+        }
+        List<String> victims = new ArrayList<>();
+        long free = maxBytes - residentBytes;
+        int frequency = sketch.frequency(key);
+        Iterator<Map.Entry<String, CachedImage>> eldest = entries.entrySet().iterator();
+        while (free < size) {
+            Map.Entry<String, CachedImage> victim = eldest.next();
+            if (sketch.frequency(victim.getKey()) >= frequency) {
+                return null;
+            }
+            victims.add(victim.getKey());
+            free += victim.getValue().length();
+        }
+        return victims;
+    }
+
+    /**
+     * An image's bytes in off-heap memory plus what the response headers need.
+     */
+    public static final class CachedImage {
+
+        private final ByteBuffer data;
+        private final long lastModified;
+
+        CachedImage(ByteBuffer data, long lastModified) {
+            this.data = data.asReadOnlyBuffer();
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @return an independent read-only view positioned at the start
+         */
+        public ByteBuffer content() {
+            return data.duplicate();
+        }
+
+        public long length() {
+            return data.limit();
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+}
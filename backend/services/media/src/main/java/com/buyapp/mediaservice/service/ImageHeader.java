@@ -0,0 +1,306 @@
+package com.buyapp.mediaservice.service;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+
+/**
+ * Width, height and EXIF orientation of an image, read from its headers
+ * without decoding any pixels: the SOF segment of a JPEG, the IHDR chunk of
+ * a PNG, the logical screen descriptor of a GIF and the VP8, VP8L or VP8X
+ * chunk of a WebP. Usually only the first few hundred bytes are read; the
+ * rest of the file is skipped, not read.
+ *
+ * The dimensions are those of the stored pixels. An orientation of 5 to 8
+ * means the image is shown rotated by 90 degrees, with width and height
+ * swapped.
+ */
+public final class ImageHeader {
+
+    private static final int SOF0 = 0xC0;
+    private static final int SOF15 = 0xCF;
+    private static final int DHT = 0xC4;
+    private static final int JPG = 0xC8;
+    private static final int DAC = 0xCC;
+    private static final int SOS = 0xDA;
+    private static final int EOI = 0xD9;
+    private static final int APP1 = 0xE1;
+    private static final int ORIENTATION_TAG = 0x0112;
+    // The largest EXIF block a JPEG segment can hold
+    private static final int MAX_EXIF_BYTES = 0xFFFF;
+
+    private final int width;
+    private final int height;
+    private final Integer orientation;
+
+    ImageHeader(int width, int height, Integer orientation) {
+        this.width = width;
+        this.height = height;
+        this.orientation = orientation;
+    }
+
+    /**
+     * @return the header, or empty if the file is not a JPEG, PNG, GIF or
+     *         WebP or its header is cut short or malformed
+     */
+    public static Optional<ImageHeader> read(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return parse(in);
+        }
+    }
+
+    /**
+     * Reads the header from the start of the stream, consuming only as much
+     * of it as needed.
+     */
+    public static Optional<ImageHeader> parse(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in, 8192));
+        try {
+            int first = data.readUnsignedByte();
+            int second = data.readUnsignedByte();
+            ImageHeader header;
+            if (first == 0xFF && second == 0xD8) {
+                header = jpeg(data);
+            } else if (first == 0x89 && second == 'P') {
+                header = png(data);
+            } else if (first == 'G' && second == 'I') {
+                header = gif(data);
+            } else if (first == 'R' && second == 'I') {
+                header = webp(data);
+            } else {
+                header = null;
+            }
+            return Optional.ofNullable(header).filter(h -> h.width > 0 && h.height > 0);
+        } catch (EOFException e) {
+            return Optional.empty();
+        }
+    }
+
+    // Walks the marker segments up to the first start-of-frame, picking up the EXIF orientation on the way
+    private static ImageHeader jpeg(DataInputStream in) throws IOException {
+        Integer orientation = null;
+        while (true) {
+            if (in.readUnsignedByte() != 0xFF) {
+                return null;
+            }
+            int marker = in.readUnsignedByte();
+            while (marker == 0xFF) {
+                // Fill bytes before the marker
+                marker = in.readUnsignedByte();
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                // Standalone markers carry no length
+                continue;
+            }
+            if (marker == SOS || marker == EOI) {
+                // Image data without a frame header
+                return null;
+            }
+            int length = in.readUnsignedShort() - 2;
+            if (length < 0) {
+                return null;
+            }
+            if (marker >= SOF0 && marker <= SOF15 && marker != DHT && marker != JPG && marker != DAC) {
+                in.skipNBytes(1);
+                int height = in.readUnsignedShort();
+                int width = in.readUnsignedShort();
+                return new ImageHeader(width, height, orientation);
+            }
+            if (marker == APP1 && orientation == null) {
+                byte[] segment = new byte[length];
+                in.readFully(segment);
+                if (startsWith(segment, "Exif\0\0")) {
+                    orientation = exifOrientation(segment, 6, segment.length - 6);
+                }
+            } else {
+                in.skipNBytes(length);
+            }
+        }
+    }
+
+    // IHDR is always the first chunk; an eXIf chunk, if any, comes before the image data
+    private static ImageHeader png(DataInputStream in) throws IOException {
+        // Rest of the signature, then the length of IHDR
+        in.skipNBytes(6 + 4);
+        if (in.readInt() != fourCc("IHDR")) {
+            return null;
+        }
+        int width = in.readInt();
+        int height = in.readInt();
+        // Rest of IHDR and its CRC
+        in.skipNBytes(5 + 4);
+        return new ImageHeader(width, height, pngExifOrientation(in));
+    }
+
+    private static Integer pngExifOrientation(DataInputStream in) throws IOException {
+        try {
+            while (true) {
+                int length = in.readInt();
+                int type = in.readInt();
+                if (type == fourCc("IDAT") || type == fourCc("IEND") || length < 0) {
+                    return null;
+                }
+                if (type == fourCc("eXIf") && length <= MAX_EXIF_BYTES) {
+                    byte[] exif = new byte[length];
+                    in.readFully(exif);
+                    return exifOrientation(exif, 0, length);
+                }
+                in.skipNBytes(length + 4L);
+            }
+        } catch (EOFException e) {
+            // The dimensions are known; a truncated tail only loses the orientation
+            return null;
+        }
+    }
+
+    private static ImageHeader gif(DataInputStream in) throws IOException {
+        in.skipNBytes(4);
+        int width = littleEndian(in, 2);
+        int height = littleEndian(in, 2);
+        return new ImageHeader(width, height, null);
+    }
+
+    private static ImageHeader webp(DataInputStream in) throws IOException {
+        in.skipNBytes(2 + 4);
+        if (in.readInt() != fourCc("WEBP")) {
+            return null;
+        }
+        int chunk = in.readInt();
+        int chunkLength = littleEndian(in, 4);
+        if (chunk == fourCc("VP8 ")) {
+            // Frame tag, then the start code 9D 01 2A
+            in.skipNBytes(3);
+            if (in.readUnsignedByte() != 0x9D || in.readUnsignedByte() != 0x01 || in.readUnsignedByte() != 0x2A) {
+                return null;
+            }
+            int width = littleEndian(in, 2) & 0x3FFF;
+            int height = littleEndian(in, 2) & 0x3FFF;
+            return new ImageHeader(width, height, null);
+        }
+        if (chunk == fourCc("VP8L")) {
+            if (in.readUnsignedByte() != 0x2F) {
+                return null;
+            }
+            int bits = littleEndian(in, 4);
+            return new ImageHeader((bits & 0x3FFF) + 1, ((bits >>> 14) & 0x3FFF) + 1, null);
+        }
+        if (chunk == fourCc("VP8X")) {
+            int flags = in.readUnsignedByte();
+            in.skipNBytes(3);
+            int width = littleEndian(in, 3) + 1;
+            int height = littleEndian(in, 3) + 1;
+            in.skipNBytes(chunkLength - 10L + (chunkLength & 1));
+            boolean hasExif = (flags & 0x08) != 0;
+            return new ImageHeader(width, height, hasExif ? webpExifOrientation(in) : null);
+        }
+        return null;
+    }
+
+    // The EXIF chunk usually follows the image data, so this skips over it
+    private static Integer webpExifOrientation(DataInputStream in) throws IOException {
+        try {
+            while (true) {
+                int chunk = in.readInt();
+                int length = littleEndian(in, 4);
+                if (chunk == fourCc("EXIF")) {
+                    if (length < 0 || length > MAX_EXIF_BYTES) {
+                        return null;
+                    }
+                    byte[] exif = new byte[length];
+                    in.readFully(exif);
+                    // Some writers keep the "Exif\0\0" prefix of the JPEG segment
+                    int start = startsWith(exif, "Exif\0\0") ? 6 : 0;
+                    return exifOrientation(exif, start, length - start);
+                }
+                in.skipNBytes((length & 0xFFFFFFFFL) + (length & 1));
+            }
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    // Looks up tag 0x0112 in the first IFD of a TIFF structure
+    private static Integer exifOrientation(byte[] exif, int start, int length) {
+        if (length < 8) {
+            return null;
+        }
+        boolean littleEndian;
+        if (exif[start] == 'I' && exif[start + 1] == 'I') {
+            littleEndian = true;
+        } else if (exif[start] == 'M' && exif[start + 1] == 'M') {
+            littleEndian = false;
+        } else {
+            return null;
+        }
+        long ifd = unsigned(exif, start + 4, 4, littleEndian);
+        if (ifd < 8 || ifd + 2 > length) {
+            return null;
+        }
+        int entries = (int) unsigned(exif, start + (int) ifd, 2, littleEndian);
+        for (int i = 0; i < entries; i++) {
+            int entry = start + (int) ifd + 2 + 12 * i;
+            if (entry + 12 > start + length) {
+                return null;
+            }
+            if (unsigned(exif, entry, 2, littleEndian) == ORIENTATION_TAG) {
+                // A SHORT value sits in the first two bytes of the value field
+                int orientation = (int) unsigned(exif, entry + 8, 2, littleEndian);
+                return orientation >= 1 && orientation <= 8 ? orientation : null;
+            }
+        }
+        return null;
+    }
+
+    private static long unsigned(byte[] bytes, int offset, int count, boolean littleEndian) {
+        long value = 0;
+        for (int i = 0; i < count; i++) {
+            int b = bytes[offset + (littleEndian ? count - 1 - i : i)] & 0xFF;
+            value = (value << 8) | b;
+        }
+        return value;
+    }
+
+    private static int littleEndian(DataInputStream in, int count) throws IOException {
+        int value = 0;
+        for (int i = 0; i < count; i++) {
+            value |= in.readUnsignedByte() << (8 * i);
+        }
+        return value;
+    }
+
+    private static int fourCc(String code) {
+        return (code.charAt(0) << 24) | (code.charAt(1) << 16) | (code.charAt(2) << 8) | code.charAt(3);
+    }
+
+    private static boolean startsWith(byte[] bytes, String prefix) {
+        if (bytes.length < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (bytes[i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the EXIF orientation, 1 to 8, or {@code null} if the image has none
+     */
+    public Integer getOrientation() {
+        return orientation;
+    }
+}
@@ -0,0 +1,219 @@
+package com.buyapp.mediaservice.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Re-encodes uploaded JPEGs and PNGs before they are stored: pixels are
+ * rotated to their EXIF orientation, EXIF and other metadata are dropped,
+ * JPEGs are written as progressive JPEG at {@code media.ingest.optimize.jpeg-quality}
+ * and PNGs with maximum compression. Whichever of the original and the
+ * re-encoded file is smaller is kept, so an upload never grows. GIFs, which
+ * may be animated, and WebP, which ImageIO cannot write, are stored as
+ * uploaded.
+ *
+ * Encoding runs on a pool of {@code media.ingest.optimize.threads}. When all
+ * of them are busy and the queue is full, the upload is stored as it is
+ * rather than waiting. Savings per upload are reported as
+ * {@code media.ingest.bytes.saved}.
+ */
+@Service
+public class ImageOptimizer {
+
+    private static final Logger logger = LoggerFactory.getLogger(ImageOptimizer.class);
+
+    private final boolean enabled;
+    private final float jpegQuality;
+    private final ThreadPoolExecutor encoders;
+    private final DistributionSummary bytesSaved;
+    private final Counter optimized;
+    private final Counter keptOriginal;
+    private final Counter skipped;
+
+    public ImageOptimizer(MeterRegistry meterRegistry,
+            @Value("${media.ingest.optimize.enabled}") boolean enabled,
+            @Value("${media.ingest.optimize.jpeg-quality}") int jpegQuality,
+            @Value("${media.ingest.optimize.threads}") int threads,
+            @Value("${media.ingest.optimize.queue}") int queue) {
+        this.enabled = enabled;
+        this.jpegQuality = jpegQuality / 100f;
+
+        int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        AtomicInteger count = new AtomicInteger();
+        this.encoders = new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queue)), runnable -> {
+                    Thread thread = new Thread(runnable, "image-optimizer-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+
+        this.bytesSaved = DistributionSummary.builder("media.ingest.bytes.saved")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.optimized = meterRegistry.counter("media.ingest.uploads", "result", "optimized");
+        this.keptOriginal = meterRegistry.counter("media.ingest.uploads", "result", "original");
+        this.skipped = meterRegistry.counter("media.ingest.uploads", "result", "skipped");
+    }
+
+    /**
+     * @return the re-encoded upload, with the original discarded, or the
+     *         original if re-encoding is off, not possible or not smaller
+     */
+    public StreamingUpload optimize(StreamingUpload upload, Path directory, long maxBytes) throws IOException {
+        if (!enabled || !isEncodable(upload)) {
+            return upload;
+        }
+
+        byte[] encoded;
+        try {
+            encoded = encoders.submit(() -> encode(upload)).get();
+        } catch (RejectedExecutionException e) {
+            skipped.increment();
+            return upload;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            skipped.increment();
+            return upload;
+        } catch (ExecutionException e) {
+            // Formats ImageIO cannot decode, such as CMYK JPEGs, are stored as uploaded
+            logger.debug("Could not re-encode upload: {}", e.getCause().getMessage());
+            skipped.increment();
+            return upload;
+        }
+
+        if (encoded == null || encoded.length >= upload.getSize()) {
+            keptOriginal.increment();
+            bytesSaved.record(0);
+            return upload;
+        }
+        StreamingUpload smaller = StreamingUpload.receive(new ByteArrayInputStream(encoded), directory, maxBytes);
+        upload.discard();
+        optimized.increment();
+        bytesSaved.record(upload.getSize() - smaller.getSize());
+        return smaller;
+    }
+
+    @PreDestroy
+    void shutdown() {
+        encoders.shutdownNow();
+    }
+
+    private boolean isEncodable(StreamingUpload upload) {
+        ImageHeader header = upload.getHeader();
+        if (header == null || (long) header.getWidth() * header.getHeight() > ImageVariantService.MAX_SOURCE_PIXELS) {
+            return false;
+        }
+        return upload.getContentType().equals("image/jpeg") || upload.getContentType().equals("image/png");
+    }
+
+    // Returns null if ImageIO cannot read the file
+    private byte[] encode(StreamingUpload upload) throws IOException {
+        BufferedImage image = ImageIO.read(upload.getTempFile().toFile());
+        if (image == null) {
+            return null;
+        }
+        Integer orientation = upload.getHeader().getOrientation();
+        if (orientation != null && orientation > 1) {
+            image = orient(image, orientation);
+        }
+
+        boolean jpeg = upload.getContentType().equals("image/jpeg");
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(jpeg ? "jpeg" : "png").next();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) upload.getSize());
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(bytes)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            if (jpeg) {
+                param.setCompressionQuality(jpegQuality);
+                param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+            } else {
+                // For PNG, lower quality means a higher deflate level
+                param.setCompressionQuality(0f);
+            }
+            writer.setOutput(out);
+            // No metadata: EXIF, comments and text chunks are left behind
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Turns the stored pixels the way an EXIF orientation says they are
+     * shown, so the result needs no orientation tag. Orientations 5 to 8 swap
+     * width and height.
+     */
+    static BufferedImage orient(BufferedImage source, int orientation) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        boolean swap = orientation >= 5;
+        int outWidth = swap ? height : width;
+        int outHeight = swap ? width : height;
+        int[] in = source.getRGB(0, 0, width, height, null, 0, width);
+        int[] out = new int[in.length];
+
+        for (int y = 0; y < outHeight; y++) {
+            for (int x = 0; x < outWidth; x++) {
+                int sx = x;
+                int sy = y;
+                switch (orientation) {
+                    case 2 -> sx = width - 1 - x;
+                    case 3 -> {
+                        sx = width - 1 - x;
+                        sy = height - 1 - y;
+                    }
+                    case 4 -> sy = height - 1 - y;
+                    case 5 -> {
+                        sx = y;
+                        sy = x;
+                    }
+                    case 6 -> {
+                        sx = y;
+                        sy = height - 1 - x;
+                    }
+                    case 7 -> {
+                        sx = width - 1 - y;
+                        sy = height - 1 - x;
+                    }
+                    case 8 -> {
+                        sx = width - 1 - y;
+                        sy = x;
+                    }
+                    default -> {
+                        // 1, or an unknown value: as stored
+                    }
+                }
+                out[y * outWidth + x] = in[sy * width + sx];
+            }
+        }
+
+        int type = source.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage oriented = new BufferedImage(outWidth, outHeight, type);
+        oriented.setRGB(0, 0, outWidth, outHeight, out, 0, outWidth);
+        return oriented;
+    }
+}
@@ -0,0 +1,499 @@
+package com.buyapp.mediaservice.service;
+
+import com.buyapp.common.exception.BadRequestException;
+import com.buyapp.mediaservice.model.Media;
+import com.buyapp.mediaservice.storage.MediaStorage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
+
+/**
+ * Resized and re-encoded copies of product images, e.g. catalog thumbnails.
+ *
+ * Widths come from a fixed list and the quality is snapped to a fixed list,
+ * which bounds how many variants one image can have. Each variant is encoded
+ * once and stored under {@code media.variants.dir}; the directory is kept
+ * under {@code media.variants.max-bytes} by evicting the least recently
+ * served variants. Concurrent requests for a variant that is not on disk yet
+ * wait for a single encode.
+ *
+ * Originals are read from the {@link MediaStorage}; variants are always kept
+ * on local disk, as a cache each replica rebuilds on demand.
+ */
+@Service
+public class ImageVariantService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ImageVariantService.class);
+
+    // Refuse to decode anything larger; a 2 MB upload can still declare huge dimensions
+    static final long MAX_SOURCE_PIXELS = 40_000_000L;
+    // Long side of the image a placeholder is computed from; the hash only keeps a 4x3 blur of it
+    private static final int BLURHASH_SOURCE_SIZE = 32;
+
+    private final MediaStorage storage;
+    private final Path variantDir;
+    private final int[] widths;
+    private final int[] qualities;
+    private final long maxBytes;
+
+    // Variant file name -> size, in least recently served order
+    private final Map<String, Long> index = new LinkedHashMap<>(64, 0.75f, true);
+    private long totalBytes;
+
+    private final Map<String, CompletableFuture<Path>> inFlight = new ConcurrentHashMap<>();
+    private final Semaphore encoders = new Semaphore(Math.max(1, Runtime.getRuntime().availableProcessors()));
+    private final Counter generated;
+    private final Counter evicted;
+
+    public ImageVariantService(MediaStorage storage, MeterRegistry meterRegistry,
+            @Value("${media.variants.dir}") String variantDir,
+            @Value("${media.variants.widths}") int[] widths,
+            @Value("${media.variants.qualities}") int[] qualities,
+            @Value("${media.variants.max-bytes}") long maxBytes) {
+        this.storage = storage;
+        this.variantDir = Paths.get(variantDir);
+        this.widths = widths.clone();
+        this.qualities = qualities.clone();
+        this.maxBytes = maxBytes;
+        Arrays.sort(this.widths);
+        Arrays.sort(this.qualities);
+
+        try {
+            Files.createDirectories(this.variantDir);
+            loadIndex();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not prepare variant directory " + variantDir, e);
+        }
+
+        this.generated = Counter.builder("media.variants.generated").register(meterRegistry);
+        this.evicted = Counter.builder("media.variants.evicted").register(meterRegistry);
+        Gauge.builder("media.variants.disk.bytes", this, ImageVariantService::totalBytes)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    /**
+     * @param width   one of the configured widths, or {@code null} for the original width
+     * @param format  {@code jpeg} or {@code png}, or {@code null} to keep the original format where possible
+     * @param quality JPEG quality 1-100, snapped to the nearest configured quality
+     */
+    public ImageVariant getVariant(Media media, Integer width, String format, Integer quality) {
+        String name = variantName(media, width, format, quality);
+        Path path = variantDir.resolve(name);
+        String contentType = name.endsWith(".png") ? "image/png" : "image/jpeg";
+        String cacheKey = HotImageCache.mediaKey(media.getId()) + ":" + name;
+
+        if (touch(name) && Files.exists(path)) {
+            return new ImageVariant(path, contentType, cacheKey);
+        }
+
+        CompletableFuture<Path> created = new CompletableFuture<>();
+        CompletableFuture<Path> pending = inFlight.putIfAbsent(name, created);
+        if (pending == null) {
+            try {
+                // An encode that finished after the check above has indexed the file before leaving inFlight
+                created.complete(touch(name) && Files.exists(path)
+                        ? path
+                        : generate(media, width, contentType, qualityOf(name), path));
+            } catch (RuntimeException e) {
+                created.completeExceptionally(e);
+            } finally {
+                // generate indexes the file first, so a later miss finds it in the check above
+                inFlight.remove(name);
+            }
+            pending = created;
+        }
+
+        try {
+            return new ImageVariant(pending.join(), contentType, cacheKey);
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        }
+    }
+
+    /**
+     * Deletes every variant of a media item.
+     */
+    public void deleteVariants(String mediaId) {
+        String prefix = mediaId + "_";
+        List<String> names;
+        synchronized (this) {
+            names = index.keySet().stream().filter(name -> name.startsWith(prefix)).collect(Collectors.toList());
+            for (String name : names) {
+                totalBytes -= index.remove(name);
+            }
+        }
+        for (String name : names) {
+            deleteQuietly(variantDir.resolve(name));
+        }
+    }
+
+    /**
+     * Reads the pixel size from the image header without decoding the image.
+     *
+     * @return the dimensions, or {@code null} if ImageIO cannot read the format
+     */
+    public Dimension dimensionsOf(Path image) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(image.toFile())) {
+            return dimensionsOf(in);
+        }
+    }
+
+    /**
+     * Pixel dimensions of a media's original upload, from its header.
+     */
+    public Dimension originalDimensions(Media media) throws IOException {
+        try (ImageInputStream in = openOriginal(media.getImagePath())) {
+            return dimensionsOf(in);
+        }
+    }
+
+    /**
+     * A {@link BlurHash} placeholder for an image. Only every n-th pixel is
+     * decoded, so a full-size upload costs little more than a thumbnail.
+     *
+     * @return the hash, or {@code null} if ImageIO cannot read the format
+     */
+    public String blurHash(Path image) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(image.toFile())) {
+            Iterator<ImageReader> readers = in != null ? ImageIO.getImageReaders(in) : null;
+            if (readers == null || !readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                if ((long) reader.getWidth(0) * reader.getHeight(0) > MAX_SOURCE_PIXELS) {
+                    throw new BadRequestException("Image is too large to resize");
+                }
+                int longSide = Math.max(reader.getWidth(0), reader.getHeight(0));
+                ImageReadParam param = reader.getDefaultReadParam();
+                int step = Math.max(1, longSide / (2 * BLURHASH_SOURCE_SIZE));
+                param.setSourceSubsampling(step, step, 0, 0);
+                BufferedImage sampled = reader.read(0, param);
+                int width = sampled.getWidth() >= sampled.getHeight()
+                        ? BLURHASH_SOURCE_SIZE
+                        : Math.max(1, BLURHASH_SOURCE_SIZE * sampled.getWidth() / sampled.getHeight());
+                return BlurHash.encode(scale(sampled, width, true));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static Dimension dimensionsOf(ImageInputStream in) throws IOException {
+        Iterator<ImageReader> readers = in != null ? ImageIO.getImageReaders(in) : null;
+        if (readers == null || !readers.hasNext()) {
+            return null;
+        }
+        ImageReader reader = readers.next();
+        try {
+            reader.setInput(in, true, true);
+            return new Dimension(reader.getWidth(0), reader.getHeight(0));
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    public synchronized long totalBytes() {
+        return totalBytes;
+    }
+
+    private String variantName(Media media, Integer width, String format, Integer quality) {
+        if (width != null && Arrays.binarySearch(widths, width) < 0) {
+            throw new BadRequestException("Unsupported width " + width + ", allowed widths are "
+                    + Arrays.toString(widths));
+        }
+        if (quality != null && (quality < 1 || quality > 100)) {
+            throw new BadRequestException("Quality must be between 1 and 100");
+        }
+
+        String extension;
+        if (format == null) {
+            extension = "image/png".equals(media.getContentType()) ? "png" : "jpg";
+        } else {
+            extension = switch (format.toLowerCase(Locale.ROOT)) {
+                case "jpeg", "jpg" -> "jpg";
+                case "png" -> "png";
+                default -> throw new BadRequestException("Unsupported format " + format + ", use jpeg or png");
+            };
+        }
+
+        StringBuilder name = new StringBuilder(media.getId().replaceAll("[^A-Za-z0-9-]", "")).append('_');
+        name.append(width != null ? "w" + width : "orig");
+        if (extension.equals("jpg")) {
+            // PNG is lossless, so quality only distinguishes JPEG variants
+            name.append("_q").append(nearestQuality(quality != null ? quality : qualities[qualities.length - 1]));
+        }
+        return name.append('.').append(extension).toString();
+    }
+
+    private int nearestQuality(int quality) {
+        int nearest = qualities[0];
+        for (int allowed : qualities) {
+            // Ties go to the higher quality
+            if (Math.abs(allowed - quality) <= Math.abs(nearest - quality)) {
+                nearest = allowed;
+            }
+        }
+        return nearest;
+    }
+
+    private int qualityOf(String name) {
+        int marker = name.lastIndexOf("_q");
+        return marker < 0 ? 100 : Integer.parseInt(name.substring(marker + 2, name.lastIndexOf('.')));
+    }
+
+    private Path generate(Media media, Integer width, String contentType, int quality, Path target) {
+        boolean acquired = false;
+        Path temp = null;
+        try {
+            encoders.acquire();
+            acquired = true;
+            BufferedImage source = decode(media.getImagePath());
+            boolean jpeg = contentType.equals("image/jpeg");
+            BufferedImage scaled = scale(source, width != null ? width : source.getWidth(), jpeg);
+
+            temp = Files.createTempFile(variantDir, "variant", ".tmp");
+            encode(scaled, jpeg, quality, temp);
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            generated.increment();
+            logger.debug("Generated image variant {} ({}x{})", target.getFileName(), scaled.getWidth(),
+                    scaled.getHeight());
+
+            record(target.getFileName().toString(), Files.size(target));
+            return target;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while generating image variant", e);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not generate image variant " + target.getFileName(), e);
+        } finally {
+            if (acquired) {
+                encoders.release();
+            }
+            if (temp != null) {
+                deleteQuietly(temp);
+            }
+        }
+    }
+
+    // Straight from the file when storage is local, otherwise streamed and cached in memory
+    private ImageInputStream openOriginal(String key) throws IOException {
+        Optional<Path> local = storage.localFile(key);
+        if (local.isPresent()) {
+            return ImageIO.createImageInputStream(local.get().toFile());
+        }
+        InputStream body = storage.open(key);
+        return new MemoryCacheImageInputStream(body) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    body.close();
+                }
+            }
+        };
+    }
+
+    private BufferedImage decode(String key) throws IOException {
+        try (ImageInputStream in = openOriginal(key)) {
+            Iterator<ImageReader> readers = in != null ? ImageIO.getImageReaders(in) : null;
+            if (readers == null || !readers.hasNext()) {
+                throw new BadRequestException("This image format cannot be resized");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                if ((long) reader.getWidth(0) * reader.getHeight(0) > MAX_SOURCE_PIXELS) {
+                    throw new BadRequestException("Image is too large to resize");
+                }
+                return reader.read(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Downscales in steps of at most one half, so bilinear filtering never
+     * skips source pixels and the result stays smooth. Never upscales.
+     */
+    static BufferedImage scale(BufferedImage source, int width, boolean opaque) {
+        int targetWidth = Math.min(width, source.getWidth());
+        int targetHeight = Math.max(1, (int) Math.round((double) source.getHeight() * targetWidth / source.getWidth()));
+        int type = opaque ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB;
+
+        BufferedImage current = source;
+        int currentWidth = source.getWidth();
+        int currentHeight = source.getHeight();
+        do {
+            currentWidth = Math.max(targetWidth, currentWidth / 2);
+            currentHeight = Math.max(targetHeight, currentHeight / 2);
+            BufferedImage next = new BufferedImage(currentWidth, currentHeight, type);
+            Graphics2D graphics = next.createGraphics();
+            try {
+                if (opaque) {
+                    // JPEG has no alpha channel; flatten transparent areas onto white
+                    graphics.setColor(Color.WHITE);
+                    graphics.fillRect(0, 0, currentWidth, currentHeight);
+                }
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                graphics.drawImage(current, 0, 0, currentWidth, currentHeight, null);
+            } finally {
+                graphics.dispose();
+            }
+            current = next;
+        } while (currentWidth != targetWidth || currentHeight != targetHeight);
+        return current;
+    }
+
+    private void encode(BufferedImage image, boolean jpeg, int quality, Path target) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(jpeg ? "jpeg" : "png").next();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(target.toFile())) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (jpeg) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(quality / 100f);
+            }
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private synchronized boolean touch(String name) {
+        return index.get(name) != null;
+    }
+
+    private void record(String name, long size) {
+        List<String> victims = new ArrayList<>();
+        synchronized (this) {
+            Long previous = index.put(name, size);
+            totalBytes += size - (previous != null ? previous : 0);
+            Iterator<Map.Entry<String, Long>> eldest = index.entrySet().iterator();
+            while (totalBytes > maxBytes && eldest.hasNext()) {
+                Map.Entry<String, Long> entry = eldest.next();
+                if (entry.getKey().equals(name)) {
+                    continue;
+                }
+                totalBytes -= entry.getValue();
+                victims.add(entry.getKey());
+                eldest.remove();
+            }
+        }
+        for (String victim : victims) {
+            deleteQuietly(variantDir.resolve(victim));
+            evicted.increment();
+        }
+    }
+
+    // Variants left from an earlier run, oldest first, stand in for the lost access order
+    private void loadIndex() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(variantDir)) {
+            for (Path file : stream) {
+                if (file.getFileName().toString().endsWith(".tmp")) {
+                    deleteQuietly(file);
+                } else if (Files.isRegularFile(file)) {
+                    files.add(file);
+                }
+            }
+        }
+        files.sort(Comparator.comparing(this::lastModified));
+        for (Path file : files) {
+            long size = Files.size(file);
+            index.put(file.getFileName().toString(), size);
+            totalBytes += size;
+        }
+    }
+
+    private FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.warn("Could not delete {}: {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * A variant file on disk, ready to be served.
+     */
+    public static final class ImageVariant {
+
+        private final Path path;
+        private final String contentType;
+        private final String cacheKey;
+
+        ImageVariant(Path path, String contentType, String cacheKey) {
+            this.path = path;
+            this.contentType = contentType;
+            this.cacheKey = cacheKey;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public String getCacheKey() {
+            return cacheKey;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.buyapp.mediaservice.service;
+
+import com.buyapp.mediaservice.model.Media;
+import com.buyapp.mediaservice.model.MediaBlob;
+import com.mongodb.client.result.UpdateResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.stream.Stream;
+
+/**
+ * Moves images uploaded before content-addressing into the
+ * {@link MediaBlobStore}, removing duplicate files on the way.
+ *
+ * Each image is first linked into the store, then the media document is
+ * pointed at the blob, and only then is the old file deleted, so the
+ * migration can be interrupted and run again at any point. Media that are
+ * already blobs are skipped.
+ */
+@Service
+public class MediaBlobMigration {
+
+    private static final Logger logger = LoggerFactory.getLogger(MediaBlobMigration.class);
+
+    private final MongoTemplate mongoTemplate;
+    private final MediaBlobStore mediaBlobStore;
+
+    public MediaBlobMigration(MongoTemplate mongoTemplate, MediaBlobStore mediaBlobStore) {
+        this.mongoTemplate = mongoTemplate;
+        this.mediaBlobStore = mediaBlobStore;
+    }
+
+    public Report migrate() {
+        Report report = new Report();
+        try (Stream<Media> mediaStream = mongoTemplate.stream(new Query(), Media.class)) {
+            mediaStream.forEach(media -> {
+                report.mediaScanned++;
+                try {
+                    migrate(media, report);
+                } catch (IOException e) {
+                    report.failures++;
+                    logger.warn("Could not migrate media {}: {}", media.getId(), e.getMessage());
+                }
+            });
+        }
+        logger.info("Blob migration: {} media scanned, {} migrated, {} duplicate files removed, {} bytes saved, "
+                + "{} files missing, {} failures", report.mediaScanned, report.mediaMigrated, report.duplicatesRemoved,
+                report.bytesSaved, report.missingFiles, report.failures);
+        return report;
+    }
+
+    private void migrate(Media media, Report report) throws IOException {
+        if (mediaBlobStore.isBlob(media.getSha256(), media.getImagePath())) {
+            return;
+        }
+        Path file = ShardedLayout.resolve(media.getImagePath());
+        if (!Files.isRegularFile(file)) {
+            report.missingFiles++;
+            return;
+        }
+
+        long size = Files.size(file);
+        String sha256 = sha256(file);
+        MediaBlob blob = mediaBlobStore.adopt(file, sha256, extensionOf(file), size, media.getContentType());
+        String blobPath = blob.getPath();
+
+        UpdateResult result = mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(media.getId())),
+                new Update().set("imagePath", blobPath).set("sha256", sha256), Media.class);
+        if (result.getMatchedCount() == 0) {
+            // Deleted while we were migrating it
+            mediaBlobStore.release(sha256, blobPath);
+            return;
+        }
+        report.mediaMigrated++;
+
+        if (blob.getRefCount() > 1) {
+            // Another media already had this content, so this file was a duplicate
+            report.duplicatesRemoved++;
+            report.bytesSaved += size;
+        }
+        if (!Paths.get(blobPath).equals(file)) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static String extensionOf(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 ? name.substring(dot).toLowerCase(Locale.ROOT) : "";
+    }
+
+    private static String sha256(Path file) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+                in.transferTo(OutputStream.nullOutputStream());
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * What a migration run did.
+     */
+    public static final class Report {
+
+        private long mediaScanned;
+        private long mediaMigrated;
+        private long duplicatesRemoved;
+        private long bytesSaved;
+        private long missingFiles;
+        private long failures;
+
+        public long getMediaScanned() {
+            return mediaScanned;
+        }
+
+        public long getMediaMigrated() {
+            return mediaMigrated;
+        }
+
+        public long getDuplicatesRemoved() {
+            return duplicatesRemoved;
+        }
+
+        public long getBytesSaved() {
+            return bytesSaved;
+        }
+
+        public long getMissingFiles() {
+            return missingFiles;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package com.buyapp.mediaservice.service;
+
+import com.buyapp.mediaservice.model.MediaBlob;
+import com.buyapp.mediaservice.storage.MediaStorage;
+import com.mongodb.client.result.UpdateResult;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Content-addressed storage for product images. Each distinct image is kept
+ * once, named by its SHA-256, with a reference count in the
+ * {@code media_blobs} collection; a seller uploading the same photo to ten
+ * products stores it once.
+ *
+ * A reference is added before the file is put in place, and a file is
+ * deleted only after its last reference is gone. Instances coordinate through
+ * the blob document alone, which matters when they share a bucket: the last
+ * release marks it {@code deleting}, no new reference is taken on a marked
+ * blob, and the marked document is removed only once its file is gone. An
+ * upload of the same image meanwhile gets a file of its own. A crash can leak
+ * a file but never lose one.
+ *
+ * With {@code media.storage.content-addressed=false} every upload gets its
+ * own randomly named file, as before.
+ *
+ * The files themselves live in the configured {@link MediaStorage}; uploads
+ * are received in {@link #getDirectory()} on local disk either way.
+ */
+@Service
+public class MediaBlobStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(MediaBlobStore.class);
+
+    // Attempts to add a reference when inserting the first one collides with another instance's insert
+    private static final int ACQUIRE_ATTEMPTS = 3;
+
+    private static final Pattern SHA256_NAME = Pattern.compile("[0-9a-f]{64}");
+
+    private final MongoTemplate mongoTemplate;
+    private final MediaStorage storage;
+    private final String directory;
+    private final boolean contentAddressed;
+    private final Counter bytesSaved;
+
+    public MediaBlobStore(MongoTemplate mongoTemplate, MediaStorage storage, MeterRegistry meterRegistry,
+            @Value("${media.storage.dir}") String directory,
+            @Value("${media.storage.content-addressed}") boolean contentAddressed) throws IOException {
+        this.mongoTemplate = mongoTemplate;
+        this.storage = storage;
+        this.directory = directory.endsWith("/") ? directory : directory + "/";
+        this.contentAddressed = contentAddressed;
+        Files.createDirectories(Paths.get(this.directory));
+        this.bytesSaved = Counter.builder("media.storage.dedup.bytes.saved")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Where uploads should be received, so moving them into a local store is a rename.
+     */
+    public Path getDirectory() {
+        return Paths.get(directory);
+    }
+
+    /**
+     * Moves a received upload into the store.
+     *
+     * @return the path to record as {@code Media.imagePath}
+     */
+    public String store(StreamingUpload upload) throws IOException {
+        if (!contentAddressed) {
+            return storeApart(upload);
+        }
+
+        String path = ShardedLayout.shardedPath(directory, upload.getSha256() + upload.getExtension());
+        MediaBlob blob = acquire(upload.getSha256(), path, upload.getSize(), upload.getContentType());
+        if (blob == null) {
+            // The last copy of this image is being deleted; rather than wait for that, keep this one apart
+            return storeApart(upload);
+        }
+        try {
+            // Held by our reference now, so it cannot be deleted between this check and the return
+            if (storage.exists(blob.getPath())) {
+                upload.discard();
+            } else {
+                upload.moveTo(storage, blob.getPath());
+            }
+        } catch (IOException | RuntimeException e) {
+            release(upload.getSha256(), blob.getPath());
+            throw e;
+        }
+        return blob.getPath();
+    }
+
+    /**
+     * Takes an existing file into the store, for migrating old uploads. The
+     * original is left for the caller to delete once nothing points at it.
+     *
+     * @return the blob, with the reference just added
+     */
+    public MediaBlob adopt(Path file, String sha256, String extension, long size, String contentType)
+            throws IOException {
+        String path = ShardedLayout.shardedPath(directory, sha256 + extension);
+        MediaBlob blob = acquire(sha256, path, size, contentType);
+        if (blob == null) {
+            throw new IOException("Blob " + sha256 + " is being deleted");
+        }
+        try {
+            if (!storage.exists(blob.getPath())) {
+                // Stage a link (or copy) for the storage to take, leaving the original in place
+                Path staged = getDirectory().resolve("adopt-" + UUID.randomUUID() + ".part");
+                try {
+                    Files.createLink(staged, file);
+                } catch (IOException | UnsupportedOperationException e) {
+                    Files.copy(file, staged);
+                }
+                try {
+                    storage.store(blob.getPath(), staged, contentType);
+                } finally {
+                    Files.deleteIfExists(staged);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            release(sha256, blob.getPath());
+            throw e;
+        }
+        return blob;
+    }
+
+    /**
+     * Drops one reference to an image file, deleting the file when it was
+     * the last. Files that are not blobs (uploads from before
+     * content-addressing) are deleted straight away.
+     */
+    public void release(String sha256, String imagePath) throws IOException {
+        if (releaseReference(sha256, imagePath)) {
+            deleteIfUnreferenced(sha256, imagePath);
+        }
+    }
+
+    /**
+     * Drops one reference to an image file without touching the file. The
+     * last reference marks the blob as being deleted.
+     *
+     * @return whether nothing refers to the file any more, so it should be
+     *         deleted with {@link #deleteIfUnreferenced}
+     */
+    public boolean releaseReference(String sha256, String imagePath) {
+        if (sha256 == null) {
+            return true;
+        }
+        MediaBlob blob = mongoTemplate.findAndModify(blobQuery(sha256, imagePath), new Update().inc("refCount", -1),
+                FindAndModifyOptions.options().returnNew(true), MediaBlob.class);
+        if (blob == null) {
+            return true;
+        }
+        if (blob.getRefCount() > 0) {
+            return false;
+        }
+        UpdateResult marked = mongoTemplate.updateFirst(
+                Query.query(Criteria.where("_id").is(sha256).and("refCount").lte(0).and("deleting").ne(true)),
+                new Update().set("deleting", true), MediaBlob.class);
+        // Zero when somebody uploaded the same image again in the meantime
+        return marked.getModifiedCount() > 0;
+    }
+
+    /**
+     * Deletes a file whose last reference was released. A blob's file is
+     * only deleted while its document is marked, and the document is removed
+     * afterwards, which lets the image be uploaded again.
+     */
+    public void deleteIfUnreferenced(String sha256, String imagePath) throws IOException {
+        if (sha256 == null || !isContentAddressed(sha256, imagePath)) {
+            storage.delete(imagePath);
+            return;
+        }
+        Query marked = blobQuery(sha256, imagePath).addCriteria(Criteria.where("deleting").is(true));
+        if (!mongoTemplate.exists(marked, MediaBlob.class)) {
+            // Referenced again before it was marked, or already deleted
+            return;
+        }
+        storage.delete(imagePath);
+        mongoTemplate.remove(marked, MediaBlob.class);
+    }
+
+    /**
+     * Marks the blob behind an orphaned file as being deleted, so the file can
+     * be removed without racing an upload of the same image: an upload that
+     * already holds a reference makes this fail, and one that comes later
+     * keeps its copy apart. Undo with {@link #unclaim} once the file is gone
+     * or back.
+     *
+     * @return whether the file is unreferenced and now claimed
+     */
+    public boolean claim(String sha256, String imagePath) {
+        Query unreferenced = Query.query(Criteria.where("_id").is(sha256).and("refCount").lte(0)
+                .and("deleting").ne(true));
+        Update update = new Update()
+                .set("deleting", true)
+                .setOnInsert("refCount", 0)
+                .setOnInsert("path", imagePath);
+        try {
+            mongoTemplate.findAndModify(unreferenced, update, FindAndModifyOptions.options().upsert(true),
+                    MediaBlob.class);
+            return true;
+        } catch (DuplicateKeyException e) {
+            // Referenced, or already being deleted
+            return false;
+        }
+    }
+
+    /**
+     * Removes the mark set by {@link #claim}, letting the image be stored
+     * under its content name again.
+     */
+    public void unclaim(String sha256) {
+        mongoTemplate.remove(Query.query(Criteria.where("_id").is(sha256).and("deleting").is(true)), MediaBlob.class);
+    }
+
+    /**
+     * The SHA-256 a file is named by, if it is a blob file.
+     *
+     * @return the hash, or {@code null} for randomly named files
+     */
+    public static String contentHashOf(String imagePath) {
+        String name = Paths.get(imagePath).getFileName().toString();
+        int dot = name.indexOf('.');
+        String stem = dot >= 0 ? name.substring(0, dot) : name;
+        return SHA256_NAME.matcher(stem).matches() ? stem : null;
+    }
+
+    /**
+     * Whether the path is a blob this store manages.
+     */
+    public boolean isBlob(String sha256, String imagePath) {
+        return sha256 != null && mongoTemplate.exists(blobQuery(sha256, imagePath), MediaBlob.class);
+    }
+
+    // The blob behind a media's path, whichever directory layout either of them still records
+    private Query blobQuery(String sha256, String imagePath) {
+        return Query.query(Criteria.where("_id").is(sha256).and("path").in(ShardedLayout.bothLayouts(imagePath)));
+    }
+
+    // Blob files are named by their content; uploads kept apart and older uploads are not
+    private static boolean isContentAddressed(String sha256, String imagePath) {
+        return Paths.get(imagePath).getFileName().toString().startsWith(sha256);
+    }
+
+    private String storeApart(StreamingUpload upload) throws IOException {
+        String path = ShardedLayout.shardedPath(directory, UUID.randomUUID() + upload.getExtension());
+        upload.moveTo(storage, path);
+        return path;
+    }
+
+    /**
+     * Adds a reference, creating the blob record for the first one.
+     *
+     * @return the blob, or {@code null} if it is being deleted
+     */
+    private MediaBlob acquire(String sha256, String path, long size, String contentType) {
+        Query notDeleting = Query.query(Criteria.where("_id").is(sha256).and("deleting").ne(true));
+        Update update = new Update()
+                .inc("refCount", 1)
+                .setOnInsert("path", path)
+                .setOnInsert("size", size)
+                .setOnInsert("contentType", contentType);
+        for (int attempt = 1; ; attempt++) {
+            try {
+                MediaBlob blob = mongoTemplate.findAndModify(notDeleting, update,
+                        FindAndModifyOptions.options().upsert(true).returnNew(true), MediaBlob.class);
+                if (blob.getRefCount() > 1) {
+                    bytesSaved.increment(size);
+                    logger.debug("Deduplicated {} ({} bytes, {} references)", sha256, size, blob.getRefCount());
+                }
+                return blob;
+            } catch (DuplicateKeyException e) {
+                // The upsert found no blob to add to, but one exists: it is marked, or was inserted concurrently
+                if (mongoTemplate.exists(Query.query(Criteria.where("_id").is(sha256).and("deleting").is(true)),
+                        MediaBlob.class)) {
+                    return null;
+                }
+                if (attempt == ACQUIRE_ATTEMPTS) {
+                    throw e;
+                }
+            }
+        }
+    }
+}
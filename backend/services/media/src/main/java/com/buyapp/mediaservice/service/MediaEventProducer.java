@@ -9,6 +9,7 @@ import org.springframework.kafka.core.KafkaTemplate;
 import org.springframework.kafka.support.SendResult;
 import org.springframework.stereotype.Service;
 
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 
 @Service
@@ -41,4 +42,24 @@ public class MediaEventProducer {
             }
         });
     }
+
+    /**
+     * Sends the events of one batch together: the records go out in the same
+     * producer batch and the outcome is logged once for all of them.
+     */
+    public void sendMediaEvents(List<MediaEvent> events) {
+        logger.info("Sending {} media events", events.size());
+
+        CompletableFuture<?>[] futures = events.stream()
+                .map(event -> kafkaTemplate.send(mediaEventsTopic, event.getMediaId(), event))
+                .toArray(CompletableFuture[]::new);
+
+        CompletableFuture.allOf(futures).whenComplete((result, ex) -> {
+            if (ex == null) {
+                logger.info("Successfully sent {} media events", events.size());
+            } else {
+                logger.error("Failed to send some of {} media events: {}", events.size(), ex.getMessage());
+            }
+        });
+    }
 }
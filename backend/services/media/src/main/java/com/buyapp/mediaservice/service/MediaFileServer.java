@@ -0,0 +1,286 @@
+package com.buyapp.mediaservice.service;
+
+import com.buyapp.common.exception.ResourceNotFoundException;
+import com.buyapp.mediaservice.service.HotImageCache.CachedImage;
+import com.buyapp.mediaservice.storage.MediaStorage;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.ServletResponseWrapper;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.apache.catalina.connector.CoyoteOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Writes stored image files to the response without copying them through
+ * the heap: from the off-heap {@link HotImageCache} for popular images,
+ * otherwise Tomcat's sendfile when the connector offers it, or
+ * {@link FileChannel#transferTo}.
+ *
+ * Stored files are named by their SHA-256 (or a random UUID) and never
+ * rewritten, so the name is a strong ETag and responses may be cached for a
+ * year as immutable.
+ * Supports {@code If-None-Match}/{@code If-Modified-Since} (304) and a
+ * single byte range with {@code If-Range}; multi-range requests get the
+ * whole file.
+ *
+ * Uploads kept in remote {@link MediaStorage} are not proxied: the client is
+ * redirected to a presigned URL and fetches them from the store.
+ */
+@Service
+public class MediaFileServer {
+
+    private static final Logger logger = LoggerFactory.getLogger(MediaFileServer.class);
+
+    static final String CACHE_CONTROL = "public, max-age=31536000, immutable";
+
+    // Request attributes of Tomcat's sendfile support, see org.apache.coyote.Constants
+    static final String SENDFILE_SUPPORTED_ATTR = "org.apache.tomcat.sendfile.support";
+    static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
+    // Below this size setting up sendfile costs more than it saves (Tomcat's own default)
+    private static final long SENDFILE_MIN_SIZE = 48 * 1024;
+
+    private static final Pattern SINGLE_RANGE = Pattern.compile("^bytes=(\\d*)-(\\d*)$");
+
+    private final HotImageCache hotImageCache;
+    private final MediaStorage storage;
+
+    public MediaFileServer(HotImageCache hotImageCache, MediaStorage storage) {
+        this.hotImageCache = hotImageCache;
+        this.storage = storage;
+    }
+
+    /**
+     * Serves an upload recorded at {@code key} in {@link MediaStorage}: like
+     * {@link #serve} when it is a file on local disk, straight from memory
+     * when it is mapped, otherwise by redirecting to a presigned URL.
+     */
+    public void serveStored(String cacheKey, String key, String contentType, String fileName,
+            HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Optional<Path> local = storage.localFile(key);
+        if (local.isPresent()) {
+            serve(cacheKey, local.get(), contentType, fileName, request, response);
+            return;
+        }
+        Optional<ByteBuffer> mapped = storage.mappedContent(key);
+        if (mapped.isPresent()) {
+            ByteBuffer content = mapped.get();
+            long[] range = prepare(etagOf(Paths.get(key)), content.remaining(), -1, contentType, fileName, request,
+                    response);
+            if (range != null) {
+                write(content.slice((int) range[0], (int) (range[1] - range[0] + 1)), response);
+            }
+            return;
+        }
+        URI location = storage.presignedUrl(key)
+                .orElseThrow(() -> new ResourceNotFoundException("File not found: " + fileName));
+        // The signed URL expires, so the redirect must not be cached; the image behind it is
+        response.setHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+        response.setStatus(HttpServletResponse.SC_FOUND);
+        response.setHeader(HttpHeaders.LOCATION, location.toString());
+    }
+
+    /**
+     * @param cacheKey    key in the {@link HotImageCache}
+     * @param contentType the type recorded at upload; octet-stream if missing
+     * @param fileName    the original name, used for {@code Content-Disposition}
+     */
+    public void serve(String cacheKey, Path file, String contentType, String fileName,
+            HttpServletRequest request, HttpServletResponse response) throws IOException {
+        CachedImage cached = hotImageCache.get(cacheKey);
+        long length;
+        long lastModified;
+        if (cached != null) {
+            length = cached.length();
+            lastModified = cached.getLastModified();
+        } else {
+            if (!Files.isRegularFile(file) || !Files.isReadable(file)) {
+                throw new ResourceNotFoundException("File not found: " + fileName);
+            }
+            length = Files.size(file);
+            lastModified = Files.getLastModifiedTime(file).toMillis();
+        }
+        String etag = etagOf(file);
+        long[] range = prepare(etag, length, lastModified, contentType, fileName, request, response);
+        if (range == null) {
+            return;
+        }
+        long start = range[0];
+        long end = range[1];
+        long count = end - start + 1;
+
+        if (cached == null) {
+            cached = hotImageCache.load(cacheKey, file, length, lastModified);
+        }
+        if (cached != null) {
+            write(cached.content().position((int) start).limit((int) end + 1), response);
+            return;
+        }
+
+        if (count >= SENDFILE_MIN_SIZE && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED_ATTR))) {
+            request.setAttribute(SENDFILE_FILENAME_ATTR, file.toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START_ATTR, start);
+            request.setAttribute(SENDFILE_END_ATTR, end + 1);
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            long position = start;
+            while (position <= end) {
+                long sent = channel.transferTo(position, end + 1 - position, out);
+                if (sent <= 0) {
+                    break;
+                }
+                position += sent;
+            }
+        } catch (IOException e) {
+            // Usually the client went away mid-download
+            logger.debug("Could not finish sending {}: {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * Sets the validators and entity headers and applies conditional and
+     * range headers.
+     *
+     * @param lastModified epoch millis, or -1 if unknown
+     * @return the first and last byte to send, or {@code null} if the
+     *         response is complete without a body
+     */
+    private long[] prepare(String etag, long length, long lastModified, String contentType, String fileName,
+            HttpServletRequest request, HttpServletResponse response) {
+        response.setHeader(HttpHeaders.ETAG, etag);
+        if (lastModified >= 0) {
+            response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+        }
+        response.setHeader(HttpHeaders.CACHE_CONTROL, CACHE_CONTROL);
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+
+        if (notModified(request, etag, lastModified)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return null;
+        }
+
+        response.setContentType(contentType != null ? contentType : MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "inline; filename=\"" + fileName + "\"");
+
+        long start = 0;
+        long end = length - 1;
+        String range = request.getHeader(HttpHeaders.RANGE);
+        if (range != null && rangeApplies(request, etag)) {
+            Matcher matcher = SINGLE_RANGE.matcher(range.trim());
+            if (matcher.matches()) {
+                String first = matcher.group(1);
+                String last = matcher.group(2);
+                boolean overflow = false;
+                try {
+                    if (first.isEmpty() && !last.isEmpty()) {
+                        // Suffix range: the last N bytes
+                        start = Math.max(0, length - Long.parseLong(last));
+                    } else if (!first.isEmpty()) {
+                        start = Long.parseLong(first);
+                        end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+                    }
+                } catch (NumberFormatException e) {
+                    // Positions past Long.MAX_VALUE
+                    overflow = true;
+                }
+                if (overflow || first.isEmpty() && last.isEmpty() || start > end || start >= length) {
+                    response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+                    response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                    return null;
+                }
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+            }
+        }
+
+        long count = end - start + 1;
+        response.setContentLengthLong(count);
+        if ("HEAD".equals(request.getMethod()) || count == 0) {
+            return null;
+        }
+        return new long[] { start, end };
+    }
+
+    private void write(ByteBuffer content, HttpServletResponse response) throws IOException {
+        // Commit the headers through any wrapping filters, then hand the buffer to the connector itself
+        response.flushBuffer();
+        ServletResponse target = response;
+        while (target instanceof ServletResponseWrapper wrapper) {
+            target = wrapper.getResponse();
+        }
+        try {
+            OutputStream out = target.getOutputStream();
+            if (out instanceof CoyoteOutputStream coyote) {
+                // Large writes go from the direct buffer to the socket without a heap copy
+                coyote.write(content);
+            } else {
+                WritableByteChannel channel = Channels.newChannel(out);
+                while (content.hasRemaining()) {
+                    channel.write(content);
+                }
+            }
+        } catch (IOException e) {
+            logger.debug("Could not finish sending image from memory: {}", e.getMessage());
+        }
+    }
+
+    static String etagOf(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return "\"" + (dot > 0 ? name.substring(0, dot) : name) + "\"";
+    }
+
+    private boolean notModified(HttpServletRequest request, String etag, long lastModified) {
+        String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            // If-None-Match uses the weak comparison
+            for (String candidate : ifNoneMatch.split(",")) {
+                String tag = candidate.trim();
+                if (tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        long ifModifiedSince = dateHeader(request, HttpHeaders.IF_MODIFIED_SINCE);
+        return ifModifiedSince >= 0 && lastModified >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    // If-Range needs a strong match, otherwise the client gets the whole file
+    private boolean rangeApplies(HttpServletRequest request, String etag) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        return ifRange == null || ifRange.trim().equals(etag);
+    }
+
+    private long dateHeader(HttpServletRequest request, String name) {
+        try {
+            return request.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+}
@@ -1,47 +1,96 @@
 package com.buyapp.mediaservice.service;
 
-import com.buyapp.common.dto.ProductDto;
-import com.buyapp.common.dto.UserDto;
 import com.buyapp.common.event.MediaEvent;
 import com.buyapp.common.exception.BadRequestException;
 import com.buyapp.common.exception.ForbiddenException;
 import com.buyapp.common.exception.ResourceNotFoundException;
+import com.buyapp.mediaservice.model.FileDeletion;
 import com.buyapp.mediaservice.model.Media;
 import com.buyapp.mediaservice.repository.MediaRepository;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.security.core.Authentication;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.multipart.MultipartFile;
-import org.springframework.web.reactive.function.client.WebClient;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.UUID;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 @Service
 public class MediaService {
 
+    private static final Logger logger = LoggerFactory.getLogger(MediaService.class);
+
     @Autowired
     private MediaRepository mediaRepository;
 
     @Autowired
-    private WebClient.Builder webClientBuilder;
+    private ProductOwners productOwners;
 
     @Autowired
     private MediaEventProducer mediaEventProducer;
 
+    @Autowired
+    private HotImageCache hotImageCache;
+
+    @Autowired
+    private FileReaper fileReaper;
+
+    @Autowired
+    private MediaBlobStore mediaBlobStore;
+
+    @Autowired
+    private UploadSlots uploadSlots;
+
+    @Autowired
+    private ImageOptimizer imageOptimizer;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
     private static final String UPLOAD_DIR = "uploads/images/";
-    private static final long MAX_FILE_SIZE = 2 * 1024 * 1024; // 2MB
+    static final long MAX_FILE_SIZE = 2 * 1024 * 1024; // 2MB
     private static final int MAX_IMAGES_PER_PRODUCT = 5;
+    private static final int MAX_BATCH_PRODUCTS = 100;
+    private static final String[] LISTING_FIELDS = {
+            "productId", "fileName", "contentType", "fileSize", "width", "height", "orientation", "blurHash"
+    };
     private static final String[] ALLOWED_CONTENT_TYPES = {
             "image/jpeg", "image/jpg", "image/png", "image/gif", "image/webp"
     };
 
+    // Writes the files of batch uploads in parallel
+    private final ExecutorService uploadWorkers = Executors.newFixedThreadPool(2 * MAX_IMAGES_PER_PRODUCT,
+            runnable -> {
+                Thread thread = new Thread(runnable, "media-upload");
+                thread.setDaemon(true);
+                return thread;
+            });
+
     public MediaService() {
         // Create upload directory if it doesn't exist
         try {
@@ -56,75 +105,273 @@ public class MediaService {
 
     public Media uploadMedia(MultipartFile file, String productId, Authentication authentication) {
         validateFile(file);
+        String userEmail = authorizeUpload(productId, authentication, 1);
+
+        boolean saved = false;
+        try (InputStream in = file.getInputStream()) {
+            Media media = mediaRepository.save(receive(in, file.getOriginalFilename(), productId));
+            saved = true;
+            mediaEventProducer.sendMediaEvent(uploadedEvent(media, userEmail));
+            return media;
+        } catch (IOException e) {
+            throw new BadRequestException("Could not store file: " + e.getMessage());
+        } finally {
+            if (!saved) {
+                uploadSlots.release(productId, 1);
+            }
+        }
+    }
 
-        // Verify product exists and user owns it via Product Service
-        ProductDto product = getProductFromService(productId);
-        if (product == null) {
-            throw new ResourceNotFoundException("Product not found with id: " + productId);
+    /**
+     * Uploads an image sent as the raw request body. Ownership is checked
+     * before the body is read, and the body goes straight to disk instead of
+     * through the multipart buffer.
+     */
+    public Media uploadMediaStream(InputStream body, String fileName, long contentLength, String productId,
+            Authentication authentication) {
+        if (fileName == null || fileName.trim().isEmpty()) {
+            throw new BadRequestException("Invalid filename");
+        }
+        if (contentLength > MAX_FILE_SIZE) {
+            throw new BadRequestException("File size exceeds maximum limit of 2MB");
         }
+        String userEmail = authorizeUpload(productId, authentication, 1);
 
-        // Get current user information from User Service
-        String userEmail = authentication.getName();
-        UserDto currentUser = getUserFromService(userEmail);
-        if (currentUser == null) {
-            throw new IllegalArgumentException("Authenticated user not found");
+        boolean saved = false;
+        try {
+            Media media = mediaRepository.save(receive(body, fileName, productId));
+            saved = true;
+            mediaEventProducer.sendMediaEvent(uploadedEvent(media, userEmail));
+            return media;
+        } catch (IOException e) {
+            throw new BadRequestException("Could not store file: " + e.getMessage());
+        } finally {
+            if (!saved) {
+                uploadSlots.release(productId, 1);
+            }
         }
+    }
 
-        // Check if user owns the product or is an admin
-        boolean isAdmin = authentication.getAuthorities().stream()
-                .anyMatch(auth -> auth.getAuthority().equals("ROLE_ADMIN"));
+    /**
+     * Turns the assembled file of a resumable upload into media. The content
+     * is validated like any other upload and must hash to the SHA-256 the
+     * client declared, or nothing is stored. The file itself is left for the
+     * caller to delete.
+     */
+    public Media uploadMediaFile(Path file, String fileName, String expectedSha256, String productId,
+            Authentication authentication) {
+        String userEmail = authorizeUpload(productId, authentication, 1);
+
+        boolean saved = false;
+        try (InputStream in = Files.newInputStream(file)) {
+            StreamingUpload upload = StreamingUpload.receive(in, mediaBlobStore.getDirectory(), MAX_FILE_SIZE);
+            if (!upload.getSha256().equalsIgnoreCase(expectedSha256)) {
+                upload.discard();
+                throw new BadRequestException("Checksum mismatch: the upload does not hash to " + expectedSha256);
+            }
+            Media media = mediaRepository.save(store(upload, fileName, productId));
+            saved = true;
+            mediaEventProducer.sendMediaEvent(uploadedEvent(media, userEmail));
+            return media;
+        } catch (IOException e) {
+            throw new BadRequestException("Could not store file: " + e.getMessage());
+        } finally {
+            if (!saved) {
+                uploadSlots.release(productId, 1);
+            }
+        }
+    }
+
+    /**
+     * Checks the product exists and belongs to the caller, without reserving
+     * an image slot; for uploads that will only be stored later.
+     */
+    void checkUploadAllowed(String productId, Authentication authentication) {
+        checkOwner(productId, authentication, "You can only upload media for your own products");
+    }
 
-        if (!product.getUser().equals(userEmail) && !isAdmin) {
-            throw new ForbiddenException("You can only upload media for your own products");
+    /**
+     * Uploads several images for one product at once: ownership and the
+     * image limit are checked once for the whole batch, the files are
+     * written in parallel and the media are inserted together. Either every
+     * image is stored or none is.
+     */
+    public List<Media> uploadMediaBatch(List<MultipartFile> files, String productId, Authentication authentication) {
+        if (files == null || files.isEmpty()) {
+            throw new BadRequestException("No files to upload");
+        }
+        if (files.size() > MAX_IMAGES_PER_PRODUCT) {
+            throw new BadRequestException("Maximum of " + MAX_IMAGES_PER_PRODUCT + " images per product allowed");
+        }
+        files.forEach(this::validateFile);
+        String userEmail = authorizeUpload(productId, authentication, files.size());
+
+        List<CompletableFuture<Media>> writes = files.stream()
+                .map(file -> CompletableFuture.supplyAsync(() -> {
+                    try (InputStream in = file.getInputStream()) {
+                        return receive(in, file.getOriginalFilename(), productId);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }, uploadWorkers))
+                .toList();
+
+        List<Media> received = new ArrayList<>();
+        String failure = null;
+        for (CompletableFuture<Media> write : writes) {
+            try {
+                received.add(write.join());
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause() instanceof UncheckedIOException ? e.getCause().getCause() : e.getCause();
+                failure = failure != null ? failure : cause.getMessage();
+            }
         }
 
-        // Check if product already has maximum number of images
-        long currentImageCount = mediaRepository.countByProductId(productId);
-        if (currentImageCount >= MAX_IMAGES_PER_PRODUCT) {
+        List<Media> saved = null;
+        try {
+            if (failure != null) {
+                throw new BadRequestException("Could not store file: " + failure);
+            }
+            saved = mediaRepository.insert(received);
+        } finally {
+            if (saved == null) {
+                uploadSlots.release(productId, files.size());
+                releaseFiles(received);
+            }
+        }
+
+        mediaEventProducer.sendMediaEvents(saved.stream().map(media -> uploadedEvent(media, userEmail)).toList());
+        return saved;
+    }
+
+    /**
+     * Checks the product exists and belongs to the caller, and reserves
+     * {@code slots} of its image slots; returns the caller's email.
+     */
+    private String authorizeUpload(String productId, Authentication authentication, int slots) {
+        // The caller is already authenticated by their token; only the product's owner has to be looked up
+        String userEmail = authentication.getName();
+        checkOwner(productId, authentication, "You can only upload media for your own products");
+
+        // Take the slots now, so concurrent uploads cannot exceed the limit between check and insert
+        if (!uploadSlots.reserve(productId, slots, MAX_IMAGES_PER_PRODUCT)) {
             throw new BadRequestException("Maximum of " + MAX_IMAGES_PER_PRODUCT + " images per product allowed");
         }
+        return userEmail;
+    }
 
+    // Hashes, validates and stores the content; returns the media to save
+    private Media receive(InputStream in, String originalFilename, String productId) throws IOException {
+        // Hash and validate the content while writing it to a temp file
+        return store(StreamingUpload.receive(in, mediaBlobStore.getDirectory(), MAX_FILE_SIZE), originalFilename,
+                productId);
+    }
+
+    private Media store(StreamingUpload received, String originalFilename, String productId) throws IOException {
+        // Identical content shares one file
+        StreamingUpload upload = received;
+        String imagePath;
         try {
-            // Generate unique filename
-            String originalFilename = file.getOriginalFilename();
-            String fileExtension = originalFilename.substring(originalFilename.lastIndexOf("."));
-            String uniqueFilename = UUID.randomUUID().toString() + fileExtension;
-
-            // Save file to disk
-            Path targetLocation = Paths.get(UPLOAD_DIR + uniqueFilename);
-            Files.copy(file.getInputStream(), targetLocation, StandardCopyOption.REPLACE_EXISTING);
-
-            // Create media entity
-            Media media = new Media();
-            media.setImagePath(UPLOAD_DIR + uniqueFilename);
-            media.setProductId(productId);
-            media.setFileName(originalFilename);
-            media.setContentType(file.getContentType());
-            media.setFileSize(file.getSize());
-
-            Media saved = mediaRepository.save(media);
-
-            // Publish IMAGE_UPLOADED event
-            MediaEvent event = new MediaEvent(
-                    MediaEvent.EventType.IMAGE_UPLOADED,
-                    saved.getId(),
-                    productId,
-                    originalFilename,
-                    file.getContentType(),
-                    file.getSize(),
-                    userEmail);
-            mediaEventProducer.sendMediaEvent(event);
-
-            return saved;
+            // Stripped and re-encoded if that makes it smaller; the hash is of the bytes actually stored
+            upload = imageOptimizer.optimize(received, mediaBlobStore.getDirectory(), MAX_FILE_SIZE);
+            imagePath = mediaBlobStore.store(upload);
         } catch (IOException e) {
-            throw new BadRequestException("Could not store file: " + e.getMessage());
+            upload.discard();
+            throw e;
+        }
+
+        // Create media entity
+        Media media = new Media();
+        media.setImagePath(imagePath);
+        media.setProductId(productId);
+        media.setFileName(originalFilename);
+        media.setContentType(upload.getContentType());
+        media.setFileSize(upload.getSize());
+        media.setSha256(upload.getSha256());
+        if (upload.getHeader() != null) {
+            media.setWidth(upload.getHeader().getWidth());
+            media.setHeight(upload.getHeader().getHeight());
+            media.setOrientation(upload.getHeader().getOrientation());
         }
+        return media;
+    }
+
+    private MediaEvent uploadedEvent(Media media, String userEmail) {
+        return new MediaEvent(
+                MediaEvent.EventType.IMAGE_UPLOADED,
+                media.getId(),
+                media.getProductId(),
+                media.getFileName(),
+                media.getContentType(),
+                media.getFileSize(),
+                userEmail);
+    }
+
+    // Drops the files of media that were never saved
+    private void releaseFiles(List<Media> mediaList) {
+        for (Media media : mediaList) {
+            try {
+                mediaBlobStore.release(media.getSha256(), media.getImagePath());
+            } catch (IOException e) {
+                logger.warn("Could not delete file {}: {}", media.getImagePath(), e.getMessage());
+            }
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        uploadWorkers.shutdown();
     }
 
     public List<Media> getMediaByProductId(String productId) {
         return mediaRepository.findByProductId(productId);
     }
 
+    /**
+     * Media of many products in one query, for catalog grids: a map from each
+     * requested product id to its media in upload order, or with
+     * {@code firstOnly} just its first image. Products without media map to
+     * an empty list. Only the fields a listing needs are returned.
+     */
+    public Map<String, List<Media>> getMediaByProductIds(List<String> productIds, boolean firstOnly) {
+        List<String> ids = productIds == null ? List.of() : productIds.stream().distinct().toList();
+        if (ids.size() > MAX_BATCH_PRODUCTS) {
+            throw new BadRequestException("At most " + MAX_BATCH_PRODUCTS + " products per request");
+        }
+        Map<String, List<Media>> byProduct = new LinkedHashMap<>();
+        ids.forEach(id -> byProduct.put(id, new ArrayList<>()));
+        if (ids.isEmpty()) {
+            return byProduct;
+        }
+
+        // Served by the (productId, _id) index; _id is an ObjectId, so it sorts by upload time
+        Criteria inProducts = Criteria.where("productId").in(ids);
+        List<Media> found;
+        if (firstOnly) {
+            found = mongoTemplate.aggregate(Aggregation.newAggregation(Media.class,
+                    Aggregation.match(inProducts),
+                    Aggregation.sort(Sort.by("productId", "id")),
+                    Aggregation.project(LISTING_FIELDS),
+                    Aggregation.group("productId").first(Aggregation.ROOT).as("first"),
+                    Aggregation.replaceRoot("first")), Media.class).getMappedResults();
+        } else {
+            Query query = Query.query(inProducts).with(Sort.by("productId", "id"));
+            query.fields().include(LISTING_FIELDS);
+            found = mongoTemplate.find(query, Media.class);
+        }
+        found.forEach(media -> byProduct.get(media.getProductId()).add(media));
+        return byProduct;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void ensureIndexes() {
+        // Also serves findByProductId, countByProductId and deleteByProductId
+        mongoTemplate.indexOps(Media.class).createIndex(new Index()
+                .on("productId", Sort.Direction.ASC)
+                .on("_id", Sort.Direction.ASC)
+                .named("productId_id"));
+    }
+
     public Media getMediaById(String id) {
         return mediaRepository.findById(id)
                 .orElseThrow(() -> new ResourceNotFoundException("Media not found with id: " + id));
@@ -135,62 +382,29 @@ public class MediaService {
         Media media = getMediaById(id);
 
         // Verify user owns the product that this media belongs to
-        ProductDto product = getProductFromService(media.getProductId());
-        if (product == null) {
-            throw new ResourceNotFoundException("Product not found for media with id: " + id);
-        }
-
         String userEmail = authentication.getName();
-        boolean isAdmin = authentication.getAuthorities().stream()
-                .anyMatch(auth -> auth.getAuthority().equals("ROLE_ADMIN"));
-
-        if (!product.getUser().equals(userEmail) && !isAdmin) {
-            throw new ForbiddenException("You can only delete media for your own products");
-        }
-
-        // Delete file from disk
-        try {
-            Path filePath = Paths.get(media.getImagePath());
-            Files.deleteIfExists(filePath);
-        } catch (IOException e) {
-            // Log error but don't fail the transaction
-            System.err.println("Could not delete file: " + media.getImagePath() + " - " + e.getMessage());
-        }
+        checkOwner(media.getProductId(), authentication, "You can only delete media for your own products");
 
         // Delete from database
         mediaRepository.deleteById(id);
+        uploadSlots.release(media.getProductId(), 1);
+
+        discardFiles(List.of(media), userEmail);
     }
 
     @Transactional
     public void deleteMediaByProductId(String productId, Authentication authentication) {
-        // Verify user owns the product via Product Service
-        ProductDto product = getProductFromService(productId);
-        if (product == null) {
-            throw new ResourceNotFoundException("Product not found with id: " + productId);
-        }
-
+        // Verify user owns the product
         String userEmail = authentication.getName();
-        boolean isAdmin = authentication.getAuthorities().stream()
-                .anyMatch(auth -> auth.getAuthority().equals("ROLE_ADMIN"));
-
-        if (!product.getUser().equals(userEmail) && !isAdmin) {
-            throw new ForbiddenException("You can only delete media for your own products");
-        }
+        checkOwner(productId, authentication, "You can only delete media for your own products");
 
         List<Media> mediaList = getMediaByProductId(productId);
 
-        // Delete files from disk
-        for (Media media : mediaList) {
-            try {
-                Path filePath = Paths.get(media.getImagePath());
-                Files.deleteIfExists(filePath);
-            } catch (IOException e) {
-                System.err.println("Could not delete file: " + media.getImagePath() + " - " + e.getMessage());
-            }
-        }
-
         // Delete from database
         mediaRepository.deleteByProductId(productId);
+        uploadSlots.clear(productId);
+
+        discardFiles(mediaList, userEmail);
     }
 
     // Internal method for service-to-service calls (no authentication required)
@@ -198,43 +412,57 @@ public class MediaService {
     public void deleteMediaByProductIdInternal(String productId) {
         List<Media> mediaList = getMediaByProductId(productId);
 
-        // Delete files from disk
-        for (Media media : mediaList) {
-            try {
-                Path filePath = Paths.get(media.getImagePath());
-                Files.deleteIfExists(filePath);
-            } catch (IOException e) {
-                System.err.println("Could not delete file: " + media.getImagePath() + " - " + e.getMessage());
-            }
-        }
-
         // Delete from database
         mediaRepository.deleteByProductId(productId);
+        uploadSlots.clear(productId);
+
+        discardFiles(mediaList, null);
     }
 
-    private ProductDto getProductFromService(String productId) {
-        try {
-            return webClientBuilder.build()
-                    .get()
-                    .uri("http://product-service/products/{id}", productId)
-                    .retrieve()
-                    .bodyToMono(ProductDto.class)
-                    .block();
-        } catch (Exception e) {
-            return null;
+    // Removes a media whose file is gone, found by the OrphanReconciler (no authentication required)
+    @Transactional
+    public void deleteMediaInternal(String id) {
+        Optional<Media> media = mediaRepository.findById(id);
+        if (media.isEmpty()) {
+            return;
         }
+        mediaRepository.deleteById(id);
+        uploadSlots.release(media.get().getProductId(), 1);
+
+        discardFiles(List.of(media.get()), null);
     }
 
-    private UserDto getUserFromService(String email) {
-        try {
-            return webClientBuilder.build()
-                    .get()
-                    .uri("http://user-service/users/email/{email}", email)
-                    .retrieve()
-                    .bodyToMono(UserDto.class)
-                    .block();
-        } catch (Exception e) {
-            return null;
+    // Queues the files for the FileReaper and announces IMAGE_DELETED, which also evicts them from every
+    // instance's hot image cache and variants
+    private void discardFiles(List<Media> mediaList, String deletedBy) {
+        List<FileDeletion> deletions = new ArrayList<>();
+        List<MediaEvent> events = new ArrayList<>(mediaList.size());
+        for (Media media : mediaList) {
+            // Shared content is only deleted with its last reference
+            if (mediaBlobStore.releaseReference(media.getSha256(), media.getImagePath())) {
+                deletions.add(fileReaper.deletionOf(media.getSha256(), media.getImagePath()));
+            }
+            hotImageCache.invalidate(HotImageCache.mediaKey(media.getId()));
+            events.add(new MediaEvent(
+                    MediaEvent.EventType.IMAGE_DELETED,
+                    media.getId(),
+                    media.getProductId(),
+                    deletedBy));
+        }
+        fileReaper.enqueue(deletions);
+        mediaEventProducer.sendMediaEvents(events);
+    }
+
+    // Ownership comes from the local product_owners projection, not a call to the Product Service
+    private void checkOwner(String productId, Authentication authentication, String deniedMessage) {
+        String owner = productOwners.ownerOf(productId)
+                .orElseThrow(() -> new ResourceNotFoundException("Product not found with id: " + productId));
+
+        boolean isAdmin = authentication.getAuthorities().stream()
+                .anyMatch(auth -> auth.getAuthority().equals("ROLE_ADMIN"));
+
+        if (!owner.equals(authentication.getName()) && !isAdmin) {
+            throw new ForbiddenException(deniedMessage);
         }
     }
 
@@ -0,0 +1,516 @@
+package com.buyapp.mediaservice.service;
+
+import com.buyapp.common.exception.BadRequestException;
+import com.buyapp.mediaservice.model.Avatar;
+import com.buyapp.mediaservice.model.FileDeletion;
+import com.buyapp.mediaservice.model.Media;
+import com.buyapp.mediaservice.model.Orphan;
+import com.buyapp.mediaservice.storage.LocalMediaStorage;
+import com.buyapp.mediaservice.storage.MediaStorage;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Finds what the upload directories and the {@code media}/{@code avatars}
+ * collections disagree on: files no document points at, left by uploads
+ * that crashed before their document was saved or by deletes that failed,
+ * and documents whose file is gone.
+ *
+ * Both sides are read in path order, the directories one directory at a
+ * time and the collections through a cursor over the {@code imagePath}
+ * index, and merged like two sorted lists, so memory use does not grow
+ * with the number of images. Reads are throttled to
+ * {@code media.storage.reconcile.entries-per-second}.
+ *
+ * Nothing is deleted on sight. Orphan files older than
+ * {@code media.storage.reconcile.min-age} are moved to the quarantine
+ * directory and orphan documents are flagged, both in {@code orphans}; a
+ * later run deletes them once they have been there for
+ * {@code media.storage.reconcile.quarantine-period}. To restore a file,
+ * move it back and remove its {@code orphans} entry. An image file named by
+ * its content is only moved while its {@code media_blobs} entry is claimed
+ * through {@link MediaBlobStore#claim}, so an upload of the same image that
+ * has not saved its media yet keeps it. Runs every
+ * {@code media.storage.reconcile.interval}, or on demand. Only local
+ * storage is reconciled.
+ */
+@Service
+public class OrphanReconciler {
+
+    private static final Logger logger = LoggerFactory.getLogger(OrphanReconciler.class);
+
+    private static final int BATCH_SIZE = 1000;
+    private static final long PROGRESS_EVERY = 100_000;
+
+    private final MongoTemplate mongoTemplate;
+    private final MediaStorage storage;
+    private final MediaService mediaService;
+    private final AvatarService avatarService;
+    private final MediaBlobStore mediaBlobStore;
+    private final String imageDirectory;
+    private final String avatarDirectory;
+    private final Path quarantineDirectory;
+    private final boolean scheduled;
+    private final Duration interval;
+    private final int entriesPerSecond;
+    private final Duration minAge;
+    private final Duration quarantinePeriod;
+    private final Clock clock;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private volatile Report report = new Report(null);
+    private ScheduledExecutorService executor;
+
+    @Autowired
+    public OrphanReconciler(MongoTemplate mongoTemplate, MediaStorage storage, MediaService mediaService,
+            AvatarService avatarService, MediaBlobStore mediaBlobStore, MeterRegistry meterRegistry,
+            @Value("${media.storage.dir}") String imageDirectory,
+            @Value("${media.storage.reconcile.quarantine-dir}") String quarantineDirectory,
+            @Value("${media.storage.reconcile.enabled}") boolean scheduled,
+            @Value("${media.storage.reconcile.interval}") Duration interval,
+            @Value("${media.storage.reconcile.entries-per-second}") int entriesPerSecond,
+            @Value("${media.storage.reconcile.min-age}") Duration minAge,
+            @Value("${media.storage.reconcile.quarantine-period}") Duration quarantinePeriod) {
+        this(mongoTemplate, storage, mediaService, avatarService, mediaBlobStore, meterRegistry, imageDirectory,
+                AvatarService.AVATAR_UPLOAD_DIR, quarantineDirectory, scheduled, interval, entriesPerSecond, minAge,
+                quarantinePeriod, Clock.systemUTC());
+    }
+
+    OrphanReconciler(MongoTemplate mongoTemplate, MediaStorage storage, MediaService mediaService,
+            AvatarService avatarService, MediaBlobStore mediaBlobStore, MeterRegistry meterRegistry,
+            String imageDirectory, String avatarDirectory, String quarantineDirectory, boolean scheduled,
+            Duration interval, int entriesPerSecond, Duration minAge, Duration quarantinePeriod, Clock clock) {
+        this.mongoTemplate = mongoTemplate;
+        this.storage = storage;
+        this.mediaService = mediaService;
+        this.avatarService = avatarService;
+        this.mediaBlobStore = mediaBlobStore;
+        this.imageDirectory = imageDirectory.endsWith("/") ? imageDirectory : imageDirectory + "/";
+        this.avatarDirectory = avatarDirectory.endsWith("/") ? avatarDirectory : avatarDirectory + "/";
+        this.quarantineDirectory = Paths.get(quarantineDirectory);
+        this.scheduled = scheduled;
+        this.interval = interval;
+        this.entriesPerSecond = entriesPerSecond;
+        this.minAge = minAge;
+        this.quarantinePeriod = quarantinePeriod;
+        this.clock = clock;
+
+        Gauge.builder("media.reconcile.scanned", this, reconciler -> reconciler.report.getScanned())
+                .register(meterRegistry);
+        Gauge.builder("media.reconcile.quarantined", this, reconciler -> reconciler.report.getQuarantined())
+                .register(meterRegistry);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!(storage instanceof LocalMediaStorage)) {
+            return;
+        }
+        for (Class<?> type : new Class<?>[] { Media.class, Avatar.class }) {
+            mongoTemplate.indexOps(type).createIndex(new Index().on("imagePath", Sort.Direction.ASC)
+                    .named("imagePath"));
+        }
+        mongoTemplate.indexOps(Orphan.class).createIndex(new Index().on("quarantinedAt", Sort.Direction.ASC)
+                .named("quarantinedAt"));
+
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "orphan-reconciler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (scheduled) {
+            long periodMillis = interval.toMillis();
+            executor.scheduleWithFixedDelay(() -> {
+                if (running.compareAndSet(false, true)) {
+                    runClaimed();
+                }
+            }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Starts a run in the background.
+     *
+     * @return false if one is already running
+     */
+    public boolean runNow() {
+        if (executor == null) {
+            throw new BadRequestException("Orphan reconciliation is only available for local storage");
+        }
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        executor.execute(this::runClaimed);
+        return true;
+    }
+
+    /**
+     * The progress of the current run, or the result of the last one.
+     */
+    public Report getReport() {
+        return report;
+    }
+
+    private void runClaimed() {
+        try {
+            reconcile();
+        } catch (IOException | RuntimeException e) {
+            logger.error("Orphan reconciliation stopped: {}", e.getMessage(), e);
+        } finally {
+            running.set(false);
+        }
+    }
+
+    Report reconcile() throws IOException {
+        Report run = new Report(clock.instant());
+        report = run;
+        long startNanos = System.nanoTime();
+
+        run.phase = "images";
+        reconcile(imageDirectory, Media.class, Media::getId, Media::getImagePath, Orphan.Kind.MEDIA, run, startNanos);
+        run.phase = "avatars";
+        reconcile(avatarDirectory, Avatar.class, Avatar::getId, Avatar::getImagePath, Orphan.Kind.AVATAR, run,
+                startNanos);
+        run.phase = "purge";
+        purge(run, startNanos);
+
+        run.phase = "done";
+        run.finishedAt = clock.instant();
+        logger.info("Orphan reconciliation: {} files and {} documents scanned, {} files quarantined, "
+                + "{} documents without a file, {} files and {} documents deleted, {} failures", run.filesScanned,
+                run.documentsScanned, run.filesQuarantined, run.documentsFlagged, run.filesDeleted,
+                run.documentsDeleted, run.failures);
+        return run;
+    }
+
+    // Merges the directory's files with the documents' paths, both in ascending order
+    private <T> void reconcile(String directory, Class<T> type, Function<T, String> idOf,
+            Function<T, String> pathOf, Orphan.Kind kind, Report run, long startNanos) throws IOException {
+        // Strings only, which also skips documents without a path
+        Query byPath = Query.query(Criteria.where("imagePath").gte("")).with(Sort.by("imagePath"))
+                .cursorBatchSize(BATCH_SIZE);
+        byPath.fields().include("imagePath");
+
+        SortedFileWalk files = new SortedFileWalk(Paths.get(directory));
+        try (Stream<T> documents = mongoTemplate.stream(byPath, type)) {
+            Iterator<T> cursor = documents.iterator();
+            Path file = files.next();
+            T document = cursor.hasNext() ? cursor.next() : null;
+            while (file != null || document != null) {
+                String fileKey = file != null ? keyOf(directory, file) : null;
+                String documentPath = document != null ? pathOf.apply(document) : null;
+                int order = file == null ? 1 : document == null ? -1 : fileKey.compareTo(documentPath);
+                if (order <= 0) {
+                    if (order < 0) {
+                        checkFile(directory, file, fileKey, type, run);
+                    }
+                    run.filesScanned++;
+                    file = files.next();
+                }
+                if (order >= 0) {
+                    if (order > 0) {
+                        checkDocument(kind, idOf.apply(document), documentPath, run);
+                    }
+                    // Documents sharing a content-addressed file all match it
+                    do {
+                        run.documentsScanned++;
+                        document = cursor.hasNext() ? cursor.next() : null;
+                    } while (document != null && documentPath.equals(pathOf.apply(document)));
+                }
+                paced(run, startNanos);
+            }
+        }
+    }
+
+    // A file nothing points at: quarantine it once it is too old to belong to an upload in progress
+    private void checkFile(String directory, Path file, String key, Class<?> type, Report run) {
+        try {
+            Instant modified = Files.getLastModifiedTime(file).toInstant();
+            if (modified.isAfter(clock.instant().minus(minAge)) || referenced(key, type)) {
+                return;
+            }
+            // An upload of the same image holds a blob reference before its media is saved
+            String sha256 = type == Media.class ? MediaBlobStore.contentHashOf(key) : null;
+            if (sha256 != null && !mediaBlobStore.claim(sha256, key)) {
+                return;
+            }
+            try {
+                quarantine(directory, file, key, type, run);
+            } finally {
+                if (sha256 != null) {
+                    mediaBlobStore.unclaim(sha256);
+                }
+            }
+        } catch (IOException e) {
+            run.failures++;
+            logger.warn("Could not quarantine {}: {}", key, e.getMessage());
+        }
+    }
+
+    private void quarantine(String directory, Path file, String key, Class<?> type, Report run) throws IOException {
+        Path root = Paths.get(directory);
+        Path target = quarantineDirectory.resolve(root.getFileName().toString()).resolve(root.relativize(file));
+        Files.createDirectories(target.getParent());
+        Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+        if (referenced(key, type)) {
+            // The same image was uploaded again on another instance in the meantime
+            Files.move(target, file, StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+        mongoTemplate.upsert(Query.query(Criteria.where("_id").is(Orphan.idOf(Orphan.Kind.FILE, key))),
+                new Update()
+                        .set("kind", Orphan.Kind.FILE)
+                        .set("path", key)
+                        .set("quarantinePath", target.toString())
+                        .set("quarantinedAt", clock.instant()),
+                Orphan.class);
+        run.filesQuarantined++;
+    }
+
+    // Documents in either directory layout, mid shard migration, or a deletion already queued
+    private boolean referenced(String key, Class<?> type) {
+        Query pointingHere = Query.query(Criteria.where("imagePath").in(ShardedLayout.bothLayouts(key)));
+        return mongoTemplate.exists(pointingHere, type) || mongoTemplate.exists(pointingHere, FileDeletion.class);
+    }
+
+    // A document whose file is missing: flag it, keeping the time it was first seen
+    private void checkDocument(Orphan.Kind kind, String id, String path, Report run) {
+        if (Files.exists(ShardedLayout.resolve(path))) {
+            return;
+        }
+        mongoTemplate.upsert(Query.query(Criteria.where("_id").is(Orphan.idOf(kind, id))),
+                new Update()
+                        .set("kind", kind)
+                        .set("path", path)
+                        .setOnInsert("quarantinedAt", clock.instant()),
+                Orphan.class);
+        run.documentsFlagged++;
+    }
+
+    // Deletes what has been quarantined for long enough and is still an orphan
+    private void purge(Report run, long startNanos) {
+        Query expired = Query.query(Criteria.where("quarantinedAt").lte(clock.instant().minus(quarantinePeriod)))
+                .cursorBatchSize(BATCH_SIZE);
+        try (Stream<Orphan> orphans = mongoTemplate.stream(expired, Orphan.class)) {
+            orphans.forEach(orphan -> {
+                try {
+                    purge(orphan, run);
+                    mongoTemplate.remove(Query.query(Criteria.where("_id").is(orphan.getId())), Orphan.class);
+                } catch (IOException | RuntimeException e) {
+                    run.failures++;
+                    logger.warn("Could not delete orphan {}: {}", orphan.getId(), e.getMessage());
+                }
+                paced(run, startNanos);
+            });
+        }
+    }
+
+    private void purge(Orphan orphan, Report run) throws IOException {
+        if (orphan.getKind() == Orphan.Kind.FILE) {
+            Files.deleteIfExists(Paths.get(orphan.getQuarantinePath()));
+            run.filesDeleted++;
+            return;
+        }
+        Class<?> type = orphan.getKind() == Orphan.Kind.MEDIA ? Media.class : Avatar.class;
+        Query stillMissing = Query.query(Criteria.where("_id").is(orphan.getKey())
+                .and("imagePath").is(orphan.getPath()));
+        if (Files.exists(ShardedLayout.resolve(orphan.getPath())) || !mongoTemplate.exists(stillMissing, type)) {
+            // Resolved in the meantime
+            return;
+        }
+        if (orphan.getKind() == Orphan.Kind.MEDIA) {
+            mediaService.deleteMediaInternal(orphan.getKey());
+        } else {
+            avatarService.deleteAvatarInternal(orphan.getKey());
+        }
+        run.documentsDeleted++;
+    }
+
+    private static String keyOf(String directory, Path file) {
+        return directory + Paths.get(directory).relativize(file).toString().replace('\\', '/');
+    }
+
+    private void paced(Report run, long startNanos) {
+        long processed = ++run.entries;
+        if (processed % PROGRESS_EVERY == 0) {
+            logger.info("Orphan reconciliation ({}): {} files and {} documents scanned, {} files quarantined, "
+                    + "{} documents without a file", run.phase, run.filesScanned, run.documentsScanned,
+                    run.filesQuarantined, run.documentsFlagged);
+        }
+        long dueNanos = startNanos + TimeUnit.SECONDS.toNanos(processed) / entriesPerSecond;
+        long aheadNanos = dueNanos - System.nanoTime();
+        if (aheadNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(aheadNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Walks a directory tree in the order of the path strings, which is the
+     * order the database returns the recorded paths in. Only the directories
+     * on the way down to the current file are held in memory.
+     */
+    static final class SortedFileWalk {
+
+        private final Deque<Iterator<Path>> stack = new ArrayDeque<>();
+
+        SortedFileWalk(Path root) throws IOException {
+            if (Files.isDirectory(root)) {
+                stack.push(list(root));
+            }
+        }
+
+        /**
+         * @return the next file, or {@code null} after the last
+         */
+        Path next() throws IOException {
+            while (!stack.isEmpty()) {
+                Iterator<Path> children = stack.peek();
+                if (!children.hasNext()) {
+                    stack.pop();
+                    continue;
+                }
+                Path child = children.next();
+                if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                    stack.push(list(child));
+                } else {
+                    return child;
+                }
+            }
+            return null;
+        }
+
+        // A directory sorts as if its name ended in '/', as it does inside the paths below it
+        private static Iterator<Path> list(Path directory) throws IOException {
+            List<Map.Entry<String, Path>> children = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    String name = entry.getFileName().toString();
+                    children.add(Map.entry(Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS) ? name + "/" : name,
+                            entry));
+                }
+            }
+            children.sort(Map.Entry.comparingByKey(Comparator.naturalOrder()));
+            return children.stream().map(Map.Entry::getValue).iterator();
+        }
+    }
+
+    /**
+     * Progress of a reconciliation run.
+     */
+    public static final class Report {
+
+        private final Instant startedAt;
+        private volatile Instant finishedAt;
+        private volatile String phase = "idle";
+        private volatile long filesScanned;
+        private volatile long documentsScanned;
+        private volatile long filesQuarantined;
+        private volatile long documentsFlagged;
+        private volatile long filesDeleted;
+        private volatile long documentsDeleted;
+        private volatile long failures;
+        // Everything read so far, for pacing
+        private long entries;
+
+        Report(Instant startedAt) {
+            this.startedAt = startedAt;
+        }
+
+        public Instant getStartedAt() {
+            return startedAt;
+        }
+
+        public Instant getFinishedAt() {
+            return finishedAt;
+        }
+
+        public String getPhase() {
+            return phase;
+        }
+
+        public long getFilesScanned() {
+            return filesScanned;
+        }
+
+        public long getDocumentsScanned() {
+            return documentsScanned;
+        }
+
+        public long getFilesQuarantined() {
+            return filesQuarantined;
+        }
+
+        public long getDocumentsFlagged() {
+            return documentsFlagged;
+        }
+
+        public long getFilesDeleted() {
+            return filesDeleted;
+        }
+
+        public long getDocumentsDeleted() {
+            return documentsDeleted;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        long getScanned() {
+            return filesScanned + documentsScanned;
+        }
+
+        long getQuarantined() {
+            return filesQuarantined + documentsFlagged;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.buyapp.mediaservice.service;
+
+import com.buyapp.common.dto.ProductDto;
+import com.buyapp.mediaservice.model.ProductOwner;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * The owner of every product, projected into {@code product_owners} from the
+ * Product Service's events so that authorizing an upload or delete is a
+ * lookup by id instead of a call to the Product Service.
+ *
+ * Products created before the projection existed are copied in once, in the
+ * background after startup; a marker in {@code migrations} records that the
+ * copy completed, so events recorded meanwhile don't stand in for it and a
+ * failed copy is tried again at the next startup. A product
+ * whose PRODUCT_CREATED event has not arrived yet, typically one whose
+ * images are uploaded right after it was created, is looked up in the
+ * Product Service and recorded.
+ */
+@Service
+public class ProductOwners {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProductOwners.class);
+
+    // One document per completed one-off migration
+    private static final String MIGRATIONS = "migrations";
+    private static final String BACKFILL_MARKER = "product-owner-backfill";
+
+    private final MongoTemplate mongoTemplate;
+    private final WebClient.Builder webClientBuilder;
+
+    public ProductOwners(MongoTemplate mongoTemplate, WebClient.Builder webClientBuilder) {
+        this.mongoTemplate = mongoTemplate;
+        this.webClientBuilder = webClientBuilder;
+    }
+
+    /**
+     * @return the email of the product's owner, empty if there is no such
+     *         product
+     */
+    public Optional<String> ownerOf(String productId) {
+        ProductOwner owner = mongoTemplate.findById(productId, ProductOwner.class);
+        if (owner != null) {
+            return Optional.ofNullable(owner.getSellerEmail());
+        }
+
+        ProductDto product = getProductFromService(productId);
+        if (product == null || product.getUser() == null) {
+            return Optional.empty();
+        }
+        // Only fill the gap; the event may have arrived in the meantime
+        mongoTemplate.upsert(byId(productId), new Update().setOnInsert("sellerEmail", product.getUser()),
+                ProductOwner.class);
+        return Optional.of(product.getUser());
+    }
+
+    // From PRODUCT_CREATED and PRODUCT_UPDATED
+    public void record(String productId, String sellerId, String sellerEmail) {
+        if (productId == null || sellerEmail == null) {
+            return;
+        }
+        mongoTemplate.upsert(byId(productId), new Update().set("sellerId", sellerId).set("sellerEmail", sellerEmail),
+                ProductOwner.class);
+    }
+
+    // From PRODUCT_DELETED
+    public void forget(String productId) {
+        mongoTemplate.remove(byId(productId), ProductOwner.class);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void startBackfill() {
+        if (mongoTemplate.exists(byId(BACKFILL_MARKER), MIGRATIONS)) {
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                backfill();
+            } catch (RuntimeException e) {
+                // Lookups fall back to the Product Service until the next startup tries again
+                logger.warn("Product owner backfill failed: {}", e.getMessage());
+            }
+        }, "product-owner-backfill");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Copies the owner of every product from the Product Service, leaving
+     * products the events have already recorded alone.
+     *
+     * @return the number of products copied
+     */
+    public int backfill() {
+        List<ProductDto> products = webClientBuilder.build()
+                .get()
+                .uri("http://product-service/products")
+                .retrieve()
+                .bodyToFlux(ProductDto.class)
+                .collectList()
+                .block();
+
+        int copied = 0;
+        for (ProductDto product : products == null ? List.<ProductDto>of() : products) {
+            if (product.getId() == null || product.getUser() == null) {
+                continue;
+            }
+            if (mongoTemplate.upsert(byId(product.getId()),
+                    new Update().setOnInsert("sellerEmail", product.getUser()), ProductOwner.class)
+                    .getUpsertedId() != null) {
+                copied++;
+            }
+        }
+        mongoTemplate.save(new Document("_id", BACKFILL_MARKER).append("completedAt", Instant.now()), MIGRATIONS);
+        logger.info("Product owner backfill: {} products, {} copied", products == null ? 0 : products.size(), copied);
+        return copied;
+    }
+
+    private ProductDto getProductFromService(String productId) {
+        try {
+            return webClientBuilder.build()
+                    .get()
+                    .uri("http://product-service/products/{id}", productId)
+                    .retrieve()
+                    .bodyToMono(ProductDto.class)
+                    .block();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static Query byId(String productId) {
+        return Query.query(Criteria.where("_id").is(productId));
+    }
+}
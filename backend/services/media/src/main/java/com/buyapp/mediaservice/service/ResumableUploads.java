@@ -0,0 +1,551 @@
+package com.buyapp.mediaservice.service;
+
+import com.buyapp.common.exception.BadRequestException;
+import com.buyapp.common.exception.ForbiddenException;
+import com.buyapp.common.exception.ResourceNotFoundException;
+import com.buyapp.mediaservice.model.Media;
+import com.buyapp.mediaservice.model.UploadSession;
+import com.buyapp.mediaservice.storage.MediaStorage;
+import com.buyapp.mediaservice.storage.S3MediaStorage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.security.core.Authentication;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Uploads sent in chunks, so a dropped connection costs only the chunk in
+ * flight instead of the whole image.
+ *
+ * A client creates a session declaring the file's length and SHA-256, then
+ * PUTs the bytes in order, each chunk naming the offset it starts at, and
+ * finalizes the session once all bytes are in. Chunks are appended to a
+ * temp file under {@code media.uploads.dir}; its size is the offset the next
+ * chunk must start at, so a chunk cut off halfway still counts for the
+ * bytes that arrived, and a client that lost track asks for the offset and
+ * carries on from there. On finalize the file is validated like any other
+ * upload and must match the declared checksum before the {@link Media} is
+ * created.
+ *
+ * Appends are not synced chunk by chunk: the file is fsynced whenever
+ * {@code media.uploads.sync-bytes} have been written since the last sync.
+ * Bytes lost to a machine crash before that simply show up as a smaller
+ * offset, and the checksum catches anything worse.
+ *
+ * Any instance can take the next request of a session: a chunk or finalize
+ * locks the session in its document, and the lock lapses after
+ * {@code media.uploads.lock-timeout} if the instance holding it dies. With
+ * local or segment storage, instances share {@code media.uploads.dir} as
+ * they share {@code media.storage.dir}. With S3 they share no disk, so each
+ * chunk is stored as an object of its own under the session's key and the
+ * session counts the bytes received; the chunks are joined on finalize.
+ *
+ * Sessions expire {@code media.uploads.session-ttl} after their last chunk
+ * and are deleted with their bytes every {@code media.uploads.gc-interval}.
+ */
+@Service
+public class ResumableUploads {
+
+    private static final Logger logger = LoggerFactory.getLogger(ResumableUploads.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int GC_BATCH_SIZE = 1000;
+    // Where chunk objects are kept in the bucket, the same for every replica whatever its local directory
+    private static final String CHUNK_PREFIX = "uploads/sessions/";
+    private static final Pattern SHA256_HEX = Pattern.compile("[0-9a-fA-F]{64}");
+
+    private final MongoTemplate mongoTemplate;
+    private final MediaService mediaService;
+    private final MediaStorage storage;
+    // Chunks go to the storage as objects instead of being appended to a temp file
+    private final boolean chunkObjects;
+    private final Path directory;
+    private final Duration sessionTtl;
+    private final long maxChunkBytes;
+    private final long syncBytes;
+    private final int maxSessionsPerUser;
+    private final Duration gcInterval;
+    private final Duration lockTimeout;
+    private final Clock clock;
+    private final Counter expired;
+
+    // Bytes this instance appended to each session's file since it was last synced
+    private final Map<String, Long> unsynced = new ConcurrentHashMap<>();
+    private ScheduledExecutorService collector;
+
+    @Autowired
+    public ResumableUploads(MongoTemplate mongoTemplate, MediaService mediaService, MediaStorage storage,
+            MeterRegistry meterRegistry,
+            @Value("${media.uploads.dir}") String directory,
+            @Value("${media.uploads.session-ttl}") Duration sessionTtl,
+            @Value("${media.uploads.max-chunk-bytes}") long maxChunkBytes,
+            @Value("${media.uploads.sync-bytes}") long syncBytes,
+            @Value("${media.uploads.max-sessions-per-user}") int maxSessionsPerUser,
+            @Value("${media.uploads.gc-interval}") Duration gcInterval,
+            @Value("${media.uploads.lock-timeout}") Duration lockTimeout) {
+        this(mongoTemplate, mediaService, storage, meterRegistry, directory, sessionTtl, maxChunkBytes, syncBytes,
+                maxSessionsPerUser, gcInterval, lockTimeout, Clock.systemUTC());
+    }
+
+    ResumableUploads(MongoTemplate mongoTemplate, MediaService mediaService, MediaStorage storage,
+            MeterRegistry meterRegistry, String directory, Duration sessionTtl, long maxChunkBytes, long syncBytes,
+            int maxSessionsPerUser, Duration gcInterval, Duration lockTimeout, Clock clock) {
+        this.mongoTemplate = mongoTemplate;
+        this.mediaService = mediaService;
+        this.storage = storage;
+        this.chunkObjects = storage instanceof S3MediaStorage;
+        this.directory = Paths.get(directory);
+        this.sessionTtl = sessionTtl;
+        this.maxChunkBytes = maxChunkBytes;
+        this.syncBytes = syncBytes;
+        this.maxSessionsPerUser = maxSessionsPerUser;
+        this.gcInterval = gcInterval;
+        this.lockTimeout = lockTimeout;
+        this.clock = clock;
+        this.expired = meterRegistry.counter("media.uploads.sessions.expired");
+
+        try {
+            Files.createDirectories(this.directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not create upload session directory " + directory, e);
+        }
+    }
+
+    /**
+     * Opens a session for one image of a product owned by the caller. No
+     * image slot is taken until the session is finalized.
+     */
+    public UploadSession create(String productId, String fileName, long length, String sha256,
+            Authentication authentication) {
+        if (fileName == null || fileName.trim().isEmpty()) {
+            throw new BadRequestException("Invalid filename");
+        }
+        if (length <= 0) {
+            throw new BadRequestException("File cannot be empty");
+        }
+        if (length > MediaService.MAX_FILE_SIZE) {
+            throw new BadRequestException("File size exceeds maximum limit of 2MB");
+        }
+        if (sha256 == null || !SHA256_HEX.matcher(sha256).matches()) {
+            throw new BadRequestException("The SHA-256 of the file must be given as 64 hex digits");
+        }
+        mediaService.checkUploadAllowed(productId, authentication);
+
+        String userEmail = authentication.getName();
+        Instant now = clock.instant();
+        long open = mongoTemplate.count(Query.query(Criteria.where("userEmail").is(userEmail)
+                .and("expiresAt").gt(now)), UploadSession.class);
+        if (open >= maxSessionsPerUser) {
+            throw new BadRequestException("Too many uploads in progress; finish or cancel one first");
+        }
+
+        UploadSession session = new UploadSession(UUID.randomUUID().toString(), productId, userEmail, fileName,
+                length, sha256.toLowerCase(Locale.ROOT), now, now.plus(sessionTtl));
+        if (!chunkObjects) {
+            // The file first: a file without a session is swept up, a session without a file would be stuck
+            try {
+                Files.createFile(partFile(session.getId()));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not start upload", e);
+            }
+        }
+        mongoTemplate.insert(session);
+        return session;
+    }
+
+    /**
+     * @return the session, with the offset the next chunk must start at
+     */
+    public UploadSession status(String sessionId, Authentication authentication) {
+        UploadSession session = find(sessionId, authentication);
+        session.setOffset(offsetOf(session));
+        return session;
+    }
+
+    /**
+     * Appends a chunk. If the connection drops halfway, the bytes that
+     * arrived are kept and the exception is rethrown.
+     *
+     * @throws OffsetMismatchException if {@code offset} is not where the
+     *                                 file ends, or another chunk of the
+     *                                 session is being written
+     */
+    public UploadSession append(String sessionId, long offset, InputStream body, Authentication authentication)
+            throws IOException {
+        UploadSession session = lock(find(sessionId, authentication));
+        try {
+            long end = offsetOf(session);
+            if (offset != end) {
+                throw new OffsetMismatchException(end);
+            }
+            long limit = Math.min(session.getLength(), end + maxChunkBytes);
+            end = chunkObjects ? appendObject(session, end, limit, body) : appendFile(session, end, limit, body);
+
+            Instant expiresAt = clock.instant().plus(sessionTtl);
+            mongoTemplate.updateFirst(byId(sessionId), new Update().set("expiresAt", expiresAt), UploadSession.class);
+            session.setExpiresAt(expiresAt);
+            session.setOffset(end);
+            return session;
+        } finally {
+            unlock(session);
+        }
+    }
+
+    /**
+     * Stores the assembled file as media and closes the session. A failed
+     * finalize, such as a checksum mismatch, leaves the session open until
+     * it is cancelled or expires.
+     *
+     * @throws OffsetMismatchException if bytes are still missing
+     */
+    public Media complete(String sessionId, Authentication authentication) {
+        UploadSession session = lock(find(sessionId, authentication));
+        try {
+            long received = offsetOf(session);
+            if (received != session.getLength()) {
+                throw new OffsetMismatchException(received);
+            }
+            Path file = chunkObjects ? joinChunks(session) : partFile(sessionId);
+            try {
+                Media media = mediaService.uploadMediaFile(file, session.getFileName(), session.getSha256(),
+                        session.getProductId(), authentication);
+                delete(session);
+                return media;
+            } finally {
+                if (chunkObjects) {
+                    deleteQuietly(file);
+                }
+            }
+        } finally {
+            unlock(session);
+        }
+    }
+
+    public void cancel(String sessionId, Authentication authentication) {
+        UploadSession session = lock(find(sessionId, authentication));
+        try {
+            delete(session);
+        } finally {
+            unlock(session);
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        mongoTemplate.indexOps(UploadSession.class).createIndex(new Index().on("expiresAt", Sort.Direction.ASC)
+                .named("expiresAt"));
+        mongoTemplate.indexOps(UploadSession.class).createIndex(new Index().on("userEmail", Sort.Direction.ASC)
+                .named("userEmail"));
+
+        collector = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "upload-session-gc");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long periodMillis = gcInterval.toMillis();
+        collector.scheduleWithFixedDelay(() -> {
+            try {
+                collectExpired();
+            } catch (RuntimeException e) {
+                logger.warn("Could not collect expired upload sessions: {}", e.getMessage());
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (collector != null) {
+            collector.shutdownNow();
+        }
+    }
+
+    /**
+     * Deletes expired sessions with their bytes, and temp files older
+     * than the session TTL that have no session.
+     *
+     * @return how many sessions or stray files were deleted
+     */
+    int collectExpired() {
+        Instant now = clock.instant();
+        int collected = 0;
+        List<UploadSession> expiredSessions = mongoTemplate.find(
+                Query.query(Criteria.where("expiresAt").lt(now)).limit(GC_BATCH_SIZE), UploadSession.class);
+        for (UploadSession session : expiredSessions) {
+            // Only if no chunk is being written and none has pushed the expiry back in the meantime
+            Query stillExpired = Query.query(unlocked(session.getId(), now).and("expiresAt").lt(now));
+            if (mongoTemplate.remove(stillExpired, UploadSession.class).getDeletedCount() == 1) {
+                deleteBytes(session);
+                collected++;
+            }
+        }
+
+        // Left by a crash between creating the file and the session, or while a chunk or finalize was in progress
+        Instant straysBefore = now.minus(sessionTtl);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.{part,chunk}")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                String sessionId = name.endsWith(".chunk") ? name.substring(0, name.lastIndexOf('-'))
+                        : name.replace(".part", "");
+                if (Files.getLastModifiedTime(file).toInstant().isBefore(straysBefore)
+                        && !mongoTemplate.exists(byId(sessionId), UploadSession.class)) {
+                    unsynced.remove(sessionId);
+                    deleteQuietly(file);
+                    collected++;
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Could not list upload session files: {}", e.getMessage());
+        }
+
+        if (collected > 0) {
+            expired.increment(collected);
+            logger.info("Deleted {} expired upload sessions", collected);
+        }
+        return collected;
+    }
+
+    private UploadSession find(String sessionId, Authentication authentication) {
+        UploadSession session = mongoTemplate.findById(sessionId, UploadSession.class);
+        if (session == null || !session.getExpiresAt().isAfter(clock.instant())) {
+            throw new ResourceNotFoundException("Upload session not found: " + sessionId);
+        }
+        if (!session.getUserEmail().equals(authentication.getName())) {
+            throw new ForbiddenException("You can only continue your own uploads");
+        }
+        return session;
+    }
+
+    /**
+     * Takes the session's lock, which holds across instances.
+     *
+     * @return the session as it stands now that it is locked
+     * @throws OffsetMismatchException if another request holds the lock
+     */
+    private UploadSession lock(UploadSession session) {
+        Instant now = clock.instant();
+        UploadSession locked = mongoTemplate.findAndModify(Query.query(unlocked(session.getId(), now)),
+                new Update().set("lockedUntil", now.plus(lockTimeout)),
+                FindAndModifyOptions.options().returnNew(true), UploadSession.class);
+        if (locked == null) {
+            throw new OffsetMismatchException(offsetOf(session));
+        }
+        return locked;
+    }
+
+    // Only while we still hold it: after the timeout another request may have taken it over
+    private void unlock(UploadSession session) {
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(session.getId())
+                .and("lockedUntil").is(session.getLockedUntil())), new Update().unset("lockedUntil"),
+                UploadSession.class);
+    }
+
+    private static Criteria unlocked(String sessionId, Instant now) {
+        return Criteria.where("_id").is(sessionId).orOperator(
+                Criteria.where("lockedUntil").exists(false),
+                Criteria.where("lockedUntil").lte(now));
+    }
+
+    private long offsetOf(UploadSession session) {
+        if (chunkObjects) {
+            return session.getReceived();
+        }
+        try {
+            return Files.size(partFile(session.getId()));
+        } catch (NoSuchFileException e) {
+            throw new ResourceNotFoundException("Upload session not found: " + session.getId());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Appends to the session's temp file; bytes of a chunk cut off halfway stay in it
+    private long appendFile(UploadSession session, long end, long limit, InputStream body) throws IOException {
+        try (FileChannel channel = FileChannel.open(partFile(session.getId()), StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            return copy(session, end, limit, body, (buffer, length) -> {
+                ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, length);
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+                syncIfDue(session.getId(), channel, length);
+            });
+        }
+    }
+
+    // Stores the chunk as the session's next object; a chunk cut off halfway is stored with the bytes that arrived
+    private long appendObject(UploadSession session, long end, long limit, InputStream body) throws IOException {
+        Path chunk = directory.resolve(session.getId() + "-" + session.getChunks() + ".chunk");
+        try {
+            IOException dropped = null;
+            try (OutputStream out = Files.newOutputStream(chunk)) {
+                copy(session, end, limit, body, (buffer, length) -> out.write(buffer, 0, length));
+            } catch (IOException e) {
+                dropped = e;
+            }
+            long size = Files.size(chunk);
+            if (size > 0) {
+                storage.store(chunkKey(session.getId(), session.getChunks()), chunk, "application/octet-stream");
+                Query owned = Query.query(Criteria.where("_id").is(session.getId())
+                        .and("lockedUntil").is(session.getLockedUntil()));
+                if (mongoTemplate.updateFirst(owned, new Update().set("received", end + size).inc("chunks", 1),
+                        UploadSession.class).getModifiedCount() == 0) {
+                    // Held past the lock timeout; whoever took the session over decides the offset
+                    throw new OffsetMismatchException(end);
+                }
+            }
+            if (dropped != null) {
+                throw dropped;
+            }
+            return end + size;
+        } finally {
+            deleteQuietly(chunk);
+        }
+    }
+
+    private interface ChunkSink {
+        void write(byte[] buffer, int length) throws IOException;
+    }
+
+    private long copy(UploadSession session, long end, long limit, InputStream body, ChunkSink sink)
+            throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = body.read(buffer)) >= 0) {
+            if (end + read > limit) {
+                throw new BadRequestException(end + read > session.getLength()
+                        ? "Chunk runs past the declared file length of " + session.getLength() + " bytes"
+                        : "Chunks may be at most " + maxChunkBytes + " bytes");
+            }
+            sink.write(buffer, read);
+            end += read;
+        }
+        return end;
+    }
+
+    // The chunk objects joined into a local file, for finalizing like any other upload
+    private Path joinChunks(UploadSession session) {
+        Path file = partFile(session.getId());
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (int i = 0; i < session.getChunks(); i++) {
+                try (InputStream in = storage.open(chunkKey(session.getId(), i))) {
+                    in.transferTo(out);
+                }
+            }
+            return file;
+        } catch (IOException e) {
+            deleteQuietly(file);
+            throw new UncheckedIOException("Could not assemble upload " + session.getId(), e);
+        }
+    }
+
+    // fsyncs once syncBytes have been written since the last sync, not after every chunk
+    private void syncIfDue(String sessionId, FileChannel channel, int written) throws IOException {
+        if (unsynced.merge(sessionId, (long) written, Long::sum) >= syncBytes) {
+            channel.force(false);
+            unsynced.put(sessionId, 0L);
+        }
+    }
+
+    private void delete(UploadSession session) {
+        mongoTemplate.remove(byId(session.getId()), UploadSession.class);
+        deleteBytes(session);
+    }
+
+    private void deleteBytes(UploadSession session) {
+        if (!chunkObjects) {
+            deleteFile(session.getId());
+            return;
+        }
+        // One past the last recorded chunk too: stored by an instance that died before recording it
+        for (int i = 0; i <= session.getChunks(); i++) {
+            try {
+                storage.delete(chunkKey(session.getId(), i));
+            } catch (IOException e) {
+                logger.warn("Could not delete chunk {} of upload session {}: {}", i, session.getId(),
+                        e.getMessage());
+            }
+        }
+    }
+
+    private void deleteFile(String sessionId) {
+        unsynced.remove(sessionId);
+        deleteQuietly(partFile(sessionId));
+    }
+
+    private void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.warn("Could not delete upload session file {}: {}", file.getFileName(), e.getMessage());
+        }
+    }
+
+    private static String chunkKey(String sessionId, int index) {
+        return CHUNK_PREFIX + sessionId + "/" + index;
+    }
+
+    private Path partFile(String sessionId) {
+        return directory.resolve(sessionId + ".part");
+    }
+
+    private static Query byId(String sessionId) {
+        return Query.query(Criteria.where("_id").is(sessionId));
+    }
+
+    /**
+     * A chunk that does not start where the upload ends, or that arrives
+     * while another chunk of the session is still being written. The client
+     * continues from {@link #getOffset()}.
+     */
+    public static class OffsetMismatchException extends RuntimeException {
+
+        private final long offset;
+
+        public OffsetMismatchException(long offset) {
+            super("Upload continues at offset " + offset);
+            this.offset = offset;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.buyapp.mediaservice.service;
+
+import com.buyapp.mediaservice.model.Avatar;
+import com.buyapp.mediaservice.model.Media;
+import com.buyapp.mediaservice.model.MediaBlob;
+import com.buyapp.mediaservice.storage.LocalMediaStorage;
+import com.buyapp.mediaservice.storage.MediaStorage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Moves images and avatars from the flat upload directories into the
+ * {@link ShardedLayout} in the background after startup, while the service
+ * keeps serving.
+ *
+ * Each file is moved first and the documents pointing at it are updated
+ * afterwards; in between, readers find it through
+ * {@link ShardedLayout#resolve}. The migration is throttled to
+ * {@code media.storage.shard-migration.files-per-second} and is a no-op once
+ * everything has moved. Only local storage has flat directories to migrate.
+ */
+@Service
+public class ShardMigration {
+
+    private static final Logger logger = LoggerFactory.getLogger(ShardMigration.class);
+
+    private final MongoTemplate mongoTemplate;
+    private final MediaStorage storage;
+    private final boolean enabled;
+    private final int filesPerSecond;
+
+    public ShardMigration(MongoTemplate mongoTemplate, MediaStorage storage,
+            @Value("${media.storage.shard-migration.enabled}") boolean enabled,
+            @Value("${media.storage.shard-migration.files-per-second}") int filesPerSecond) {
+        this.mongoTemplate = mongoTemplate;
+        this.storage = storage;
+        this.enabled = enabled;
+        this.filesPerSecond = filesPerSecond;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!enabled || !(storage instanceof LocalMediaStorage)) {
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                migrate();
+            } catch (RuntimeException e) {
+                logger.error("Shard migration stopped: {}", e.getMessage(), e);
+            }
+        }, "shard-migration");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public Report migrate() {
+        Report report = new Report();
+        long startNanos = System.nanoTime();
+        for (Class<?> type : new Class<?>[] { Media.class, Avatar.class }) {
+            Query flat = Query.query(Criteria.where("imagePath").exists(true));
+            flat.fields().include("imagePath");
+            try (Stream<?> documents = mongoTemplate.stream(flat, type)) {
+                documents.forEach(document -> {
+                    String imagePath = type == Media.class
+                            ? ((Media) document).getImagePath()
+                            : ((Avatar) document).getImagePath();
+                    if (imagePath == null || ShardedLayout.isSharded(imagePath)) {
+                        return;
+                    }
+                    try {
+                        migrate(imagePath, type, report);
+                    } catch (IOException e) {
+                        report.failures++;
+                        logger.warn("Could not move {}: {}", imagePath, e.getMessage());
+                    }
+                    throttle(report.moved + report.failures, startNanos);
+                });
+            }
+        }
+        logger.info("Shard migration: {} files moved, {} missing, {} failures", report.moved, report.missing,
+                report.failures);
+        return report;
+    }
+
+    private void migrate(String imagePath, Class<?> type, Report report) throws IOException {
+        Path flatFile = Paths.get(imagePath);
+        String shardedPath = ShardedLayout.shardedPath(
+                flatFile.getParent() == null ? "" : flatFile.getParent().toString(),
+                flatFile.getFileName().toString());
+        Path shardedFile = Paths.get(shardedPath);
+
+        if (Files.exists(flatFile)) {
+            Files.createDirectories(shardedFile.getParent());
+            Files.move(flatFile, shardedFile, StandardCopyOption.ATOMIC_MOVE);
+            report.moved++;
+        } else if (!Files.exists(shardedFile)) {
+            report.missing++;
+            return;
+        }
+
+        // Several media can share a content-addressed file
+        Query pointingHere = Query.query(Criteria.where("imagePath").is(imagePath));
+        mongoTemplate.updateMulti(pointingHere, new Update().set("imagePath", shardedPath), type);
+        if (type == Media.class) {
+            mongoTemplate.updateMulti(Query.query(Criteria.where("path").is(imagePath)),
+                    new Update().set("path", shardedPath), MediaBlob.class);
+        }
+    }
+
+    private void throttle(long processed, long startNanos) {
+        long dueNanos = startNanos + TimeUnit.SECONDS.toNanos(processed) / filesPerSecond;
+        long aheadNanos = dueNanos - System.nanoTime();
+        if (aheadNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(aheadNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * What a migration run did.
+     */
+    public static final class Report {
+
+        private long moved;
+        private long missing;
+        private long failures;
+
+        public long getMoved() {
+            return moved;
+        }
+
+        public long getMissing() {
+            return missing;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+    }
+}
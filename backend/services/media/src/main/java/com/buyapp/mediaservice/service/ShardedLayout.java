@@ -0,0 +1,87 @@
+package com.buyapp.mediaservice.service;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Two-level fan-out for the upload directories: a file named
+ * {@code 3fa85f64-....jpg} lives at {@code <dir>/3f/a8/3fa85f64-....jpg}.
+ * Stored files are named by a UUID or a SHA-256, so the first four hex
+ * characters spread them evenly over 65,536 directories, keeping every
+ * directory small enough for fast lookups, listings and backups.
+ *
+ * Files from before the layout was introduced sit directly in the upload
+ * directory until {@link ShardMigration} has moved them. {@link #resolve}
+ * finds a file under either layout, so documents and files can be migrated
+ * independently.
+ */
+public final class ShardedLayout {
+
+    private ShardedLayout() {
+    }
+
+    /**
+     * @param directory the upload directory, e.g. {@code uploads/images/}
+     * @return where a new file of this name belongs
+     */
+    public static String shardedPath(String directory, String fileName) {
+        String shard = shardOf(fileName);
+        String base = directory.isEmpty() || directory.endsWith("/") ? directory : directory + "/";
+        return base + shard.substring(0, 2) + "/" + shard.substring(2, 4) + "/" + fileName;
+    }
+
+    /**
+     * The file a recorded path refers to: the path itself if it exists,
+     * otherwise the same file under the other layout.
+     */
+    public static Path resolve(String recordedPath) {
+        Path path = Paths.get(recordedPath);
+        if (Files.exists(path)) {
+            return path;
+        }
+        Path counterpart = Paths.get(counterpart(recordedPath));
+        return Files.exists(counterpart) ? counterpart : path;
+    }
+
+    /**
+     * The recorded path in both layouts, for matching documents mid-migration.
+     */
+    public static List<String> bothLayouts(String recordedPath) {
+        return List.of(recordedPath, counterpart(recordedPath));
+    }
+
+    public static boolean isSharded(String recordedPath) {
+        Path path = Paths.get(recordedPath);
+        Path inner = path.getParent();
+        Path outer = inner != null ? inner.getParent() : null;
+        if (outer == null || outer.getFileName() == null) {
+            return false;
+        }
+        String shard = shardOf(path.getFileName().toString());
+        return inner.getFileName().toString().equals(shard.substring(2, 4))
+                && outer.getFileName().toString().equals(shard.substring(0, 2));
+    }
+
+    private static String counterpart(String recordedPath) {
+        Path path = Paths.get(recordedPath);
+        String fileName = path.getFileName().toString();
+        if (isSharded(recordedPath)) {
+            Path directory = path.getParent().getParent().getParent();
+            return directory == null ? fileName : directory.resolve(fileName).toString();
+        }
+        Path directory = path.getParent();
+        return shardedPath(directory == null ? "" : directory.toString(), fileName);
+    }
+
+    // Four hex characters: the start of the name for UUID and hash names, a hash of it otherwise
+    private static String shardOf(String fileName) {
+        String prefix = fileName.length() >= 4 ? fileName.substring(0, 4).toLowerCase(Locale.ROOT) : "";
+        if (prefix.length() == 4 && prefix.chars().allMatch(c -> Character.digit(c, 16) >= 0)) {
+            return prefix;
+        }
+        return String.format("%08x", fileName.hashCode()).substring(0, 4);
+    }
+}
@@ -0,0 +1,195 @@
+package com.buyapp.mediaservice.service;
+
+import com.buyapp.common.exception.BadRequestException;
+
+import com.buyapp.mediaservice.storage.MediaStorage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+/**
+ * An uploaded image written to a temp file in the upload directory in a
+ * single pass: the first bytes are checked against the JPEG, PNG, GIF and
+ * WebP signatures before anything touches the disk, and the SHA-256 is
+ * computed while the rest is copied. The client's content type is never
+ * trusted; {@link #getContentType()} is what the bytes say. Dimensions and
+ * orientation are then read from the image headers, which are still in the
+ * page cache.
+ */
+public final class StreamingUpload {
+
+    // Enough for every signature below; WebP needs "RIFF" + size + "WEBP"
+    private static final int SIGNATURE_BYTES = 12;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path tempFile;
+    private final String contentType;
+    private final String extension;
+    private final String sha256;
+    private final long size;
+    private final ImageHeader header;
+
+    private StreamingUpload(Path tempFile, String contentType, String extension, String sha256, long size,
+            ImageHeader header) {
+        this.tempFile = tempFile;
+        this.contentType = contentType;
+        this.extension = extension;
+        this.sha256 = sha256;
+        this.size = size;
+        this.header = header;
+    }
+
+    /**
+     * Reads the stream to a temp file in {@code directory}. The caller must
+     * {@link #moveTo} or {@link #discard} the result.
+     *
+     * @throws BadRequestException if the content is not a supported image or
+     *                             is larger than {@code maxBytes}; nothing is
+     *                             left on disk
+     */
+    public static StreamingUpload receive(InputStream in, Path directory, long maxBytes) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int headerLength = in.readNBytes(buffer, 0, SIGNATURE_BYTES);
+        if (headerLength == 0) {
+            throw new BadRequestException("File cannot be empty");
+        }
+        String contentType = sniff(Arrays.copyOf(buffer, headerLength));
+        if (contentType == null) {
+            throw new BadRequestException("Invalid file type. Only image files (JPEG, PNG, GIF, WebP) are allowed");
+        }
+
+        MessageDigest digest = sha256Digest();
+        Path tempFile = Files.createTempFile(directory, "upload-", ".part");
+        boolean complete = false;
+        try (OutputStream out = Files.newOutputStream(tempFile)) {
+            long size = 0;
+            int read = headerLength;
+            while (read >= 0) {
+                size += read;
+                if (size > maxBytes) {
+                    throw new BadRequestException("File size exceeds maximum limit of " + maxBytes / (1024 * 1024) + "MB");
+                }
+                digest.update(buffer, 0, read);
+                out.write(buffer, 0, read);
+                read = in.read(buffer);
+            }
+            // Flush before reading the header back
+            out.close();
+            ImageHeader header = ImageHeader.read(tempFile).orElse(null);
+            complete = true;
+            return new StreamingUpload(tempFile, contentType, extensionOf(contentType),
+                    HexFormat.of().formatHex(digest.digest()), size, header);
+        } finally {
+            if (!complete) {
+                Files.deleteIfExists(tempFile);
+            }
+        }
+    }
+
+    /**
+     * @return the content type matching the file signature, or {@code null}
+     *         if it is not a supported image
+     */
+    static String sniff(byte[] header) {
+        if (startsWith(header, 0, 0xFF, 0xD8, 0xFF)) {
+            return "image/jpeg";
+        }
+        if (startsWith(header, 0, 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A)) {
+            return "image/png";
+        }
+        if (startsWith(header, 0, 'G', 'I', 'F', '8', '7', 'a') || startsWith(header, 0, 'G', 'I', 'F', '8', '9', 'a')) {
+            return "image/gif";
+        }
+        if (startsWith(header, 0, 'R', 'I', 'F', 'F') && startsWith(header, 8, 'W', 'E', 'B', 'P')) {
+            return "image/webp";
+        }
+        return null;
+    }
+
+    /**
+     * Atomically moves the file into place; readers never see a partial file.
+     */
+    public void moveTo(Path target) throws IOException {
+        Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Hands the file to the storage backend under the given key.
+     */
+    public void moveTo(MediaStorage storage, String key) throws IOException {
+        storage.store(key, tempFile, contentType);
+    }
+
+    public void discard() throws IOException {
+        Files.deleteIfExists(tempFile);
+    }
+
+    // The received bytes, for re-encoding before they are stored
+    Path getTempFile() {
+        return tempFile;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return the file extension for the detected type, with the dot
+     */
+    public String getExtension() {
+        return extension;
+    }
+
+    public String getSha256() {
+        return sha256;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the dimensions and orientation, or {@code null} if the header
+     *         could not be parsed
+     */
+    public ImageHeader getHeader() {
+        return header;
+    }
+
+    private static String extensionOf(String contentType) {
+        return switch (contentType) {
+            case "image/jpeg" -> ".jpg";
+            case "image/png" -> ".png";
+            case "image/gif" -> ".gif";
+            default -> ".webp";
+        };
+    }
+
+    private static boolean startsWith(byte[] header, int offset, int... signature) {
+        if (header.length < offset + signature.length) {
+            return false;
+        }
+        for (int i = 0; i < signature.length; i++) {
+            if ((header[offset + i] & 0xFF) != signature[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static MessageDigest sha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
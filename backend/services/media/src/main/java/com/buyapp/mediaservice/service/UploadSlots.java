@@ -0,0 +1,65 @@
+package com.buyapp.mediaservice.service;
+
+import com.buyapp.mediaservice.model.MediaSlots;
+import com.buyapp.mediaservice.repository.MediaRepository;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+/**
+ * The per-product image limit, enforced with a counter in
+ * {@code media_slots} instead of counting media before each insert, which
+ * let concurrent uploads overshoot it.
+ *
+ * Uploads reserve their slots before writing anything and give them back if
+ * they fail. A product's counter starts from its existing media the first
+ * time it is needed.
+ */
+@Service
+public class UploadSlots {
+
+    private final MongoTemplate mongoTemplate;
+    private final MediaRepository mediaRepository;
+
+    public UploadSlots(MongoTemplate mongoTemplate, MediaRepository mediaRepository) {
+        this.mongoTemplate = mongoTemplate;
+        this.mediaRepository = mediaRepository;
+    }
+
+    /**
+     * Takes {@code count} slots if the product has that many free.
+     *
+     * @return whether they were taken
+     */
+    public boolean reserve(String productId, int count, int max) {
+        Query byId = Query.query(Criteria.where("_id").is(productId));
+        if (!mongoTemplate.exists(byId, MediaSlots.class)) {
+            try {
+                mongoTemplate.insert(new MediaSlots(productId, (int) mediaRepository.countByProductId(productId)));
+            } catch (DuplicateKeyException e) {
+                // Another upload created it first
+            }
+        }
+        Query withRoom = Query.query(Criteria.where("_id").is(productId).and("used").lte(max - count));
+        return mongoTemplate.updateFirst(withRoom, new Update().inc("used", count), MediaSlots.class)
+                .getModifiedCount() == 1;
+    }
+
+    /**
+     * Gives back slots of deleted media or failed uploads.
+     */
+    public void release(String productId, int count) {
+        Query byId = Query.query(Criteria.where("_id").is(productId).and("used").gte(count));
+        mongoTemplate.updateFirst(byId, new Update().inc("used", -count), MediaSlots.class);
+    }
+
+    /**
+     * Forgets the counter once all of a product's media are gone.
+     */
+    public void clear(String productId) {
+        mongoTemplate.remove(Query.query(Criteria.where("_id").is(productId)), MediaSlots.class);
+    }
+}
@@ -0,0 +1,56 @@
+package com.buyapp.mediaservice.storage;
+
+import com.buyapp.mediaservice.service.ShardedLayout;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Optional;
+
+/**
+ * Keeps media on the local disk, keys being paths relative to the working
+ * directory. Objects are looked up through {@link ShardedLayout#resolve},
+ * so files not yet moved to the sharded layout are still found.
+ */
+@Component
+@ConditionalOnProperty(name = "media.storage.backend", havingValue = "local", matchIfMissing = true)
+public class LocalMediaStorage implements MediaStorage {
+
+    @Override
+    public void store(String key, Path source, String contentType) throws IOException {
+        Path target = Paths.get(key);
+        Files.createDirectories(target.getParent());
+        Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public boolean exists(String key) {
+        return Files.exists(ShardedLayout.resolve(key));
+    }
+
+    @Override
+    public InputStream open(String key) throws IOException {
+        return Files.newInputStream(ShardedLayout.resolve(key));
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        Files.deleteIfExists(ShardedLayout.resolve(key));
+    }
+
+    @Override
+    public Optional<Path> localFile(String key) {
+        return Optional.of(ShardedLayout.resolve(key));
+    }
+
+    @Override
+    public Optional<URI> presignedUrl(String key) {
+        return Optional.empty();
+    }
+}
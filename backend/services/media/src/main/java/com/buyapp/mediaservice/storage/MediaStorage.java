@@ -0,0 +1,56 @@
+package com.buyapp.mediaservice.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Optional;
+
+/**
+ * Where uploaded images and avatars are kept. Objects are addressed by the
+ * key recorded as {@code imagePath}, e.g. {@code uploads/images/3f/a8/3fa8...jpg}.
+ *
+ * {@link LocalMediaStorage} keeps them on this node's disk;
+ * {@link SegmentMediaStorage} appends them to a few large files on this
+ * node's disk; {@link S3MediaStorage} keeps them in an S3-compatible object
+ * store so any replica can serve any image.
+ */
+public interface MediaStorage {
+
+    /**
+     * Moves a complete local file into storage; the source is gone afterwards.
+     */
+    void store(String key, Path source, String contentType) throws IOException;
+
+    boolean exists(String key) throws IOException;
+
+    /**
+     * Streams the object's content.
+     *
+     * @throws java.nio.file.NoSuchFileException if there is no such object
+     */
+    InputStream open(String key) throws IOException;
+
+    void delete(String key) throws IOException;
+
+    /**
+     * @return the file on this node's disk, which can be sent with sendfile;
+     *         empty for remote storage
+     */
+    Optional<Path> localFile(String key);
+
+    /**
+     * @return the object's bytes, for storage that keeps them memory-mapped;
+     *         empty otherwise
+     */
+    default Optional<ByteBuffer> mappedContent(String key) throws IOException {
+        return Optional.empty();
+    }
+
+    /**
+     * @return a short-lived URL clients can download the object from
+     *         directly; empty if this service serves the bytes itself
+     */
+    Optional<URI> presignedUrl(String key);
+}
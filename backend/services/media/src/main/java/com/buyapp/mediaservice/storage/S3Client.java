@@ -0,0 +1,382 @@
+package com.buyapp.mediaservice.storage;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.net.http.HttpTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The handful of S3 operations media storage needs, over the JDK HTTP
+ * client with path-style addressing ({@code <endpoint>/<bucket>/<key>}).
+ *
+ * The HTTP client keeps connections alive and reuses them; at most
+ * {@code maxConnections} requests are in flight at once, a streamed download
+ * holding its slot until the stream is closed. Files larger than
+ * {@code partSize} are sent as a multipart upload so no single request has to
+ * carry the whole file.
+ */
+final class S3Client {
+
+    private static final Logger logger = LoggerFactory.getLogger(S3Client.class);
+
+    // Methods whose requests have the same effect however often they arrive
+    private static final Set<String> IDEMPOTENT = Set.of("GET", "HEAD", "PUT", "DELETE");
+
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(60);
+    private static final Pattern UPLOAD_ID = Pattern.compile("<UploadId>([^<]+)</UploadId>");
+
+    private final HttpClient http;
+    private final Semaphore connections;
+    private final SigV4Signer signer;
+    private final URI endpoint;
+    private final URI publicEndpoint;
+    private final String bucket;
+    private final long partSize;
+    private final Clock clock;
+
+    S3Client(URI endpoint, URI publicEndpoint, String region, String bucket, String accessKey, String secretKey,
+            long partSize, int maxConnections, Clock clock) {
+        this.http = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+        this.connections = new Semaphore(maxConnections);
+        this.signer = new SigV4Signer(accessKey, secretKey, region);
+        this.endpoint = endpoint;
+        this.publicEndpoint = publicEndpoint;
+        this.bucket = bucket;
+        this.partSize = partSize;
+        this.clock = clock;
+    }
+
+    void upload(String key, Path file, String contentType) throws IOException {
+        long size = Files.size(file);
+        if (size <= partSize) {
+            send("PUT", key, new TreeMap<>(), contentType, BodyPublishers.ofFile(file), BodyHandlers.discarding());
+        } else {
+            multipartUpload(key, file, size, contentType);
+        }
+    }
+
+    /**
+     * @throws NoSuchFileException if there is no such object
+     */
+    InputStream download(String key) throws IOException {
+        acquire();
+        try {
+            HttpResponse<InputStream> response = exchange("GET", key, new TreeMap<>(), null,
+                    BodyPublishers.noBody(), BodyHandlers.ofInputStream());
+            if (response.statusCode() / 100 != 2) {
+                try (InputStream body = response.body()) {
+                    throw failure("GET", key, response.statusCode(), new String(body.readNBytes(512),
+                            StandardCharsets.UTF_8));
+                }
+            }
+            return new FilterInputStream(response.body()) {
+                private boolean closed;
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        if (!closed) {
+                            closed = true;
+                            connections.release();
+                        }
+                    }
+                }
+            };
+        } catch (IOException | RuntimeException e) {
+            connections.release();
+            throw e;
+        }
+    }
+
+    boolean exists(String key) throws IOException {
+        try {
+            send("HEAD", key, new TreeMap<>(), null, BodyPublishers.noBody(), BodyHandlers.discarding());
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    void delete(String key) throws IOException {
+        // S3 answers 204 whether or not the object existed
+        send("DELETE", key, new TreeMap<>(), null, BodyPublishers.noBody(), BodyHandlers.discarding());
+    }
+
+    URI presignGet(String key, Duration ttl) {
+        String path = path(key);
+        // Signing at the start of a window of half the TTL keeps the URL, and with it the browser's cached copy,
+        // the same for a while; every URL is still valid for at least half the TTL
+        long window = Math.max(1, ttl.toSeconds() / 2);
+        Instant signedAt = Instant.ofEpochSecond(clock.instant().getEpochSecond() / window * window);
+        return URI.create(publicEndpoint.getScheme() + "://" + publicEndpoint.getRawAuthority() + path + "?"
+                + signer.presignedQuery("GET", path, host(publicEndpoint), ttl, signedAt));
+    }
+
+    private void multipartUpload(String key, Path file, long size, String contentType) throws IOException {
+        SortedMap<String, String> initiate = new TreeMap<>();
+        initiate.put("uploads", "");
+        String created = send("POST", key, initiate, contentType, BodyPublishers.noBody(), BodyHandlers.ofString());
+        Matcher uploadId = UPLOAD_ID.matcher(created);
+        if (!uploadId.find()) {
+            throw new IOException("S3 did not return an upload id for " + key);
+        }
+        String id = uploadId.group(1);
+
+        try {
+            List<String> etags = new ArrayList<>();
+            for (long offset = 0; offset < size; offset += partSize) {
+                long length = Math.min(partSize, size - offset);
+                long start = offset;
+                SortedMap<String, String> part = new TreeMap<>();
+                part.put("partNumber", Integer.toString(etags.size() + 1));
+                part.put("uploadId", id);
+                BodyPublisher body = BodyPublishers.fromPublisher(
+                        BodyPublishers.ofInputStream(() -> slice(file, start, length)), length);
+                etags.add(sendForEtag(key, part, body));
+            }
+
+            StringBuilder complete = new StringBuilder("<CompleteMultipartUpload>");
+            for (int i = 0; i < etags.size(); i++) {
+                complete.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>")
+                        .append(etags.get(i)).append("</ETag></Part>");
+            }
+            complete.append("</CompleteMultipartUpload>");
+            complete(key, id, complete.toString());
+        } catch (IOException | RuntimeException e) {
+            abort(key, id);
+            throw e;
+        }
+    }
+
+    /**
+     * Completing an upload is a POST and not safe to repeat blindly: if the
+     * first attempt went through but its response was lost, S3 has already
+     * forgotten the upload id and answers the second with NoSuchUpload. That
+     * is success, provided the object is there now.
+     */
+    private void complete(String key, String uploadId, String parts) throws IOException {
+        SortedMap<String, String> query = new TreeMap<>();
+        query.put("uploadId", uploadId);
+        HttpRequest request = request("POST", key, query, "application/xml", BodyPublishers.ofString(parts));
+        HttpResponse<String> response;
+        boolean retried = false;
+        acquire();
+        try {
+            try {
+                response = call(request, BodyHandlers.ofString(), "POST", key);
+            } catch (HttpTimeoutException e) {
+                throw e;
+            } catch (IOException e) {
+                retried = true;
+                response = call(request, BodyHandlers.ofString(), "POST", key);
+            }
+        } finally {
+            connections.release();
+        }
+
+        if (retried && response.statusCode() == 404 && response.body().contains("<Code>NoSuchUpload</Code>")
+                && exists(key)) {
+            return;
+        }
+        if (response.statusCode() / 100 != 2) {
+            throw failure("POST", key, response.statusCode(), response.body());
+        }
+        // Completion can fail after the 200 status line has been sent
+        if (response.body().contains("<Error>")) {
+            throw new IOException("S3 could not complete the upload of " + key + ": " + response.body());
+        }
+    }
+
+    private String sendForEtag(String key, SortedMap<String, String> query, BodyPublisher body) throws IOException {
+        acquire();
+        try {
+            HttpResponse<String> response = exchange("PUT", key, query, null, body, BodyHandlers.ofString());
+            if (response.statusCode() / 100 != 2) {
+                throw failure("PUT", key, response.statusCode(), response.body());
+            }
+            return response.headers().firstValue("ETag")
+                    .orElseThrow(() -> new IOException("S3 did not return an ETag for a part of " + key));
+        } finally {
+            connections.release();
+        }
+    }
+
+    private void abort(String key, String uploadId) {
+        SortedMap<String, String> query = new TreeMap<>();
+        query.put("uploadId", uploadId);
+        try {
+            send("DELETE", key, query, null, BodyPublishers.noBody(), BodyHandlers.discarding());
+        } catch (IOException e) {
+            // The bucket's lifecycle rule for incomplete uploads cleans up after us
+            logger.warn("Failed to abort multipart upload of {}: {}", key, e.getMessage());
+        }
+    }
+
+    private <T> T send(String method, String key, SortedMap<String, String> query, String contentType,
+            BodyPublisher body, BodyHandler<T> handler) throws IOException {
+        acquire();
+        try {
+            HttpResponse<T> response = exchange(method, key, query, contentType, body, handler);
+            if (response.statusCode() / 100 != 2) {
+                Object detail = response.body();
+                throw failure(method, key, response.statusCode(), detail instanceof String ? (String) detail : "");
+            }
+            return response.body();
+        } finally {
+            connections.release();
+        }
+    }
+
+    private <T> HttpResponse<T> exchange(String method, String key, SortedMap<String, String> query,
+            String contentType, BodyPublisher body, BodyHandler<T> handler) throws IOException {
+        HttpRequest request = request(method, key, query, contentType, body);
+        try {
+            return call(request, handler, method, key);
+        } catch (HttpTimeoutException e) {
+            throw e;
+        } catch (IOException e) {
+            if (!IDEMPOTENT.contains(method)) {
+                throw e;
+            }
+            // The server may close an idle keep-alive connection just as it is reused; a repeated GET, HEAD, PUT or
+            // DELETE has the same effect and every body publisher can be replayed, so try once more on a fresh one
+            return call(request, handler, method, key);
+        }
+    }
+
+    private HttpRequest request(String method, String key, SortedMap<String, String> query, String contentType,
+            BodyPublisher body) {
+        String path = path(key);
+        String queryString = SigV4Signer.canonicalQuery(query);
+        SortedMap<String, String> signed = new TreeMap<>();
+        signed.put("host", host(endpoint));
+        signed.put("x-amz-content-sha256", SigV4Signer.UNSIGNED_PAYLOAD);
+        signed.put("x-amz-date", SigV4Signer.amzDate(clock.instant()));
+        if (contentType != null) {
+            signed.put("content-type", contentType);
+        }
+
+        HttpRequest.Builder request = HttpRequest.newBuilder()
+                .uri(URI.create(endpoint.getScheme() + "://" + endpoint.getRawAuthority() + path
+                        + (queryString.isEmpty() ? "" : "?" + queryString)))
+                .timeout(REQUEST_TIMEOUT)
+                .method(method, body)
+                .header("Authorization", signer.authorization(method, path, query, signed,
+                        SigV4Signer.UNSIGNED_PAYLOAD));
+        // The client sets Host itself, from the same URI
+        signed.forEach((name, value) -> {
+            if (!name.equals("host")) {
+                request.header(name, value);
+            }
+        });
+
+        return request.build();
+    }
+
+    private <T> HttpResponse<T> call(HttpRequest request, BodyHandler<T> handler, String method, String key)
+            throws IOException {
+        try {
+            return http.send(request, handler);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during S3 " + method + " of " + key);
+        }
+    }
+
+    private String path(String key) {
+        return "/" + SigV4Signer.encode(bucket, true) + "/" + SigV4Signer.encode(key, true);
+    }
+
+    private static String host(URI uri) {
+        return uri.getPort() == -1 ? uri.getHost() : uri.getHost() + ":" + uri.getPort();
+    }
+
+    private void acquire() throws InterruptedIOException {
+        try {
+            connections.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for an S3 connection");
+        }
+    }
+
+    private static IOException failure(String method, String key, int status, String detail) {
+        if (status == 404) {
+            return new NoSuchFileException(key);
+        }
+        return new IOException("S3 " + method + " of " + key + " failed with status " + status
+                + (detail.isEmpty() ? "" : ": " + detail));
+    }
+
+    // One part of a multipart upload, read straight from the file
+    private static InputStream slice(Path file, long offset, long length) {
+        try {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ).position(offset);
+            return new FilterInputStream(Channels.newInputStream(channel)) {
+                private long remaining = length;
+
+                @Override
+                public int read() throws IOException {
+                    if (remaining <= 0) {
+                        return -1;
+                    }
+                    int b = super.read();
+                    if (b >= 0) {
+                        remaining--;
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int off, int len) throws IOException {
+                    if (remaining <= 0) {
+                        return -1;
+                    }
+                    int read = super.read(buffer, off, (int) Math.min(len, remaining));
+                    if (read > 0) {
+                        remaining -= read;
+                    }
+                    return read;
+                }
+            };
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.buyapp.mediaservice.storage;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Optional;
+
+/**
+ * Keeps media in a bucket of an S3-compatible object store (AWS S3, MinIO,
+ * ...), so replicas of this service share no disk. Clients are redirected to
+ * presigned URLs and download images from the store directly.
+ *
+ * Uploads are still received and hashed on local disk, in
+ * {@code media.storage.dir}, before being sent to the bucket.
+ */
+@Component
+@ConditionalOnProperty(name = "media.storage.backend", havingValue = "s3")
+public class S3MediaStorage implements MediaStorage {
+
+    private final S3Client client;
+    private final Duration presignTtl;
+
+    @Autowired
+    public S3MediaStorage(@Value("${media.storage.s3.endpoint}") String endpoint,
+            @Value("${media.storage.s3.public-endpoint:}") String publicEndpoint,
+            @Value("${media.storage.s3.region}") String region,
+            @Value("${media.storage.s3.bucket}") String bucket,
+            @Value("${media.storage.s3.access-key}") String accessKey,
+            @Value("${media.storage.s3.secret-key}") String secretKey,
+            @Value("${media.storage.s3.part-size}") long partSize,
+            @Value("${media.storage.s3.max-connections}") int maxConnections,
+            @Value("${media.storage.s3.presign-ttl}") Duration presignTtl) {
+        this(new S3Client(URI.create(endpoint), URI.create(publicEndpoint.isBlank() ? endpoint : publicEndpoint),
+                region, bucket, accessKey, secretKey, partSize, maxConnections, Clock.systemUTC()), presignTtl);
+    }
+
+    S3MediaStorage(S3Client client, Duration presignTtl) {
+        this.client = client;
+        this.presignTtl = presignTtl;
+    }
+
+    @Override
+    public void store(String key, Path source, String contentType) throws IOException {
+        client.upload(key, source, contentType);
+        Files.deleteIfExists(source);
+    }
+
+    @Override
+    public boolean exists(String key) throws IOException {
+        return client.exists(key);
+    }
+
+    @Override
+    public InputStream open(String key) throws IOException {
+        return client.download(key);
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        client.delete(key);
+    }
+
+    @Override
+    public Optional<Path> localFile(String key) {
+        return Optional.empty();
+    }
+
+    @Override
+    public Optional<URI> presignedUrl(String key) {
+        return Optional.of(client.presignGet(key, presignTtl));
+    }
+}
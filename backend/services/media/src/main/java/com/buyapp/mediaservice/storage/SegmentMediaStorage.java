@@ -0,0 +1,621 @@
+package com.buyapp.mediaservice.storage;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps media as records appended to a few large segment files instead of
+ * one file per image, so a read is a hash lookup and a copy out of a
+ * memory-mapped segment rather than a path lookup, an {@code open} and an
+ * inode per image.
+ *
+ * Each record holds the key, the bytes and a CRC. An in-memory index maps
+ * every key to its record; it is written to {@code index.dat} periodically
+ * and on shutdown, and on startup only the records appended since are
+ * replayed from the segments. Deletes append a tombstone. Once deleted and
+ * replaced records make up {@code compaction-threshold} of a full segment,
+ * its live records are copied to the end of the store and the segment file
+ * is removed.
+ *
+ * Only one instance may use a directory at a time.
+ */
+@Component
+@ConditionalOnProperty(name = "media.storage.backend", havingValue = "segments")
+public class SegmentMediaStorage implements MediaStorage {
+
+    private static final Logger logger = LoggerFactory.getLogger(SegmentMediaStorage.class);
+
+    // magic, type, key length, data length, timestamp, CRC of key and data
+    static final int HEADER_BYTES = 28;
+    private static final int RECORD_MAGIC = 0x5345474D;
+    private static final int INDEX_MAGIC = 0x53494458;
+    private static final int PUT = 0;
+    private static final int DELETE = 1;
+    private static final int MAX_KEY_BYTES = 1024;
+    private static final String INDEX_FILE = "index.dat";
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final double compactionThreshold;
+    private final Duration compactionInterval;
+
+    private final Map<String, Location> index = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    // Serialises appends, deletes and the index updates that go with them
+    private final Object appendLock = new Object();
+    private Segment active;
+    private long appendsSinceSnapshot;
+    private ScheduledExecutorService compactor;
+
+    public SegmentMediaStorage(MeterRegistry meterRegistry,
+            @Value("${media.storage.segments.dir}") String directory,
+            @Value("${media.storage.segments.segment-bytes}") long segmentBytes,
+            @Value("${media.storage.segments.compaction-threshold}") double compactionThreshold,
+            @Value("${media.storage.segments.compaction-interval}") Duration compactionInterval) throws IOException {
+        if (segmentBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Segments are mapped whole and cannot exceed 2 GB");
+        }
+        this.directory = Paths.get(directory);
+        this.segmentBytes = segmentBytes;
+        this.compactionThreshold = compactionThreshold;
+        this.compactionInterval = compactionInterval;
+        recover();
+
+        Gauge.builder("media.storage.segments.bytes", this, store -> store.totalBytes())
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("media.storage.segments.garbage.bytes", this, store -> store.garbageBytes())
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    void startCompaction() {
+        compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "segment-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long periodMillis = compactionInterval.toMillis();
+        compactor.scheduleWithFixedDelay(() -> {
+            try {
+                compact();
+                if (snapshotDue()) {
+                    writeIndex();
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.error("Segment compaction failed: {}", e.getMessage(), e);
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        if (compactor != null) {
+            compactor.shutdownNow();
+        }
+        synchronized (appendLock) {
+            writeIndex();
+            for (Segment segment : segments.values()) {
+                segment.channel.close();
+            }
+        }
+    }
+
+    @Override
+    public void store(String key, Path source, String contentType) throws IOException {
+        byte[] keyBytes = keyBytes(key);
+        long length = Files.size(source);
+        if (HEADER_BYTES + keyBytes.length + length > segmentBytes) {
+            throw new IOException(key + " is larger than a segment");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(keyBytes);
+        try (InputStream in = Files.newInputStream(source)) {
+            byte[] buffer = new byte[64 * 1024];
+            for (int read; (read = in.read(buffer)) > 0;) {
+                crc.update(buffer, 0, read);
+            }
+        }
+
+        try (FileChannel data = FileChannel.open(source, StandardOpenOption.READ)) {
+            synchronized (appendLock) {
+                Segment segment = segmentFor(HEADER_BYTES + keyBytes.length + length);
+                long offset = segment.size;
+                long dataOffset = writeHeader(segment, offset, PUT, keyBytes, length, System.currentTimeMillis(),
+                        (int) crc.getValue());
+                for (long written = 0; written < length;) {
+                    written += segment.channel.transferFrom(data, dataOffset + written, length - written);
+                }
+                commit(segment, dataOffset + length);
+                put(key, new Location(segment.id, offset, dataOffset, (int) length));
+            }
+        }
+        Files.deleteIfExists(source);
+    }
+
+    @Override
+    public boolean exists(String key) {
+        return index.containsKey(key);
+    }
+
+    @Override
+    public InputStream open(String key) throws IOException {
+        ByteBuffer content = mappedContent(key).orElseThrow(() -> new NoSuchFileException(key));
+        return new InputStream() {
+            @Override
+            public int read() {
+                return content.hasRemaining() ? content.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) {
+                if (length == 0) {
+                    return 0;
+                }
+                if (!content.hasRemaining()) {
+                    return -1;
+                }
+                int count = Math.min(length, content.remaining());
+                content.get(buffer, offset, count);
+                return count;
+            }
+
+            @Override
+            public int available() {
+                return content.remaining();
+            }
+        };
+    }
+
+    @Override
+    public Optional<ByteBuffer> mappedContent(String key) throws IOException {
+        // A second try covers a record that compaction moved between the two lookups
+        for (int attempt = 0; attempt < 2; attempt++) {
+            Location location = index.get(key);
+            if (location == null) {
+                return Optional.empty();
+            }
+            Segment segment = segments.get(location.segment);
+            if (segment != null) {
+                return Optional.of(segment.slice(location.dataOffset, location.length));
+            }
+        }
+        return Optional.empty();
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        byte[] keyBytes = keyBytes(key);
+        synchronized (appendLock) {
+            Location removed = index.remove(key);
+            if (removed == null) {
+                return;
+            }
+            release(removed);
+            CRC32 crc = new CRC32();
+            crc.update(keyBytes);
+            Segment segment = segmentFor(HEADER_BYTES + keyBytes.length);
+            long end = writeHeader(segment, segment.size, DELETE, keyBytes, 0, System.currentTimeMillis(),
+                    (int) crc.getValue());
+            commit(segment, end);
+        }
+    }
+
+    @Override
+    public Optional<Path> localFile(String key) {
+        return Optional.empty();
+    }
+
+    @Override
+    public Optional<URI> presignedUrl(String key) {
+        return Optional.empty();
+    }
+
+    /**
+     * Rewrites every full segment that is at least {@code compaction-threshold}
+     * garbage.
+     *
+     * @return the bytes reclaimed
+     */
+    public long compact() throws IOException {
+        List<Segment> candidates = new ArrayList<>();
+        synchronized (appendLock) {
+            for (Segment segment : segments.values()) {
+                if (segment != active && segment.size - segment.liveBytes.get() >= segment.size * compactionThreshold) {
+                    candidates.add(segment);
+                }
+            }
+        }
+        if (candidates.isEmpty()) {
+            return 0;
+        }
+
+        long reclaimed = 0;
+        for (Segment segment : candidates) {
+            reclaimed += segment.size - segment.liveBytes.get();
+            for (long offset = 0; offset < segment.size;) {
+                Record record = readRecord(segment.map, offset, segment.size, false);
+                if (record == null) {
+                    break;
+                }
+                if (record.type == PUT) {
+                    moveIfLive(segment, record);
+                }
+                offset = record.end;
+            }
+        }
+
+        // The index must point at the copies before the old segments go
+        synchronized (appendLock) {
+            writeIndex();
+            for (Segment segment : candidates) {
+                segments.remove(segment.id);
+                segment.channel.close();
+                Files.deleteIfExists(segment.file);
+            }
+        }
+        logger.info("Compacted {} segments, reclaiming {} bytes", candidates.size(), reclaimed);
+        return reclaimed;
+    }
+
+    public long totalBytes() {
+        return segments.values().stream().mapToLong(segment -> segment.size).sum();
+    }
+
+    public long garbageBytes() {
+        return segments.values().stream().mapToLong(segment -> segment.size - segment.liveBytes.get()).sum();
+    }
+
+    private void moveIfLive(Segment from, Record record) throws IOException {
+        ByteBuffer data = from.slice(record.dataOffset, record.length);
+        synchronized (appendLock) {
+            Location current = index.get(record.key);
+            if (current == null || current.segment != from.id || current.offset != record.offset) {
+                return;
+            }
+            byte[] keyBytes = keyBytes(record.key);
+            Segment segment = segmentFor(record.end - record.offset);
+            long offset = segment.size;
+            long dataOffset = writeHeader(segment, offset, PUT, keyBytes, record.length, record.timestamp,
+                    record.crc);
+            for (long position = dataOffset; data.hasRemaining();) {
+                position += segment.channel.write(data, position);
+            }
+            commit(segment, dataOffset + record.length);
+            put(record.key, new Location(segment.id, offset, dataOffset, record.length));
+        }
+    }
+
+    // Writes header and key; returns where the data goes
+    private long writeHeader(Segment segment, long offset, int type, byte[] keyBytes, long length, long timestamp,
+            int crc) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + keyBytes.length)
+                .putInt(RECORD_MAGIC)
+                .putInt(type)
+                .putInt(keyBytes.length)
+                .putInt((int) length)
+                .putLong(timestamp)
+                .putInt(crc)
+                .put(keyBytes)
+                .flip();
+        for (long position = offset; header.hasRemaining();) {
+            position += segment.channel.write(header, position);
+        }
+        return offset + HEADER_BYTES + keyBytes.length;
+    }
+
+    private void commit(Segment segment, long end) throws IOException {
+        segment.channel.force(false);
+        segment.size = end;
+        appendsSinceSnapshot++;
+    }
+
+    private void put(String key, Location location) {
+        Location previous = index.put(key, location);
+        segments.get(location.segment).liveBytes.addAndGet(location.recordBytes());
+        if (previous != null) {
+            release(previous);
+        }
+    }
+
+    private void release(Location location) {
+        Segment segment = segments.get(location.segment);
+        if (segment != null) {
+            segment.liveBytes.addAndGet(-location.recordBytes());
+        }
+    }
+
+    // The active segment, or a new one if the record does not fit
+    private Segment segmentFor(long recordBytes) throws IOException {
+        if (active.size + recordBytes > segmentBytes) {
+            active.seal();
+            active = openSegment(active.id + 1);
+            segments.put(active.id, active);
+        }
+        return active;
+    }
+
+    private boolean snapshotDue() {
+        synchronized (appendLock) {
+            return appendsSinceSnapshot > 0;
+        }
+    }
+
+    private void recover() throws IOException {
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "segment-*.dat")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                int id = Integer.parseInt(name.substring("segment-".length(), name.length() - ".dat".length()));
+                Segment segment = openSegment(id);
+                segment.size = segment.channel.size();
+                segment.seal();
+                segments.put(id, segment);
+            }
+        }
+        if (segments.isEmpty()) {
+            segments.put(1, openSegment(1));
+        }
+
+        int fromSegment = segments.firstKey();
+        long fromOffset = 0;
+        Path indexFile = directory.resolve(INDEX_FILE);
+        if (Files.exists(indexFile)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+                long[] checkpoint = readIndex(in);
+                fromSegment = (int) checkpoint[0];
+                fromOffset = checkpoint[1];
+            } catch (IOException e) {
+                logger.warn("Ignoring unreadable segment index, rebuilding from the segments: {}", e.getMessage());
+                index.clear();
+            }
+        }
+
+        long replayed = 0;
+        for (Segment segment : segments.tailMap(fromSegment).values()) {
+            long offset = segment.id == fromSegment ? fromOffset : 0;
+            while (offset < segment.size) {
+                Record record = readRecord(segment.map, offset, segment.size, true);
+                if (record == null) {
+                    break;
+                }
+                if (record.type == PUT) {
+                    index.put(record.key, new Location(segment.id, record.offset, record.dataOffset, record.length));
+                } else {
+                    index.remove(record.key);
+                }
+                offset = record.end;
+                replayed++;
+            }
+            if (offset < segment.size) {
+                // A record cut short by a crash; nothing after it was ever acknowledged
+                logger.warn("Truncating segment {} from {} to {} bytes", segment.id, segment.size, offset);
+                segment.channel.truncate(offset);
+                segment.size = offset;
+                segment.seal();
+            }
+        }
+
+        for (Location location : index.values()) {
+            segments.get(location.segment).liveBytes.addAndGet(location.recordBytes());
+        }
+        active = segments.lastEntry().getValue();
+        logger.info("Segment store opened: {} segments, {} objects, {} records replayed", segments.size(),
+                index.size(), replayed);
+    }
+
+    // Loads the snapshot into the index; returns the segment and offset it covers up to
+    private long[] readIndex(DataInputStream in) throws IOException {
+        if (in.readInt() != INDEX_MAGIC) {
+            throw new IOException("Not a segment index");
+        }
+        long[] checkpoint = { in.readInt(), in.readLong() };
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String key = in.readUTF();
+            Location location = new Location(in.readInt(), in.readLong(), in.readLong(), in.readInt());
+            if (!segments.containsKey(location.segment)) {
+                throw new IOException("Index refers to missing segment " + location.segment);
+            }
+            index.put(key, location);
+        }
+        return checkpoint;
+    }
+
+    private void writeIndex() throws IOException {
+        List<Map.Entry<String, Location>> entries;
+        int checkpointSegment;
+        long checkpointOffset;
+        synchronized (appendLock) {
+            entries = new ArrayList<>(index.entrySet());
+            checkpointSegment = active.id;
+            checkpointOffset = active.size;
+            appendsSinceSnapshot = 0;
+        }
+        Path temp = directory.resolve(INDEX_FILE + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(checkpointSegment);
+            out.writeLong(checkpointOffset);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Location> entry : entries) {
+                Location location = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeInt(location.segment);
+                out.writeLong(location.offset);
+                out.writeLong(location.dataOffset);
+                out.writeInt(location.length);
+            }
+        }
+        Files.move(temp, directory.resolve(INDEX_FILE), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // The record at offset, or null if there is no complete, valid one
+    private static Record readRecord(ByteBuffer map, long offset, long limit, boolean verify) {
+        if (offset + HEADER_BYTES > limit) {
+            return null;
+        }
+        ByteBuffer header = map.slice((int) offset, HEADER_BYTES);
+        int magic = header.getInt();
+        int type = header.getInt();
+        int keyLength = header.getInt();
+        int length = header.getInt();
+        long timestamp = header.getLong();
+        int crc = header.getInt();
+        if (magic != RECORD_MAGIC || (type != PUT && type != DELETE) || keyLength <= 0 || keyLength > MAX_KEY_BYTES
+                || length < 0 || offset + HEADER_BYTES + keyLength + length > limit) {
+            return null;
+        }
+        byte[] keyBytes = new byte[keyLength];
+        map.get((int) offset + HEADER_BYTES, keyBytes);
+        long dataOffset = offset + HEADER_BYTES + keyLength;
+        if (verify) {
+            CRC32 check = new CRC32();
+            check.update(keyBytes);
+            check.update(map.slice((int) dataOffset, length));
+            if ((int) check.getValue() != crc) {
+                return null;
+            }
+        }
+        return new Record(type, new String(keyBytes, StandardCharsets.UTF_8), offset, dataOffset, length,
+                timestamp, crc);
+    }
+
+    private Segment openSegment(int id) throws IOException {
+        Path file = directory.resolve(String.format("segment-%06d.dat", id));
+        return new Segment(id, file, FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE));
+    }
+
+    private static byte[] keyBytes(String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length == 0 || bytes.length > MAX_KEY_BYTES) {
+            throw new IllegalArgumentException("Invalid storage key: " + key);
+        }
+        return bytes;
+    }
+
+    /**
+     * One segment file. Full segments are mapped whole; the active one is
+     * remapped when a read reaches past what is mapped.
+     */
+    private static final class Segment {
+
+        private final int id;
+        private final Path file;
+        private final FileChannel channel;
+        private final AtomicLong liveBytes = new AtomicLong();
+        private volatile long size;
+        private volatile MappedByteBuffer map;
+
+        Segment(int id, Path file, FileChannel channel) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+        }
+
+        ByteBuffer slice(long offset, int length) throws IOException {
+            MappedByteBuffer current = map;
+            if (current == null || offset + length > current.capacity()) {
+                current = remap(offset + length);
+            }
+            return current.slice((int) offset, length);
+        }
+
+        void seal() throws IOException {
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+
+        private synchronized MappedByteBuffer remap(long needed) throws IOException {
+            if (map == null || map.capacity() < needed) {
+                map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            return map;
+        }
+    }
+
+    /**
+     * Where a key's current record is.
+     */
+    private static final class Location {
+
+        private final int segment;
+        private final long offset;
+        private final long dataOffset;
+        private final int length;
+
+        Location(int segment, long offset, long dataOffset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.dataOffset = dataOffset;
+            this.length = length;
+        }
+
+        long recordBytes() {
+            return dataOffset - offset + length;
+        }
+    }
+
+    private static final class Record {
+
+        private final int type;
+        private final String key;
+        private final long offset;
+        private final long dataOffset;
+        private final int length;
+        private final long timestamp;
+        private final int crc;
+        private final long end;
+
+        Record(int type, String key, long offset, long dataOffset, int length, long timestamp, int crc) {
+            this.type = type;
+            this.key = key;
+            this.offset = offset;
+            this.dataOffset = dataOffset;
+            this.length = length;
+            this.timestamp = timestamp;
+            this.crc = crc;
+            this.end = dataOffset + length;
+        }
+    }
+}
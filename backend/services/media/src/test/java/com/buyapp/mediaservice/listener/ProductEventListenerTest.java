@@ -2,6 +2,7 @@ package com.buyapp.mediaservice.listener;
 
 import com.buyapp.common.event.ProductEvent;
 import com.buyapp.mediaservice.service.MediaService;
+import com.buyapp.mediaservice.service.ProductOwners;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -17,11 +18,14 @@ class ProductEventListenerTest {
     @Mock
     private MediaService mediaService;
 
+    @Mock
+    private ProductOwners productOwners;
+
     private ProductEventListener listener;
 
     @BeforeEach
     void setUp() {
-        listener = new ProductEventListener(mediaService);
+        listener = new ProductEventListener(mediaService, productOwners);
     }
 
     @Test
@@ -37,6 +41,7 @@ class ProductEventListenerTest {
         // Assert: verify the mediaService was asked to delete the media for that
         // product
         verify(mediaService, times(1)).deleteMediaByProductIdInternal("prod-123");
+        verify(productOwners).forget("prod-123");
     }
 
     @Test
@@ -45,11 +50,14 @@ class ProductEventListenerTest {
         ProductEvent event = new ProductEvent();
         event.setEventType(PRODUCT_CREATED);
         event.setProductId("prod-456");
+        event.setSellerId("user-1");
+        event.setSellerEmail("seller@example.com");
 
         // Act
         listener.handleProductEvent(event);
 
-        // Assert: verify no deletion happened
+        // Assert: the owner is recorded and no deletion happened
+        verify(productOwners).record("prod-456", "user-1", "seller@example.com");
         verify(mediaService, never()).deleteMediaByProductIdInternal(anyString());
     }
 
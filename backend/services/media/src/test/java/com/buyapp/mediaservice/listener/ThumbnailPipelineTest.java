@@ -0,0 +1,161 @@
+package com.buyapp.mediaservice.listener;
+
+import com.buyapp.common.event.MediaEvent;
+import com.buyapp.mediaservice.model.Media;
+import com.buyapp.mediaservice.model.MediaVariant;
+import com.buyapp.mediaservice.service.ImageVariantService;
+import com.buyapp.mediaservice.storage.LocalMediaStorage;
+import com.mongodb.client.result.UpdateResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.listener.MessageListenerContainer;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class ThumbnailPipelineTest {
+
+    @TempDir
+    Path uploads;
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    @Mock
+    private KafkaListenerEndpointRegistry listenerRegistry;
+
+    @Mock
+    private MessageListenerContainer container;
+
+    private ImageVariantService imageVariantService;
+    private ThumbnailPipeline pipeline;
+    private Media media;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        imageVariantService = new ImageVariantService(new LocalMediaStorage(), new SimpleMeterRegistry(),
+                uploads.resolve("variants").toString(),
+                new int[] { 160, 320, 640 }, new int[] { 75, 85 }, 16 * 1024 * 1024);
+        pipeline = new ThumbnailPipeline(imageVariantService, mongoTemplate, listenerRegistry, new int[] { 160, 320 }, 2);
+        when(listenerRegistry.getListenerContainer(ThumbnailPipeline.LISTENER_ID)).thenReturn(container);
+
+        Path file = uploads.resolve("photo.jpg");
+        ImageIO.write(new BufferedImage(800, 600, BufferedImage.TYPE_INT_RGB), "jpeg", file.toFile());
+        media = new Media("m-1", file.toString(), "p-1", "photo.jpg", "image/jpeg", Files.size(file));
+        when(mongoTemplate.findById("m-1", Media.class)).thenReturn(media);
+        when(mongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(Media.class)))
+                .thenReturn(UpdateResult.acknowledged(1, 1L, null));
+    }
+
+    @AfterEach
+    void tearDown() {
+        pipeline.shutdown();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void uploadedImageGetsThumbnailsAndDimensions() throws Exception {
+        // Act
+        pipeline.handleMediaEvent(uploaded("m-1"));
+        awaitIdle();
+
+        // Assert
+        ArgumentCaptor<Update> update = ArgumentCaptor.forClass(Update.class);
+        verify(mongoTemplate).updateFirst(any(Query.class), update.capture(), eq(Media.class));
+        Document set = update.getValue().getUpdateObject().get("$set", Document.class);
+        assertEquals(800, set.get("width"));
+        assertEquals(600, set.get("height"));
+
+        List<MediaVariant> variants = (List<MediaVariant>) set.get("variants");
+        assertEquals(2, variants.size());
+        assertEquals(160, variants.get(0).getWidth());
+        assertEquals(120, variants.get(0).getHeight());
+        assertEquals(320, variants.get(1).getWidth());
+        assertEquals(240, variants.get(1).getHeight());
+        assertEquals("image/jpeg", variants.get(1).getContentType());
+        assertEquals(28, ((String) set.get("blurHash")).length());
+    }
+
+    @Test
+    void otherEventsAreIgnored() throws Exception {
+        // Act
+        pipeline.handleMediaEvent(new MediaEvent(MediaEvent.EventType.IMAGE_DELETED, "m-1", "p-1", "seller@test.com"));
+        awaitIdle();
+
+        // Assert
+        verifyNoInteractions(mongoTemplate);
+    }
+
+    @Test
+    void mediaDeletedWhileResizingLeavesNoVariants() throws Exception {
+        // Arrange
+        when(mongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(Media.class)))
+                .thenReturn(UpdateResult.acknowledged(0, 0L, null));
+
+        // Act
+        pipeline.handleMediaEvent(uploaded("m-1"));
+        awaitIdle();
+
+        // Assert
+        assertEquals(0, imageVariantService.totalBytes());
+    }
+
+    @Test
+    void consumerPausesWhenBacklogBuildsUpAndResumesWhenItDrains() throws Exception {
+        // Arrange - workers block until released
+        CountDownLatch release = new CountDownLatch(1);
+        when(mongoTemplate.findById(anyString(), eq(Media.class))).thenAnswer(invocation -> {
+            release.await(5, TimeUnit.SECONDS);
+            return null;
+        });
+
+        // Act
+        pipeline.handleMediaEvent(uploaded("a"));
+        pipeline.handleMediaEvent(uploaded("b"));
+
+        // Assert
+        verify(container).pause();
+        verify(container, never()).resume();
+
+        release.countDown();
+        awaitIdle();
+        verify(container).resume();
+    }
+
+    private MediaEvent uploaded(String mediaId) {
+        return new MediaEvent(MediaEvent.EventType.IMAGE_UPLOADED, mediaId, "p-1", "seller@test.com");
+    }
+
+    private void awaitIdle() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (pipeline.pending() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, pipeline.pending());
+    }
+}
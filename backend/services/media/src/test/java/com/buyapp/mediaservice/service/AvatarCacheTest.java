@@ -0,0 +1,145 @@
+package com.buyapp.mediaservice.service;
+
+import com.buyapp.mediaservice.model.Avatar;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AvatarCacheTest {
+
+    private static final Duration TTL = Duration.ofMinutes(5);
+
+    private final MutableClock clock = new MutableClock(Instant.parse("2026-10-19T12:00:00Z"));
+    private final List<List<String>> lookups = new ArrayList<>();
+    private SimpleMeterRegistry meterRegistry;
+    private AvatarCache cache;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        cache = new AvatarCache(meterRegistry, 3, TTL, clock);
+    }
+
+    @Test
+    void batchLooksUpOnlyUsersNotCached() {
+        // Arrange
+        cache.get("u-1", this::lookup);
+
+        // Act
+        Map<String, Avatar> avatars = cache.getAll(List.of("u-1", "u-2", "none"), this::lookupAll);
+
+        // Assert
+        assertEquals(List.of("u-1", "u-2"), List.copyOf(avatars.keySet()));
+        assertEquals(List.of(List.of("u-1"), List.of("u-2", "none")), lookups);
+        assertEquals(1.0, meterRegistry.get("media.avatars.cache").tag("result", "hit").counter().count());
+    }
+
+    @Test
+    void usersWithoutAnAvatarAreCachedToo() {
+        // Act
+        Optional<Avatar> first = cache.get("none", this::lookup);
+        Optional<Avatar> second = cache.get("none", this::lookup);
+
+        // Assert
+        assertTrue(first.isEmpty());
+        assertTrue(second.isEmpty());
+        assertEquals(1, lookups.size());
+    }
+
+    @Test
+    void invalidatedAndExpiredEntriesAreLookedUpAgain() {
+        // Arrange
+        cache.getAll(List.of("u-1", "u-2"), this::lookupAll);
+
+        // Act
+        cache.invalidate("u-1");
+        cache.getAll(List.of("u-1", "u-2"), this::lookupAll);
+        clock.advance(TTL);
+        cache.getAll(List.of("u-1", "u-2"), this::lookupAll);
+
+        // Assert
+        assertEquals(List.of(List.of("u-1", "u-2"), List.of("u-1"), List.of("u-1", "u-2")), lookups);
+    }
+
+    @Test
+    void lookupOverlappingAnInvalidationIsNotCached() {
+        // Act - the avatar is replaced while the old one is being read
+        Optional<Avatar> stale = cache.get("u-1", userId -> {
+            cache.invalidate(userId);
+            return lookup(userId);
+        });
+        cache.get("u-1", this::lookup);
+
+        // Assert
+        assertTrue(stale.isPresent());
+        assertEquals(2, lookups.size());
+    }
+
+    @Test
+    void leastRecentlyUsedUsersAreEvicted() {
+        // Arrange
+        cache.getAll(List.of("u-1", "u-2", "u-3"), this::lookupAll);
+        cache.get("u-1", this::lookup);
+
+        // Act
+        cache.get("u-4", this::lookup);
+        lookups.clear();
+        cache.getAll(List.of("u-1", "u-2", "u-3", "u-4"), this::lookupAll);
+
+        // Assert
+        assertEquals(List.of(List.of("u-2")), lookups);
+    }
+
+    private Optional<Avatar> lookup(String userId) {
+        return lookupAll(List.of(userId)).stream().findFirst();
+    }
+
+    // Every user has an avatar except "none"
+    private List<Avatar> lookupAll(List<String> userIds) {
+        lookups.add(List.copyOf(userIds));
+        return userIds.stream()
+                .filter(userId -> !userId.equals("none"))
+                .map(userId -> new Avatar("a-" + userId, "uploads/avatars/" + userId + ".png", userId,
+                        userId + ".png", "image/png", 100L))
+                .toList();
+    }
+
+    private static class MutableClock extends Clock {
+        private Instant now;
+
+        MutableClock(Instant now) {
+            this.now = now;
+        }
+
+        void advance(Duration duration) {
+            now = now.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.buyapp.mediaservice.service;
+
+import com.buyapp.mediaservice.model.MediaBlob;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.Document;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.lenient;
+
+/**
+ * Stands in for the {@code media_blobs} collection behind a mocked
+ * {@link MongoTemplate}, evaluating the few query and update shapes
+ * {@link MediaBlobStore} sends.
+ */
+final class BlobCollection {
+
+    private final Map<String, MediaBlob> blobs = new HashMap<>();
+
+    private BlobCollection() {
+    }
+
+    static BlobCollection on(MongoTemplate mongoTemplate) {
+        BlobCollection collection = new BlobCollection();
+        lenient().when(mongoTemplate.findAndModify(any(Query.class), any(Update.class),
+                any(FindAndModifyOptions.class), eq(MediaBlob.class))).thenAnswer(invocation -> {
+                    Document query = invocation.getArgument(0, Query.class).getQueryObject();
+                    Document update = invocation.getArgument(1, Update.class).getUpdateObject();
+                    boolean upsert = invocation.getArgument(2, FindAndModifyOptions.class).isUpsert();
+                    MediaBlob blob = collection.find(query);
+                    if (blob == null) {
+                        if (!upsert) {
+                            return null;
+                        }
+                        if (collection.blobs.containsKey(query.getString("_id"))) {
+                            throw new DuplicateKeyException("E11000 duplicate key error");
+                        }
+                        blob = collection.insert(query.getString("_id"), update.get("$setOnInsert", Document.class));
+                    }
+                    Document inc = update.get("$inc", Document.class);
+                    if (inc != null) {
+                        blob.setRefCount(blob.getRefCount() + inc.getInteger("refCount"));
+                    }
+                    Document set = update.get("$set", Document.class);
+                    if (set != null) {
+                        blob.setDeleting(set.getBoolean("deleting"));
+                    }
+                    return blob;
+                });
+        lenient().when(mongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(MediaBlob.class)))
+                .thenAnswer(invocation -> {
+                    MediaBlob blob = collection.find(invocation.getArgument(0, Query.class).getQueryObject());
+                    if (blob == null) {
+                        return UpdateResult.acknowledged(0, 0L, null);
+                    }
+                    Document set = invocation.getArgument(1, Update.class).getUpdateObject().get("$set", Document.class);
+                    blob.setDeleting(set.getBoolean("deleting"));
+                    return UpdateResult.acknowledged(1, 1L, null);
+                });
+        lenient().when(mongoTemplate.remove(any(Query.class), eq(MediaBlob.class))).thenAnswer(invocation -> {
+            Document query = invocation.getArgument(0, Query.class).getQueryObject();
+            boolean removed = collection.find(query) != null && collection.blobs.remove(query.getString("_id")) != null;
+            return DeleteResult.acknowledged(removed ? 1 : 0);
+        });
+        lenient().when(mongoTemplate.exists(any(Query.class), eq(MediaBlob.class)))
+                .thenAnswer(invocation -> collection.find(invocation.getArgument(0, Query.class).getQueryObject()) != null);
+        return collection;
+    }
+
+    MediaBlob get(String sha256) {
+        return blobs.get(sha256);
+    }
+
+    boolean isEmpty() {
+        return blobs.isEmpty();
+    }
+
+    MediaBlob only() {
+        return blobs.values().iterator().next();
+    }
+
+    private MediaBlob find(Document query) {
+        MediaBlob blob = blobs.get(query.getString("_id"));
+        if (blob == null) {
+            return null;
+        }
+        if (query.containsKey("path")
+                && !query.get("path", Document.class).getList("$in", String.class).contains(blob.getPath())) {
+            return null;
+        }
+        if (query.containsKey("refCount") && blob.getRefCount() > query.get("refCount", Document.class).getInteger("$lte")) {
+            return null;
+        }
+        Object deleting = query.get("deleting");
+        if (deleting instanceof Document condition ? blob.isDeleting() == condition.getBoolean("$ne")
+                : deleting != null && !deleting.equals(blob.isDeleting())) {
+            return null;
+        }
+        return blob;
+    }
+
+    private MediaBlob insert(String id, Document fields) {
+        Document document = new Document(fields == null ? Map.of() : fields).append("_id", id).append("refCount", 0);
+        MediaBlob blob = new MediaBlob();
+        blob.setPath(document.getString("path"));
+        blob.setSize(document.getLong("size"));
+        blob.setContentType(document.getString("contentType"));
+        blobs.put(id, blob);
+        return blob;
+    }
+}
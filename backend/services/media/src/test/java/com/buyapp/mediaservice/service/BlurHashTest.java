@@ -0,0 +1,67 @@
+package com.buyapp.mediaservice.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlurHashTest {
+
+    @Test
+    void averageColourIsEncodedAfterTheSizeAndMaximum() {
+        // Arrange
+        BufferedImage image = filled(32, 24, Color.RED);
+
+        // Act
+        String hash = BlurHash.encode(image);
+
+        // Assert - size flag for 4x3, then the quantised maximum, then pure red in four characters
+        assertEquals('L', hash.charAt(0));
+        assertEquals("TI:j", hash.substring(2, 6));
+        assertEquals(28, hash.length());
+    }
+
+    @Test
+    void portraitImagesUseMoreComponentsDown() {
+        // Arrange
+        BufferedImage image = filled(24, 32, Color.BLUE);
+
+        // Act
+        String hash = BlurHash.encode(image);
+
+        // Assert - size flag for 3x4, and 4 + 2 * 11 characters
+        assertEquals('T', hash.charAt(0));
+        assertEquals(28, hash.length());
+    }
+
+    @Test
+    void gradientsShowUpInTheAcComponents() {
+        // Arrange
+        BufferedImage image = new BufferedImage(32, 24, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setPaint(new GradientPaint(0, 0, Color.BLACK, 32, 0, Color.WHITE));
+        graphics.fillRect(0, 0, 32, 24);
+        graphics.dispose();
+
+        // Act
+        String hash = BlurHash.encode(image);
+
+        // Assert
+        assertEquals(28, hash.length());
+        assertNotEquals('0', hash.charAt(1));
+        assertNotEquals("fQ", hash.substring(6, 8));
+    }
+
+    private static BufferedImage filled(int width, int height, Color colour) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(colour);
+        graphics.fillRect(0, 0, width, height);
+        graphics.dispose();
+        return image;
+    }
+}
@@ -0,0 +1,142 @@
+package com.buyapp.mediaservice.service;
+
+import com.buyapp.mediaservice.model.FileDeletion;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class FileReaperTest {
+
+    private static final Instant NOW = Instant.parse("2026-10-19T12:00:00Z");
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    @Mock
+    private MediaBlobStore mediaBlobStore;
+
+    private SimpleMeterRegistry meterRegistry;
+    private FileReaper fileReaper;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        fileReaper = new FileReaper(mongoTemplate, mediaBlobStore, meterRegistry, 2, 1000, Duration.ofSeconds(30),
+                Clock.fixed(NOW, ZoneOffset.UTC));
+    }
+
+    @Test
+    void deletionsAreQueuedWithOneInsert() {
+        // Arrange
+        List<FileDeletion> deletions = List.of(fileReaper.deletionOf("aa", "uploads/images/aa.png"),
+                fileReaper.deletionOf(null, "uploads/images/old.png"));
+
+        // Act
+        fileReaper.enqueue(deletions);
+        fileReaper.enqueue(List.of());
+
+        // Assert
+        verify(mongoTemplate).insertAll(deletions);
+        assertEquals(NOW, deletions.get(0).getNotBefore());
+    }
+
+    @Test
+    void deletedFileLeavesTheQueue() throws IOException {
+        // Arrange
+        FileDeletion deletion = queued(0);
+
+        // Act
+        fileReaper.reap(deletion);
+
+        // Assert
+        verify(mediaBlobStore).deleteIfUnreferenced("aa", "uploads/images/aa.png");
+        verify(mongoTemplate).remove(any(Query.class), eq(FileDeletion.class));
+        assertEquals(1.0, meterRegistry.counter("media.reaper.deleted").count());
+    }
+
+    @Test
+    void failedDeletionIsRetriedWithBackoff() throws IOException {
+        // Arrange
+        FileDeletion deletion = queued(2);
+        doThrow(new IOException("device busy")).when(mediaBlobStore)
+                .deleteIfUnreferenced("aa", "uploads/images/aa.png");
+
+        // Act
+        fileReaper.reap(deletion);
+
+        // Assert: third failure waits 30 s * 2^2
+        ArgumentCaptor<Update> update = ArgumentCaptor.forClass(Update.class);
+        verify(mongoTemplate).updateFirst(any(Query.class), update.capture(), eq(FileDeletion.class));
+        Document set = update.getValue().getUpdateObject().get("$set", Document.class);
+        assertEquals(3, set.get("attempts"));
+        assertEquals(NOW.plusSeconds(120), set.get("notBefore"));
+        assertEquals("device busy", set.get("lastError"));
+        verify(mongoTemplate, never()).remove(any(Query.class), eq(FileDeletion.class));
+        assertEquals(1.0, meterRegistry.counter("media.reaper.failures").count());
+    }
+
+    @Test
+    void backoffIsCappedAtAnHour() throws IOException {
+        // Arrange
+        FileDeletion deletion = queued(20);
+        doThrow(new IOException("gone")).when(mediaBlobStore).deleteIfUnreferenced(any(), any());
+
+        // Act
+        fileReaper.reap(deletion);
+
+        // Assert
+        ArgumentCaptor<Update> update = ArgumentCaptor.forClass(Update.class);
+        verify(mongoTemplate).updateFirst(any(Query.class), update.capture(), eq(FileDeletion.class));
+        assertEquals(NOW.plus(Duration.ofHours(1)),
+                update.getValue().getUpdateObject().get("$set", Document.class).get("notBefore"));
+    }
+
+    @Test
+    void claimingAnEntryLeasesIt() {
+        // Arrange
+        FileDeletion due = queued(0);
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), eq(FileDeletion.class)))
+                .thenReturn(due);
+
+        // Act
+        FileDeletion claimed = fileReaper.claim();
+
+        // Assert: only due entries, oldest first, hidden from other workers for a while
+        assertSame(due, claimed);
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> update = ArgumentCaptor.forClass(Update.class);
+        verify(mongoTemplate).findAndModify(query.capture(), update.capture(), eq(FileDeletion.class));
+        assertEquals(new Document("$lte", NOW), query.getValue().getQueryObject().get("notBefore"));
+        assertEquals(new Document("notBefore", 1), query.getValue().getSortObject());
+        Instant lease = (Instant) update.getValue().getUpdateObject().get("$set", Document.class).get("notBefore");
+        assertTrue(lease.isAfter(NOW));
+    }
+
+    private FileDeletion queued(int attempts) {
+        FileDeletion deletion = new FileDeletion("aa", "uploads/images/aa.png", NOW);
+        ReflectionTestUtils.setField(deletion, "id", "d-1");
+        deletion.setAttempts(attempts);
+        return deletion;
+    }
+}
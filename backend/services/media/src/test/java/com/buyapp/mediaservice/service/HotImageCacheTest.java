@@ -0,0 +1,129 @@
+package com.buyapp.mediaservice.service;
+
+import com.buyapp.mediaservice.service.HotImageCache.CachedImage;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HotImageCacheTest {
+
+    private static final int IMAGE_BYTES = 1024;
+
+    private MeterRegistry meterRegistry;
+    private HotImageCache cache;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        // Room for ten images
+        cache = new HotImageCache(meterRegistry, 10 * IMAGE_BYTES, 4 * IMAGE_BYTES);
+    }
+
+    @Test
+    void popularImagesSurviveAScanOfOneOffRequests() {
+        // Arrange - ten images, each viewed a few times
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 10; i++) {
+                request("popular-" + i);
+            }
+        }
+
+        // Act - a crawler walks through a thousand images once each while shoppers keep browsing
+        for (int i = 0; i < 1_000; i++) {
+            request("crawled-" + i);
+            if (i % 5 == 0) {
+                request("popular-" + (i / 5) % 10);
+            }
+        }
+
+        // Assert
+        for (int i = 0; i < 10; i++) {
+            assertNotNull(cache.get("popular-" + i), "popular-" + i + " was evicted");
+        }
+        assertEquals(10 * IMAGE_BYTES, cache.residentBytes());
+    }
+
+    @Test
+    void imagesThatBecomePopularAreAdmitted() {
+        // Arrange - fill the cache with images viewed once
+        for (int i = 0; i < 10; i++) {
+            request("old-" + i);
+        }
+
+        // Act
+        for (int i = 0; i < 3; i++) {
+            request("trending");
+        }
+
+        // Assert
+        assertNotNull(cache.get("trending"));
+        assertEquals(10 * IMAGE_BYTES, cache.residentBytes());
+    }
+
+    @Test
+    void staysWithinByteBudgetAndRejectsOversizedImages() {
+        // Act
+        for (int i = 0; i < 50; i++) {
+            for (int views = 0; views <= i % 4; views++) {
+                request("image-" + i);
+            }
+        }
+
+        // Assert
+        assertTrue(cache.residentBytes() <= 10 * IMAGE_BYTES);
+        assertFalse(cache.admits("huge", 5 * IMAGE_BYTES));
+    }
+
+    @Test
+    void invalidateReleasesTheEntry() {
+        // Arrange
+        request("deleted");
+        assertEquals(IMAGE_BYTES, cache.residentBytes());
+
+        // Act
+        cache.invalidate("deleted");
+
+        // Assert
+        assertNull(cache.get("deleted"));
+        assertEquals(0, cache.residentBytes());
+        assertEquals(0, meterRegistry.get("media.cache.resident.bytes").gauge().value());
+    }
+
+    @Test
+    void reportsHitRatio() {
+        // Act - one miss that loads the image, then three hits
+        for (int i = 0; i < 4; i++) {
+            request("image");
+        }
+
+        // Assert
+        assertEquals(0.75, meterRegistry.get("media.cache.hit.ratio").gauge().value(), 1e-9);
+    }
+
+    @Test
+    void cachedContentIsOffHeapAndReadOnly() {
+        // Act
+        CachedImage image = request("image");
+        ByteBuffer content = image.content();
+
+        // Assert
+        assertTrue(content.isDirect());
+        assertTrue(content.isReadOnly());
+        assertEquals(IMAGE_BYTES, content.remaining());
+    }
+
+    // What MediaFileServer does for each request
+    private CachedImage request(String key) {
+        CachedImage image = cache.get(key);
+        if (image == null && cache.admits(key, IMAGE_BYTES)) {
+            ByteBuffer data = ByteBuffer.allocateDirect(IMAGE_BYTES);
+            image = cache.put(key, new CachedImage(data, 0));
+        }
+        return image;
+    }
+}
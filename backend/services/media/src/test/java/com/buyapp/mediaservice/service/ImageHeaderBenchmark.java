@@ -0,0 +1,62 @@
+package com.buyapp.mediaservice.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Compares reading the dimensions of uploaded photos from their headers with
+ * decoding them with ImageIO, as the thumbnail pipeline does. Not part of
+ * the normal build; run with
+ * {@code mvn test -Dtest=ImageHeaderBenchmark -Dbenchmark.images=200}.
+ */
+@EnabledIfSystemProperty(named = "benchmark.images", matches = "\\d+")
+class ImageHeaderBenchmark {
+
+    @Test
+    void headerParsingAgainstFullDecode() throws IOException {
+        int images = Integer.parseInt(System.getProperty("benchmark.images"));
+        for (String format : new String[] { "jpeg", "png" }) {
+            byte[] photo = photo(format, 2400, 1600);
+            for (int round = 0; round < 2; round++) {
+                // The first round warms up the JIT
+                long sink = 0;
+                long start = System.nanoTime();
+                for (int i = 0; i < images; i++) {
+                    sink += ImageHeader.parse(new ByteArrayInputStream(photo)).orElseThrow().getWidth();
+                }
+                long header = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int i = 0; i < images; i++) {
+                    sink += ImageIO.read(new ByteArrayInputStream(photo)).getWidth();
+                }
+                long decode = System.nanoTime() - start;
+                if (round > 0) {
+                    System.out.printf("%-4s %,7d KB  header %,9.1f us/image  decode %,9.1f us/image  (%d)%n", format,
+                            photo.length / 1024, header / 1e3 / images, decode / 1e3 / images, sink);
+                }
+            }
+        }
+    }
+
+    // A gradient, so the encoded size is closer to a photo's than a flat colour would be
+    private static byte[] photo(String format, int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setPaint(new GradientPaint(0, 0, Color.ORANGE, width, height, Color.BLUE));
+        graphics.fillRect(0, 0, width, height);
+        graphics.dispose();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, format, out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,144 @@
+package com.buyapp.mediaservice.service;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImageHeaderTest {
+
+    @Test
+    void readsTheDimensionsImageIoWrites() throws IOException {
+        for (String format : new String[] { "jpeg", "png", "gif" }) {
+            // Arrange
+            byte[] image = encode(format, 37, 21);
+
+            // Act
+            ImageHeader header = parse(image).orElseThrow(() -> new AssertionError(format));
+
+            // Assert
+            assertEquals(37, header.getWidth(), format);
+            assertEquals(21, header.getHeight(), format);
+            assertNull(header.getOrientation(), format);
+        }
+    }
+
+    @Test
+    void readsTheExifOrientationOfAJpeg() throws IOException {
+        // Arrange - a big-endian EXIF segment right after SOI
+        byte[] jpeg = encode("jpeg", 40, 30);
+        byte[] withExif = concat(Arrays.copyOf(jpeg, 2), jpegExif(6, ByteOrder.BIG_ENDIAN),
+                Arrays.copyOfRange(jpeg, 2, jpeg.length));
+
+        // Act
+        ImageHeader header = parse(withExif).orElseThrow();
+
+        // Assert
+        assertEquals(40, header.getWidth());
+        assertEquals(30, header.getHeight());
+        assertEquals(6, header.getOrientation());
+    }
+
+    @Test
+    void readsWebPInAllThreeEncodings() throws IOException {
+        // Arrange
+        byte[] lossy = webp("VP8 ", bytes(0x30, 0x01, 0x00, 0x9D, 0x01, 0x2A, 640 & 0xFF, 640 >> 8, 480 & 0xFF,
+                480 >> 8));
+        int bits = (800 - 1) | ((600 - 1) << 14);
+        byte[] lossless = webp("VP8L", bytes(0x2F, bits & 0xFF, (bits >> 8) & 0xFF, (bits >> 16) & 0xFF,
+                bits >>> 24));
+        byte[] extended = concat(webp("VP8X", bytes(0x08, 0, 0, 0, 1023 & 0xFF, 1023 >> 8, 0, 767 & 0xFF, 767 >> 8,
+                0)), chunk("VP8L", new byte[20]), chunk("EXIF", tiff(8, ByteOrder.LITTLE_ENDIAN)));
+
+        // Act & Assert
+        ImageHeader header = parse(lossy).orElseThrow();
+        assertEquals(640, header.getWidth());
+        assertEquals(480, header.getHeight());
+        header = parse(lossless).orElseThrow();
+        assertEquals(800, header.getWidth());
+        assertEquals(600, header.getHeight());
+        header = parse(extended).orElseThrow();
+        assertEquals(1024, header.getWidth());
+        assertEquals(768, header.getHeight());
+        assertEquals(8, header.getOrientation());
+    }
+
+    @Test
+    void truncatedOrUnknownContentHasNoHeader() throws IOException {
+        byte[] png = encode("png", 10, 10);
+
+        assertTrue(parse(Arrays.copyOf(png, 20)).isEmpty());
+        assertTrue(parse("<svg/>".getBytes()).isEmpty());
+        assertTrue(parse(new byte[0]).isEmpty());
+        // A JPEG whose scan starts before any frame header
+        assertTrue(parse(bytes(0xFF, 0xD8, 0xFF, 0xDA, 0x00, 0x02)).isEmpty());
+    }
+
+    private static Optional<ImageHeader> parse(byte[] image) throws IOException {
+        return ImageHeader.parse(new ByteArrayInputStream(image));
+    }
+
+    static byte[] encode(String format, int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, format, out);
+        return out.toByteArray();
+    }
+
+    private static byte[] jpegExif(int orientation, ByteOrder order) {
+        byte[] tiff = tiff(orientation, order);
+        ByteBuffer segment = ByteBuffer.allocate(4 + 6 + tiff.length);
+        segment.put((byte) 0xFF).put((byte) 0xE1).putShort((short) (2 + 6 + tiff.length));
+        segment.put("Exif\0\0".getBytes()).put(tiff);
+        return segment.array();
+    }
+
+    // A TIFF header with one IFD holding only the orientation
+    private static byte[] tiff(int orientation, ByteOrder order) {
+        ByteBuffer tiff = ByteBuffer.allocate(8 + 2 + 12 + 4).order(order);
+        tiff.put(order == ByteOrder.BIG_ENDIAN ? "MM".getBytes() : "II".getBytes());
+        tiff.putShort((short) 42).putInt(8);
+        tiff.putShort((short) 1);
+        tiff.putShort((short) 0x0112).putShort((short) 3).putInt(1).putShort((short) orientation).putShort((short) 0);
+        tiff.putInt(0);
+        return tiff.array();
+    }
+
+    private static byte[] webp(String firstChunk, byte[] payload) {
+        byte[] body = chunk(firstChunk, payload);
+        ByteBuffer riff = ByteBuffer.allocate(12 + body.length).order(ByteOrder.LITTLE_ENDIAN);
+        riff.put("RIFF".getBytes()).putInt(4 + body.length).put("WEBP".getBytes()).put(body);
+        return riff.array();
+    }
+
+    private static byte[] chunk(String fourCc, byte[] payload) {
+        ByteBuffer chunk = ByteBuffer.allocate(8 + payload.length + (payload.length & 1)).order(ByteOrder.LITTLE_ENDIAN);
+        chunk.put(fourCc.getBytes()).putInt(payload.length).put(payload);
+        return chunk.array();
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.writeBytes(part);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,190 @@
+package com.buyapp.mediaservice.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImageOptimizerTest {
+
+    private static final long MAX_BYTES = 2 * 1024 * 1024;
+
+    @TempDir
+    Path incoming;
+
+    private SimpleMeterRegistry meterRegistry;
+    private ImageOptimizer optimizer;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        optimizer = new ImageOptimizer(meterRegistry, true, 85, 2, 4);
+    }
+
+    @AfterEach
+    void tearDown() {
+        optimizer.shutdown();
+    }
+
+    @Test
+    void cameraJpegIsTurnedUprightStrippedAndMadeProgressive() throws IOException {
+        // Arrange - 120x60 stored pixels shown rotated by 90 degrees, with 20 KB of metadata
+        byte[] jpeg = jpeg(gradient(120, 60), 1.0f);
+        byte[] camera = concat(Arrays.copyOf(jpeg, 2), exifOrientation(6), segment(0xED, new byte[20_000]),
+                Arrays.copyOfRange(jpeg, 2, jpeg.length));
+        StreamingUpload upload = receive(camera);
+
+        // Act
+        StreamingUpload stored = optimizer.optimize(upload, incoming, MAX_BYTES);
+
+        // Assert
+        assertNotSame(upload, stored);
+        assertEquals("image/jpeg", stored.getContentType());
+        assertEquals(60, stored.getHeader().getWidth());
+        assertEquals(120, stored.getHeader().getHeight());
+        assertNull(stored.getHeader().getOrientation());
+        byte[] bytes = Files.readAllBytes(stored.getTempFile());
+        assertTrue(containsMarker(bytes, 0xC2), "progressive start of frame");
+        assertFalse(containsMarker(bytes, 0xE1), "no EXIF segment");
+        assertEquals(upload.getSize() - stored.getSize(),
+                meterRegistry.get("media.ingest.bytes.saved").summary().totalAmount());
+        try (Stream<Path> files = Files.list(incoming)) {
+            assertEquals(1, files.count(), "the original temp file is discarded");
+        }
+    }
+
+    @Test
+    void originalIsKeptWhenReEncodingWouldNotShrinkIt() throws IOException {
+        // Arrange - noise saved at low quality only grows at quality 85
+        BufferedImage noise = new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(7);
+        for (int y = 0; y < 64; y++) {
+            for (int x = 0; x < 64; x++) {
+                noise.setRGB(x, y, random.nextInt(0xFFFFFF));
+            }
+        }
+        StreamingUpload upload = receive(jpeg(noise, 0.2f));
+
+        // Act
+        StreamingUpload stored = optimizer.optimize(upload, incoming, MAX_BYTES);
+
+        // Assert
+        assertSame(upload, stored);
+        assertTrue(Files.exists(upload.getTempFile()));
+        assertEquals(1.0, meterRegistry.get("media.ingest.uploads").tag("result", "original").counter().count());
+    }
+
+    @Test
+    void gifsAreStoredAsUploaded() throws IOException {
+        // Arrange
+        ByteArrayOutputStream gif = new ByteArrayOutputStream();
+        ImageIO.write(gradient(40, 40), "gif", gif);
+        StreamingUpload upload = receive(gif.toByteArray());
+
+        // Act & Assert
+        assertSame(upload, optimizer.optimize(upload, incoming, MAX_BYTES));
+    }
+
+    @Test
+    void orientationsMapPixelsToWhereTheyAreShown() {
+        // Arrange - a 2x1 image, red then blue
+        BufferedImage image = new BufferedImage(2, 1, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, Color.RED.getRGB());
+        image.setRGB(1, 0, Color.BLUE.getRGB());
+
+        // Act
+        BufferedImage clockwise = ImageOptimizer.orient(image, 6);
+        BufferedImage counterClockwise = ImageOptimizer.orient(image, 8);
+        BufferedImage mirrored = ImageOptimizer.orient(image, 2);
+
+        // Assert
+        assertEquals(1, clockwise.getWidth());
+        assertEquals(2, clockwise.getHeight());
+        assertEquals(Color.RED.getRGB(), clockwise.getRGB(0, 0));
+        assertEquals(Color.BLUE.getRGB(), counterClockwise.getRGB(0, 0));
+        assertEquals(Color.BLUE.getRGB(), mirrored.getRGB(0, 0));
+    }
+
+    private StreamingUpload receive(byte[] content) throws IOException {
+        return StreamingUpload.receive(new ByteArrayInputStream(content), incoming, MAX_BYTES);
+    }
+
+    private static BufferedImage gradient(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setPaint(new GradientPaint(0, 0, Color.ORANGE, width, height, Color.DARK_GRAY));
+        graphics.fillRect(0, 0, width, height);
+        graphics.dispose();
+        return image;
+    }
+
+    private static byte[] jpeg(BufferedImage image, float quality) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(bytes)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return bytes.toByteArray();
+    }
+
+    // An APP1 segment with a big-endian TIFF IFD holding only the orientation
+    private static byte[] exifOrientation(int orientation) {
+        ByteBuffer exif = ByteBuffer.allocate(6 + 8 + 2 + 12 + 4);
+        exif.put("Exif\0\0".getBytes()).put("MM".getBytes()).putShort((short) 42).putInt(8);
+        exif.putShort((short) 1);
+        exif.putShort((short) 0x0112).putShort((short) 3).putInt(1).putShort((short) orientation).putShort((short) 0);
+        exif.putInt(0);
+        return segment(0xE1, exif.array());
+    }
+
+    private static byte[] segment(int marker, byte[] payload) {
+        ByteBuffer segment = ByteBuffer.allocate(4 + payload.length);
+        segment.put((byte) 0xFF).put((byte) marker).putShort((short) (2 + payload.length)).put(payload);
+        return segment.array();
+    }
+
+    private static boolean containsMarker(byte[] jpeg, int marker) {
+        for (int i = 0; i + 1 < jpeg.length; i++) {
+            if ((jpeg[i] & 0xFF) == 0xFF && (jpeg[i + 1] & 0xFF) == marker) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.writeBytes(part);
+        }
+        return out.toByteArray();
+    }
+}
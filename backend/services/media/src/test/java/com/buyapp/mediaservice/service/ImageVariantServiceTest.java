@@ -0,0 +1,195 @@
+package com.buyapp.mediaservice.service;
+
+import com.buyapp.common.exception.BadRequestException;
+import com.buyapp.mediaservice.model.Media;
+import com.buyapp.mediaservice.service.ImageVariantService.ImageVariant;
+import com.buyapp.mediaservice.storage.LocalMediaStorage;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImageVariantServiceTest {
+
+    @TempDir
+    Path uploads;
+
+    private MeterRegistry meterRegistry;
+    private ImageVariantService service;
+    private Media media;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        meterRegistry = new SimpleMeterRegistry();
+        service = variantService(1024 * 1024);
+        media = storedImage("m-1", 1200, 800);
+    }
+
+    @Test
+    void resizesToRequestedWidthKeepingAspectRatio() throws IOException {
+        // Act
+        ImageVariant variant = service.getVariant(media, 320, "jpeg", 80);
+
+        // Assert
+        BufferedImage image = ImageIO.read(variant.getPath().toFile());
+        assertEquals(320, image.getWidth());
+        assertEquals(213, image.getHeight());
+        assertEquals("image/jpeg", variant.getContentType());
+        assertEquals(HotImageCache.mediaKey("m-1") + ":m-1_w320_q85.jpg", variant.getCacheKey());
+    }
+
+    @Test
+    void encodesEachVariantOnce() {
+        // Act
+        Path first = service.getVariant(media, 320, "jpeg", 80).getPath();
+        Path second = service.getVariant(media, 320, "jpg", 85).getPath();
+
+        // Assert - the quality snaps to 85 either way
+        assertEquals(first, second);
+        assertEquals(1, generated());
+    }
+
+    @Test
+    void concurrentRequestsShareOneEncode() throws Exception {
+        // Arrange
+        int clients = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Path>> results = new ArrayList<>();
+
+        // Act
+        try {
+            for (int i = 0; i < clients; i++) {
+                results.add(executor.submit(() -> {
+                    start.await();
+                    return service.getVariant(media, 640, "png", null).getPath();
+                }));
+            }
+            start.countDown();
+            for (Future<Path> result : results) {
+                assertTrue(Files.exists(result.get()));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Assert
+        assertEquals(1, generated());
+    }
+
+    @Test
+    void rejectsWidthsOutsideTheWhitelist() {
+        assertThrows(BadRequestException.class, () -> service.getVariant(media, 321, null, null));
+        assertThrows(BadRequestException.class, () -> service.getVariant(media, 320, "webp", null));
+        assertThrows(BadRequestException.class, () -> service.getVariant(media, 320, null, 0));
+    }
+
+    @Test
+    void evictsLeastRecentlyServedVariantsOverQuota() throws IOException {
+        // Arrange - a restarted service whose quota is exactly filled by two variants
+        Path large = service.getVariant(media, 1024, "png", null).getPath();
+        Path small = service.getVariant(media, 160, "png", null).getPath();
+        long quota = Files.size(large) + Files.size(small);
+        meterRegistry = new SimpleMeterRegistry();
+        service = variantService(quota);
+        service.getVariant(media, 1024, "png", null);
+        service.getVariant(media, 160, "png", null);
+
+        // Act
+        Path added = service.getVariant(media, 640, "png", null).getPath();
+
+        // Assert
+        assertFalse(Files.exists(large));
+        assertTrue(Files.exists(small));
+        assertTrue(Files.exists(added));
+        assertTrue(service.totalBytes() <= quota);
+        assertEquals(1, meterRegistry.get("media.variants.evicted").counter().count());
+    }
+
+    @Test
+    void deleteVariantsRemovesFilesOfThatMediaOnly() throws IOException {
+        // Arrange
+        Media other = storedImage("m-2", 400, 400);
+        Path mine = service.getVariant(media, 160, null, null).getPath();
+        Path theirs = service.getVariant(other, 160, null, null).getPath();
+
+        // Act
+        service.deleteVariants("m-1");
+
+        // Assert
+        assertFalse(Files.exists(mine));
+        assertTrue(Files.exists(theirs));
+        assertEquals(Files.size(theirs), service.totalBytes());
+    }
+
+    @Test
+    void neverUpscales() throws IOException {
+        // Arrange
+        Media small = storedImage("m-3", 200, 100);
+
+        // Act
+        BufferedImage image = ImageIO.read(service.getVariant(small, 1024, "jpeg", null).getPath().toFile());
+
+        // Assert
+        assertEquals(200, image.getWidth());
+        assertEquals(100, image.getHeight());
+    }
+
+    @Test
+    void blurHashOfLargeImageIsComputedFromASample() throws IOException {
+        // Act
+        String hash = service.blurHash(Path.of(media.getImagePath()));
+
+        // Assert - landscape, so 4x3 components
+        assertEquals('L', hash.charAt(0));
+        assertEquals(28, hash.length());
+    }
+
+    @Test
+    void blurHashOfUnreadableFileIsNull() throws IOException {
+        // Arrange
+        Path notAnImage = Files.writeString(uploads.resolve("notes.txt"), "not an image");
+
+        // Act & Assert
+        assertNull(service.blurHash(notAnImage));
+    }
+
+    private ImageVariantService variantService(long maxBytes) {
+        return new ImageVariantService(new LocalMediaStorage(), meterRegistry, uploads.resolve("variants").toString(),
+                new int[] { 160, 320, 640, 1024 }, new int[] { 60, 75, 85 }, maxBytes);
+    }
+
+    private double generated() {
+        return meterRegistry.get("media.variants.generated").counter().count();
+    }
+
+    private Media storedImage(String id, int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setPaint(new GradientPaint(0, 0, Color.RED, width, height, Color.BLUE));
+        graphics.fillRect(0, 0, width, height);
+        graphics.dispose();
+        Path file = uploads.resolve(id + ".png");
+        ImageIO.write(image, "png", file.toFile());
+
+        return new Media(id, file.toString(), "p-1", id + ".png", "image/png", Files.size(file));
+    }
+}
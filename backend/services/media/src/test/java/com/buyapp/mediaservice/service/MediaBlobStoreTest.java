@@ -0,0 +1,197 @@
+package com.buyapp.mediaservice.service;
+
+import com.buyapp.mediaservice.model.Media;
+import com.buyapp.mediaservice.storage.LocalMediaStorage;
+import com.mongodb.client.result.UpdateResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class MediaBlobStoreTest {
+
+    @TempDir
+    Path uploads;
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    private BlobCollection blobs;
+
+    private MediaBlobStore store;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        store = new MediaBlobStore(mongoTemplate, new LocalMediaStorage(), new SimpleMeterRegistry(),
+                uploads.toString(), true);
+        blobs = BlobCollection.on(mongoTemplate);
+    }
+
+    @Test
+    void identicalUploadsShareOneFile() throws IOException {
+        // Arrange
+        byte[] photo = jpeg(1, 50_000);
+
+        // Act
+        String first = store.store(receive(photo));
+        String second = store.store(receive(photo));
+
+        // Assert
+        assertEquals(first, second);
+        assertTrue(ShardedLayout.isSharded(first));
+        assertArrayEquals(photo, Files.readAllBytes(Path.of(first)));
+        assertEquals(2, blobs.only().getRefCount());
+        assertEquals(1, fileCount());
+    }
+
+    @Test
+    void fileIsDeletedWithItsLastReference() throws IOException {
+        // Arrange
+        byte[] photo = jpeg(1, 50_000);
+        StreamingUpload upload = receive(photo);
+        String path = store.store(upload);
+        store.store(receive(photo));
+
+        // Act & Assert
+        store.release(upload.getSha256(), path);
+        assertTrue(Files.exists(Path.of(path)));
+
+        store.release(upload.getSha256(), path);
+        assertFalse(Files.exists(Path.of(path)));
+        assertTrue(blobs.isEmpty());
+    }
+
+    @Test
+    void sameImageUploadedWhileItsFileIsDeletedIsKeptApart() throws IOException {
+        // Arrange - the last reference is released, the file not yet deleted
+        byte[] photo = jpeg(1, 50_000);
+        StreamingUpload upload = receive(photo);
+        String path = store.store(upload);
+        assertTrue(store.releaseReference(upload.getSha256(), path));
+
+        // Act
+        String apart = store.store(receive(photo));
+        store.deleteIfUnreferenced(upload.getSha256(), path);
+        String again = store.store(receive(photo));
+
+        // Assert
+        assertNotEquals(path, apart);
+        assertArrayEquals(photo, Files.readAllBytes(Path.of(apart)));
+        assertEquals(path, again);
+        assertArrayEquals(photo, Files.readAllBytes(Path.of(again)));
+        assertEquals(1, blobs.get(upload.getSha256()).getRefCount());
+    }
+
+    @Test
+    void deletionOfAReferencedBlobLeavesTheFile() throws IOException {
+        // Arrange
+        byte[] photo = jpeg(1, 50_000);
+        StreamingUpload upload = receive(photo);
+        String path = store.store(upload);
+
+        // Act - e.g. a deletion queued for an earlier reference
+        store.deleteIfUnreferenced(upload.getSha256(), path);
+
+        // Assert
+        assertTrue(Files.exists(Path.of(path)));
+        assertEquals(1, blobs.get(upload.getSha256()).getRefCount());
+    }
+
+    @Test
+    void filesFromBeforeDeduplicationAreDeletedDirectly() throws IOException {
+        // Arrange
+        Path legacy = Files.write(uploads.resolve("0b9d2a6e-5d7c-4c59-9f0e-3a1f1e2d4c5b.jpg"), jpeg(2, 1_000));
+
+        // Act
+        store.release(null, legacy.toString());
+
+        // Assert
+        assertFalse(Files.exists(legacy));
+    }
+
+    @Test
+    void separateFilesWhenContentAddressingIsOff() throws IOException {
+        // Arrange
+        MediaBlobStore plain = new MediaBlobStore(mongoTemplate, new LocalMediaStorage(), new SimpleMeterRegistry(),
+                uploads.toString(), false);
+        byte[] photo = jpeg(1, 50_000);
+
+        // Act
+        String first = plain.store(receive(photo));
+        String second = plain.store(receive(photo));
+
+        // Assert
+        assertNotEquals(first, second);
+        assertEquals(2, fileCount());
+        assertTrue(blobs.isEmpty());
+    }
+
+    @Test
+    void migrationDeduplicatesExistingUploadsAndReportsSavings() throws IOException {
+        // Arrange - two copies of one photo and a different one, stored the old way
+        byte[] photo = jpeg(1, 50_000);
+        Media a = legacyMedia("a", photo);
+        Media b = legacyMedia("b", photo);
+        Media c = legacyMedia("c", jpeg(2, 20_000));
+        when(mongoTemplate.stream(any(Query.class), eq(Media.class))).thenReturn(Stream.of(a, b, c));
+        when(mongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(Media.class)))
+                .thenReturn(UpdateResult.acknowledged(1, 1L, null));
+
+        // Act
+        MediaBlobMigration.Report report = new MediaBlobMigration(mongoTemplate, store).migrate();
+
+        // Assert
+        assertEquals(3, report.getMediaScanned());
+        assertEquals(3, report.getMediaMigrated());
+        assertEquals(1, report.getDuplicatesRemoved());
+        assertEquals(photo.length, report.getBytesSaved());
+        assertEquals(2, fileCount());
+        assertFalse(Files.exists(Path.of(a.getImagePath())));
+        verify(mongoTemplate, times(3)).updateFirst(any(Query.class), any(Update.class), eq(Media.class));
+    }
+
+    private StreamingUpload receive(byte[] content) throws IOException {
+        return StreamingUpload.receive(new ByteArrayInputStream(content), uploads, 2 * 1024 * 1024);
+    }
+
+    private Media legacyMedia(String id, byte[] content) throws IOException {
+        Path file = Files.write(uploads.resolve(id + "-uuid.jpg"), content);
+        return new Media(id, file.toString(), "p-1", id + ".jpg", "image/jpeg", (long) content.length);
+    }
+
+    private static byte[] jpeg(int seed, int length) {
+        byte[] content = new byte[length];
+        new Random(seed).nextBytes(content);
+        content[0] = (byte) 0xFF;
+        content[1] = (byte) 0xD8;
+        content[2] = (byte) 0xFF;
+        return content;
+    }
+
+    private long fileCount() throws IOException {
+        try (Stream<Path> files = Files.walk(uploads)) {
+            return files.filter(Files::isRegularFile).count();
+        }
+    }
+}
@@ -9,6 +9,7 @@ import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.kafka.core.KafkaTemplate;
 import org.springframework.kafka.support.SendResult;
 
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 
 import static org.mockito.ArgumentMatchers.*;
@@ -65,4 +66,26 @@ class MediaEventProducerTest {
         // Assert: verify send was still called (topic may be null in test due to @Value not being injected)
         verify(kafkaTemplate).send(nullable(String.class), eq("m-2"), eq(event));
     }
+
+    @Test
+    void sendsEveryEventOfABatch() {
+        // Arrange
+        CompletableFuture<SendResult<String, MediaEvent>> future = CompletableFuture.completedFuture(null);
+        when(kafkaTemplate.send(nullable(String.class), anyString(), any(MediaEvent.class)))
+                .thenReturn(future);
+
+        MediaEvent first = new MediaEvent();
+        first.setMediaId("m-3");
+        first.setEventType(IMAGE_UPLOADED);
+        MediaEvent second = new MediaEvent();
+        second.setMediaId("m-4");
+        second.setEventType(IMAGE_UPLOADED);
+
+        // Act
+        producer.sendMediaEvents(List.of(first, second));
+
+        // Assert
+        verify(kafkaTemplate).send(nullable(String.class), eq("m-3"), eq(first));
+        verify(kafkaTemplate).send(nullable(String.class), eq("m-4"), eq(second));
+    }
 }
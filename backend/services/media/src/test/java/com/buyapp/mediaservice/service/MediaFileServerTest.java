@@ -0,0 +1,238 @@
+package com.buyapp.mediaservice.service;
+
+import com.buyapp.common.exception.ResourceNotFoundException;
+import com.buyapp.mediaservice.storage.LocalMediaStorage;
+import com.buyapp.mediaservice.storage.MediaStorage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class MediaFileServerTest {
+
+    private static final String ETAG = "\"0b9d2a6e-5d7c-4c59-9f0e-3a1f1e2d4c5b\"";
+    private static final String KEY = HotImageCache.mediaKey("m-1");
+
+    @TempDir
+    Path uploads;
+
+    private final MediaFileServer server = new MediaFileServer(cache(1024 * 1024), new LocalMediaStorage());
+    private Path file;
+    private byte[] content;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        content = new byte[100 * 1024];
+        new Random(3).nextBytes(content);
+        file = Files.write(uploads.resolve("0b9d2a6e-5d7c-4c59-9f0e-3a1f1e2d4c5b.png"), content);
+    }
+
+    @Test
+    void servesWholeFileWithValidatorsAndImmutableCaching() throws IOException {
+        // Arrange
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/media/file/m-1");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // Act
+        server.serve(KEY, file, "image/png", "lamp.png", request, response);
+
+        // Assert
+        assertEquals(200, response.getStatus());
+        assertEquals("image/png", response.getContentType());
+        assertEquals(ETAG, response.getHeader(HttpHeaders.ETAG));
+        assertEquals(MediaFileServer.CACHE_CONTROL, response.getHeader(HttpHeaders.CACHE_CONTROL));
+        assertEquals("bytes", response.getHeader(HttpHeaders.ACCEPT_RANGES));
+        assertNotNull(response.getHeader(HttpHeaders.LAST_MODIFIED));
+        assertEquals(content.length, response.getContentLengthLong());
+        assertArrayEquals(content, response.getContentAsByteArray());
+    }
+
+    @Test
+    void matchingIfNoneMatchIsNotModified() throws IOException {
+        // Arrange
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/media/file/m-1");
+        request.addHeader(HttpHeaders.IF_NONE_MATCH, "\"other\", W/" + ETAG);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // Act
+        server.serve(KEY, file, "image/png", "lamp.png", request, response);
+
+        // Assert
+        assertEquals(304, response.getStatus());
+        assertEquals(ETAG, response.getHeader(HttpHeaders.ETAG));
+        assertEquals(0, response.getContentAsByteArray().length);
+    }
+
+    @Test
+    void servesSingleByteRanges() throws IOException {
+        assertRange("bytes=10-19", "bytes 10-19/102400", 10, 20);
+        assertRange("bytes=102000-", "bytes 102000-102399/102400", 102000, content.length);
+        assertRange("bytes=-100", "bytes 102300-102399/102400", content.length - 100, content.length);
+    }
+
+    @Test
+    void unsatisfiableRangeIsRejected() throws IOException {
+        // Arrange
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/media/file/m-1");
+        request.addHeader(HttpHeaders.RANGE, "bytes=200000-");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // Act
+        server.serve(KEY, file, "image/png", "lamp.png", request, response);
+
+        // Assert
+        assertEquals(416, response.getStatus());
+        assertEquals("bytes */102400", response.getHeader(HttpHeaders.CONTENT_RANGE));
+    }
+
+    @Test
+    void rangePastLongMaxValueIsRejected() throws IOException {
+        for (String range : new String[] { "bytes=99999999999999999999-", "bytes=0-99999999999999999999",
+                "bytes=-99999999999999999999" }) {
+            // Arrange
+            MockHttpServletRequest request = new MockHttpServletRequest("GET", "/media/file/m-1");
+            request.addHeader(HttpHeaders.RANGE, range);
+            MockHttpServletResponse response = new MockHttpServletResponse();
+
+            // Act
+            server.serve(KEY, file, "image/png", "lamp.png", request, response);
+
+            // Assert
+            assertEquals(416, response.getStatus(), range);
+            assertEquals("bytes */102400", response.getHeader(HttpHeaders.CONTENT_RANGE));
+        }
+    }
+
+    @Test
+    void staleIfRangeGetsWholeFile() throws IOException {
+        // Arrange
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/media/file/m-1");
+        request.addHeader(HttpHeaders.RANGE, "bytes=0-9");
+        request.addHeader(HttpHeaders.IF_RANGE, "\"older-version\"");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // Act
+        server.serve(KEY, file, "image/png", "lamp.png", request, response);
+
+        // Assert
+        assertEquals(200, response.getStatus());
+        assertEquals(content.length, response.getContentAsByteArray().length);
+    }
+
+    @Test
+    void repeatedRequestsAreServedFromMemory() throws IOException {
+        // Arrange
+        server.serve(KEY, file, "image/png", "lamp.png", new MockHttpServletRequest("GET", "/media/file/m-1"),
+                new MockHttpServletResponse());
+        Files.delete(file);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // Act
+        server.serve(KEY, file, "image/png", "lamp.png", new MockHttpServletRequest("GET", "/media/file/m-1"),
+                response);
+
+        // Assert
+        assertEquals(200, response.getStatus());
+        assertArrayEquals(content, response.getContentAsByteArray());
+    }
+
+    @Test
+    void handsLargeFilesToSendfileWhenConnectorSupportsIt() throws IOException {
+        // Arrange - a cache too small to hold the file
+        MediaFileServer server = new MediaFileServer(cache(1024), new LocalMediaStorage());
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/media/file/m-1");
+        request.setAttribute(MediaFileServer.SENDFILE_SUPPORTED_ATTR, Boolean.TRUE);
+        request.addHeader(HttpHeaders.RANGE, "bytes=1024-");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // Act
+        server.serve(KEY, file, "image/png", "lamp.png", request, response);
+
+        // Assert - the connector writes the bytes, nothing goes through the output stream
+        assertEquals(206, response.getStatus());
+        assertEquals(file.toAbsolutePath().toString(), request.getAttribute(MediaFileServer.SENDFILE_FILENAME_ATTR));
+        assertEquals(1024L, request.getAttribute(MediaFileServer.SENDFILE_START_ATTR));
+        assertEquals((long) content.length, request.getAttribute(MediaFileServer.SENDFILE_END_ATTR));
+        assertEquals(0, response.getContentAsByteArray().length);
+    }
+
+    @Test
+    void missingFileIsNotFound() {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/media/file/m-1");
+
+        assertThrows(ResourceNotFoundException.class, () -> server.serve(KEY, uploads.resolve("gone.png"),
+                "image/png", "gone.png", request, new MockHttpServletResponse()));
+    }
+
+    @Test
+    void remoteUploadsRedirectToPresignedUrl() throws IOException {
+        // Arrange
+        MediaStorage remote = mock(MediaStorage.class);
+        URI signed = URI.create("https://s3.example.com/media/uploads/images/0b/9d/0b9d.png?X-Amz-Signature=abc");
+        when(remote.localFile("uploads/images/0b/9d/0b9d.png")).thenReturn(Optional.empty());
+        when(remote.presignedUrl("uploads/images/0b/9d/0b9d.png")).thenReturn(Optional.of(signed));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // Act
+        new MediaFileServer(cache(1024), remote).serveStored(KEY, "uploads/images/0b/9d/0b9d.png", "image/png",
+                "lamp.png", new MockHttpServletRequest("GET", "/media/file/m-1"), response);
+
+        // Assert
+        assertEquals(302, response.getStatus());
+        assertEquals(signed.toString(), response.getHeader(HttpHeaders.LOCATION));
+        assertEquals("no-cache", response.getHeader(HttpHeaders.CACHE_CONTROL));
+        assertEquals(0, response.getContentAsByteArray().length);
+    }
+
+    @Test
+    void mappedUploadsAreServedFromMemoryWithRanges() throws IOException {
+        // Arrange
+        MediaStorage segments = mock(MediaStorage.class);
+        when(segments.localFile("uploads/images/0b9d.png")).thenReturn(Optional.empty());
+        when(segments.mappedContent("uploads/images/0b9d.png")).thenReturn(Optional.of(ByteBuffer.wrap(content)));
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/media/file/m-1");
+        request.addHeader(HttpHeaders.RANGE, "bytes=100-199");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // Act
+        new MediaFileServer(cache(1024), segments).serveStored(KEY, "uploads/images/0b9d.png", "image/png",
+                "lamp.png", request, response);
+
+        // Assert
+        assertEquals(206, response.getStatus());
+        assertEquals("\"0b9d\"", response.getHeader(HttpHeaders.ETAG));
+        assertNull(response.getHeader(HttpHeaders.LAST_MODIFIED));
+        assertArrayEquals(Arrays.copyOfRange(content, 100, 200), response.getContentAsByteArray());
+    }
+
+    private static HotImageCache cache(long maxBytes) {
+        return new HotImageCache(new SimpleMeterRegistry(), maxBytes, maxBytes);
+    }
+
+    private void assertRange(String range, String contentRange, int from, int to) throws IOException {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/media/file/m-1");
+        request.addHeader(HttpHeaders.RANGE, range);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        server.serve(KEY, file, "image/png", "lamp.png", request, response);
+
+        assertEquals(206, response.getStatus());
+        assertEquals(contentRange, response.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertArrayEquals(Arrays.copyOfRange(content, from, to), response.getContentAsByteArray());
+    }
+}
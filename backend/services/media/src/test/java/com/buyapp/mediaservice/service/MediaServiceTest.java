@@ -0,0 +1,297 @@
+package com.buyapp.mediaservice.service;
+
+import com.buyapp.common.event.MediaEvent;
+import com.buyapp.common.exception.BadRequestException;
+import com.buyapp.common.exception.ForbiddenException;
+import com.buyapp.mediaservice.model.FileDeletion;
+import com.buyapp.mediaservice.model.Media;
+import com.buyapp.mediaservice.repository.MediaRepository;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationResults;
+import org.springframework.data.mongodb.core.aggregation.TypedAggregation;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class MediaServiceTest {
+
+    private static final Authentication SELLER = new UsernamePasswordAuthenticationToken("seller@example.com", null,
+            List.of(new SimpleGrantedAuthority("ROLE_SELLER")));
+
+    @Mock
+    private MediaRepository mediaRepository;
+
+    @Mock
+    private ProductOwners productOwners;
+
+    @Mock
+    private MediaEventProducer mediaEventProducer;
+
+    @Mock
+    private MediaBlobStore mediaBlobStore;
+
+    @Mock
+    private UploadSlots uploadSlots;
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    @Mock
+    private FileReaper fileReaper;
+
+    @Mock
+    private HotImageCache hotImageCache;
+
+    @Mock
+    private ImageOptimizer imageOptimizer;
+
+    @InjectMocks
+    private MediaService mediaService;
+
+    @TempDir
+    Path incoming;
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void batchIsAuthorizedOnceAndInsertedTogether() throws IOException {
+        // Arrange
+        productOwnedBy("seller@example.com");
+        storesFiles();
+        when(uploadSlots.reserve("p-1", 3, 5)).thenReturn(true);
+        AtomicInteger ids = new AtomicInteger();
+        when(mediaRepository.insert(anyList())).thenAnswer(invocation -> {
+            List<Media> media = invocation.getArgument(0);
+            media.forEach(m -> ReflectionTestUtils.setField(m, "id", "m-" + ids.incrementAndGet()));
+            return media;
+        });
+
+        // Act
+        List<Media> saved = mediaService.uploadMediaBatch(List.of(png("a.png"), png("b.png"), png("c.png")), "p-1",
+                SELLER);
+
+        // Assert
+        assertEquals(3, saved.size());
+        verify(uploadSlots).reserve("p-1", 3, 5);
+        verify(mediaRepository).insert(anyList());
+        verify(mediaRepository, never()).save(any());
+        ArgumentCaptor<List<MediaEvent>> events = ArgumentCaptor.forClass(List.class);
+        verify(mediaEventProducer).sendMediaEvents(events.capture());
+        assertEquals(3, events.getValue().size());
+        assertTrue(events.getValue().stream().allMatch(event -> event.getMediaId() != null));
+        verify(mediaEventProducer, never()).sendMediaEvent(any());
+    }
+
+    @Test
+    void batchOverTheImageLimitIsRejectedBeforeAnythingIsWritten() throws IOException {
+        // Arrange
+        productOwnedBy("seller@example.com");
+        when(uploadSlots.reserve("p-1", 2, 5)).thenReturn(false);
+
+        // Act
+        BadRequestException error = assertThrows(BadRequestException.class,
+                () -> mediaService.uploadMediaBatch(List.of(png("a.png"), png("b.png")), "p-1", SELLER));
+
+        // Assert
+        assertTrue(error.getMessage().contains("Maximum of 5 images"));
+        verify(mediaBlobStore, never()).store(any());
+        verify(mediaRepository, never()).insert(anyList());
+    }
+
+    @Test
+    void failedInsertReleasesTheSlotsAndTheStoredFiles() throws IOException {
+        // Arrange
+        productOwnedBy("seller@example.com");
+        storesFiles();
+        when(uploadSlots.reserve("p-1", 2, 5)).thenReturn(true);
+        when(mediaRepository.insert(anyList())).thenThrow(new IllegalStateException("write concern error"));
+
+        // Act
+        assertThrows(IllegalStateException.class,
+                () -> mediaService.uploadMediaBatch(List.of(png("a.png"), png("b.png")), "p-1", SELLER));
+
+        // Assert
+        verify(uploadSlots).release("p-1", 2);
+        verify(mediaBlobStore, times(2)).release(anyString(), startsWith("uploads/images/"));
+        verify(mediaEventProducer, never()).sendMediaEvents(anyList());
+    }
+
+    @Test
+    void batchLargerThanTheImageLimitIsRejected() {
+        // Arrange
+        List<MultipartFile> files = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            files.add(png(i + ".png"));
+        }
+
+        // Act & Assert
+        assertThrows(BadRequestException.class, () -> mediaService.uploadMediaBatch(files, "p-1", SELLER));
+        verifyNoInteractions(uploadSlots, productOwners);
+    }
+
+    @Test
+    void uploadsToSomeoneElsesProductAreForbiddenWithoutReservingSlots() {
+        // Arrange
+        productOwnedBy("other@example.com");
+
+        // Act & Assert
+        assertThrows(ForbiddenException.class,
+                () -> mediaService.uploadMediaBatch(List.of(png("a.png")), "p-1", SELLER));
+        verifyNoInteractions(uploadSlots);
+    }
+
+    @Test
+    void resumableUploadWithTheWrongChecksumIsNotStored() throws IOException {
+        // Arrange
+        productOwnedBy("seller@example.com");
+        when(mediaBlobStore.getDirectory()).thenReturn(incoming);
+        when(uploadSlots.reserve("p-1", 1, 5)).thenReturn(true);
+        Path assembled = Files.write(incoming.resolve("session.part"), png("a.png").getBytes());
+
+        // Act
+        BadRequestException error = assertThrows(BadRequestException.class,
+                () -> mediaService.uploadMediaFile(assembled, "a.png", "0".repeat(64), "p-1", SELLER));
+
+        // Assert
+        assertTrue(error.getMessage().startsWith("Checksum mismatch"));
+        verify(mediaBlobStore, never()).store(any());
+        verify(uploadSlots).release("p-1", 1);
+        try (Stream<Path> files = Files.list(incoming)) {
+            assertEquals(List.of(assembled), files.toList());
+        }
+    }
+
+    @Test
+    void mediaOfManyProductsComeFromOneQueryGroupedPerProduct() {
+        // Arrange
+        when(mongoTemplate.find(any(Query.class), eq(Media.class))).thenReturn(List.of(
+                new Media("m-1", null, "p-1", "a.png", "image/png", 10L),
+                new Media("m-2", null, "p-1", "b.png", "image/png", 20L),
+                new Media("m-3", null, "p-3", "c.png", "image/png", 30L)));
+
+        // Act
+        Map<String, List<Media>> media = mediaService.getMediaByProductIds(List.of("p-1", "p-2", "p-3", "p-1"), false);
+
+        // Assert
+        assertEquals(List.of("p-1", "p-2", "p-3"), List.copyOf(media.keySet()));
+        assertEquals(List.of("m-1", "m-2"), media.get("p-1").stream().map(Media::getId).toList());
+        assertTrue(media.get("p-2").isEmpty());
+        assertEquals(1, media.get("p-3").size());
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        verify(mongoTemplate).find(query.capture(), eq(Media.class));
+        assertEquals(List.of("p-1", "p-2", "p-3"), query.getValue().getQueryObject().get("productId", Document.class)
+                .get("$in"));
+        assertFalse(query.getValue().getFieldsObject().containsKey("imagePath"));
+        verifyNoInteractions(mediaRepository);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void firstImageOnlyIsPickedByTheDatabase() {
+        // Arrange
+        when(mongoTemplate.aggregate(any(TypedAggregation.class), eq(Media.class))).thenReturn(new AggregationResults<>(
+                List.of(new Media("m-1", null, "p-1", "a.png", "image/png", 10L)), new Document()));
+
+        // Act
+        Map<String, List<Media>> media = mediaService.getMediaByProductIds(List.of("p-1", "p-2"), true);
+
+        // Assert
+        assertEquals(List.of("m-1"), media.get("p-1").stream().map(Media::getId).toList());
+        assertTrue(media.get("p-2").isEmpty());
+        ArgumentCaptor<TypedAggregation<Media>> aggregation = ArgumentCaptor.forClass(TypedAggregation.class);
+        verify(mongoTemplate).aggregate(aggregation.capture(), eq(Media.class));
+        List<Document> pipeline = aggregation.getValue().toPipeline(Aggregation.DEFAULT_CONTEXT);
+        assertEquals(List.of("$match", "$sort", "$project", "$group", "$replaceRoot"),
+                pipeline.stream().map(stage -> stage.keySet().iterator().next()).toList());
+        assertEquals(new Document("$first", "$$ROOT"), pipeline.get(3).get("$group", Document.class).get("first"));
+        verify(mongoTemplate, never()).find(any(Query.class), eq(Media.class));
+    }
+
+    @Test
+    void tooManyProductsInOneLookupAreRejected() {
+        // Arrange
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 101; i++) {
+            ids.add("p-" + i);
+        }
+
+        // Act & Assert
+        assertThrows(BadRequestException.class, () -> mediaService.getMediaByProductIds(ids, true));
+        verifyNoInteractions(mongoTemplate);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void productMediaAreDeletedWithoutWaitingForTheFiles() {
+        // Arrange: the second image is shared with another product
+        when(mediaRepository.findByProductId("p-1")).thenReturn(List.of(
+                new Media("m-1", "uploads/images/a.png", "p-1", "a.png", "image/png", 10L),
+                new Media("m-2", "uploads/images/b.png", "p-1", "b.png", "image/png", 20L)));
+        when(mediaBlobStore.releaseReference(any(), eq("uploads/images/a.png"))).thenReturn(true);
+        when(mediaBlobStore.releaseReference(any(), eq("uploads/images/b.png"))).thenReturn(false);
+        when(fileReaper.deletionOf(any(), anyString())).thenAnswer(invocation ->
+                new FileDeletion(invocation.getArgument(0), invocation.getArgument(1), null));
+
+        // Act
+        mediaService.deleteMediaByProductIdInternal("p-1");
+
+        // Assert
+        verify(mediaRepository).deleteByProductId("p-1");
+        ArgumentCaptor<List<FileDeletion>> deletions = ArgumentCaptor.forClass(List.class);
+        verify(fileReaper).enqueue(deletions.capture());
+        assertEquals(List.of("uploads/images/a.png"),
+                deletions.getValue().stream().map(FileDeletion::getImagePath).toList());
+        verifyNoMoreInteractions(mediaBlobStore);
+        ArgumentCaptor<List<MediaEvent>> events = ArgumentCaptor.forClass(List.class);
+        verify(mediaEventProducer).sendMediaEvents(events.capture());
+        assertEquals(2, events.getValue().size());
+    }
+
+    private void productOwnedBy(String owner) {
+        when(productOwners.ownerOf("p-1")).thenReturn(Optional.of(owner));
+    }
+
+    private void storesFiles() throws IOException {
+        when(mediaBlobStore.getDirectory()).thenReturn(incoming);
+        when(imageOptimizer.optimize(any(), any(), anyLong())).thenAnswer(invocation -> invocation.getArgument(0));
+        AtomicInteger names = new AtomicInteger();
+        when(mediaBlobStore.store(any())).thenAnswer(invocation -> {
+            ((StreamingUpload) invocation.getArgument(0)).discard();
+            return "uploads/images/" + names.incrementAndGet() + ".png";
+        });
+    }
+
+    private static MockMultipartFile png(String name) {
+        byte[] content = new byte[4096];
+        byte[] signature = { (byte) 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A };
+        System.arraycopy(signature, 0, content, 0, signature.length);
+        return new MockMultipartFile("files", name, "image/png", content);
+    }
+}
@@ -0,0 +1,240 @@
+package com.buyapp.mediaservice.service;
+
+import com.buyapp.mediaservice.model.Avatar;
+import com.buyapp.mediaservice.model.Media;
+import com.buyapp.mediaservice.model.Orphan;
+import com.buyapp.mediaservice.storage.LocalMediaStorage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class OrphanReconcilerTest {
+
+    private static final Instant NOW = Instant.parse("2026-10-19T12:00:00Z");
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    @Mock
+    private MediaService mediaService;
+
+    @Mock
+    private AvatarService avatarService;
+
+    @TempDir
+    Path uploads;
+
+    private String images;
+    private BlobCollection blobs;
+    private MediaBlobStore blobStore;
+    private OrphanReconciler reconciler;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        images = Files.createDirectories(uploads.resolve("images")) + "/";
+        blobs = BlobCollection.on(mongoTemplate);
+        blobStore = new MediaBlobStore(mongoTemplate, new LocalMediaStorage(), new SimpleMeterRegistry(), images, true);
+        reconciler = new OrphanReconciler(mongoTemplate, new LocalMediaStorage(), mediaService, avatarService,
+                blobStore, new SimpleMeterRegistry(), images, uploads.resolve("avatars").toString(),
+                uploads.resolve("quarantine").toString(), false, Duration.ofDays(1), 1_000_000, Duration.ofHours(1),
+                Duration.ofDays(7), Clock.fixed(NOW, ZoneOffset.UTC));
+        lenient().when(mongoTemplate.stream(any(Query.class), eq(Avatar.class))).thenReturn(Stream.empty());
+        lenient().when(mongoTemplate.stream(any(Query.class), eq(Orphan.class))).thenReturn(Stream.empty());
+    }
+
+    @Test
+    void walkReturnsFilesInTheOrderOfTheirPaths() throws IOException {
+        // Arrange: '-' and '.' sort before '/', so "ab.jpg" comes before "ab/..."
+        for (String name : List.of("ab/cd/x.jpg", "ab.jpg", "ab-1.jpg", "ab/c.jpg", "b.jpg", "ab/cd.jpg")) {
+            file(name, NOW);
+        }
+
+        // Act
+        List<String> walked = new ArrayList<>();
+        OrphanReconciler.SortedFileWalk walk = new OrphanReconciler.SortedFileWalk(Path.of(images));
+        for (Path file = walk.next(); file != null; file = walk.next()) {
+            walked.add(file.toString());
+        }
+
+        // Assert
+        assertEquals(walked.stream().sorted().toList(), walked);
+        assertEquals(6, walked.size());
+    }
+
+    @Test
+    void filesAndDocumentsFoundOnOneSideOnlyAreQuarantined() throws IOException {
+        // Arrange
+        Path shared = file("aa/bb/aabb.jpg", NOW.minus(Duration.ofDays(30)));
+        Path orphan = file("cc/dd/ccdd.jpg", NOW.minus(Duration.ofHours(2)));
+        Path uploading = file("upload-1.part", NOW.minusSeconds(10));
+        when(mongoTemplate.stream(any(Query.class), eq(Media.class))).thenReturn(Stream.of(
+                media("m-1", "aa/bb/aabb.jpg"),
+                media("m-2", "aa/bb/aabb.jpg"),
+                media("m-3", "ee/ff/eeff.jpg")));
+
+        // Act
+        OrphanReconciler.Report report = reconciler.reconcile();
+
+        // Assert
+        assertTrue(Files.exists(shared));
+        assertTrue(Files.exists(uploading));
+        assertFalse(Files.exists(orphan));
+        assertTrue(Files.exists(uploads.resolve("quarantine/images/cc/dd/ccdd.jpg")));
+        assertEquals(3, report.getFilesScanned());
+        assertEquals(3, report.getDocumentsScanned());
+        assertEquals(1, report.getFilesQuarantined());
+        assertEquals(1, report.getDocumentsFlagged());
+
+        ArgumentCaptor<Query> flagged = ArgumentCaptor.forClass(Query.class);
+        verify(mongoTemplate, times(2)).upsert(flagged.capture(), any(Update.class), eq(Orphan.class));
+        assertEquals(List.of("FILE:" + images + "cc/dd/ccdd.jpg", "MEDIA:m-3"),
+                flagged.getAllValues().stream().map(query -> query.getQueryObject().get("_id")).toList());
+        verifyNoInteractions(mediaService);
+    }
+
+    @Test
+    void orphansAreDeletedOnlyAfterTheQuarantinePeriod() throws IOException {
+        // Arrange
+        when(mongoTemplate.stream(any(Query.class), eq(Media.class))).thenReturn(Stream.empty());
+        Path quarantined = Files.createDirectories(uploads.resolve("quarantine/images")).resolve("old.jpg");
+        Files.writeString(quarantined, "x");
+        when(mongoTemplate.stream(any(Query.class), eq(Orphan.class))).thenReturn(Stream.of(
+                orphan("FILE:" + images + "old.jpg", Orphan.Kind.FILE, images + "old.jpg", quarantined.toString()),
+                orphan("MEDIA:m-9", Orphan.Kind.MEDIA, images + "gone.jpg", null)));
+        when(mongoTemplate.exists(any(Query.class), eq(Media.class))).thenReturn(true);
+
+        // Act
+        OrphanReconciler.Report report = reconciler.reconcile();
+
+        // Assert
+        assertFalse(Files.exists(quarantined));
+        verify(mediaService).deleteMediaInternal("m-9");
+        verify(mongoTemplate, times(2)).remove(any(Query.class), eq(Orphan.class));
+        assertEquals(1, report.getFilesDeleted());
+        assertEquals(1, report.getDocumentsDeleted());
+        ArgumentCaptor<Query> expired = ArgumentCaptor.forClass(Query.class);
+        verify(mongoTemplate).stream(expired.capture(), eq(Orphan.class));
+        assertEquals(new org.bson.Document("$lte", NOW.minus(Duration.ofDays(7))),
+                expired.getValue().getQueryObject().get("quarantinedAt"));
+    }
+
+    @Test
+    void imageFileClaimedByAnUploadWhoseMediaIsNotSavedYetIsKept() throws IOException {
+        // Arrange - an old orphaned copy of the image being uploaded
+        byte[] photo = jpeg(1, 10_000);
+        StreamingUpload upload = receive(photo);
+        Path orphan = blobFile(upload, photo);
+        when(mongoTemplate.stream(any(Query.class), eq(Media.class))).thenReturn(Stream.empty());
+
+        // Act - the upload takes its reference, then the reconciler runs before the media is saved
+        String stored = blobStore.store(upload);
+        OrphanReconciler.Report report = reconciler.reconcile();
+
+        // Assert
+        assertEquals(orphan.toString(), stored);
+        assertTrue(Files.exists(orphan));
+        assertEquals(0, report.getFilesQuarantined());
+        assertEquals(1, blobs.get(upload.getSha256()).getRefCount());
+        assertFalse(blobs.get(upload.getSha256()).isDeleting());
+    }
+
+    @Test
+    void imageUploadedWhileItsOrphanIsQuarantinedIsKeptApart() throws IOException {
+        // Arrange
+        byte[] photo = jpeg(1, 10_000);
+        StreamingUpload orphanUpload = receive(photo);
+        Path orphan = blobFile(orphanUpload, photo);
+        orphanUpload.discard();
+        when(mongoTemplate.stream(any(Query.class), eq(Media.class))).thenReturn(Stream.empty());
+        List<String> storedMeanwhile = new ArrayList<>();
+        when(mongoTemplate.upsert(any(Query.class), any(Update.class), eq(Orphan.class))).thenAnswer(invocation -> {
+            storedMeanwhile.add(blobStore.store(receive(photo)));
+            return null;
+        });
+
+        // Act
+        OrphanReconciler.Report report = reconciler.reconcile();
+        String storedAfter = blobStore.store(receive(photo));
+
+        // Assert
+        assertEquals(1, report.getFilesQuarantined());
+        assertNotEquals(orphan.toString(), storedMeanwhile.get(0));
+        assertArrayEquals(photo, Files.readAllBytes(Path.of(storedMeanwhile.get(0))));
+        // Once quarantined, the image is stored under its content name again
+        assertEquals(orphan.toString(), storedAfter);
+        assertArrayEquals(photo, Files.readAllBytes(orphan));
+    }
+
+    private StreamingUpload receive(byte[] content) throws IOException {
+        return StreamingUpload.receive(new ByteArrayInputStream(content),
+                Files.createDirectories(uploads.resolve("incoming")), 2 * 1024 * 1024);
+    }
+
+    // The upload's content-addressed file, left long ago with nothing pointing at it
+    private Path blobFile(StreamingUpload upload, byte[] content) throws IOException {
+        Path file = Path.of(ShardedLayout.shardedPath(images, upload.getSha256() + upload.getExtension()));
+        Files.createDirectories(file.getParent());
+        Files.write(file, content);
+        Files.setLastModifiedTime(file, FileTime.from(NOW.minus(Duration.ofDays(30))));
+        return file;
+    }
+
+    private static byte[] jpeg(int seed, int length) {
+        byte[] content = new byte[length];
+        new Random(seed).nextBytes(content);
+        content[0] = (byte) 0xFF;
+        content[1] = (byte) 0xD8;
+        content[2] = (byte) 0xFF;
+        return content;
+    }
+
+    private Path file(String name, Instant modified) throws IOException {
+        Path file = Path.of(images, name);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, name);
+        Files.setLastModifiedTime(file, FileTime.from(modified));
+        return file;
+    }
+
+    private Media media(String id, String name) {
+        return new Media(id, images + name, "p-1", name, "image/jpeg", 10L);
+    }
+
+    private static Orphan orphan(String id, Orphan.Kind kind, String path, String quarantinePath) {
+        Orphan orphan = new Orphan();
+        ReflectionTestUtils.setField(orphan, "id", id);
+        ReflectionTestUtils.setField(orphan, "kind", kind);
+        ReflectionTestUtils.setField(orphan, "path", path);
+        ReflectionTestUtils.setField(orphan, "quarantinePath", quarantinePath);
+        ReflectionTestUtils.setField(orphan, "quarantinedAt", NOW.minus(Duration.ofDays(8)));
+        return orphan;
+    }
+}
@@ -0,0 +1,155 @@
+package com.buyapp.mediaservice.service;
+
+import com.buyapp.common.dto.ProductDto;
+import com.buyapp.mediaservice.model.ProductOwner;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class ProductOwnersTest {
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    @Mock
+    private WebClient.Builder webClientBuilder;
+
+    private ProductOwners productOwners;
+
+    @BeforeEach
+    void setUp() {
+        productOwners = new ProductOwners(mongoTemplate, webClientBuilder);
+    }
+
+    @Test
+    void ownerIsReadFromTheProjection() {
+        // Arrange
+        when(mongoTemplate.findById("p-1", ProductOwner.class))
+                .thenReturn(new ProductOwner("p-1", "u-1", "seller@example.com"));
+
+        // Act
+        Optional<String> owner = productOwners.ownerOf("p-1");
+
+        // Assert: no call to the Product Service
+        assertEquals(Optional.of("seller@example.com"), owner);
+        verifyNoInteractions(webClientBuilder);
+    }
+
+    @Test
+    void productNotYetProjectedIsLookedUpAndRecorded() {
+        // Arrange
+        WebClient.ResponseSpec response = productService();
+        when(response.bodyToMono(ProductDto.class))
+                .thenReturn(Mono.just(new ProductDto("p-2", "Lamp", "Desk lamp", 25.0, 3, "seller@example.com")));
+
+        // Act
+        Optional<String> owner = productOwners.ownerOf("p-2");
+
+        // Assert
+        assertEquals(Optional.of("seller@example.com"), owner);
+        verify(mongoTemplate).upsert(any(Query.class), any(Update.class), eq(ProductOwner.class));
+    }
+
+    @Test
+    void unknownProductHasNoOwner() {
+        // Arrange
+        WebClient.ResponseSpec response = productService();
+        when(response.bodyToMono(ProductDto.class)).thenReturn(Mono.error(new IllegalStateException("404")));
+
+        // Act & Assert
+        assertTrue(productOwners.ownerOf("missing").isEmpty());
+        verify(mongoTemplate, never()).upsert(any(Query.class), any(Update.class), eq(ProductOwner.class));
+    }
+
+    @Test
+    void backfillCopiesOnlyProductsTheEventsHaveNotRecorded() {
+        // Arrange
+        WebClient.ResponseSpec response = productService();
+        when(response.bodyToFlux(ProductDto.class)).thenReturn(Flux.just(
+                new ProductDto("p-1", "Lamp", null, 25.0, 3, "a@example.com"),
+                new ProductDto("p-2", "Desk", null, 90.0, 4, "b@example.com")));
+        when(mongoTemplate.upsert(any(Query.class), any(Update.class), eq(ProductOwner.class)))
+                .thenReturn(UpdateResult.acknowledged(0, 0L, new BsonString("p-1")))
+                .thenReturn(UpdateResult.acknowledged(1, 0L, null));
+
+        // Act
+        int copied = productOwners.backfill();
+
+        // Assert
+        assertEquals(1, copied);
+        verify(mongoTemplate, times(2)).upsert(any(Query.class), any(Update.class), eq(ProductOwner.class));
+    }
+
+    @Test
+    void backfillRunsEvenIfAnEventWasRecordedFirst() {
+        // Arrange - listeners start before the application is ready
+        productOwners.record("p-9", "u-9", "c@example.com");
+        lenient().when(mongoTemplate.exists(any(Query.class), eq(ProductOwner.class))).thenReturn(true);
+        WebClient.ResponseSpec response = productService();
+        when(response.bodyToFlux(ProductDto.class)).thenReturn(Flux.just(
+                new ProductDto("p-1", "Lamp", null, 25.0, 3, "a@example.com")));
+        when(mongoTemplate.upsert(any(Query.class), any(Update.class), eq(ProductOwner.class)))
+                .thenReturn(UpdateResult.acknowledged(0, 0L, new BsonString("p-1")));
+
+        // Act
+        productOwners.startBackfill();
+
+        // Assert - and it is recorded as done
+        verify(response, timeout(5_000)).bodyToFlux(ProductDto.class);
+        verify(mongoTemplate, timeout(5_000)).save(any(Document.class), eq("migrations"));
+    }
+
+    @Test
+    void completedBackfillIsNotRunAgain() {
+        // Arrange
+        when(mongoTemplate.exists(any(Query.class), eq("migrations"))).thenReturn(true);
+
+        // Act
+        productOwners.startBackfill();
+
+        // Assert
+        verifyNoInteractions(webClientBuilder);
+    }
+
+    @Test
+    void failedBackfillIsNotRecordedAsDone() {
+        // Arrange - the Product Service is still starting
+        WebClient.ResponseSpec response = productService();
+        when(response.bodyToFlux(ProductDto.class)).thenReturn(Flux.error(new IllegalStateException("503")));
+
+        // Act & Assert
+        assertThrows(IllegalStateException.class, () -> productOwners.backfill());
+        verify(mongoTemplate, never()).save(any(Document.class), anyString());
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private WebClient.ResponseSpec productService() {
+        WebClient webClient = mock(WebClient.class);
+        WebClient.RequestHeadersUriSpec request = mock(WebClient.RequestHeadersUriSpec.class);
+        WebClient.ResponseSpec response = mock(WebClient.ResponseSpec.class);
+        when(webClientBuilder.build()).thenReturn(webClient);
+        when(webClient.get()).thenReturn(request);
+        lenient().when(request.uri(anyString())).thenReturn(request);
+        lenient().when(request.uri(anyString(), any(Object[].class))).thenReturn(request);
+        when(request.retrieve()).thenReturn(response);
+        return response;
+    }
+}
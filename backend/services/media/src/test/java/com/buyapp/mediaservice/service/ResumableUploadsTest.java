@@ -0,0 +1,308 @@
+package com.buyapp.mediaservice.service;
+
+import com.buyapp.common.exception.BadRequestException;
+import com.buyapp.common.exception.ForbiddenException;
+import com.buyapp.mediaservice.model.Media;
+import com.buyapp.mediaservice.model.UploadSession;
+import com.buyapp.mediaservice.storage.LocalMediaStorage;
+import com.buyapp.mediaservice.storage.MediaStorage;
+import com.buyapp.mediaservice.storage.S3MediaStorage;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class ResumableUploadsTest {
+
+    private static final Instant NOW = Instant.parse("2026-10-19T12:00:00Z");
+    private static final Duration TTL = Duration.ofHours(24);
+
+    @TempDir
+    Path directory;
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    @Mock
+    private MediaService mediaService;
+
+    private final Authentication seller = new UsernamePasswordAuthenticationToken("seller@test.com", null, List.of());
+    private final byte[] image = new byte[1000];
+    private ResumableUploads uploads;
+    private UploadSession session;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Arrays.fill(image, (byte) 7);
+        uploads = instance(new LocalMediaStorage(), directory);
+        when(mongoTemplate.insert(any(UploadSession.class))).thenAnswer(invocation -> {
+            session = invocation.getArgument(0);
+            return session;
+        });
+        when(mongoTemplate.findById(anyString(), eq(UploadSession.class))).thenAnswer(invocation -> session);
+        when(mongoTemplate.remove(any(Query.class), eq(UploadSession.class))).thenReturn(DeleteResult.acknowledged(1));
+        // The session document: the lock is taken while it is free or lapsed, progress only recorded under it
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                eq(UploadSession.class))).thenAnswer(invocation -> {
+                    Instant lockedUntil = session.getLockedUntil();
+                    if (lockedUntil != null && lockedUntil.isAfter(NOW)) {
+                        return null;
+                    }
+                    apply(invocation.getArgument(1, Update.class));
+                    return session;
+                });
+        when(mongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(UploadSession.class)))
+                .thenAnswer(invocation -> {
+                    Document query = invocation.getArgument(0, Query.class).getQueryObject();
+                    if (query.containsKey("lockedUntil")
+                            && !query.get("lockedUntil").equals(session.getLockedUntil())) {
+                        return UpdateResult.acknowledged(0, 0L, null);
+                    }
+                    apply(invocation.getArgument(1, Update.class));
+                    return UpdateResult.acknowledged(1, 1L, null);
+                });
+        uploads.create("p-1", "photo.jpg", image.length, sha256(image), seller);
+    }
+
+    @Test
+    void chunksAreAppendedAndTheFileIsStoredOnceComplete() throws Exception {
+        // Arrange
+        Media media = new Media();
+        when(mediaService.uploadMediaFile(any(Path.class), eq("photo.jpg"), eq(sha256(image)), eq("p-1"), eq(seller)))
+                .thenAnswer(invocation -> {
+                    assertArrayEquals(image, Files.readAllBytes(invocation.getArgument(0, Path.class)));
+                    return media;
+                });
+
+        // Act
+        uploads.append(session.getId(), 0, chunk(0, 400), seller);
+        UploadSession progress = uploads.append(session.getId(), 400, chunk(400, 1000), seller);
+        Media stored = uploads.complete(session.getId(), seller);
+
+        // Assert
+        assertEquals(1000, progress.getOffset());
+        assertSame(media, stored);
+        assertFalse(Files.exists(directory.resolve(session.getId() + ".part")));
+    }
+
+    @Test
+    void chunkAtTheWrongOffsetIsRejectedWithTheCurrentOne() throws IOException {
+        // Arrange
+        uploads.append(session.getId(), 0, chunk(0, 400), seller);
+
+        // Act
+        ResumableUploads.OffsetMismatchException mismatch = assertThrows(ResumableUploads.OffsetMismatchException.class,
+                () -> uploads.append(session.getId(), 200, chunk(200, 600), seller));
+
+        // Assert
+        assertEquals(400, mismatch.getOffset());
+        assertEquals(400, uploads.status(session.getId(), seller).getOffset());
+    }
+
+    @Test
+    void bytesOfADroppedChunkAreKept() {
+        // Arrange - the connection drops after 300 bytes
+        InputStream dropped = dropAfter(chunk(0, 300));
+
+        // Act
+        assertThrows(IOException.class, () -> uploads.append(session.getId(), 0, dropped, seller));
+
+        // Assert
+        assertEquals(300, uploads.status(session.getId(), seller).getOffset());
+    }
+
+    @Test
+    void incompleteUploadCannotBeFinalized() throws IOException {
+        // Arrange
+        uploads.append(session.getId(), 0, chunk(0, 400), seller);
+
+        // Act
+        ResumableUploads.OffsetMismatchException mismatch = assertThrows(ResumableUploads.OffsetMismatchException.class,
+                () -> uploads.complete(session.getId(), seller));
+
+        // Assert
+        assertEquals(400, mismatch.getOffset());
+        verify(mediaService, never()).uploadMediaFile(any(), any(), any(), any(), any());
+    }
+
+    @Test
+    void oversizedChunksAndOtherUsersAreRejected() {
+        Authentication other = new UsernamePasswordAuthenticationToken("other@test.com", null, List.of());
+
+        assertThrows(BadRequestException.class, () -> uploads.append(session.getId(), 0, chunk(0, 700), seller));
+        assertThrows(ForbiddenException.class, () -> uploads.append(session.getId(), 0, chunk(0, 100), other));
+        assertThrows(BadRequestException.class,
+                () -> uploads.create("p-1", "photo.jpg", image.length, "not-a-checksum", seller));
+    }
+
+    @Test
+    void expiredSessionsAndStrayFilesAreCollected() throws IOException {
+        // Arrange
+        session.setExpiresAt(NOW.minusSeconds(1));
+        when(mongoTemplate.find(any(Query.class), eq(UploadSession.class))).thenReturn(List.of(session));
+        Path stray = Files.createFile(directory.resolve("crashed.part"));
+        Files.setLastModifiedTime(stray, FileTime.from(NOW.minus(TTL).minusSeconds(1)));
+        when(mongoTemplate.exists(any(Query.class), eq(UploadSession.class))).thenReturn(false);
+
+        // Act
+        int collected = uploads.collectExpired();
+
+        // Assert
+        assertEquals(2, collected);
+        assertFalse(Files.exists(directory.resolve(session.getId() + ".part")));
+        assertFalse(Files.exists(stray));
+    }
+
+    @Test
+    void chunkIsRejectedWhileAnotherInstanceHoldsTheSession() throws IOException {
+        // Arrange
+        uploads.append(session.getId(), 0, chunk(0, 400), seller);
+        ReflectionTestUtils.setField(session, "lockedUntil", NOW.plusSeconds(30));
+
+        // Act
+        ResumableUploads.OffsetMismatchException busy = assertThrows(ResumableUploads.OffsetMismatchException.class,
+                () -> uploads.append(session.getId(), 400, chunk(400, 1000), seller));
+        ReflectionTestUtils.setField(session, "lockedUntil", NOW);
+        UploadSession resumed = uploads.append(session.getId(), 400, chunk(400, 1000), seller);
+
+        // Assert - the lock of an instance that died lapses
+        assertEquals(400, busy.getOffset());
+        assertEquals(1000, resumed.getOffset());
+        assertNull(session.getLockedUntil());
+    }
+
+    @Test
+    void withS3ChunksCanReachAnyReplica() throws Exception {
+        // Arrange - two replicas sharing the bucket but no disk
+        Map<String, byte[]> bucket = new HashMap<>();
+        S3MediaStorage s3 = bucket(bucket);
+        ResumableUploads first = instance(s3, Files.createDirectories(directory.resolve("first")));
+        ResumableUploads second = instance(s3, Files.createDirectories(directory.resolve("second")));
+        String sessionId = first.create("p-1", "photo.jpg", image.length, sha256(image), seller).getId();
+        Media media = new Media();
+        when(mediaService.uploadMediaFile(any(Path.class), eq("photo.jpg"), eq(sha256(image)), eq("p-1"), eq(seller)))
+                .thenAnswer(invocation -> {
+                    assertArrayEquals(image, Files.readAllBytes(invocation.getArgument(0, Path.class)));
+                    return media;
+                });
+
+        // Act - the second chunk is cut off on one replica and resumed on the other
+        first.append(sessionId, 0, chunk(0, 400), seller);
+        assertThrows(IOException.class, () -> second.append(sessionId, 400, dropAfter(chunk(400, 700)), seller));
+        long offset = second.status(sessionId, seller).getOffset();
+        first.append(sessionId, offset, chunk((int) offset, 1000), seller);
+        Media stored = second.complete(sessionId, seller);
+
+        // Assert
+        assertEquals(700, offset);
+        assertSame(media, stored);
+        assertTrue(bucket.isEmpty());
+        for (String replica : List.of("first", "second")) {
+            try (Stream<Path> files = Files.list(directory.resolve(replica))) {
+                assertEquals(0, files.count(), "no temp files left on " + replica);
+            }
+        }
+    }
+
+    private ResumableUploads instance(MediaStorage storage, Path directory) {
+        return new ResumableUploads(mongoTemplate, mediaService, storage, new SimpleMeterRegistry(),
+                directory.toString(), TTL, 600, 256, 10, Duration.ofMinutes(15), Duration.ofMinutes(2),
+                Clock.fixed(NOW, ZoneOffset.UTC));
+    }
+
+    private void apply(Update update) {
+        Document set = update.getUpdateObject().get("$set", Document.class);
+        if (set != null) {
+            set.forEach((field, value) -> ReflectionTestUtils.setField(session, field, value));
+        }
+        Document unset = update.getUpdateObject().get("$unset", Document.class);
+        if (unset != null) {
+            unset.keySet().forEach(field -> ReflectionTestUtils.setField(session, field, null));
+        }
+        Document inc = update.getUpdateObject().get("$inc", Document.class);
+        if (inc != null) {
+            ReflectionTestUtils.setField(session, "chunks", session.getChunks() + inc.getInteger("chunks"));
+        }
+    }
+
+    // An S3 storage keeping its objects in the map
+    private static S3MediaStorage bucket(Map<String, byte[]> objects) throws IOException {
+        S3MediaStorage s3 = mock(S3MediaStorage.class);
+        doAnswer(invocation -> {
+            Path source = invocation.getArgument(1);
+            objects.put(invocation.getArgument(0), Files.readAllBytes(source));
+            Files.delete(source);
+            return null;
+        }).when(s3).store(anyString(), any(Path.class), anyString());
+        when(s3.open(anyString())).thenAnswer(invocation -> new ByteArrayInputStream(
+                objects.get(invocation.getArgument(0, String.class))));
+        doAnswer(invocation -> objects.remove(invocation.getArgument(0, String.class))).when(s3).delete(anyString());
+        return s3;
+    }
+
+    // The connection drops once the chunk's bytes have been read
+    private static InputStream dropAfter(InputStream bytes) {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int read(byte[] buffer) throws IOException {
+                int read = bytes.read(buffer);
+                if (read < 0) {
+                    throw new IOException("Connection reset");
+                }
+                return read;
+            }
+        };
+    }
+
+    private InputStream chunk(int from, int to) {
+        return new ByteArrayInputStream(image, from, to - from);
+    }
+
+    private static String sha256(byte[] content) throws Exception {
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+    }
+}
@@ -0,0 +1,84 @@
+package com.buyapp.mediaservice.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Compares stat and open latency of the flat and sharded upload layouts.
+ * Not part of the normal build; run with
+ * {@code mvn test -Dtest=ShardedLayoutBenchmark -Dbenchmark.files=1000000}.
+ */
+@EnabledIfSystemProperty(named = "benchmark.files", matches = "\\d+")
+class ShardedLayoutBenchmark {
+
+    private static final int SAMPLES = 20_000;
+
+    @TempDir
+    Path root;
+
+    @Test
+    void statAndOpenLatency() throws IOException {
+        int files = Integer.parseInt(System.getProperty("benchmark.files"));
+        Random random = new Random(42);
+        List<String> names = new ArrayList<>(files);
+        for (int i = 0; i < files; i++) {
+            names.add(new UUID(random.nextLong(), random.nextLong()) + ".jpg");
+        }
+
+        Path flat = Files.createDirectories(root.resolve("flat"));
+        List<Path> flatFiles = new ArrayList<>(files);
+        List<Path> shardedFiles = new ArrayList<>(files);
+        for (String name : names) {
+            flatFiles.add(Files.createFile(flat.resolve(name)));
+            Path sharded = Path.of(ShardedLayout.shardedPath(root.resolve("sharded").toString(), name));
+            Files.createDirectories(sharded.getParent());
+            shardedFiles.add(Files.createFile(sharded));
+        }
+
+        for (int round = 0; round < 2; round++) {
+            // The first round warms up the JIT and the dentry cache
+            report(round, "flat", flatFiles, random);
+            report(round, "sharded", shardedFiles, random);
+        }
+    }
+
+    private void report(int round, String layout, List<Path> files, Random random) throws IOException {
+        long[] stat = new long[SAMPLES];
+        long[] open = new long[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            Path file = files.get(random.nextInt(files.size()));
+            long start = System.nanoTime();
+            Files.readAttributes(file, BasicFileAttributes.class);
+            stat[i] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                open[i] = System.nanoTime() - start;
+            }
+        }
+        if (round > 0) {
+            System.out.printf("%,d files, %-7s stat p50 %6.1f us p99 %6.1f us | open p50 %6.1f us p99 %6.1f us%n",
+                    files.size(), layout, percentile(stat, 50), percentile(stat, 99), percentile(open, 50),
+                    percentile(open, 99));
+        }
+    }
+
+    private static double percentile(long[] nanos, int percentile) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)] / 1000.0;
+    }
+}
@@ -0,0 +1,53 @@
+package com.buyapp.mediaservice.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardedLayoutTest {
+
+    @TempDir
+    Path uploads;
+
+    @Test
+    void fansOutByTheFirstFourHexCharacters() {
+        assertEquals("uploads/images/3f/a8/3FA85f64-5717-4562-b3fc-2c963f66afa6.jpg",
+                ShardedLayout.shardedPath("uploads/images/", "3FA85f64-5717-4562-b3fc-2c963f66afa6.jpg"));
+        assertEquals("uploads/avatars/0b/9d/0b9d2a6e.png", ShardedLayout.shardedPath("uploads/avatars", "0b9d2a6e.png"));
+    }
+
+    @Test
+    void namesThatAreNotHexStillGetAStableShard() {
+        String path = ShardedLayout.shardedPath("uploads/images/", "photo.jpg");
+
+        assertTrue(path.matches("uploads/images/[0-9a-f]{2}/[0-9a-f]{2}/photo\\.jpg"), path);
+        assertEquals(path, ShardedLayout.shardedPath("uploads/images/", "photo.jpg"));
+        assertTrue(ShardedLayout.isSharded(path));
+    }
+
+    @Test
+    void recognisesTheLayoutOfARecordedPath() {
+        assertTrue(ShardedLayout.isSharded("uploads/images/3f/a8/3fa85f64.jpg"));
+        assertFalse(ShardedLayout.isSharded("uploads/images/3fa85f64.jpg"));
+        assertFalse(ShardedLayout.isSharded("uploads/images/00/00/3fa85f64.jpg"));
+    }
+
+    @Test
+    void resolvesFilesUnderEitherLayout() throws IOException {
+        // Arrange - one file already moved, one still flat
+        Path moved = Path.of(ShardedLayout.shardedPath(uploads.toString(), "aaaa1111.jpg"));
+        Files.createDirectories(moved.getParent());
+        Files.writeString(moved, "moved");
+        Path stillFlat = Files.writeString(uploads.resolve("bbbb2222.jpg"), "flat");
+
+        // Act & Assert
+        assertEquals(moved, ShardedLayout.resolve(uploads.resolve("aaaa1111.jpg").toString()));
+        assertEquals(stillFlat, ShardedLayout.resolve(ShardedLayout.shardedPath(uploads.toString(), "bbbb2222.jpg")));
+        assertEquals(uploads.resolve("cccc3333.jpg"), ShardedLayout.resolve(uploads.resolve("cccc3333.jpg").toString()));
+    }
+}
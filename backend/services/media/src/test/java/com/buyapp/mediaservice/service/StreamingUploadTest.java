@@ -0,0 +1,127 @@
+package com.buyapp.mediaservice.service;
+
+import com.buyapp.common.exception.BadRequestException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StreamingUploadTest {
+
+    private static final long MAX_BYTES = 2 * 1024 * 1024;
+
+    @TempDir
+    Path uploads;
+
+    @Test
+    void storesImageWithHashAndDetectedType() throws Exception {
+        // Arrange
+        byte[] png = image(new byte[] { (byte) 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A }, 300 * 1024);
+
+        // Act
+        StreamingUpload upload = StreamingUpload.receive(new ByteArrayInputStream(png), uploads, MAX_BYTES);
+        Path target = uploads.resolve("stored.png");
+        upload.moveTo(target);
+
+        // Assert
+        assertEquals("image/png", upload.getContentType());
+        assertEquals(".png", upload.getExtension());
+        assertEquals(png.length, upload.getSize());
+        assertEquals(HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(png)), upload.getSha256());
+        assertArrayEquals(png, Files.readAllBytes(target));
+        assertEquals(1, fileCount());
+    }
+
+    @Test
+    void readsTheDimensionsFromTheHeader() throws Exception {
+        // Arrange
+        byte[] jpeg = ImageHeaderTest.encode("jpeg", 120, 80);
+
+        // Act
+        StreamingUpload upload = StreamingUpload.receive(new ByteArrayInputStream(jpeg), uploads, MAX_BYTES);
+
+        // Assert
+        assertEquals(120, upload.getHeader().getWidth());
+        assertEquals(80, upload.getHeader().getHeight());
+        upload.discard();
+    }
+
+    @Test
+    void rejectsNonImagesAfterTheFirstBytes() throws IOException {
+        // Arrange - a script posing as an image
+        byte[] script = ("<script>alert(1)</script>" + "x".repeat(100_000)).getBytes(StandardCharsets.UTF_8);
+        CountingInputStream in = new CountingInputStream(new ByteArrayInputStream(script));
+
+        // Act & Assert
+        assertThrows(BadRequestException.class, () -> StreamingUpload.receive(in, uploads, MAX_BYTES));
+        assertTrue(in.count <= 12, "read " + in.count + " bytes");
+        assertEquals(0, fileCount());
+    }
+
+    @Test
+    void rejectsOversizedUploadsWithoutLeavingTempFiles() throws IOException {
+        // Arrange
+        byte[] jpeg = image(new byte[] { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0 }, (int) MAX_BYTES + 1);
+
+        // Act & Assert
+        assertThrows(BadRequestException.class,
+                () -> StreamingUpload.receive(new ByteArrayInputStream(jpeg), uploads, MAX_BYTES));
+        assertEquals(0, fileCount());
+    }
+
+    @Test
+    void recognisesSupportedSignatures() {
+        assertEquals("image/jpeg", StreamingUpload.sniff(new byte[] { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF, 0 }));
+        assertEquals("image/gif", StreamingUpload.sniff("GIF89a......".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals("image/webp", StreamingUpload.sniff("RIFF\0\0\0\0WEBP".getBytes(StandardCharsets.US_ASCII)));
+        assertNull(StreamingUpload.sniff("RIFF\0\0\0\0WAVE".getBytes(StandardCharsets.US_ASCII)));
+        assertNull(StreamingUpload.sniff(new byte[] { (byte) 0xFF }));
+    }
+
+    private static byte[] image(byte[] signature, int length) {
+        byte[] content = new byte[length];
+        new Random(7).nextBytes(content);
+        System.arraycopy(signature, 0, content, 0, signature.length);
+        return content;
+    }
+
+    private long fileCount() throws IOException {
+        try (var files = Files.list(uploads)) {
+            return files.count();
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            count += Math.max(0, read);
+            return read;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            count += read >= 0 ? 1 : 0;
+            return read;
+        }
+    }
+}
@@ -0,0 +1,357 @@
+package com.buyapp.mediaservice.storage;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class S3MediaStorageTest {
+
+    private static final String ACCESS_KEY = "minioadmin";
+    private static final String SECRET_KEY = "minioadmin-secret";
+    private static final int PART_SIZE = 64 * 1024;
+
+    @TempDir
+    Path uploads;
+
+    private FakeS3 s3;
+    private S3MediaStorage storage;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        s3 = new FakeS3();
+        URI endpoint = URI.create("http://localhost:" + s3.port());
+        storage = new S3MediaStorage(new S3Client(endpoint, endpoint, "us-east-1", "media", ACCESS_KEY, SECRET_KEY,
+                PART_SIZE, 4, Clock.systemUTC()), Duration.ofMinutes(15));
+    }
+
+    @AfterEach
+    void tearDown() {
+        s3.stop();
+    }
+
+    @Test
+    void smallFilesAreStoredWithOneSignedPut() throws IOException {
+        // Arrange
+        byte[] photo = bytes(1, 10_000);
+        Path received = Files.write(uploads.resolve("upload-1.part"), photo);
+
+        // Act
+        storage.store("uploads/images/ab/cd/abcd 1.jpg", received, "image/jpeg");
+
+        // Assert
+        assertFalse(Files.exists(received));
+        assertTrue(storage.exists("uploads/images/ab/cd/abcd 1.jpg"));
+        assertEquals("image/jpeg", s3.contentTypes.get("/media/uploads/images/ab/cd/abcd 1.jpg"));
+        try (InputStream in = storage.open("uploads/images/ab/cd/abcd 1.jpg")) {
+            assertArrayEquals(photo, in.readAllBytes());
+        }
+        assertEquals(0, s3.multipartUploads);
+        assertEquals(0, s3.badSignatures);
+    }
+
+    @Test
+    void largeFilesAreStoredAsMultipartUploads() throws IOException {
+        // Arrange
+        byte[] photo = bytes(2, PART_SIZE * 2 + 1_234);
+        Path received = Files.write(uploads.resolve("upload-2.part"), photo);
+
+        // Act
+        storage.store("uploads/images/12/34/1234.jpg", received, "image/jpeg");
+
+        // Assert
+        assertEquals(1, s3.multipartUploads);
+        assertEquals(List.of(PART_SIZE, PART_SIZE, 1_234), s3.partSizes);
+        try (InputStream in = storage.open("uploads/images/12/34/1234.jpg")) {
+            assertArrayEquals(photo, in.readAllBytes());
+        }
+        assertEquals(0, s3.badSignatures);
+    }
+
+    @Test
+    void failedMultipartUploadIsAborted() throws IOException {
+        // Arrange
+        Path received = Files.write(uploads.resolve("upload-3.part"), bytes(3, PART_SIZE * 3));
+        s3.failPart = 2;
+
+        // Act & Assert
+        assertThrows(IOException.class, () -> storage.store("uploads/images/56/78/5678.jpg", received, "image/jpeg"));
+        assertEquals(1, s3.aborted);
+        assertFalse(storage.exists("uploads/images/56/78/5678.jpg"));
+    }
+
+    @Test
+    void completionWhoseResponseIsLostIsNotMistakenForAFailure() throws IOException {
+        // Arrange
+        byte[] photo = bytes(6, PART_SIZE + 1);
+        Path received = Files.write(uploads.resolve("upload-6.part"), photo);
+        s3.dropResponse = "complete";
+
+        // Act
+        storage.store("uploads/images/9f/00/9f00.jpg", received, "image/jpeg");
+
+        // Assert
+        assertEquals(2, s3.completions);
+        assertEquals(0, s3.aborted);
+        try (InputStream in = storage.open("uploads/images/9f/00/9f00.jpg")) {
+            assertArrayEquals(photo, in.readAllBytes());
+        }
+    }
+
+    @Test
+    void otherPostsAreNotRepeated() throws IOException {
+        // Arrange
+        Path received = Files.write(uploads.resolve("upload-7.part"), bytes(7, PART_SIZE + 1));
+        s3.dropResponse = "initiate";
+
+        // Act & Assert
+        assertThrows(IOException.class, () -> storage.store("uploads/images/9f/01/9f01.jpg", received, "image/jpeg"));
+        assertEquals(1, s3.multipartUploads);
+    }
+
+    @Test
+    void missingObjectsAndDeletes() throws IOException {
+        // Arrange
+        storage.store("uploads/avatars/9a/bc/9abc.png", Files.write(uploads.resolve("upload-4.part"), bytes(4, 100)),
+                "image/png");
+
+        // Act
+        storage.delete("uploads/avatars/9a/bc/9abc.png");
+
+        // Assert
+        assertFalse(storage.exists("uploads/avatars/9a/bc/9abc.png"));
+        assertThrows(NoSuchFileException.class, () -> storage.open("uploads/avatars/9a/bc/9abc.png"));
+        assertTrue(storage.localFile("uploads/avatars/9a/bc/9abc.png").isEmpty());
+    }
+
+    @Test
+    void presignedUrlsDownloadWithoutCredentials() throws Exception {
+        // Arrange
+        byte[] photo = bytes(5, 5_000);
+        storage.store("uploads/images/de/f0/def0.jpg", Files.write(uploads.resolve("upload-5.part"), photo),
+                "image/jpeg");
+
+        // Act
+        URI url = storage.presignedUrl("uploads/images/de/f0/def0.jpg").orElseThrow();
+        HttpResponse<byte[]> response = HttpClient.newHttpClient().send(HttpRequest.newBuilder(url).build(),
+                HttpResponse.BodyHandlers.ofByteArray());
+
+        // Assert
+        assertEquals(200, response.statusCode());
+        assertArrayEquals(photo, response.body());
+        assertEquals(url, storage.presignedUrl("uploads/images/de/f0/def0.jpg").orElseThrow());
+        assertEquals(0, s3.badSignatures);
+    }
+
+    private static byte[] bytes(int seed, int length) {
+        byte[] content = new byte[length];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+
+    /**
+     * Just enough of the S3 REST API, checking every request's signature.
+     */
+    private static final class FakeS3 {
+
+        private static final Pattern SIGNED_HEADERS = Pattern.compile("SignedHeaders=([^,]+)");
+        private static final Pattern PART = Pattern.compile("<PartNumber>(\\d+)</PartNumber><ETag>\"([^\"]+)\"</ETag>");
+        private static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'")
+                .withZone(ZoneOffset.UTC);
+
+        private final SigV4Signer signer = new SigV4Signer(ACCESS_KEY, SECRET_KEY, "us-east-1");
+        private final HttpServer server;
+        private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+        private final Map<String, String> contentTypes = new ConcurrentHashMap<>();
+        private final Map<String, byte[]> parts = new ConcurrentHashMap<>();
+        private final List<Integer> partSizes = new ArrayList<>();
+        private final Set<String> completed = ConcurrentHashMap.newKeySet();
+        private volatile int multipartUploads;
+        private volatile int aborted;
+        private volatile int badSignatures;
+        private volatile int failPart;
+        private volatile int completions;
+        // Closes the connection instead of answering the next request of this kind, once
+        private volatile String dropResponse;
+
+        FakeS3() throws IOException {
+            server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+            server.createContext("/", exchange -> {
+                try (exchange) {
+                    handle(exchange);
+                }
+            });
+            server.start();
+        }
+
+        int port() {
+            return server.getAddress().getPort();
+        }
+
+        void stop() {
+            server.stop(0);
+        }
+
+        private void handle(HttpExchange exchange) throws IOException {
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+            SortedMap<String, String> query = query(exchange.getRequestURI().getRawQuery());
+            byte[] body = exchange.getRequestBody().readAllBytes();
+
+            if (!validSignature(exchange, query)) {
+                badSignatures++;
+                respond(exchange, 403, "<Error><Code>SignatureDoesNotMatch</Code></Error>");
+                return;
+            }
+
+            if (method.equals("POST") && query.containsKey("uploads")) {
+                multipartUploads++;
+                contentTypes.put(path, exchange.getRequestHeaders().getFirst("Content-Type"));
+                drop("initiate");
+                respond(exchange, 200, "<InitiateMultipartUploadResult><UploadId>upload-" + multipartUploads
+                        + "</UploadId></InitiateMultipartUploadResult>");
+            } else if (method.equals("PUT") && query.containsKey("partNumber")) {
+                int partNumber = Integer.parseInt(query.get("partNumber"));
+                if (partNumber == failPart) {
+                    respond(exchange, 500, "<Error><Code>InternalError</Code></Error>");
+                    return;
+                }
+                String etag = "etag-" + partNumber;
+                parts.put(query.get("uploadId") + "/" + etag, body);
+                partSizes.add(body.length);
+                exchange.getResponseHeaders().set("ETag", "\"" + etag + "\"");
+                respond(exchange, 200, "");
+            } else if (method.equals("POST") && query.containsKey("uploadId")) {
+                completions++;
+                if (!completed.add(query.get("uploadId"))) {
+                    respond(exchange, 404, "<Error><Code>NoSuchUpload</Code></Error>");
+                    return;
+                }
+                ByteArrayOutputStream assembled = new ByteArrayOutputStream();
+                Matcher part = PART.matcher(new String(body, StandardCharsets.UTF_8));
+                while (part.find()) {
+                    assembled.write(parts.remove(query.get("uploadId") + "/" + part.group(2)));
+                }
+                objects.put(path, assembled.toByteArray());
+                drop("complete");
+                respond(exchange, 200, "<CompleteMultipartUploadResult/>");
+            } else if (method.equals("DELETE") && query.containsKey("uploadId")) {
+                aborted++;
+                parts.keySet().removeIf(key -> key.startsWith(query.get("uploadId") + "/"));
+                respond(exchange, 204, null);
+            } else if (method.equals("PUT")) {
+                objects.put(path, body);
+                contentTypes.put(path, exchange.getRequestHeaders().getFirst("Content-Type"));
+                respond(exchange, 200, "");
+            } else if (method.equals("DELETE")) {
+                objects.remove(path);
+                respond(exchange, 204, null);
+            } else if (!objects.containsKey(path)) {
+                respond(exchange, 404, method.equals("HEAD") ? null : "<Error><Code>NoSuchKey</Code></Error>");
+            } else if (method.equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+            } else {
+                byte[] content = objects.get(path);
+                exchange.sendResponseHeaders(200, content.length);
+                exchange.getResponseBody().write(content);
+            }
+        }
+
+        private void drop(String request) throws IOException {
+            if (request.equals(dropResponse)) {
+                dropResponse = null;
+                throw new IOException("Dropped the response to " + request);
+            }
+        }
+
+        // Signs the request as received and compares, as S3 does
+        private boolean validSignature(HttpExchange exchange, SortedMap<String, String> query) {
+            String rawPath = exchange.getRequestURI().getRawPath();
+            String host = exchange.getRequestHeaders().getFirst("Host");
+            String method = exchange.getRequestMethod();
+
+            if (query.containsKey("X-Amz-Signature")) {
+                Instant signedAt = AMZ_DATE.parse(query.get("X-Amz-Date"), Instant::from);
+                String expected = signer.presignedQuery(method, rawPath, host,
+                        Duration.ofSeconds(Long.parseLong(query.get("X-Amz-Expires"))), signedAt);
+                return expected.endsWith("X-Amz-Signature=" + query.get("X-Amz-Signature"));
+            }
+
+            String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+            if (authorization == null) {
+                return false;
+            }
+            Matcher signedHeaders = SIGNED_HEADERS.matcher(authorization);
+            if (!signedHeaders.find()) {
+                return false;
+            }
+            SortedMap<String, String> headers = new TreeMap<>();
+            for (String name : signedHeaders.group(1).split(";")) {
+                String value = exchange.getRequestHeaders().getFirst(name);
+                if (value == null) {
+                    return false;
+                }
+                headers.put(name, value);
+            }
+            return authorization.equals(signer.authorization(method, rawPath, query, headers,
+                    exchange.getRequestHeaders().getFirst("x-amz-content-sha256")));
+        }
+
+        private static SortedMap<String, String> query(String rawQuery) {
+            SortedMap<String, String> query = new TreeMap<>();
+            if (rawQuery != null) {
+                for (String parameter : rawQuery.split("&")) {
+                    int equals = parameter.indexOf('=');
+                    String name = equals < 0 ? parameter : parameter.substring(0, equals);
+                    String value = equals < 0 ? "" : parameter.substring(equals + 1);
+                    query.put(URLDecoder.decode(name, StandardCharsets.UTF_8),
+                            URLDecoder.decode(value, StandardCharsets.UTF_8));
+                }
+            }
+            return query;
+        }
+
+        private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+            if (body == null) {
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+            exchange.getResponseBody().write(bytes);
+        }
+    }
+}
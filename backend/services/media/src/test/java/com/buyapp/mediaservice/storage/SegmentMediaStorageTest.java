@@ -0,0 +1,192 @@
+package com.buyapp.mediaservice.storage;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SegmentMediaStorageTest {
+
+    private static final long SEGMENT_BYTES = 64 * 1024;
+
+    @TempDir
+    Path uploads;
+
+    private final List<SegmentMediaStorage> opened = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() throws IOException {
+        for (SegmentMediaStorage storage : opened) {
+            storage.close();
+        }
+    }
+
+    @Test
+    void storedImagesAreReadFromTheMappedSegment() throws IOException {
+        // Arrange
+        SegmentMediaStorage storage = open();
+        byte[] photo = bytes(1, 20_000);
+        Path received = received(photo);
+
+        // Act
+        storage.store("uploads/images/ab/cd/abcd.jpg", received, "image/jpeg");
+
+        // Assert
+        assertFalse(Files.exists(received));
+        assertTrue(storage.exists("uploads/images/ab/cd/abcd.jpg"));
+        assertTrue(storage.localFile("uploads/images/ab/cd/abcd.jpg").isEmpty());
+        ByteBuffer mapped = storage.mappedContent("uploads/images/ab/cd/abcd.jpg").orElseThrow();
+        byte[] content = new byte[mapped.remaining()];
+        mapped.get(content);
+        assertArrayEquals(photo, content);
+        try (InputStream in = storage.open("uploads/images/ab/cd/abcd.jpg")) {
+            assertArrayEquals(photo, in.readAllBytes());
+        }
+        assertThrows(NoSuchFileException.class, () -> storage.open("uploads/images/ef/01/ef01.jpg"));
+    }
+
+    @Test
+    void fullSegmentsRollOver() throws IOException {
+        // Arrange
+        SegmentMediaStorage storage = open();
+
+        // Act - five 20 KB images into 64 KB segments
+        for (int i = 0; i < 5; i++) {
+            storage.store("img-" + i, received(bytes(i, 20_000)), "image/jpeg");
+        }
+
+        // Assert
+        assertEquals(2, segmentFiles());
+        for (int i = 0; i < 5; i++) {
+            assertContent(storage, "img-" + i, bytes(i, 20_000));
+        }
+    }
+
+    @Test
+    void compactionReclaimsDeletedAndReplacedImages() throws IOException {
+        // Arrange - three full segments, then delete or replace most of the first two
+        SegmentMediaStorage storage = open();
+        for (int i = 0; i < 9; i++) {
+            storage.store("img-" + i, received(bytes(i, 20_000)), "image/jpeg");
+        }
+        storage.delete("img-0");
+        storage.delete("img-1");
+        storage.delete("img-3");
+        storage.store("img-4", received(bytes(40, 20_000)), "image/jpeg");
+        long before = storage.totalBytes();
+
+        // Act
+        long reclaimed = storage.compact();
+
+        // Assert
+        assertTrue(reclaimed >= 4 * 20_000, "reclaimed " + reclaimed);
+        assertEquals(before - reclaimed, storage.totalBytes());
+        // Only the tombstones of the deletes are left
+        assertTrue(storage.garbageBytes() < 100, "garbage " + storage.garbageBytes());
+        assertFalse(storage.exists("img-0"));
+        assertContent(storage, "img-2", bytes(2, 20_000));
+        assertContent(storage, "img-4", bytes(40, 20_000));
+        assertContent(storage, "img-5", bytes(5, 20_000));
+
+        // And the compacted layout survives a restart
+        storage.close();
+        opened.remove(storage);
+        SegmentMediaStorage reopened = open();
+        assertFalse(reopened.exists("img-3"));
+        assertContent(reopened, "img-2", bytes(2, 20_000));
+        assertContent(reopened, "img-8", bytes(8, 20_000));
+    }
+
+    @Test
+    void restartLoadsTheIndexAndReplaysLaterWrites() throws IOException {
+        // Arrange - a clean shutdown, then writes that only reach the segments
+        SegmentMediaStorage first = open();
+        first.store("kept", received(bytes(1, 10_000)), "image/jpeg");
+        first.store("deleted", received(bytes(2, 10_000)), "image/jpeg");
+        first.close();
+        opened.remove(first);
+
+        SegmentMediaStorage second = open();
+        second.delete("deleted");
+        second.store("added", received(bytes(3, 10_000)), "image/jpeg");
+
+        // Act - as if the second instance had crashed
+        SegmentMediaStorage recovered = open();
+
+        // Assert
+        assertContent(recovered, "kept", bytes(1, 10_000));
+        assertContent(recovered, "added", bytes(3, 10_000));
+        assertFalse(recovered.exists("deleted"));
+    }
+
+    @Test
+    void recordCutShortByACrashIsTruncated() throws IOException {
+        // Arrange
+        SegmentMediaStorage storage = open();
+        storage.store("complete", received(bytes(1, 10_000)), "image/jpeg");
+        storage.close();
+        opened.remove(storage);
+        Path segment = segmentPaths().get(0);
+        long intact = Files.size(segment);
+        // Header of a record whose data never made it to disk
+        Files.write(segment, ByteBuffer.allocate(SegmentMediaStorage.HEADER_BYTES + 4)
+                .putInt(0x5345474D).putInt(0).putInt(4).putInt(50_000).array(), StandardOpenOption.APPEND);
+
+        // Act
+        SegmentMediaStorage recovered = open();
+        recovered.store("after", received(bytes(2, 5_000)), "image/jpeg");
+
+        // Assert
+        assertContent(recovered, "complete", bytes(1, 10_000));
+        assertContent(recovered, "after", bytes(2, 5_000));
+        assertTrue(Files.size(segment) > intact);
+    }
+
+    private SegmentMediaStorage open() throws IOException {
+        SegmentMediaStorage storage = new SegmentMediaStorage(new SimpleMeterRegistry(),
+                uploads.resolve("segments").toString(), SEGMENT_BYTES, 0.4, Duration.ofMinutes(10));
+        opened.add(storage);
+        return storage;
+    }
+
+    private Path received(byte[] content) throws IOException {
+        return Files.write(Files.createTempFile(uploads, "upload-", ".part"), content);
+    }
+
+    private static void assertContent(SegmentMediaStorage storage, String key, byte[] expected) throws IOException {
+        try (InputStream in = storage.open(key)) {
+            assertArrayEquals(expected, in.readAllBytes(), key);
+        }
+    }
+
+    private static byte[] bytes(int seed, int length) {
+        byte[] content = new byte[length];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+
+    private List<Path> segmentPaths() throws IOException {
+        try (Stream<Path> files = Files.list(uploads.resolve("segments"))) {
+            return files.filter(file -> file.getFileName().toString().startsWith("segment-")).sorted().toList();
+        }
+    }
+
+    private long segmentFiles() throws IOException {
+        return segmentPaths().size();
+    }
+}
@@ -0,0 +1,121 @@
+package com.buyapp.mediaservice.storage;
+
+import com.buyapp.mediaservice.service.ShardedLayout;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Compares write and random-read throughput of the per-file layout
+ * ({@link LocalMediaStorage}) and the {@link SegmentMediaStorage}, with
+ * images of 50-500 KB. Not part of the normal build; run with
+ * {@code mvn test -Dtest=SegmentStoreBenchmark -Dbenchmark.images=5000}.
+ */
+@EnabledIfSystemProperty(named = "benchmark.images", matches = "\\d+")
+class SegmentStoreBenchmark {
+
+    private static final int READS = 50_000;
+
+    @TempDir
+    Path root;
+
+    @Test
+    void writeAndReadThroughput() throws IOException {
+        int images = Integer.parseInt(System.getProperty("benchmark.images"));
+        Random random = new Random(42);
+        byte[] pool = new byte[500 * 1024];
+        random.nextBytes(pool);
+        List<String> names = new ArrayList<>(images);
+        int[] sizes = new int[images];
+        for (int i = 0; i < images; i++) {
+            names.add(new UUID(random.nextLong(), random.nextLong()) + ".jpg");
+            sizes[i] = 50 * 1024 + random.nextInt(450 * 1024);
+        }
+        long totalBytes = Arrays.stream(sizes).asLongStream().sum();
+
+        LocalMediaStorage files = new LocalMediaStorage();
+        SegmentMediaStorage segments = new SegmentMediaStorage(new SimpleMeterRegistry(),
+                root.resolve("segments").toString(), 1024L * 1024 * 1024, 0.4, Duration.ofHours(1));
+        List<String> fileKeys = new ArrayList<>(images);
+        List<String> segmentKeys = new ArrayList<>(images);
+        Path incoming = Files.createDirectories(root.resolve("incoming"));
+
+        long fileNanos = 0;
+        long segmentNanos = 0;
+        for (int i = 0; i < images; i++) {
+            String fileKey = ShardedLayout.shardedPath(root.resolve("images").toString(), names.get(i));
+            Path received = Files.write(incoming.resolve("a.part"), Arrays.copyOf(pool, sizes[i]));
+            long start = System.nanoTime();
+            files.store(fileKey, received, "image/jpeg");
+            fileNanos += System.nanoTime() - start;
+            fileKeys.add(fileKey);
+
+            String segmentKey = "uploads/images/" + names.get(i);
+            received = Files.write(incoming.resolve("b.part"), Arrays.copyOf(pool, sizes[i]));
+            start = System.nanoTime();
+            segments.store(segmentKey, received, "image/jpeg");
+            segmentNanos += System.nanoTime() - start;
+            segmentKeys.add(segmentKey);
+        }
+        // The segment store fsyncs every append; the file layout leaves that to the page cache
+        report("write", "per-file", images, totalBytes, fileNanos);
+        report("write", "segments", images, totalBytes, segmentNanos);
+
+        byte[] target = new byte[500 * 1024];
+        ByteBuffer heap = ByteBuffer.wrap(target);
+        for (int round = 0; round < 2; round++) {
+            // The first round warms up the JIT and the page cache
+            long[] bytes = new long[1];
+            long start = System.nanoTime();
+            Random order = new Random(round);
+            for (int i = 0; i < READS; i++) {
+                Path file = files.localFile(fileKeys.get(order.nextInt(images))).orElseThrow();
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    heap.clear();
+                    while (channel.read(heap) > 0) {
+                        // Fill the buffer
+                    }
+                    bytes[0] += heap.position();
+                }
+            }
+            long perFile = System.nanoTime() - start;
+            long perFileBytes = bytes[0];
+
+            bytes[0] = 0;
+            start = System.nanoTime();
+            order = new Random(round);
+            for (int i = 0; i < READS; i++) {
+                ByteBuffer content = segments.mappedContent(segmentKeys.get(order.nextInt(images))).orElseThrow();
+                int length = content.remaining();
+                content.get(target, 0, length);
+                bytes[0] += length;
+            }
+            long segmented = System.nanoTime() - start;
+            if (round > 0) {
+                report("read", "per-file", READS, perFileBytes, perFile);
+                report("read", "segments", READS, bytes[0], segmented);
+            }
+        }
+        segments.close();
+    }
+
+    private static void report(String operation, String layout, int count, long bytes, long nanos) {
+        double seconds = nanos / 1e9;
+        System.out.printf("%-5s %-8s %,8.0f images/s %,8.1f MB/s%n", operation, layout, count / seconds,
+                bytes / seconds / (1024 * 1024));
+    }
+}
@@ -1,5 +1,6 @@
 package com.buyapp.productservice.config;
 
+import com.buyapp.common.event.MediaEvent;
 import com.buyapp.common.event.ProductEvent;
 import com.buyapp.common.event.UserEvent;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
@@ -58,4 +59,23 @@ public class KafkaConfig {
         factory.setConsumerFactory(userEventConsumerFactory());
         return factory;
     }
+
+    @Bean
+    public ConsumerFactory<String, MediaEvent> mediaEventConsumerFactory() {
+        Map<String, Object> configProps = new HashMap<>();
+        configProps.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+        configProps.put(ConsumerConfig.GROUP_ID_CONFIG, "product-service-group");
+        configProps.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class);
+        configProps.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, JsonDeserializer.class);
+        configProps.put(JsonDeserializer.TRUSTED_PACKAGES, "*");
+        configProps.put(JsonDeserializer.VALUE_DEFAULT_TYPE, MediaEvent.class.getName());
+        return new DefaultKafkaConsumerFactory<>(configProps);
+    }
+
+    @Bean
+    public ConcurrentKafkaListenerContainerFactory<String, MediaEvent> mediaEventKafkaListenerContainerFactory() {
+        ConcurrentKafkaListenerContainerFactory<String, MediaEvent> factory = new ConcurrentKafkaListenerContainerFactory<>();
+        factory.setConsumerFactory(mediaEventConsumerFactory());
+        return factory;
+    }
 }
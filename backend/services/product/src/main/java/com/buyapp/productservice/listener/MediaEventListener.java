@@ -0,0 +1,42 @@
+package com.buyapp.productservice.listener;
+
+import com.buyapp.common.event.MediaEvent;
+import com.buyapp.productservice.service.ProductService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps each product's primary image and image count in step with the
+ * Media Service, so product listings can show them without asking it.
+ */
+@Component
+public class MediaEventListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(MediaEventListener.class);
+
+    private final ProductService productService;
+
+    public MediaEventListener(ProductService productService) {
+        this.productService = productService;
+    }
+
+    @KafkaListener(topics = "${kafka.topic.media-events}", groupId = "product-service-group", containerFactory = "mediaEventKafkaListenerContainerFactory")
+    public void handleMediaEvent(MediaEvent event) {
+        logger.info("Received media event: {}", event);
+
+        if (event.getProductId() == null || event.getMediaId() == null) {
+            return;
+        }
+        try {
+            switch (event.getEventType()) {
+                case IMAGE_UPLOADED -> productService.addMedia(event.getProductId(), event.getMediaId());
+                case IMAGE_DELETED -> productService.removeMedia(event.getProductId(), event.getMediaId());
+                default -> logger.warn("Unknown media event type: {}", event.getEventType());
+            }
+        } catch (Exception e) {
+            logger.error("Error applying media event for product: {}", event.getProductId(), e);
+        }
+    }
+}
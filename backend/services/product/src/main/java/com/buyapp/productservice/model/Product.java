@@ -10,6 +10,8 @@ import jakarta.validation.constraints.NotBlank;
 import jakarta.validation.constraints.Positive;
 import jakarta.validation.constraints.Size;
 
+import java.util.List;
+
 @Document(collection = "products")
 public class Product {
     @Id
@@ -33,6 +35,11 @@ public class Product {
     @Field("userId")
     private String userId;
 
+    // The product's images in upload order, maintained from media events; the first is the primary image
+    private List<String> mediaIds;
+    private String primaryMediaId;
+    private Integer imageCount;
+
     public Product() {
     }
 
@@ -89,4 +96,16 @@ public class Product {
     public void setUserId(String userId) {
         this.userId = userId;
     }
-}
\ No newline at end of file
+
+    public List<String> getMediaIds() {
+        return mediaIds;
+    }
+
+    public String getPrimaryMediaId() {
+        return primaryMediaId;
+    }
+
+    public Integer getImageCount() {
+        return imageCount;
+    }
+}
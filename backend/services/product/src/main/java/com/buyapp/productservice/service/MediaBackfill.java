@@ -0,0 +1,108 @@
+package com.buyapp.productservice.service;
+
+import com.buyapp.productservice.model.Product;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fills in the images of products created before media events were applied
+ * to them, so that listings show their primary image too.
+ *
+ * Runs in the background after startup while some product has never had its
+ * images recorded, asking the Media Service for them a page of products at a
+ * time. Every product it visits gets its images recorded, even none, so the
+ * backfill is a no-op once it has completed. If the Media Service can't be
+ * reached, the next startup tries again.
+ */
+@Service
+public class MediaBackfill {
+
+    private static final Logger logger = LoggerFactory.getLogger(MediaBackfill.class);
+
+    // The most products the Media Service looks up in one request
+    static final int PAGE_SIZE = 100;
+
+    private static final ParameterizedTypeReference<Map<String, List<MediaRef>>> MEDIA_BY_PRODUCT =
+            new ParameterizedTypeReference<>() {
+            };
+
+    // The only field of the Media Service's media needed here
+    record MediaRef(String id) {
+    }
+
+    private final MongoTemplate mongoTemplate;
+    private final WebClient.Builder webClientBuilder;
+    private final ProductService productService;
+
+    public MediaBackfill(MongoTemplate mongoTemplate, WebClient.Builder webClientBuilder,
+            ProductService productService) {
+        this.mongoTemplate = mongoTemplate;
+        this.webClientBuilder = webClientBuilder;
+        this.productService = productService;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void startBackfill() {
+        if (!mongoTemplate.exists(notRecorded(), Product.class)) {
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                backfill();
+            } catch (RuntimeException e) {
+                logger.warn("Product media backfill failed: {}", e.getMessage());
+            }
+        }, "product-media-backfill");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return the number of products found to have images
+     */
+    public int backfill() {
+        Query query = notRecorded();
+        query.fields().include("_id");
+        List<String> productIds = mongoTemplate.find(query, Product.class).stream().map(Product::getId).toList();
+
+        int withImages = 0;
+        for (int from = 0; from < productIds.size(); from += PAGE_SIZE) {
+            List<String> page = productIds.subList(from, Math.min(from + PAGE_SIZE, productIds.size()));
+            Map<String, List<MediaRef>> media = webClientBuilder.build()
+                    .get()
+                    .uri("http://media-service/media/product/batch?ids={ids}", String.join(",", page))
+                    .retrieve()
+                    .bodyToMono(MEDIA_BY_PRODUCT)
+                    .block();
+
+            for (String productId : page) {
+                // In upload order, so the first is the primary image
+                List<String> mediaIds = (media == null ? List.<MediaRef>of() : media.getOrDefault(productId, List.of()))
+                        .stream()
+                        .map(MediaRef::id)
+                        .toList();
+                productService.backfillMedia(productId, mediaIds);
+                if (!mediaIds.isEmpty()) {
+                    withImages++;
+                }
+            }
+        }
+        logger.info("Product media backfill: {} products, {} with images", productIds.size(), withImages);
+        return withImages;
+    }
+
+    private static Query notRecorded() {
+        return Query.query(Criteria.where("mediaIds").exists(false));
+    }
+}
@@ -7,7 +7,13 @@ import com.buyapp.common.exception.ForbiddenException;
 import com.buyapp.common.exception.ResourceNotFoundException;
 import com.buyapp.productservice.model.Product;
 import com.buyapp.productservice.repository.ProductRepository;
+import org.bson.Document;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.security.core.Authentication;
 import org.springframework.stereotype.Service;
 import org.springframework.web.reactive.function.client.WebClient;
@@ -28,6 +34,9 @@ public class ProductService {
     @Autowired
     private ProductEventProducer productEventProducer;
 
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
     public List<ProductDto> getAllProducts() {
         return productRepository.findAll()
                 .stream()
@@ -84,7 +93,13 @@ public class ProductService {
         existing.setPrice(productDto.getPrice());
         existing.setQuality(productDto.getQuality());
 
-        Product updated = productRepository.save(existing);
+        // Only the editable fields; saving the whole document could undo a media event applied meanwhile
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(id)), new Update()
+                .set("name", existing.getName())
+                .set("description", existing.getDescription())
+                .set("price", existing.getPrice())
+                .set("quality", existing.getQuality()), Product.class);
+        Product updated = existing;
 
         // Publish PRODUCT_UPDATED event
         UserDto user = getUserById(updated.getUserId());
@@ -195,6 +210,52 @@ public class ProductService {
         }
     }
 
+    /**
+     * Records an uploaded image of the product. Applying the same event twice
+     * changes nothing, so redelivered events are harmless.
+     */
+    public void addMedia(String productId, String mediaId) {
+        Document ids = new Document("$ifNull", List.of("$mediaIds", List.of()));
+        Document withMedia = new Document("$cond", List.of(
+                new Document("$in", List.of(mediaId, "$$ids")),
+                "$$ids",
+                new Document("$concatArrays", List.of("$$ids", List.of(mediaId)))));
+        updateMedia(productId, new Document("$let", new Document("vars", new Document("ids", ids))
+                .append("in", withMedia)));
+    }
+
+    /**
+     * Forgets a deleted image of the product; if it was the primary image, the
+     * next one in upload order takes its place.
+     */
+    public void removeMedia(String productId, String mediaId) {
+        updateMedia(productId, new Document("$filter", new Document("input",
+                new Document("$ifNull", List.of("$mediaIds", List.of())))
+                .append("cond", new Document("$ne", List.of("$$this", mediaId)))));
+    }
+
+    /**
+     * Records images the product had before its images were tracked here.
+     * They are older than any image an event recorded in the meantime, so
+     * they go first; images already recorded are not added twice.
+     */
+    public void backfillMedia(String productId, List<String> mediaIds) {
+        Document recorded = new Document("$ifNull", List.of("$mediaIds", List.of()));
+        Document older = new Document("$filter", new Document("input", mediaIds)
+                .append("cond", new Document("$not", List.of(new Document("$in", List.of("$$this", "$$ids"))))));
+        updateMedia(productId, new Document("$let", new Document("vars", new Document("ids", recorded))
+                .append("in", new Document("$concatArrays", List.of(older, "$$ids")))));
+    }
+
+    // One pipeline update, so mediaIds and the fields derived from it never disagree
+    private void updateMedia(String productId, Document mediaIds) {
+        AggregationUpdate update = AggregationUpdate.from(List.of(
+                context -> new Document("$set", new Document("mediaIds", mediaIds)),
+                context -> new Document("$set", new Document("imageCount", new Document("$size", "$mediaIds"))
+                        .append("primaryMediaId", new Document("$arrayElemAt", List.of("$mediaIds", 0))))));
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(productId)), update, Product.class);
+    }
+
     private ProductDto toDto(Product product) {
         ProductDto dto = new ProductDto();
         dto.setId(product.getId());
@@ -202,6 +263,8 @@ public class ProductService {
         dto.setDescription(product.getDescription());
         dto.setPrice(product.getPrice());
         dto.setQuality(product.getQuality());
+        dto.setPrimaryMediaId(product.getPrimaryMediaId());
+        dto.setImageCount(product.getImageCount() != null ? product.getImageCount() : 0);
 
         // Convert userId to email for display via User Service call
         UserDto user = getUserById(product.getUserId());
@@ -0,0 +1,64 @@
+package com.buyapp.productservice.listener;
+
+import com.buyapp.common.event.MediaEvent;
+import com.buyapp.productservice.service.ProductService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class MediaEventListenerTest {
+
+    @Mock
+    private ProductService productService;
+
+    private MediaEventListener listener;
+
+    @BeforeEach
+    void setUp() {
+        listener = new MediaEventListener(productService);
+    }
+
+    @Test
+    void whenImageUploaded_thenAddsItToTheProduct() {
+        // Arrange
+        MediaEvent event = new MediaEvent(MediaEvent.EventType.IMAGE_UPLOADED, "media-1", "prod-1",
+                "seller@example.com");
+
+        // Act
+        listener.handleMediaEvent(event);
+
+        // Assert
+        verify(productService).addMedia("prod-1", "media-1");
+    }
+
+    @Test
+    void whenImageDeleted_thenRemovesItFromTheProduct() {
+        // Arrange
+        MediaEvent event = new MediaEvent(MediaEvent.EventType.IMAGE_DELETED, "media-1", "prod-1",
+                "seller@example.com");
+
+        // Act
+        listener.handleMediaEvent(event);
+
+        // Assert
+        verify(productService).removeMedia("prod-1", "media-1");
+    }
+
+    @Test
+    void whenServiceThrows_thenErrorIsLogged() {
+        // Arrange
+        MediaEvent event = new MediaEvent(MediaEvent.EventType.IMAGE_UPLOADED, "media-2", "prod-2", null);
+        doThrow(new RuntimeException("Mongo is down")).when(productService).addMedia("prod-2", "media-2");
+
+        // Act: should not throw - error is caught and logged
+        listener.handleMediaEvent(event);
+
+        // Assert
+        verify(productService).addMedia("prod-2", "media-2");
+    }
+}
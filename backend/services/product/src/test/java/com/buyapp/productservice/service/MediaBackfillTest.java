@@ -0,0 +1,106 @@
+package com.buyapp.productservice.service;
+
+import com.buyapp.productservice.model.Product;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class MediaBackfillTest {
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    @Mock
+    private WebClient.Builder webClientBuilder;
+
+    @Mock
+    private ProductService productService;
+
+    private MediaBackfill mediaBackfill;
+
+    @BeforeEach
+    void setUp() {
+        mediaBackfill = new MediaBackfill(mongoTemplate, webClientBuilder, productService);
+    }
+
+    @Test
+    void nothingToDoOnceEveryProductHasItsImagesRecorded() {
+        // Arrange
+        when(mongoTemplate.exists(any(Query.class), eq(Product.class))).thenReturn(false);
+
+        // Act
+        mediaBackfill.startBackfill();
+
+        // Assert
+        verifyNoInteractions(webClientBuilder, productService);
+    }
+
+    @Test
+    void imagesOfExistingProductsAreRecordedInUploadOrder() {
+        // Arrange
+        when(mongoTemplate.find(any(Query.class), eq(Product.class)))
+                .thenReturn(List.of(product("p-1"), product("p-2")));
+        WebClient.RequestHeadersUriSpec<?> request = mediaService(Map.of(
+                "p-1", List.of(new MediaBackfill.MediaRef("m-1"), new MediaBackfill.MediaRef("m-2")),
+                "p-2", List.of()));
+
+        // Act
+        int withImages = mediaBackfill.backfill();
+
+        // Assert
+        assertEquals(1, withImages);
+        verify(request).uri(anyString(), eq("p-1,p-2"));
+        verify(productService).backfillMedia("p-1", List.of("m-1", "m-2"));
+        // Recorded as having no images, so it is not visited again
+        verify(productService).backfillMedia("p-2", List.of());
+    }
+
+    @Test
+    void productsAreLookedUpAPageAtATime() {
+        // Arrange
+        List<Product> products = IntStream.range(0, MediaBackfill.PAGE_SIZE + 1).mapToObj(i -> product("p-" + i))
+                .toList();
+        when(mongoTemplate.find(any(Query.class), eq(Product.class))).thenReturn(products);
+        WebClient.RequestHeadersUriSpec<?> request = mediaService(Map.of());
+
+        // Act
+        mediaBackfill.backfill();
+
+        // Assert
+        verify(request, times(2)).uri(anyString(), any(Object[].class));
+        verify(productService, times(MediaBackfill.PAGE_SIZE + 1)).backfillMedia(anyString(), eq(List.of()));
+    }
+
+    private static Product product(String id) {
+        return new Product(id, "Lamp", "Desk lamp", 25.0, 3, "user1");
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private WebClient.RequestHeadersUriSpec<?> mediaService(Map<String, List<MediaBackfill.MediaRef>> media) {
+        WebClient webClient = mock(WebClient.class);
+        WebClient.RequestHeadersUriSpec request = mock(WebClient.RequestHeadersUriSpec.class);
+        WebClient.ResponseSpec response = mock(WebClient.ResponseSpec.class);
+        when(webClientBuilder.build()).thenReturn(webClient);
+        when(webClient.get()).thenReturn(request);
+        when(request.uri(anyString(), any(Object[].class))).thenReturn(request);
+        when(request.retrieve()).thenReturn(response);
+        when(response.bodyToMono(any(ParameterizedTypeReference.class))).thenReturn(Mono.just(media));
+        return request;
+    }
+}
@@ -0,0 +1,146 @@
+package com.buyapp.productservice.service;
+
+import com.buyapp.productservice.model.Product;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.Document;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.when;
+
+/**
+ * Stands in for the {@code products} collection behind a mocked
+ * {@link MongoTemplate}, running the pipeline updates {@link ProductService}
+ * sends with the few aggregation expressions they use.
+ */
+final class ProductCollection {
+
+    // What an expression evaluates to when the field it reads is missing
+    private static final Object MISSING = new Object();
+
+    private final Map<String, Document> products = new HashMap<>();
+    private final List<String> updated = new ArrayList<>();
+
+    private ProductCollection() {
+    }
+
+    static ProductCollection on(MongoTemplate mongoTemplate) {
+        ProductCollection collection = new ProductCollection();
+        when(mongoTemplate.updateFirst(any(Query.class), any(AggregationUpdate.class), eq(Product.class)))
+                .thenAnswer(invocation -> {
+                    String id = invocation.getArgument(0, Query.class).getQueryObject().getString("_id");
+                    collection.updated.add(id);
+                    Document product = collection.products.get(id);
+                    if (product == null) {
+                        return UpdateResult.acknowledged(0, 0L, null);
+                    }
+                    for (Document stage : invocation.getArgument(1, AggregationUpdate.class)
+                            .toPipeline(Aggregation.DEFAULT_CONTEXT)) {
+                        apply(product, stage.get("$set", Document.class));
+                    }
+                    return UpdateResult.acknowledged(1, 1L, null);
+                });
+        return collection;
+    }
+
+    ProductCollection with(String id, String... mediaIds) {
+        Document product = new Document("_id", id);
+        if (mediaIds.length > 0) {
+            product.append("mediaIds", List.of(mediaIds));
+        }
+        products.put(id, product);
+        return this;
+    }
+
+    Document get(String id) {
+        return products.get(id);
+    }
+
+    // The ids of the products updates were sent for, in order
+    List<String> updated() {
+        return updated;
+    }
+
+    private static void apply(Document product, Document set) {
+        Map<String, Object> values = new HashMap<>();
+        set.forEach((field, expression) -> values.put(field, evaluate(expression, product, Map.of())));
+        values.forEach((field, value) -> {
+            if (value == MISSING) {
+                product.remove(field);
+            } else {
+                product.put(field, value);
+            }
+        });
+    }
+
+    private static Object evaluate(Object expression, Document product, Map<String, Object> variables) {
+        if (expression instanceof String string && string.startsWith("$$")) {
+            return variables.get(string.substring(2));
+        }
+        if (expression instanceof String string && string.startsWith("$")) {
+            return product.containsKey(string.substring(1)) ? product.get(string.substring(1)) : MISSING;
+        }
+        if (expression instanceof List<?> list) {
+            return list.stream().map(element -> evaluate(element, product, variables)).toList();
+        }
+        if (!(expression instanceof Document document)) {
+            return expression;
+        }
+
+        String operator = document.keySet().iterator().next();
+        Object operand = document.get(operator);
+        switch (operator) {
+            case "$let" -> {
+                Map<String, Object> scope = new HashMap<>(variables);
+                ((Document) operand).get("vars", Document.class)
+                        .forEach((name, value) -> scope.put(name, evaluate(value, product, variables)));
+                return evaluate(((Document) operand).get("in"), product, scope);
+            }
+            case "$filter" -> {
+                Document filter = (Document) operand;
+                String as = filter.getString("as") != null ? filter.getString("as") : "this";
+                List<Object> kept = new ArrayList<>();
+                for (Object element : (List<?>) evaluate(filter.get("input"), product, variables)) {
+                    Map<String, Object> scope = new HashMap<>(variables);
+                    scope.put(as, element);
+                    if (Boolean.TRUE.equals(evaluate(filter.get("cond"), product, scope))) {
+                        kept.add(element);
+                    }
+                }
+                return kept;
+            }
+            case "$size" -> {
+                return ((List<?>) evaluate(operand, product, variables)).size();
+            }
+            default -> {
+                return evaluate(operator, (List<?>) evaluate(operand, product, variables));
+            }
+        }
+    }
+
+    private static Object evaluate(String operator, List<?> arguments) {
+        return switch (operator) {
+            case "$ifNull" -> arguments.get(0) == MISSING || arguments.get(0) == null ? arguments.get(1)
+                    : arguments.get(0);
+            case "$cond" -> Boolean.TRUE.equals(arguments.get(0)) ? arguments.get(1) : arguments.get(2);
+            case "$in" -> ((List<?>) arguments.get(1)).contains(arguments.get(0));
+            case "$ne" -> !arguments.get(0).equals(arguments.get(1));
+            case "$not" -> !Boolean.TRUE.equals(arguments.get(0));
+            case "$concatArrays" -> arguments.stream().flatMap(array -> ((List<?>) array).stream()).toList();
+            case "$arrayElemAt" -> {
+                List<?> array = (List<?>) arguments.get(0);
+                int index = ((Number) arguments.get(1)).intValue();
+                yield index < array.size() ? array.get(index) : MISSING;
+            }
+            default -> throw new UnsupportedOperationException(operator);
+        };
+    }
+}
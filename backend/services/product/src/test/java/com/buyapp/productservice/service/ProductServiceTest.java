@@ -6,14 +6,17 @@ import com.buyapp.common.exception.ForbiddenException;
 import com.buyapp.common.exception.ResourceNotFoundException;
 import com.buyapp.productservice.model.Product;
 import com.buyapp.productservice.repository.ProductRepository;
+import org.bson.Document;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.web.reactive.function.client.WebClient;
 
 import java.util.Arrays;
@@ -23,6 +26,7 @@ import java.util.Optional;
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
 @ExtendWith(MockitoExtension.class)
@@ -37,6 +41,9 @@ class ProductServiceTest {
     @Mock
     private ProductEventProducer productEventProducer;
 
+    @Mock
+    private MongoTemplate mongoTemplate;
+
     @Mock
     private Authentication authentication;
 
@@ -222,4 +229,104 @@ class ProductServiceTest {
         // Assert
         assertTrue(invalidProduct.getQuality() < 0, "Quality validation should catch negative quality");
     }
-}
\ No newline at end of file
+
+    @Test
+    void addMedia_ShouldRecordTheImageOfTheTargetedProductOnce() {
+        // Arrange
+        ProductCollection products = ProductCollection.on(mongoTemplate).with("1").with("2", "media-0");
+
+        // Act
+        productService.addMedia("1", "media-1");
+        productService.addMedia("1", "media-2");
+        // A redelivered event
+        productService.addMedia("1", "media-1");
+
+        // Assert
+        assertEquals(List.of("1", "1", "1"), products.updated());
+        Document product = products.get("1");
+        assertEquals(List.of("media-1", "media-2"), product.get("mediaIds"));
+        assertEquals(2, product.get("imageCount"));
+        assertEquals("media-1", product.get("primaryMediaId"));
+        assertEquals(List.of("media-0"), products.get("2").get("mediaIds"));
+    }
+
+    @Test
+    void removeMedia_ShouldPromoteTheNextImageWhenThePrimaryImageIsRemoved() {
+        // Arrange
+        ProductCollection products = ProductCollection.on(mongoTemplate).with("1", "media-1", "media-2", "media-3");
+
+        // Act
+        productService.removeMedia("1", "media-1");
+
+        // Assert
+        assertEquals(List.of("1"), products.updated());
+        Document product = products.get("1");
+        assertEquals(List.of("media-2", "media-3"), product.get("mediaIds"));
+        assertEquals(2, product.get("imageCount"));
+        assertEquals("media-2", product.get("primaryMediaId"));
+    }
+
+    @Test
+    void removeMedia_ShouldLeaveNoPrimaryImageOnceTheLastIsRemoved() {
+        // Arrange
+        ProductCollection products = ProductCollection.on(mongoTemplate).with("1", "media-1");
+
+        // Act
+        productService.removeMedia("1", "media-1");
+        // A redelivered event
+        productService.removeMedia("1", "media-1");
+
+        // Assert
+        Document product = products.get("1");
+        assertEquals(List.of(), product.get("mediaIds"));
+        assertEquals(0, product.get("imageCount"));
+        assertFalse(product.containsKey("primaryMediaId"));
+    }
+
+    @Test
+    void backfillMedia_ShouldKeepUploadOrderAheadOfImagesRecordedMeanwhile() {
+        // Arrange: media-3 was uploaded after the deploy, its event applied before the backfill reached the product
+        ProductCollection products = ProductCollection.on(mongoTemplate).with("1", "media-3");
+
+        // Act
+        productService.backfillMedia("1", List.of("media-1", "media-2", "media-3"));
+
+        // Assert
+        assertEquals(List.of("1"), products.updated());
+        Document product = products.get("1");
+        assertEquals(List.of("media-1", "media-2", "media-3"), product.get("mediaIds"));
+        assertEquals(3, product.get("imageCount"));
+        assertEquals("media-1", product.get("primaryMediaId"));
+    }
+
+    @Test
+    void backfillMedia_ShouldRecordAProductWithoutImages() {
+        // Arrange
+        ProductCollection products = ProductCollection.on(mongoTemplate).with("1");
+
+        // Act
+        productService.backfillMedia("1", List.of());
+
+        // Assert
+        Document product = products.get("1");
+        assertEquals(List.of(), product.get("mediaIds"));
+        assertEquals(0, product.get("imageCount"));
+        assertFalse(product.containsKey("primaryMediaId"));
+    }
+
+    @Test
+    void toDto_ShouldIncludeImageFields() {
+        // Arrange
+        Product product = new Product("1", "Lamp", "Desk lamp", 25.0, 3, "user1");
+        ReflectionTestUtils.setField(product, "primaryMediaId", "media-1");
+        ReflectionTestUtils.setField(product, "imageCount", 2);
+        when(productRepository.findById("1")).thenReturn(Optional.of(product));
+
+        // Act
+        ProductDto dto = productService.getProductById("1");
+
+        // Assert
+        assertEquals("media-1", dto.getPrimaryMediaId());
+        assertEquals(2, dto.getImageCount());
+    }
+}
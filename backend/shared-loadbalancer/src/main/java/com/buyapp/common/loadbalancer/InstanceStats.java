@@ -0,0 +1,126 @@
+package com.buyapp.common.loadbalancer;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Latency and load seen by this client for one service instance.
+ *
+ * Latency is a peak-sensitive EWMA: a response slower than the current
+ * average replaces it straight away, faster responses pull it down
+ * gradually, and the average decays towards zero as time passes so that an
+ * instance that stopped getting traffic for being slow is probed again later.
+ */
+public class InstanceStats {
+
+    // Keeps outstanding requests meaningful once an idle instance has decayed to nothing
+    private static final double MIN_LATENCY_NANOS = 100_000;
+
+    private final long decayNanos;
+    private final long inFlightTimeoutNanos;
+    private final LongSupplier nanoClock;
+
+    // Start time of every request still running against this instance, keyed by identity
+    private final Map<RequestKey, Long> inFlight = new ConcurrentHashMap<>();
+
+    private double ewmaNanos;
+    private long lastUpdateNanos;
+    private volatile long lastSweepNanos;
+
+    InstanceStats(long initialLatencyNanos, long decayNanos, long inFlightTimeoutNanos, LongSupplier nanoClock) {
+        this.decayNanos = decayNanos;
+        this.inFlightTimeoutNanos = inFlightTimeoutNanos;
+        this.nanoClock = nanoClock;
+        this.ewmaNanos = initialLatencyNanos;
+        this.lastUpdateNanos = nanoClock.getAsLong();
+        this.lastSweepNanos = lastUpdateNanos;
+    }
+
+    void requestStarted(Object request) {
+        inFlight.put(new RequestKey(request), nanoClock.getAsLong());
+    }
+
+    /**
+     * Ends a request started with {@link #requestStarted} and feeds its
+     * latency into the average. Failed requests count as at least
+     * {@code failurePenaltyNanos} so an instance cannot attract traffic by
+     * failing fast.
+     */
+    void requestFinished(Object request, boolean failed, long failurePenaltyNanos) {
+        Long start = inFlight.remove(new RequestKey(request));
+        if (start == null) {
+            return;
+        }
+        long latency = nanoClock.getAsLong() - start;
+        observe(failed ? Math.max(latency, failurePenaltyNanos) : latency);
+    }
+
+    synchronized void observe(long latencyNanos) {
+        long now = nanoClock.getAsLong();
+        if (latencyNanos > ewmaNanos) {
+            ewmaNanos = latencyNanos;
+        } else {
+            double weight = Math.exp(-(double) (now - lastUpdateNanos) / decayNanos);
+            ewmaNanos = ewmaNanos * weight + latencyNanos * (1 - weight);
+        }
+        lastUpdateNanos = now;
+    }
+
+    /**
+     * Expected cost of sending one more request here: the average latency
+     * scaled by the requests already waiting on the instance.
+     */
+    public double cost() {
+        return Math.max(ewmaNanos(), MIN_LATENCY_NANOS) * (outstanding() + 1);
+    }
+
+    // Reading decays the average too, otherwise an idle slow instance would never be picked again
+    public synchronized double ewmaNanos() {
+        long now = nanoClock.getAsLong();
+        ewmaNanos *= Math.exp(-(double) (now - lastUpdateNanos) / decayNanos);
+        lastUpdateNanos = now;
+        return ewmaNanos;
+    }
+
+    public int outstanding() {
+        sweepAbandoned();
+        return inFlight.size();
+    }
+
+    // Cancelled calls never report completion; drop them so they do not count as load forever
+    private void sweepAbandoned() {
+        long now = nanoClock.getAsLong();
+        if (now - lastSweepNanos < inFlightTimeoutNanos / 4) {
+            return;
+        }
+        lastSweepNanos = now;
+        Iterator<Long> starts = inFlight.values().iterator();
+        while (starts.hasNext()) {
+            if (now - starts.next() > inFlightTimeoutNanos) {
+                starts.remove();
+            }
+        }
+    }
+
+    // Load balancer requests compare by value, so two identical calls would share one entry
+    private static final class RequestKey {
+
+        private final Object request;
+
+        private RequestKey(Object request) {
+            this.request = request;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof RequestKey key && key.request == request;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(request);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.buyapp.common.loadbalancer;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.loadbalancer.core.ReactorLoadBalancer;
+import org.springframework.cloud.loadbalancer.core.ServiceInstanceListSupplier;
+import org.springframework.cloud.loadbalancer.support.LoadBalancerClientFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.core.env.Environment;
+
+import java.time.Duration;
+
+/**
+ * Load balancer client configuration that replaces round robin with
+ * {@link PowerOfTwoChoicesLoadBalancer}. Register it with
+ * {@code @LoadBalancerClients(defaultConfiguration = LatencyAwareLoadBalancerConfiguration.class)}.
+ *
+ * Deliberately not annotated with {@code @Configuration}: the services scan
+ * {@code com.buyapp.common}, and the beans here must only be created inside
+ * each per-service load balancer context. Instance lists still come from the
+ * default Eureka-backed, cached {@link ServiceInstanceListSupplier}.
+ *
+ * Tunable per application with {@code buyapp.loadbalancer.initial-latency},
+ * {@code decay}, {@code in-flight-timeout} and {@code failure-penalty}.
+ */
+public class LatencyAwareLoadBalancerConfiguration {
+
+    @Bean
+    public ServiceLatencyStats serviceLatencyStats(Environment environment,
+            ObjectProvider<MeterRegistry> meterRegistry) {
+        return new ServiceLatencyStats(
+                environment.getProperty(LoadBalancerClientFactory.PROPERTY_NAME),
+                meterRegistry.getIfAvailable(SimpleMeterRegistry::new),
+                environment.getProperty("buyapp.loadbalancer.initial-latency", Duration.class, Duration.ofMillis(50)),
+                environment.getProperty("buyapp.loadbalancer.decay", Duration.class, Duration.ofSeconds(10)),
+                environment.getProperty("buyapp.loadbalancer.in-flight-timeout", Duration.class, Duration.ofSeconds(60)),
+                environment.getProperty("buyapp.loadbalancer.failure-penalty", Duration.class, Duration.ofSeconds(1)));
+    }
+
+    @Bean
+    public ReactorLoadBalancer<ServiceInstance> reactorServiceInstanceLoadBalancer(Environment environment,
+            LoadBalancerClientFactory loadBalancerClientFactory, ServiceLatencyStats serviceLatencyStats) {
+        String name = environment.getProperty(LoadBalancerClientFactory.PROPERTY_NAME);
+        return new PowerOfTwoChoicesLoadBalancer(
+                loadBalancerClientFactory.getLazyProvider(name, ServiceInstanceListSupplier.class),
+                name, serviceLatencyStats);
+    }
+
+    @Bean
+    public LatencyTrackingLifecycle latencyTrackingLifecycle(ServiceLatencyStats serviceLatencyStats) {
+        return new LatencyTrackingLifecycle(serviceLatencyStats);
+    }
+}
@@ -0,0 +1,133 @@
+package com.buyapp.common.loadbalancer;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.cloud.client.ServiceInstance;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+
+/**
+ * Per-instance {@link InstanceStats} for one service id, shared by the load
+ * balancer that reads them and the lifecycle that records them. Every
+ * instance is published as meters tagged with the service and instance:
+ * {@code loadbalancer.instance.latency} (EWMA),
+ * {@code loadbalancer.instance.outstanding} and
+ * {@code loadbalancer.instance.chosen}.
+ */
+public class ServiceLatencyStats {
+
+    private final String serviceId;
+    private final MeterRegistry meterRegistry;
+    private final long initialLatencyNanos;
+    private final long decayNanos;
+    private final long inFlightTimeoutNanos;
+    private final long failurePenaltyNanos;
+    private final LongSupplier nanoClock;
+
+    private final Map<String, Tracked> instances = new ConcurrentHashMap<>();
+
+    public ServiceLatencyStats(String serviceId, MeterRegistry meterRegistry, Duration initialLatency,
+            Duration decay, Duration inFlightTimeout, Duration failurePenalty) {
+        this(serviceId, meterRegistry, initialLatency, decay, inFlightTimeout, failurePenalty, System::nanoTime);
+    }
+
+    ServiceLatencyStats(String serviceId, MeterRegistry meterRegistry, Duration initialLatency, Duration decay,
+            Duration inFlightTimeout, Duration failurePenalty, LongSupplier nanoClock) {
+        this.serviceId = serviceId;
+        this.meterRegistry = meterRegistry;
+        this.initialLatencyNanos = initialLatency.toNanos();
+        this.decayNanos = decay.toNanos();
+        this.inFlightTimeoutNanos = inFlightTimeout.toNanos();
+        this.failurePenaltyNanos = failurePenalty.toNanos();
+        this.nanoClock = nanoClock;
+    }
+
+    public InstanceStats get(ServiceInstance instance) {
+        return track(instance).stats;
+    }
+
+    void requestStarted(ServiceInstance instance, Object request) {
+        track(instance).stats.requestStarted(request);
+    }
+
+    void requestFinished(ServiceInstance instance, Object request, boolean failed) {
+        Tracked tracked = instances.get(key(instance));
+        if (tracked != null) {
+            tracked.stats.requestFinished(request, failed, failurePenaltyNanos);
+        }
+    }
+
+    void chosen(ServiceInstance instance) {
+        track(instance).chosen.increment();
+    }
+
+    /**
+     * Forgets instances that are no longer registered, together with their meters.
+     */
+    void retain(List<ServiceInstance> current) {
+        if (instances.size() <= current.size()) {
+            return;
+        }
+        Set<String> live = current.stream().map(ServiceLatencyStats::key).collect(Collectors.toSet());
+        instances.entrySet().removeIf(entry -> {
+            if (live.contains(entry.getKey())) {
+                return false;
+            }
+            entry.getValue().meters.forEach(meterRegistry::remove);
+            return true;
+        });
+    }
+
+    private Tracked track(ServiceInstance instance) {
+        return instances.computeIfAbsent(key(instance), this::register);
+    }
+
+    private Tracked register(String instanceKey) {
+        InstanceStats stats = new InstanceStats(initialLatencyNanos, decayNanos, inFlightTimeoutNanos, nanoClock);
+        List<Meter> meters = new ArrayList<>();
+        meters.add(Gauge.builder("loadbalancer.instance.latency", stats, s -> s.ewmaNanos() / 1_000_000)
+                .description("Decaying average response time of the instance, in milliseconds")
+                .baseUnit("milliseconds")
+                .tag("service", serviceId)
+                .tag("instance", instanceKey)
+                .register(meterRegistry));
+        meters.add(Gauge.builder("loadbalancer.instance.outstanding", stats, InstanceStats::outstanding)
+                .description("Requests sent to the instance that have not completed yet")
+                .tag("service", serviceId)
+                .tag("instance", instanceKey)
+                .register(meterRegistry));
+        Counter chosen = Counter.builder("loadbalancer.instance.chosen")
+                .description("Times the load balancer picked the instance")
+                .tag("service", serviceId)
+                .tag("instance", instanceKey)
+                .register(meterRegistry);
+        meters.add(chosen);
+        return new Tracked(stats, chosen, meters);
+    }
+
+    static String key(ServiceInstance instance) {
+        return instance.getHost() + ":" + instance.getPort();
+    }
+
+    private static final class Tracked {
+
+        private final InstanceStats stats;
+        private final Counter chosen;
+        private final List<Meter> meters;
+
+        private Tracked(InstanceStats stats, Counter chosen, List<Meter> meters) {
+            this.stats = stats;
+            this.chosen = chosen;
+            this.meters = meters;
+        }
+    }
+}
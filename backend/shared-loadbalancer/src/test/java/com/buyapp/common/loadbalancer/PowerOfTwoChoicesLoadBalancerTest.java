@@ -0,0 +1,130 @@
+package com.buyapp.common.loadbalancer;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.loadbalancer.CompletionContext;
+import org.springframework.cloud.client.loadbalancer.DefaultRequest;
+import org.springframework.cloud.client.loadbalancer.DefaultResponse;
+import org.springframework.cloud.client.loadbalancer.Request;
+import org.springframework.cloud.client.loadbalancer.Response;
+import org.springframework.cloud.loadbalancer.core.ServiceInstanceListSupplier;
+import org.springframework.cloud.loadbalancer.support.ServiceInstanceListSuppliers;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PowerOfTwoChoicesLoadBalancerTest {
+
+    private final AtomicLong clock = new AtomicLong();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private ServiceInstance fast;
+    private ServiceInstance slow;
+    private ServiceInstance other;
+    private ServiceLatencyStats stats;
+    private PowerOfTwoChoicesLoadBalancer loadBalancer;
+    private LatencyTrackingLifecycle lifecycle;
+
+    @BeforeEach
+    void setUp() {
+        fast = new DefaultServiceInstance("product-1", "product-service", "10.0.0.1", 8082, false);
+        slow = new DefaultServiceInstance("product-2", "product-service", "10.0.0.2", 8082, false);
+        other = new DefaultServiceInstance("product-3", "product-service", "10.0.0.3", 8082, false);
+
+        ServiceInstanceListSupplier supplier = ServiceInstanceListSuppliers.from("product-service", fast, slow, other);
+        StaticListableBeanFactory beanFactory = new StaticListableBeanFactory();
+        beanFactory.addBean("supplier", supplier);
+
+        stats = new ServiceLatencyStats("product-service", meterRegistry, Duration.ofMillis(50),
+                Duration.ofSeconds(10), Duration.ofSeconds(60), Duration.ofSeconds(1), clock::get);
+        loadBalancer = new PowerOfTwoChoicesLoadBalancer(beanFactory.getBeanProvider(ServiceInstanceListSupplier.class),
+                "product-service", stats, new Random(42)::nextInt);
+        lifecycle = new LatencyTrackingLifecycle(stats);
+    }
+
+    @Test
+    void pausingInstanceLosesItsShareOfTraffic() {
+        // Arrange - one instance answers in 2s (e.g. a GC pause), the others in 20ms
+        Map<ServiceInstance, Integer> picks = new HashMap<>();
+
+        // Act - sequential calls on a virtual clock
+        for (int i = 0; i < 600; i++) {
+            Request<Object> request = new DefaultRequest<>();
+            Response<ServiceInstance> response = loadBalancer.choose(request).block();
+            ServiceInstance instance = response.getServer();
+            picks.merge(instance, 1, Integer::sum);
+
+            lifecycle.onStartRequest(request, response);
+            clock.addAndGet(Duration.ofMillis(instance == slow ? 2_000 : 20).toNanos());
+            lifecycle.onComplete(new CompletionContext<>(CompletionContext.Status.SUCCESS, request, response));
+        }
+
+        // Assert - round robin would send it 200
+        assertTrue(picks.getOrDefault(slow, 0) < 30, "Slow instance got " + picks.get(slow) + " requests");
+        assertTrue(picks.get(fast) > 250);
+        assertTrue(picks.get(other) > 250);
+    }
+
+    @Test
+    void outstandingRequestsSpreadLoad() {
+        // Arrange - equal latency, but one instance already has requests queued
+        for (int i = 0; i < 5; i++) {
+            Request<Object> request = new DefaultRequest<>();
+            lifecycle.onStartRequest(request, new DefaultResponse(fast));
+        }
+
+        // Act
+        int fastPicks = 0;
+        for (int i = 0; i < 300; i++) {
+            if (loadBalancer.choose(new DefaultRequest<>()).block().getServer() == fast) {
+                fastPicks++;
+            }
+        }
+
+        // Assert
+        assertEquals(0, fastPicks);
+        assertEquals(5, stats.get(fast).outstanding());
+    }
+
+    @Test
+    void failuresArePenalisedAndSlowInstanceIsProbedAgainLater() {
+        // Arrange - a fast failure still counts as the failure penalty
+        Request<Object> request = new DefaultRequest<>();
+        Response<ServiceInstance> response = new DefaultResponse(slow);
+        lifecycle.onStartRequest(request, response);
+        lifecycle.onComplete(new CompletionContext<>(CompletionContext.Status.FAILED,
+                new IllegalStateException("connection refused"), request, response));
+        assertEquals(1_000, stats.get(slow).ewmaNanos() / 1_000_000, 1);
+
+        // Act - a minute without traffic
+        clock.addAndGet(Duration.ofSeconds(60).toNanos());
+
+        // Assert
+        assertTrue(stats.get(slow).ewmaNanos() < Duration.ofMillis(10).toNanos());
+    }
+
+    @Test
+    void decisionsArePublishedAsMetrics() {
+        // Act
+        for (int i = 0; i < 10; i++) {
+            loadBalancer.choose(new DefaultRequest<>()).block();
+        }
+
+        // Assert
+        double chosen = meterRegistry.find("loadbalancer.instance.chosen")
+                .tag("service", "product-service").counters().stream()
+                .mapToDouble(counter -> counter.count()).sum();
+        assertEquals(10, chosen);
+        assertNotNull(meterRegistry.find("loadbalancer.instance.latency").tag("instance", "10.0.0.1:8082").gauge());
+        assertNotNull(meterRegistry.find("loadbalancer.instance.outstanding").tag("instance", "10.0.0.1:8082").gauge());
+    }
+}
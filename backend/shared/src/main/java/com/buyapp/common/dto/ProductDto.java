@@ -26,6 +26,10 @@ public class ProductDto {
 
     private String user; // Email of the owner
 
+    // Kept up to date from media events, so listings need no call to the Media Service
+    private String primaryMediaId;
+    private Integer imageCount;
+
     // Constructors
     public ProductDto() {
     }
@@ -87,4 +91,20 @@ public class ProductDto {
     public void setUser(String user) {
         this.user = user;
     }
-}
\ No newline at end of file
+
+    public String getPrimaryMediaId() {
+        return primaryMediaId;
+    }
+
+    public void setPrimaryMediaId(String primaryMediaId) {
+        this.primaryMediaId = primaryMediaId;
+    }
+
+    public Integer getImageCount() {
+        return imageCount;
+    }
+
+    public void setImageCount(Integer imageCount) {
+        this.imageCount = imageCount;
+    }
+}
@@ -30,6 +30,12 @@ cd shared
 print_status $? "Shared module"
 cd ..
 
+echo -e "${YELLOW} Building shared load balancer module...${NC}"
+cd shared-loadbalancer
+../mvnw clean install -DskipTests
+print_status $? "Shared load balancer module"
+cd ..
+
 # 2. Eureka server
 echo -e "${YELLO} Building Eureka server...${NC}"
 cd services/eureka
@@ -29,6 +29,8 @@ describe('HomeComponent', () => {
       price: 99.99,
       quality: 10,
       user: 'seller@example.com',
+      primaryMediaId: 'media-1',
+      imageCount: 2,
     },
     {
       id: '2',
@@ -47,7 +49,7 @@ describe('HomeComponent', () => {
       'isSeller',
     ]);
     const productServiceSpy = jasmine.createSpyObj('ProductService', ['getAllProducts']);
-    const mediaServiceSpy = jasmine.createSpyObj('MediaService', ['getMediaByProduct']);
+    const mediaServiceSpy = jasmine.createSpyObj('MediaService', ['getMediaByProducts', 'getMediaFile']);
 
     await TestBed.configureTestingModule({
       imports: [HomeComponent, RouterModule.forRoot([])],
@@ -67,7 +69,7 @@ describe('HomeComponent', () => {
     authService.isLoggedIn.and.returnValue(true);
     authService.isSeller.and.returnValue(false);
     productService.getAllProducts.and.returnValue(of(mockProducts));
-    mediaService.getMediaByProduct.and.returnValue(of([]));
+    mediaService.getMediaByProducts.and.returnValue(of({}));
   });
 
   beforeEach(() => {
@@ -112,6 +114,16 @@ describe('HomeComponent', () => {
     }, 100);
   });
 
+  it('should show primary images without calling the media service', () => {
+    mediaService.getMediaFile.and.returnValue('/media/file/media-1?w=320');
+    fixture.detectChanges();
+
+    expect(mediaService.getMediaByProducts).not.toHaveBeenCalled();
+    expect(mediaService.getMediaFile).toHaveBeenCalledWith('media-1', 320);
+    expect(component.getProductImages('1')).toEqual(['/media/file/media-1?w=320']);
+    expect(component.getProductImages('2')).toEqual([]);
+  });
+
   it('should handle empty product list', () => {
     productService.getAllProducts.and.returnValue(of([]));
     fixture.detectChanges();
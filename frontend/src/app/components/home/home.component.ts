@@ -52,28 +52,14 @@ export class HomeComponent implements OnInit {
     });
   }
 
+  // Cards show the primary image, which comes with the product, so no media lookups are needed
   private loadProductImages(): void {
-    const imagePromises = this.featuredProducts.map((product) => {
-      if (!product.id) return Promise.resolve();
-
-      return this.mediaService
-        .getMediaByProduct(product.id)
-        .toPromise()
-        .then((media) => {
-          if (media && media.length > 0) {
-            this.productImages[product.id!] = media.map((m) =>
-              this.mediaService.getMediaFile(m.id!)
-            );
-          }
-        })
-        .catch((error) => {
-          console.error(`Failed to load media for product ${product.id}:`, error);
-        });
-    });
-
-    Promise.all(imagePromises).finally(() => {
-      this.isLoading = false;
+    this.featuredProducts.forEach((product) => {
+      if (product.id && product.primaryMediaId) {
+        this.productImages[product.id] = [this.mediaService.getMediaFile(product.primaryMediaId, 320)];
+      }
     });
+    this.isLoading = false;
   }
 
   getProductImages(productId: string): string[] {
@@ -1,7 +1,7 @@
 import { CommonModule } from '@angular/common';
 import { Component, OnInit } from '@angular/core';
 import { ActivatedRoute, RouterModule } from '@angular/router';
-import { Media, Product } from '../../models/ecommerce.model';
+import { ImageSize, Media, Product, Seller } from '../../models/ecommerce.model';
 import { MediaService } from '../../services/media.service';
 import { ProductService } from '../../services/product.service';
 import { ImageSliderComponent } from '../shared/image-slider/image-slider.component';
@@ -16,6 +16,7 @@ import { ImageSliderComponent } from '../shared/image-slider/image-slider.compon
 export class ProductDetailComponent implements OnInit {
   product: Product | null = null;
   productMedia: Media[] = [];
+  seller: Seller | null = null;
   loading = true;
   error = '';
 
@@ -36,11 +37,13 @@ export class ProductDetailComponent implements OnInit {
   }
 
   loadProduct(productId: string): void {
-    this.productService.getProductById(productId).subscribe({
-      next: (product) => {
-        this.product = product;
+    // Product, images and seller arrive together; missing images or seller leave the page usable
+    this.productService.getProductView(productId).subscribe({
+      next: (view) => {
+        this.product = view.product;
+        this.productMedia = view.images;
+        this.seller = view.seller;
         this.loading = false;
-        this.loadProductMedia(productId);
       },
       error: () => {
         this.error = 'Failed to load product';
@@ -49,21 +52,22 @@ export class ProductDetailComponent implements OnInit {
     });
   }
 
-  loadProductMedia(productId: string): void {
-    this.mediaService.getMediaByProduct(productId).subscribe({
-      next: (media) => {
-        this.productMedia = media;
-      },
-      error: () => {
-        // Silently fail - product can exist without images
-      },
-    });
-  }
-
   getProductImageUrls(): string[] {
     return this.productMedia.map((m) => this.mediaService.getMediaFile(m.id!));
   }
 
+  getProductImageSizes(): (ImageSize | undefined)[] {
+    return this.productMedia.map((m) => this.mediaService.getDisplaySize(m));
+  }
+
+  getProductImagePlaceholders(): (string | undefined)[] {
+    return this.productMedia.map((m) => this.mediaService.getPlaceholder(m));
+  }
+
+  getSellerAvatarUrl(): string | null {
+    return this.seller?.avatar?.id ? this.mediaService.getAvatarFileUrl(this.seller.avatar.id) : null;
+  }
+
   addToCart(): void {
     alert('Shopping cart functionality is coming soon!');
   }
@@ -36,12 +36,7 @@ export class ProductListComponent implements OnInit {
       next: (products) => {
         this.products = products;
         this.loading = false;
-        // Load media for each product
-        products.forEach((product) => {
-          if (product.id) {
-            this.loadProductMedia(product.id);
-          }
-        });
+        this.loadProductMedia(products.filter((p) => p.id).map((p) => p.id!));
       },
       error: (error) => {
         console.error('Error loading products:', error);
@@ -51,13 +46,15 @@ export class ProductListComponent implements OnInit {
     });
   }
 
-  loadProductMedia(productId: string): void {
-    this.mediaService.getMediaByProduct(productId).subscribe({
-      next: (media) => {
-        this.productMedia.set(productId, media);
+  loadProductMedia(productIds: string[]): void {
+    this.mediaService.getMediaByProducts(productIds).subscribe({
+      next: (mediaByProduct) => {
+        Object.entries(mediaByProduct).forEach(([productId, media]) =>
+          this.productMedia.set(productId, media)
+        );
       },
       error: (error) => {
-        console.error('Error loading media for product:', productId, error);
+        console.error('Error loading product media:', error);
       },
     });
   }
@@ -65,11 +62,16 @@ export class ProductListComponent implements OnInit {
   getProductImageUrls(productId: string): string[] {
     const media = this.productMedia.get(productId);
     if (media && media.length > 0) {
-      return media.map((m) => this.mediaService.getMediaFile(m.id!));
+      return media.map((m) => this.mediaService.getMediaFile(m.id!, 320));
     }
     return [];
   }
 
+  getProductImagePlaceholders(productId: string): (string | undefined)[] {
+    const media = this.productMedia.get(productId) ?? [];
+    return media.map((m) => this.mediaService.getPlaceholder(m));
+  }
+
   addToCart(product: Product): void {
     const cartItem: CartItem = {
       productId: product.id!,
@@ -78,12 +78,7 @@ export class SellerDashboardComponent implements OnInit {
       next: (products) => {
         this.myProducts = products;
         this.loading = false;
-        // Load media for each product
-        products.forEach((product) => {
-          if (product.id) {
-            this.loadProductMedia(product.id);
-          }
-        });
+        this.loadProductMedia(products.filter((p) => p.id).map((p) => p.id!));
       },
       error: (error) => {
         console.error('Error loading products:', error);
@@ -93,13 +88,15 @@ export class SellerDashboardComponent implements OnInit {
     });
   }
 
-  loadProductMedia(productId: string): void {
-    this.mediaService.getMediaByProduct(productId).subscribe({
-      next: (media) => {
-        this.productMedia.set(productId, media);
+  loadProductMedia(productIds: string[]): void {
+    this.mediaService.getMediaByProducts(productIds).subscribe({
+      next: (mediaByProduct) => {
+        Object.entries(mediaByProduct).forEach(([productId, media]) =>
+          this.productMedia.set(productId, media)
+        );
       },
       error: (error) => {
-        console.error('Error loading media for product:', productId, error);
+        console.error('Error loading product media:', error);
       },
     });
   }
@@ -171,31 +168,22 @@ export class SellerDashboardComponent implements OnInit {
     this.uploadingImages.set(productId, true);
     this.imageError.delete(productId);
 
-    let uploaded = 0;
-    const total = files.length;
-
-    files.forEach((file) => {
-      this.mediaService.uploadMedia(file, productId).subscribe({
-        next: (media) => {
-          uploaded++;
-          // Add to local media list
-          const currentMedia = this.productMedia.get(productId) || [];
-          currentMedia.push(media);
-          this.productMedia.set(productId, currentMedia);
-
-          if (uploaded === total) {
-            this.uploadingImages.set(productId, false);
-            this.selectedFiles.delete(productId);
-            this.successMessage = `${total} image(s) uploaded successfully!`;
-            setTimeout(() => (this.successMessage = ''), 3000);
-          }
-        },
-        error: (error) => {
-          console.error('Error uploading image:', error);
-          this.imageError.set(productId, error.error?.message || 'Failed to upload image');
-          this.uploadingImages.set(productId, false);
-        },
-      });
+    this.mediaService.uploadMediaFiles(files, productId).subscribe({
+      next: (mediaList) => {
+        // Add to local media list
+        const currentMedia = this.productMedia.get(productId) || [];
+        this.productMedia.set(productId, [...currentMedia, ...mediaList]);
+
+        this.uploadingImages.set(productId, false);
+        this.selectedFiles.delete(productId);
+        this.successMessage = `${mediaList.length} image(s) uploaded successfully!`;
+        setTimeout(() => (this.successMessage = ''), 3000);
+      },
+      error: (error) => {
+        console.error('Error uploading images:', error);
+        this.imageError.set(productId, error.error?.message || 'Failed to upload images');
+        this.uploadingImages.set(productId, false);
+      },
     });
   }
 
@@ -337,35 +325,27 @@ export class SellerDashboardComponent implements OnInit {
     this.submitting = true;
     this.formError = '';
 
-    let uploaded = 0;
-    const total = this.newProductImages.length;
     const productId = this.newlyCreatedProductId;
 
-    this.newProductImages.forEach((file) => {
-      this.mediaService.uploadMedia(file, productId).subscribe({
-        next: (media) => {
-          uploaded++;
-          const currentMedia = this.productMedia.get(productId) || [];
-          currentMedia.push(media);
-          this.productMedia.set(productId, currentMedia);
-
-          if (uploaded === total) {
-            this.submitting = false;
-            this.successMessage = `Product created with ${total} image(s)!`;
-            this.resetForm();
-            this.showAddForm = false;
-            this.creationStep = 1;
-            this.newlyCreatedProductId = null;
-            this.newProductImages = [];
-            setTimeout(() => (this.successMessage = ''), 3000);
-          }
-        },
-        error: (error) => {
-          console.error('Error uploading image:', error);
-          this.formError = error.error?.message || 'Failed to upload some images.';
-          this.submitting = false;
-        },
-      });
+    this.mediaService.uploadMediaFiles(this.newProductImages, productId).subscribe({
+      next: (mediaList) => {
+        const currentMedia = this.productMedia.get(productId) || [];
+        this.productMedia.set(productId, [...currentMedia, ...mediaList]);
+
+        this.submitting = false;
+        this.successMessage = `Product created with ${mediaList.length} image(s)!`;
+        this.resetForm();
+        this.showAddForm = false;
+        this.creationStep = 1;
+        this.newlyCreatedProductId = null;
+        this.newProductImages = [];
+        setTimeout(() => (this.successMessage = ''), 3000);
+      },
+      error: (error) => {
+        console.error('Error uploading images:', error);
+        this.formError = error.error?.message || 'Failed to upload images.';
+        this.submitting = false;
+      },
     });
   }
 
@@ -1,5 +1,6 @@
 import { CommonModule } from '@angular/common';
 import { Component, Input } from '@angular/core';
+import { ImageSize } from '../../../models/ecommerce.model';
 
 @Component({
   selector: 'app-image-slider',
@@ -10,12 +11,21 @@ import { Component, Input } from '@angular/core';
 })
 export class ImageSliderComponent {
   @Input() images: string[] = [];
+  // Intrinsic size per image, when known, so the browser reserves space before it loads
+  @Input() sizes: (ImageSize | undefined)[] = [];
+  // Blurred placeholder per image, as data URLs, shown behind the image while it loads
+  @Input() placeholders: (string | undefined)[] = [];
   @Input() alt: string = 'Product image';
   @Input() showDots: boolean = true;
   @Input() showCounter: boolean = false;
 
   currentIndex = 0;
 
+  get placeholderBackground(): string | null {
+    const placeholder = this.placeholders[this.currentIndex];
+    return placeholder ? `url(${placeholder})` : null;
+  }
+
   nextImage(event: Event): void {
     event.stopPropagation();
     if (this.images.length > 0) {
@@ -14,6 +14,8 @@ export interface Product {
   price: number;
   quality: number;
   user?: string; // Owner email
+  primaryMediaId?: string; // First image, kept by the product service
+  imageCount?: number;
 }
 
 export interface Media {
@@ -23,6 +25,36 @@ export interface Media {
   fileName: string;
   contentType: string;
   fileSize: number;
+  width?: number;
+  height?: number;
+  // EXIF orientation; 5-8 are shown rotated, with width and height swapped
+  orientation?: number;
+  variants?: MediaVariant[];
+  // BlurHash of the image, shown blurred until the image itself loads
+  blurHash?: string;
+}
+
+export interface ImageSize {
+  width: number;
+  height: number;
+}
+
+// A resumable upload in progress; offset is where the next chunk has to start
+export interface UploadSession {
+  id: string;
+  productId: string;
+  fileName: string;
+  length: number;
+  offset: number;
+  expiresAt: string;
+}
+
+// Served by getMediaFile(media.id, requestedWidth)
+export interface MediaVariant {
+  requestedWidth: number;
+  width: number;
+  height: number;
+  contentType: string;
 }
 
 export interface Avatar {
@@ -32,6 +64,27 @@ export interface Avatar {
   fileName: string;
   contentType: string;
   fileSize: number;
+  width?: number;
+  height?: number;
+  orientation?: number;
+  blurHash?: string;
+}
+
+export interface Seller {
+  id: string;
+  name: string;
+  email: string;
+  role: 'client' | 'seller';
+  avatar: Avatar | null;
+}
+
+// Product detail page document served by the gateway in one request
+export interface ProductView {
+  product: Product;
+  images: Media[];
+  seller: Seller | null;
+  partial: boolean;
+  errors?: { [leg: string]: string };
 }
 
 export interface AuthResponse {
@@ -0,0 +1,107 @@
+// Decodes the BlurHash placeholders the media service stores with each image
+// (see https://blurha.sh) into a small PNG data URL, which CSS scales up into
+// a blur while the real image loads.
+
+const BASE83 = '0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz#$%*+,-.:;=?@[]^_{|}~';
+
+// The hash only holds a few cosine components, so a few dozen pixels show all of it
+const SIZE = 32;
+
+function decode83(text: string): number {
+  let value = 0;
+  for (const char of text) {
+    value = value * 83 + BASE83.indexOf(char);
+  }
+  return value;
+}
+
+function toLinear(srgb: number): number {
+  const v = srgb / 255;
+  return v <= 0.04045 ? v / 12.92 : Math.pow((v + 0.055) / 1.055, 2.4);
+}
+
+function toSrgb(linear: number): number {
+  const v = Math.max(0, Math.min(1, linear));
+  return Math.round(v <= 0.0031308 ? v * 12.92 * 255 : (1.055 * Math.pow(v, 1 / 2.4) - 0.055) * 255);
+}
+
+function signPow(value: number, exponent: number): number {
+  return Math.sign(value) * Math.pow(Math.abs(value), exponent);
+}
+
+/**
+ * @returns the pixels as RGBA, or undefined if the hash is malformed
+ */
+export function decodeBlurHash(hash: string, width: number, height: number): Uint8ClampedArray | undefined {
+  if (!hash || hash.length < 6) {
+    return undefined;
+  }
+  const sizeFlag = decode83(hash[0]);
+  const componentsX = (sizeFlag % 9) + 1;
+  const componentsY = Math.floor(sizeFlag / 9) + 1;
+  if (hash.length !== 4 + 2 * componentsX * componentsY) {
+    return undefined;
+  }
+
+  const maximum = (decode83(hash[1]) + 1) / 166;
+  const colors: number[][] = [];
+  const dc = decode83(hash.substring(2, 6));
+  colors.push([toLinear(dc >> 16), toLinear((dc >> 8) & 255), toLinear(dc & 255)]);
+  for (let i = 1; i < componentsX * componentsY; i++) {
+    const ac = decode83(hash.substring(4 + i * 2, 6 + i * 2));
+    colors.push([
+      signPow((Math.floor(ac / (19 * 19)) - 9) / 9, 2) * maximum,
+      signPow(((Math.floor(ac / 19) % 19) - 9) / 9, 2) * maximum,
+      signPow(((ac % 19) - 9) / 9, 2) * maximum,
+    ]);
+  }
+
+  const pixels = new Uint8ClampedArray(width * height * 4);
+  for (let y = 0; y < height; y++) {
+    for (let x = 0; x < width; x++) {
+      let r = 0;
+      let g = 0;
+      let b = 0;
+      for (let j = 0; j < componentsY; j++) {
+        for (let i = 0; i < componentsX; i++) {
+          const basis = Math.cos((Math.PI * x * i) / width) * Math.cos((Math.PI * y * j) / height);
+          const color = colors[i + j * componentsX];
+          r += color[0] * basis;
+          g += color[1] * basis;
+          b += color[2] * basis;
+        }
+      }
+      const p = 4 * (x + y * width);
+      pixels[p] = toSrgb(r);
+      pixels[p + 1] = toSrgb(g);
+      pixels[p + 2] = toSrgb(b);
+      pixels[p + 3] = 255;
+    }
+  }
+  return pixels;
+}
+
+/**
+ * Renders a hash as a data URL with the given aspect ratio.
+ *
+ * @returns the URL, or undefined outside a browser or for a malformed hash
+ */
+export function blurHashToDataUrl(hash: string, aspectRatio = 1): string | undefined {
+  if (typeof document === 'undefined') {
+    return undefined;
+  }
+  const width = aspectRatio >= 1 ? SIZE : Math.max(1, Math.round(SIZE * aspectRatio));
+  const height = aspectRatio >= 1 ? Math.max(1, Math.round(SIZE / aspectRatio)) : SIZE;
+  const pixels = decodeBlurHash(hash, width, height);
+  const canvas = document.createElement('canvas');
+  const context = canvas.getContext('2d');
+  if (!pixels || !context) {
+    return undefined;
+  }
+  canvas.width = width;
+  canvas.height = height;
+  const image = context.createImageData(width, height);
+  image.data.set(pixels);
+  context.putImageData(image, 0, 0);
+  return canvas.toDataURL();
+}
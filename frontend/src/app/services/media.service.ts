@@ -1,27 +1,126 @@
-import { HttpClient, HttpHeaders } from '@angular/common/http';
+import { HttpClient, HttpErrorResponse, HttpHeaders, HttpParams } from '@angular/common/http';
 import { Injectable } from '@angular/core';
-import { Observable } from 'rxjs';
+import { Observable, firstValueFrom, forkJoin, from, map, of } from 'rxjs';
 import { environment } from '../../environments/environments';
-import { Avatar, Media } from '../models/ecommerce.model';
+import { Avatar, ImageSize, Media, UploadSession } from '../models/ecommerce.model';
 import { AuthService } from './auth.service';
+import { blurHashToDataUrl } from './blurhash';
 
 @Injectable({
   providedIn: 'root',
 })
 export class MediaService {
   private apiUrl = `${environment.apiUrl}/media`;
+  // The media service accepts chunks of up to 512 KB
+  private readonly chunkBytes = 256 * 1024;
+  private readonly maxChunkAttempts = 5;
+  // Decoded placeholders by hash; change detection asks for them on every pass
+  private placeholders = new Map<string, string | undefined>();
 
   constructor(private http: HttpClient, private authService: AuthService) {}
 
   uploadMedia(file: File, productId: string): Observable<Media> {
+    // Sent as the raw body so the media service can stream it straight to disk
+    const headers = new HttpHeaders({
+      Authorization: `Bearer ${localStorage.getItem('token')}`,
+      'Content-Type': file.type || 'application/octet-stream',
+      'X-File-Name': encodeURIComponent(file.name),
+    });
+
+    return this.http.post<Media>(`${this.apiUrl}/upload/${productId}`, file, {
+      headers: headers,
+      withCredentials: true,
+    });
+  }
+
+  // One image goes through a resumable upload, so a dropped connection only costs the chunk in flight;
+  // several go in one all-or-nothing batch
+  uploadMediaFiles(files: File[], productId: string): Observable<Media[]> {
+    if (files.length === 1) {
+      return this.uploadMediaResumable(files[0], productId).pipe(map((media) => [media]));
+    }
+    return this.uploadMediaBatch(files, productId);
+  }
+
+  // Sends the file in chunks; after a failed chunk it asks where the upload stands and carries on from there
+  uploadMediaResumable(file: File, productId: string): Observable<Media> {
+    return from(this.sendResumable(file, productId));
+  }
+
+  private async sendResumable(file: File, productId: string): Promise<Media> {
+    const digest = await crypto.subtle.digest('SHA-256', await file.arrayBuffer());
+    const sha256 = Array.from(new Uint8Array(digest), (b) => b.toString(16).padStart(2, '0')).join('');
+    const session = await firstValueFrom(
+      this.http.post<UploadSession>(`${this.apiUrl}/upload/${productId}/sessions`, null, {
+        headers: this.uploadHeaders({
+          'X-File-Name': encodeURIComponent(file.name),
+          'X-Upload-Length': String(file.size),
+          'X-Upload-Sha256': sha256,
+        }),
+        withCredentials: true,
+      })
+    );
+    const sessionUrl = `${this.apiUrl}/upload-sessions/${session.id}`;
+
+    let offset = 0;
+    let failures = 0;
+    while (offset < file.size) {
+      try {
+        const progress = await firstValueFrom(
+          this.http.put<UploadSession>(sessionUrl, file.slice(offset, offset + this.chunkBytes), {
+            headers: this.uploadHeaders({
+              'Content-Type': 'application/octet-stream',
+              'X-Upload-Offset': String(offset),
+            }),
+            withCredentials: true,
+          })
+        );
+        offset = progress.offset;
+        failures = 0;
+      } catch (error) {
+        if (++failures >= this.maxChunkAttempts || !this.isResumable(error)) {
+          throw error;
+        }
+        // The server keeps whatever arrived; continue from its offset, not ours
+        await new Promise((resolve) => setTimeout(resolve, 500 * 2 ** failures));
+        offset = (
+          await firstValueFrom(
+            this.http.get<UploadSession>(sessionUrl, { headers: this.uploadHeaders({}), withCredentials: true })
+          )
+        ).offset;
+      }
+    }
+
+    return firstValueFrom(
+      this.http.post<Media>(`${sessionUrl}/complete`, null, {
+        headers: this.uploadHeaders({}),
+        withCredentials: true,
+      })
+    );
+  }
+
+  // Connection failures, timeouts, server errors and offset conflicts can be resumed; anything else cannot
+  private isResumable(error: unknown): boolean {
+    return error instanceof HttpErrorResponse && (error.status === 0 || error.status === 409 || error.status >= 500);
+  }
+
+  private uploadHeaders(extra: Record<string, string>): HttpHeaders {
+    return new HttpHeaders({
+      Authorization: `Bearer ${localStorage.getItem('token')}`,
+      ...extra,
+    });
+  }
+
+  // All files in one request: the media service stores all of them or none
+  uploadMediaBatch(files: File[], productId: string): Observable<Media[]> {
     const formData = new FormData();
-    formData.append('file', file);
+    files.forEach((file) => formData.append('files', file));
 
     const headers = new HttpHeaders({
       Authorization: `Bearer ${localStorage.getItem('token')}`,
     });
 
-    return this.http.post<Media>(`${this.apiUrl}/upload/${productId}`, formData, {
+    return this.http.post<Media[]>(`${this.apiUrl}/upload/${productId}/batch`, formData, {
       headers: headers,
       withCredentials: true,
     });
@@ -31,8 +130,50 @@ export class MediaService {
     return this.http.get<Media[]>(`${this.apiUrl}/product/${productId}`);
   }
 
-  getMediaFile(mediaId: string): string {
-    return `${this.apiUrl}/file/${mediaId}`;
+  // Media of many products in one request per 100 products, keyed by product id;
+  // firstOnly returns just each product's first image, for thumbnails
+  getMediaByProducts(productIds: string[], firstOnly = false): Observable<Record<string, Media[]>> {
+    if (productIds.length === 0) {
+      return of({});
+    }
+    const requests: Observable<Record<string, Media[]>>[] = [];
+    for (let i = 0; i < productIds.length; i += 100) {
+      const params = new HttpParams()
+        .set('ids', productIds.slice(i, i + 100).join(','))
+        .set('first', String(firstOnly));
+      requests.push(this.http.get<Record<string, Media[]>>(`${this.apiUrl}/product/batch`, { params }));
+    }
+    return forkJoin(requests).pipe(map((pages) => Object.assign({}, ...pages)));
+  }
+
+  // width must be one of the sizes the media service allows (160, 320, 640, 1024)
+  getMediaFile(mediaId: string, width?: number): string {
+    const url = `${this.apiUrl}/file/${mediaId}`;
+    return width ? `${url}?w=${width}` : url;
+  }
+
+  // Size the image is shown at, so the page can reserve its space before it loads
+  getDisplaySize(image: Media | Avatar): ImageSize | undefined {
+    if (!image.width || !image.height) {
+      return undefined;
+    }
+    const rotated = (image.orientation ?? 1) >= 5;
+    return rotated
+      ? { width: image.height, height: image.width }
+      : { width: image.width, height: image.height };
+  }
+
+  // Blurred stand-in shown until the image loads, decoded from the hash the upload stored
+  getPlaceholder(image: Media | Avatar): string | undefined {
+    if (!image.blurHash) {
+      return undefined;
+    }
+    if (!this.placeholders.has(image.blurHash)) {
+      const size = this.getDisplaySize(image);
+      const url = blurHashToDataUrl(image.blurHash, size ? size.width / size.height : 1);
+      this.placeholders.set(image.blurHash, url);
+    }
+    return this.placeholders.get(image.blurHash);
   }
 
   deleteMedia(mediaId: string): Observable<any> {
@@ -72,6 +213,25 @@ export class MediaService {
     return `${this.apiUrl}/avatar/file/${avatarId}`;
   }
 
+  // Avatars of many users in one request per 100 users, keyed by user id; users without one are left out
+  getAvatarsByUserIds(userIds: string[]): Observable<Record<string, Avatar>> {
+    if (userIds.length === 0) {
+      return of({});
+    }
+    const requests: Observable<Record<string, Avatar>>[] = [];
+    for (let i = 0; i < userIds.length; i += 100) {
+      const params = new HttpParams().set('ids', userIds.slice(i, i + 100).join(','));
+      requests.push(this.http.get<Record<string, Avatar>>(`${this.apiUrl}/avatar/batch`, { params }));
+    }
+    return forkJoin(requests).pipe(map((pages) => Object.assign({}, ...pages)));
+  }
+
+  // Redirects to the user's current avatar, so an <img> needs no metadata request first;
+  // answers 404 for users without one
+  getUserAvatarUrl(userId: string): string {
+    return `${this.apiUrl}/avatar/user/${userId}/file`;
+  }
+
   deleteAvatar(): Observable<any> {
     return this.http.delete(`${this.apiUrl}/avatar`, {
       headers: this.authService.getAuthHeaders(),
@@ -2,7 +2,7 @@ import { HttpHeaders } from '@angular/common/http';
 import { HttpClientTestingModule, HttpTestingController } from '@angular/common/http/testing';
 import { TestBed } from '@angular/core/testing';
 import { environment } from '../../environments/environments';
-import { Product } from '../models/ecommerce.model';
+import { Product, ProductView } from '../models/ecommerce.model';
 import { AuthService } from './auth.service';
 import { ProductService } from './product.service';
 
@@ -106,6 +106,27 @@ describe('ProductService', () => {
     });
   });
 
+  describe('getProductView', () => {
+    it('should fetch the aggregated product view from the gateway', () => {
+      const productId = '1';
+      const mockView: ProductView = {
+        product: mockProduct,
+        images: [],
+        seller: null,
+        partial: true,
+        errors: { seller: 'user-service is unavailable' },
+      };
+
+      service.getProductView(productId).subscribe((view) => {
+        expect(view).toEqual(mockView);
+      });
+
+      const req = httpMock.expectOne(`${environment.apiUrl}/view/products/${productId}`);
+      expect(req.request.method).toBe('GET');
+      req.flush(mockView);
+    });
+  });
+
   describe('getMyProducts', () => {
     it('should fetch seller products with auth headers', () => {
       service.getMyProducts().subscribe((products) => {
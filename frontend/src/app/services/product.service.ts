@@ -2,7 +2,7 @@ import { HttpClient } from '@angular/common/http';
 import { Injectable } from '@angular/core';
 import { Observable } from 'rxjs';
 import { environment } from '../../environments/environments';
-import { Product } from '../models/ecommerce.model';
+import { Product, ProductView } from '../models/ecommerce.model';
 import { AuthService } from './auth.service';
 
 @Injectable({
@@ -10,6 +10,7 @@ import { AuthService } from './auth.service';
 })
 export class ProductService {
   private apiUrl = `${environment.apiUrl}/products`;
+  private viewUrl = `${environment.apiUrl}/view/products`;
 
   constructor(private http: HttpClient, private authService: AuthService) {}
 
@@ -21,6 +22,10 @@ export class ProductService {
     return this.http.get<Product>(`${this.apiUrl}/${id}`);
   }
 
+  getProductView(id: string): Observable<ProductView> {
+    return this.http.get<ProductView>(`${this.viewUrl}/${id}`);
+  }
+
   getMyProducts(): Observable<Product[]> {
     return this.http.get<Product[]>(`${this.apiUrl}/my-products`, {
       headers: this.authService.getAuthHeaders(),